@@ -0,0 +1,281 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LoadGenerator class drives a server over loopback with a mix of GETs and SETs, and reports the throughput and
+ * latency percentiles it saw as JSON, so that the results of two builds can be compared.
+ * <p>
+ * Unless {@code --host} is given, the server is started in the same process, on a free port and an empty
+ * directory. Each connection runs on a thread of its own and sends pipelines of {@code --pipeline} commands,
+ * waiting for all of their replies before sending the next. The latency of a command runs from the moment its
+ * pipeline is sent to the moment its reply is read. Before measuring, the key space is filled so that GETs hit,
+ * and the load runs for {@code --warmup} seconds unmeasured.
+ * <p>
+ * Options, with their defaults:
+ * <ul>
+ *     <li>{@code --host <host>} and {@code --port <port>}: a server to drive instead of an in-process one</li>
+ *     <li>{@code --server-mode threads|eventloop}: how the in-process server serves connections (threads)</li>
+ *     <li>{@code --shards <n>}: the number of shards of the in-process server (0, none)</li>
+ *     <li>{@code --connections <n>}: connections sending at once (8)</li>
+ *     <li>{@code --pipeline <n>}: commands sent before waiting for their replies (1)</li>
+ *     <li>{@code --keys <n>}: the size of the key space (100000)</li>
+ *     <li>{@code --value-size <bytes>}: the size of the values SET (64)</li>
+ *     <li>{@code --read-ratio <0..1>}: the share of commands that are GETs (0.8)</li>
+ *     <li>{@code --ttl-ratio <0..1>}: the share of SETs given a time to live (0)</li>
+ *     <li>{@code --ttl <milliseconds>}: the time to live of those SETs (10000)</li>
+ *     <li>{@code --warmup <seconds>} and {@code --duration <seconds>}: how long to warm up and measure (2 and 10)</li>
+ *     <li>{@code --out <file>}: where to write the results, besides standard output (load-results.json)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private static final int PREFILL_BATCH = 1000;
+
+    private String host;
+    private int port;
+    private String serverMode = "threads";
+    private int shards;
+    private int connections = 8;
+    private int pipeline = 1;
+    private int keys = 100_000;
+    private int valueSize = 64;
+    private double readRatio = 0.8;
+    private double ttlRatio = 0;
+    private int ttl = 10_000;
+    private int warmupSeconds = 2;
+    private int durationSeconds = 10;
+    private String out = "load-results.json";
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    /**
+     * Runs the load and writes its results.
+     *
+     * @param args the options
+     * @throws Exception if the server cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i].toLowerCase()) {
+                case "--host" -> generator.host = value;
+                case "--port" -> generator.port = Integer.parseInt(value);
+                case "--server-mode" -> generator.serverMode = value;
+                case "--shards" -> generator.shards = Integer.parseInt(value);
+                case "--connections" -> generator.connections = Integer.parseInt(value);
+                case "--pipeline" -> generator.pipeline = Integer.parseInt(value);
+                case "--keys" -> generator.keys = Integer.parseInt(value);
+                case "--value-size" -> generator.valueSize = Integer.parseInt(value);
+                case "--read-ratio" -> generator.readRatio = Double.parseDouble(value);
+                case "--ttl-ratio" -> generator.ttlRatio = Double.parseDouble(value);
+                case "--ttl" -> generator.ttl = Integer.parseInt(value);
+                case "--warmup" -> generator.warmupSeconds = Integer.parseInt(value);
+                case "--duration" -> generator.durationSeconds = Integer.parseInt(value);
+                case "--out" -> generator.out = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        String results = generator.run();
+        System.out.println(results);
+        Files.writeString(Path.of(generator.out), results + "\n");
+        // The in-process server never stops by itself
+        System.exit(0);
+    }
+
+    private String run() throws Exception {
+        if (host == null) {
+            startServer();
+        }
+        prefill();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            threads.add(Thread.ofPlatform().name("load-" + i).start(() -> drive(socket)));
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        long start = System.nanoTime();
+        measuring = true;
+        Thread.sleep(durationSeconds * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return results(elapsed);
+    }
+
+    /**
+     * Starts a server in this process, on a free port and a directory of its own, and waits until it accepts.
+     */
+    private void startServer() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        host = "127.0.0.1";
+        String dir = Files.createTempDirectory("load-generator").toString();
+        String[] args = {"--port", Integer.toString(port), "--dir", dir, "--server-mode", serverMode,
+                "--shards", Integer.toString(shards)};
+        Thread.ofPlatform().daemon().name("server").start(() -> {
+            try {
+                Main.main(args);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        for (int attempt = 0; ; attempt++) {
+            try (Socket ignored = new Socket(host, port)) {
+                return;
+            } catch (ConnectException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Sets every key of the key space, a batch of pipelined SETs at a time.
+     */
+    private void prefill() throws IOException {
+        String value = "x".repeat(valueSize);
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            for (int from = 0; from < keys; from += PREFILL_BATCH) {
+                int to = Math.min(from + PREFILL_BATCH, keys);
+                for (int i = from; i < to; i++) {
+                    output.write(OutputHandler.getBulkStringArray("SET", "key:" + i, value));
+                }
+                output.flush();
+                for (int i = from; i < to; i++) {
+                    skipReply(input);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends pipelines of commands on one connection until stopped.
+     */
+    private void drive(Socket socket) {
+        SplittableRandom random = new SplittableRandom();
+        String value = "x".repeat(valueSize);
+        String ttlMillis = Integer.toString(ttl);
+        try (socket) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            while (!stopped) {
+                for (int i = 0; i < pipeline; i++) {
+                    String key = "key:" + random.nextInt(keys);
+                    byte[] command;
+                    if (random.nextDouble() < readRatio) {
+                        command = OutputHandler.getBulkStringArray("GET", key);
+                    } else if (random.nextDouble() < ttlRatio) {
+                        command = OutputHandler.getBulkStringArray("SET", key, value, "PX", ttlMillis);
+                    } else {
+                        command = OutputHandler.getBulkStringArray("SET", key, value);
+                    }
+                    output.write(command);
+                }
+                boolean measured = measuring;
+                long sent = System.nanoTime();
+                output.flush();
+                for (int i = 0; i < pipeline; i++) {
+                    boolean failed = skipReply(input);
+                    if (measured) {
+                        latency.record(System.nanoTime() - sent);
+                        requests.increment();
+                        if (failed) {
+                            errors.increment();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads one reply, of the kinds GET and SET send.
+     *
+     * @return true if the reply was an error
+     */
+    private static boolean skipReply(InputStream input) throws IOException {
+        int type = input.read();
+        long length = readLine(input);
+        switch (type) {
+            case '+', ':' -> {
+                return false;
+            }
+            case '-' -> {
+                return true;
+            }
+            case '$' -> {
+                if (length >= 0) {
+                    input.skipNBytes(length + 2);
+                }
+                return false;
+            }
+            case -1 -> throw new EOFException("Connection closed by the server");
+            default -> throw new IOException("Unexpected reply type: " + (char) type);
+        }
+    }
+
+    /**
+     * Reads the rest of a reply's first line, returning it as a number if it is one.
+     */
+    private static long readLine(InputStream input) throws IOException {
+        long number = 0;
+        boolean negative = false;
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Connection closed by the server");
+            }
+            if (b == '-') {
+                negative = true;
+            } else if (b >= '0' && b <= '9') {
+                number = number * 10 + (b - '0');
+            }
+        }
+        return negative ? -number : number;
+    }
+
+    private String results(long elapsedNanos) {
+        long[] p = latency.percentiles(50, 99, 99.9, 100);
+        double seconds = elapsedNanos / 1e9;
+        long total = requests.sum();
+        return String.format(Locale.ROOT, "{\"connections\":%d,\"pipeline\":%d,\"keys\":%d,\"valueSize\":%d,"
+                        + "\"readRatio\":%.2f,\"ttlRatio\":%.2f,\"serverMode\":\"%s\",\"shards\":%d,"
+                        + "\"durationSeconds\":%.3f,"
+                        + "\"requests\":%d,\"errors\":%d,\"opsPerSecond\":%.1f,"
+                        + "\"latencyMicros\":{\"p50\":%.1f,\"p99\":%.1f,\"p999\":%.1f,\"max\":%.1f}}",
+                connections, pipeline, keys, valueSize, readRatio, ttlRatio, serverMode, shards, seconds,
+                total, errors.sum(), total / seconds,
+                p[0] / 1e3, p[1] / 1e3, p[2] / 1e3, p[3] / 1e3);
+    }
+}
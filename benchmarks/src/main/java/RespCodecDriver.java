@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import bench.RespCodecBenchmark;
+
+/**
+ * The RespCodecDriver class runs the operations of {@link RespCodecBenchmark} on an {@link InputHandler} and an
+ * {@link OutputHandler}.
+ */
+public class RespCodecDriver implements RespCodecBenchmark.Codec {
+    private int pipeline;
+    private InputHandler input;
+    private OutputHandler output;
+    private byte[] value;
+    private List<byte[]> values;
+
+    /**
+     * An endless stream that replays the same bytes, as if a client kept sending the same pipeline.
+     */
+    private static final class ReplayingInputStream extends InputStream {
+        private final byte[] bytes;
+        private int next;
+
+        ReplayingInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            int b = bytes[next] & 0xff;
+            next = (next + 1) % bytes.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, bytes.length - next);
+            System.arraycopy(bytes, next, b, off, n);
+            next = (next + n) % bytes.length;
+            return n;
+        }
+    }
+
+    @Override
+    public void setUp(int valueSize, int pipeline) {
+        this.pipeline = pipeline;
+        value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        String payload = "x".repeat(valueSize);
+        byte[][] commands = new byte[pipeline][];
+        int length = 0;
+        for (int i = 0; i < pipeline; i++) {
+            commands[i] = OutputHandler.getBulkStringArray("SET", "key:" + i, payload);
+            length += commands[i].length;
+        }
+        byte[] bytes = new byte[length];
+        int at = 0;
+        for (byte[] command : commands) {
+            System.arraycopy(command, 0, bytes, at, command.length);
+            at += command.length;
+        }
+        input = new InputHandler(new ReplayingInputStream(bytes));
+        output = new OutputHandler(OutputStream.nullOutputStream());
+        values = new ArrayList<>();
+        for (int i = 0; i < pipeline; i++) {
+            values.add(value);
+        }
+    }
+
+    @Override
+    public void readPipeline(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < pipeline; i++) {
+            blackhole.consume(input.readBulkStringArray());
+        }
+    }
+
+    @Override
+    public void writeSimpleStrings() throws IOException {
+        for (int i = 0; i < pipeline; i++) {
+            output.writeSimpleString("OK");
+        }
+        output.flush();
+    }
+
+    @Override
+    public void writeBulkStrings() throws IOException {
+        for (int i = 0; i < pipeline; i++) {
+            output.writeBulkString(value);
+        }
+        output.flush();
+    }
+
+    @Override
+    public void writeIntegers() throws IOException {
+        for (int i = 0; i < pipeline; i++) {
+            output.writeInteger(100_000L + i);
+        }
+        output.flush();
+    }
+
+    @Override
+    public void writeBulkStringArray() throws IOException {
+        output.writeBulkStringArray(values);
+        output.flush();
+    }
+}
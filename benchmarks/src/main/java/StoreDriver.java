@@ -0,0 +1,34 @@
+import java.util.Arrays;
+
+import bench.StoreBenchmark;
+
+/**
+ * The StoreDriver class runs the operations of {@link StoreBenchmark} on a {@link KeyValueHandler}.
+ */
+public class StoreDriver implements StoreBenchmark.Store {
+    private KeyValueHandler store;
+    private String[] keys;
+    private byte[] value;
+
+    @Override
+    public void setUp(int keySpace, int valueSize, boolean offHeap) {
+        store = new KeyValueHandler(offHeap);
+        value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
+        keys = new String[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = "key:" + i;
+            store.set(keys[i], value);
+        }
+    }
+
+    @Override
+    public byte[] get(int key) {
+        return store.getBytes(keys[key]);
+    }
+
+    @Override
+    public void set(int key) {
+        store.set(keys[key], value);
+    }
+}
@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The RespCodecBenchmark class measures how fast a pipeline of commands is decoded by {@code InputHandler} and how
+ * fast replies are encoded by {@code OutputHandler}, without a socket in the way.
+ * <p>
+ * The input is a pipeline of SET commands, encoded once and replayed from memory over and over, so that each
+ * operation decodes a whole pipeline from the handler's buffer as a connection would. Replies are written to a
+ * stream that discards them and flushed once per pipeline.
+ * <p>
+ * JMH refuses benchmarks in the default package, where the server's classes are, and a named package cannot refer
+ * to those; so the handlers are driven through a {@link Codec} implemented next to them, by {@code RespCodecDriver}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RespCodecBenchmark {
+    /**
+     * The codec operations measured, each over one pipeline.
+     */
+    public interface Codec {
+        void setUp(int valueSize, int pipeline);
+
+        void readPipeline(Blackhole blackhole) throws IOException;
+
+        void writeSimpleStrings() throws IOException;
+
+        void writeBulkStrings() throws IOException;
+
+        void writeIntegers() throws IOException;
+
+        void writeBulkStringArray() throws IOException;
+    }
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    @Param({"1", "16"})
+    int pipeline;
+
+    private Codec codec;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        codec = (Codec) Class.forName("RespCodecDriver").getDeclaredConstructor().newInstance();
+        codec.setUp(valueSize, pipeline);
+    }
+
+    /**
+     * Decodes one pipeline of commands.
+     */
+    @Benchmark
+    public void readBulkStringArray(Blackhole blackhole) throws IOException {
+        codec.readPipeline(blackhole);
+    }
+
+    /**
+     * Encodes the replies to a pipeline of SETs.
+     */
+    @Benchmark
+    public void writeSimpleString() throws IOException {
+        codec.writeSimpleStrings();
+    }
+
+    /**
+     * Encodes the replies to a pipeline of GETs.
+     */
+    @Benchmark
+    public void writeBulkString() throws IOException {
+        codec.writeBulkStrings();
+    }
+
+    /**
+     * Encodes the replies to a pipeline of INCRs.
+     */
+    @Benchmark
+    public void writeInteger() throws IOException {
+        codec.writeIntegers();
+    }
+
+    /**
+     * Encodes the reply to an MGET of as many keys as the pipeline is deep.
+     */
+    @Benchmark
+    public void writeBulkStringArray() throws IOException {
+        codec.writeBulkStringArray();
+    }
+}
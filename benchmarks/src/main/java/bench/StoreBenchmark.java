@@ -0,0 +1,98 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The StoreBenchmark class measures GET and SET on a {@code KeyValueHandler}, from one thread and from as many
+ * threads as there are cores.
+ * <p>
+ * Keys are picked at random from a key space filled before measuring. A small key space makes the threads collide
+ * on the same keys and map bins, a large one spreads them out; run with {@code -p keySpace=...} to try others, or
+ * with {@code -t} to override the thread counts. The store is driven through a {@link Store} implemented in the
+ * default package by {@code StoreDriver}, for the same reason as in {@link RespCodecBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+    /**
+     * The store operations measured, on keys numbered from 0.
+     */
+    public interface Store {
+        void setUp(int keySpace, int valueSize, boolean offHeap);
+
+        byte[] get(int key);
+
+        void set(int key);
+    }
+
+    @Param({"16", "100000"})
+    int keySpace;
+
+    @Param({"64"})
+    int valueSize;
+
+    @Param({"heap", "offheap"})
+    String valueStorage;
+
+    private Store store;
+
+    /**
+     * The random keys of one thread.
+     */
+    @State(Scope.Thread)
+    public static class Picker {
+        private final SplittableRandom random = new SplittableRandom();
+
+        int next(StoreBenchmark benchmark) {
+            return random.nextInt(benchmark.keySpace);
+        }
+    }
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        store = (Store) Class.forName("StoreDriver").getDeclaredConstructor().newInstance();
+        store.setUp(keySpace, valueSize, valueStorage.equals("offheap"));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] get(Picker picker) {
+        return store.get(picker.next(this));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void set(Picker picker) {
+        store.set(picker.next(this));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] getContended(Picker picker) {
+        return store.get(picker.next(this));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void setContended(Picker picker) {
+        store.set(picker.next(this));
+    }
+}
@@ -0,0 +1,797 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The AppendOnlyFile class logs every write command to a file, so that the store survives a restart with at most
+ * the writes of the last moment lost, and replays the file on startup.
+ * <p>
+ * Commands are appended in RESP to an in-memory buffer, which a writer thread of its own drains to the file. How
+ * often the file is synced to disk follows the {@link FsyncPolicy}. Under {@code always}, a reply may only be sent
+ * once its command is on disk; everything appended while the writer is busy with one sync goes out with the next,
+ * so concurrent writers share a sync instead of queueing for one each. Connections find out through
+ * {@link #awaitSynced(long)} or {@link #whenSynced(long, Runnable)}, so no thread ever waits on the disk itself.
+ * <p>
+ * A rewrite replaces the log by the shortest list of commands that recreates the store, taken from a snapshot of
+ * the store while commands keep being appended. Commands appended meanwhile are kept aside and added to the new log
+ * before it takes the place of the old one.
+ */
+public class AppendOnlyFile {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // The tail of a rewrite is copied in rounds outside the lock until it is at most this large
+    private static final int REWRITE_TAIL_SIZE = 64 * 1024;
+    private static final long EVERYSEC_MILLIS = 1000;
+    // Elements added by each command that recreates a collection in a rewrite
+    private static final int REWRITE_ITEMS_PER_COMMAND = 64;
+
+    /**
+     * How often the file is synced to disk.
+     */
+    public enum FsyncPolicy {
+        // After every write, before the reply is sent
+        ALWAYS("always"),
+        // Once a second, losing at most the last second of writes
+        EVERYSEC("everysec"),
+        // Whenever the operating system sees fit
+        NO("no");
+
+        private final String configName;
+
+        FsyncPolicy(String configName) {
+            this.configName = configName;
+        }
+
+        /**
+         * Returns the name of this policy as used in configuration, e.g. {@code everysec}.
+         *
+         * @return the configuration name
+         */
+        public String configName() {
+            return configName;
+        }
+
+        /**
+         * Looks up a policy by its configuration name, ignoring case.
+         *
+         * @param name the configuration name
+         * @return the policy
+         * @throws IllegalArgumentException if there is no policy of that name
+         */
+        public static FsyncPolicy fromConfigName(String name) {
+            for (FsyncPolicy policy : values()) {
+                if (policy.configName.equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown appendfsync policy: " + name);
+        }
+    }
+
+    /**
+     * A callback waiting for the log to be synced up to an offset.
+     */
+    private record Waiter(long offset, Runnable callback) {
+    }
+
+    private final KeyValueHandler store;
+    private final Path file;
+    private final FsyncPolicy policy;
+    // Held by commands from changing the store until they are appended
+    private final KeyLocks keyLocks;
+    private final AtomicBoolean rewriting = new AtomicBoolean();
+    // Guards everything below
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    // Commands appended but not handed to the writer yet, and the array the writer hands back for reuse
+    private byte[] pending = new byte[INITIAL_BUFFER_SIZE];
+    private int pendingCount;
+    private byte[] spare = new byte[INITIAL_BUFFER_SIZE];
+    // Offsets count every byte ever appended, across rewrites
+    private long appendedOffset;
+    private long syncedOffset;
+    private final List<Waiter> waiters = new ArrayList<>();
+    private FileChannel channel;
+    // Replaced by rewrites and closed by the writer, which may still be writing to them
+    private final List<FileChannel> retired = new ArrayList<>();
+    // Commands appended while a rewrite is running, or null
+    private ByteArrayOutputStream rewriteBuffer;
+    private Thread writer;
+    private boolean closed;
+    private long syncs;
+
+    /**
+     * Constructs an AppendOnlyFile for the specified store and file. Nothing is read or written before
+     * {@link #load()} or {@link #start()}.
+     *
+     * @param store  the key-value store
+     * @param file   the file to log to
+     * @param policy how often to sync the file
+     */
+    public AppendOnlyFile(KeyValueHandler store, Path file, FsyncPolicy policy) {
+        this(store, file, policy, new KeyLocks(1));
+    }
+
+    /**
+     * Constructs an AppendOnlyFile for the specified store and file, logging commands that hold the stripes of
+     * their keys from the moment they change the store until they are appended. A rewrite starts its snapshot with
+     * every stripe locked, so that each command ends up either in the snapshot or after it, never in both.
+     *
+     * @param store    the key-value store
+     * @param file     the file to log to
+     * @param policy   how often to sync the file
+     * @param keyLocks the locks commands hold while changing the store and appending
+     */
+    public AppendOnlyFile(KeyValueHandler store, Path file, FsyncPolicy policy, KeyLocks keyLocks) {
+        this.store = store;
+        this.file = file;
+        this.policy = policy;
+        this.keyLocks = keyLocks;
+    }
+
+    /**
+     * Replays the file into the store, if there is one. The commands are streamed through the RESP parser, so
+     * files of any size are replayed in constant memory. A command cut short at the end of the file, as left by a
+     * crash in the middle of a write, is truncated away. The commands of a transaction, logged between MULTI and
+     * EXEC, are only applied once its EXEC is read, so a transaction cut short is truncated away as a whole.
+     *
+     * @return the number of commands replayed, or -1 if there was no file
+     * @throws IOException if the file cannot be read or holds something other than write commands
+     */
+    public long load() throws IOException {
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        long size = Files.size(file);
+        long commands = 0;
+        // The commands of the transaction being read, and where its MULTI starts
+        List<String[]> transaction = null;
+        long transactionStart = 0;
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), INITIAL_BUFFER_SIZE);
+             InputHandler in = new InputHandler(stream)) {
+            while (true) {
+                long position = in.getPosition();
+                String[] args = null;
+                if (position < size) {
+                    try {
+                        args = in.readBulkStringArray();
+                    } catch (EOFException e) {
+                        // truncated below
+                    }
+                }
+                if (args == null) {
+                    long end = transaction != null ? transactionStart : position;
+                    if (end < size) {
+                        Log.warning("Truncating append-only file after " + end + " of " + size + " bytes");
+                        try (FileChannel truncated = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                            truncated.truncate(end);
+                        }
+                    }
+                    break;
+                }
+                if (args[0].equalsIgnoreCase("MULTI")) {
+                    transaction = new ArrayList<>();
+                    transactionStart = position;
+                } else if (args[0].equalsIgnoreCase("EXEC") && transaction != null) {
+                    for (String[] queued : transaction) {
+                        apply(queued);
+                    }
+                    commands += transaction.size();
+                    transaction = null;
+                } else if (transaction != null) {
+                    transaction.add(args);
+                } else {
+                    apply(args);
+                    commands++;
+                }
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Applies a logged command to the store.
+     */
+    private void apply(String[] args) throws IOException {
+        switch (args[0].toUpperCase()) {
+            case "SET" -> {
+                long expiresAt = -1;
+                if (args.length == 5 && args[3].equalsIgnoreCase("PXAT")) {
+                    expiresAt = Long.parseLong(args[4]);
+                } else if (args.length == 5 && args[3].equalsIgnoreCase("PX")) {
+                    expiresAt = System.currentTimeMillis() + Long.parseLong(args[4]);
+                }
+                if (expiresAt >= 0 && expiresAt < System.currentTimeMillis()) {
+                    // Expired while the server was down; the key must not keep an older value either
+                    store.delete(args[1]);
+                } else {
+                    store.restore(args[1], args[2].getBytes(StandardCharsets.ISO_8859_1), expiresAt);
+                }
+            }
+            case "DEL" -> store.deleteAll(args, 1);
+            case "MSET" -> store.setAll(args, 1);
+            case "INCR" -> store.incrementBy(args[1], 1);
+            case "DECR" -> store.incrementBy(args[1], -1);
+            case "INCRBY" -> store.incrementBy(args[1], Long.parseLong(args[2]));
+            case "DECRBY" -> store.incrementBy(args[1], -Long.parseLong(args[2]));
+            case "APPEND" -> store.append(args[1], args[2].getBytes(StandardCharsets.ISO_8859_1));
+            case "GETSET" -> store.getAndSet(args[1], args[2].getBytes(StandardCharsets.ISO_8859_1));
+            case "HSET" -> store.update(args[1], HashValue.class, HashValue::new, hash -> hash.set(args, 2));
+            case "HDEL" -> store.update(args[1], HashValue.class, null, hash -> {
+                for (int i = 2; i < args.length; i++) {
+                    hash.delete(args[i]);
+                }
+                return null;
+            });
+            case "LPUSH", "RPUSH" -> store.update(args[1], ListValue.class, ListValue::new, list -> {
+                list.push(args, 2, args[0].equalsIgnoreCase("LPUSH"));
+                return null;
+            });
+            case "LPOP", "RPOP" -> store.update(args[1], ListValue.class, null, list -> {
+                long count = args.length > 2 ? Long.parseLong(args[2]) : 1;
+                for (long i = 0; i < count && list.pop(args[0].equalsIgnoreCase("LPOP")) != null; i++) {
+                    // popped
+                }
+                return null;
+            });
+            case "SADD" -> store.update(args[1], SetValue.class, SetValue::new, set -> set.add(args, 2));
+            case "SREM" -> store.update(args[1], SetValue.class, null, set -> set.remove(args, 2));
+            case "ZADD" -> {
+                double[] scores = new double[(args.length - 2) / 2];
+                for (int i = 0; i < scores.length; i++) {
+                    scores[i] = SortedSetValue.parseScore(args[2 + 2 * i]);
+                }
+                store.update(args[1], SortedSetValue.class, SortedSetValue::new, zset -> {
+                    for (int i = 0; i < scores.length; i++) {
+                        zset.add(args[3 + 2 * i], scores[i]);
+                    }
+                    return null;
+                });
+            }
+            case "XADD" -> {
+                StreamValue.Id id = StreamValue.Id.parse(args[2], 0);
+                store.update(args[1], StreamValue.class, StreamValue::new, stream -> {
+                    stream.append(id, args, 3);
+                    return null;
+                });
+            }
+            case "ZREM" -> store.update(args[1], SortedSetValue.class, null, zset -> {
+                for (int i = 2; i < args.length; i++) {
+                    zset.remove(args[i]);
+                }
+                return null;
+            });
+            default -> throw new IOException("Unexpected command in append-only file: " + args[0]);
+        }
+    }
+
+    /**
+     * Opens the file for appending, unless a rewrite has already created it, and starts the writer thread.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    public void start() throws IOException {
+        lock.lock();
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            writer = Thread.ofPlatform().name("aof-writer").daemon().start(this::writeLoop);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a write command to the log. Returns at once; the command reaches the file shortly after.
+     *
+     * @param args the command and its arguments
+     * @return the offset to pass to {@link #awaitSynced(long)} or {@link #whenSynced(long, Runnable)}
+     */
+    public long append(String... args) {
+        return append(OutputHandler.getBulkStringArray(args));
+    }
+
+    /**
+     * Appends the write commands of a transaction to the log as one unit, between MULTI and EXEC, so that a
+     * replay applies either all of them or none. Returns at once; the commands reach the file shortly after.
+     *
+     * @param commands the commands, each with its arguments
+     * @return the offset to pass to {@link #awaitSynced(long)} or {@link #whenSynced(long, Runnable)}
+     */
+    public long appendTransaction(List<String[]> commands) {
+        ByteArrayOutputStream transaction = new ByteArrayOutputStream();
+        transaction.writeBytes(OutputHandler.getBulkStringArray("MULTI"));
+        for (String[] args : commands) {
+            transaction.writeBytes(OutputHandler.getBulkStringArray(args));
+        }
+        transaction.writeBytes(OutputHandler.getBulkStringArray("EXEC"));
+        return append(transaction.toByteArray());
+    }
+
+    private long append(byte[] command) {
+        lock.lock();
+        try {
+            if (pendingCount + command.length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pendingCount + command.length, pending.length * 2));
+            }
+            System.arraycopy(command, 0, pending, pendingCount, command.length);
+            pendingCount += command.length;
+            if (rewriteBuffer != null) {
+                rewriteBuffer.write(command, 0, command.length);
+            }
+            appendedOffset += command.length;
+            appended.signal();
+            return appendedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the log is synced up to the given offset, if the policy asks for replies to wait for that.
+     *
+     * @param offset the offset returned by {@link #append(String...)}
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void awaitSynced(long offset) throws InterruptedIOException {
+        if (policy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (syncedOffset < offset) {
+                synced.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Arranges for a callback once the log is synced up to the given offset, for callers that must not wait, such
+     * as event loops. Does nothing if the policy does not ask replies to wait, or the offset is synced already.
+     *
+     * @param offset   the offset returned by {@link #append(String...)}
+     * @param callback run on the writer thread once the offset is synced
+     * @return true if the callback will be run, false if there is nothing to wait for
+     */
+    public boolean whenSynced(long offset, Runnable callback) {
+        if (policy != FsyncPolicy.ALWAYS) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (syncedOffset >= offset) {
+                return false;
+            }
+            waiters.add(new Waiter(offset, callback));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drains appended commands to the file and syncs it as the policy says, until closed.
+     */
+    private void writeLoop() {
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+        while (true) {
+            byte[] batch;
+            int length;
+            long batchEnd;
+            FileChannel target;
+            lock.lock();
+            try {
+                closeRetired();
+                while (pendingCount == 0 && !closed) {
+                    if (policy == FsyncPolicy.EVERYSEC && unsynced) {
+                        long wait = lastSync + EVERYSEC_MILLIS - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        appended.await(wait, TimeUnit.MILLISECONDS);
+                    } else {
+                        appended.await();
+                    }
+                }
+                if (closed && pendingCount == 0) {
+                    // close() syncs what is left
+                    return;
+                }
+                batch = pending;
+                length = pendingCount;
+                batchEnd = appendedOffset;
+                target = channel;
+                pending = spare;
+                pendingCount = 0;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch, 0, length);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                unsynced |= length > 0;
+                long now = System.currentTimeMillis();
+                boolean sync = switch (policy) {
+                    case ALWAYS -> true;
+                    case EVERYSEC -> unsynced && now - lastSync >= EVERYSEC_MILLIS;
+                    case NO -> false;
+                };
+                if (sync) {
+                    target.force(false);
+                    lastSync = now;
+                    unsynced = false;
+                }
+                if (policy != FsyncPolicy.EVERYSEC || sync) {
+                    publishSynced(target, batchEnd, sync);
+                }
+            } catch (IOException e) {
+                Log.warning("Append-only file write error: " + e.getMessage());
+                // Nothing was acknowledged, so put the batch back in front and try again shortly
+                requeue(target, batch, length);
+                try {
+                    Thread.sleep(EVERYSEC_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            lock.lock();
+            try {
+                spare = batch;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void requeue(FileChannel target, byte[] batch, int length) {
+        lock.lock();
+        try {
+            if (target != channel) {
+                // A rewrite has put the batch in the new log already
+                return;
+            }
+            byte[] merged = new byte[Math.max(length + pendingCount, INITIAL_BUFFER_SIZE)];
+            System.arraycopy(batch, 0, merged, 0, length);
+            System.arraycopy(pending, 0, merged, length, pendingCount);
+            pending = merged;
+            pendingCount += length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the log is synced up to the given offset and runs the callbacks waiting for it. A sync of a file
+     * a rewrite has replaced meanwhile counts for nothing, as what it synced may not be in the new log on disk yet.
+     */
+    private void publishSynced(FileChannel target, long offset, boolean counted) {
+        List<Waiter> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            if (counted) {
+                syncs++;
+            }
+            if (target != channel) {
+                return;
+            }
+            // A rewrite may have synced further already
+            syncedOffset = Math.max(syncedOffset, offset);
+            waiters.removeIf(waiter -> waiter.offset <= syncedOffset && ready.add(waiter));
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Waiter waiter : ready) {
+            waiter.callback.run();
+        }
+    }
+
+    private void closeRetired() {
+        for (FileChannel old : retired) {
+            try {
+                old.close();
+            } catch (IOException e) {
+                Log.warning("Append-only file close error: " + e.getMessage());
+            }
+        }
+        retired.clear();
+    }
+
+    /**
+     * Starts rewriting the log on a virtual thread of its own and returns at once.
+     *
+     * @throws CommandException if a rewrite is already in progress
+     */
+    public void backgroundRewrite() {
+        if (!rewriting.compareAndSet(false, true)) {
+            throw new CommandException("ERR Background append only file rewriting already in progress");
+        }
+        Thread.ofVirtual().name("bgrewriteaof").start(() -> {
+            try {
+                doRewrite();
+            } catch (IOException e) {
+                Log.warning("Background append only file rewriting error: " + e.getMessage());
+            } finally {
+                rewriting.set(false);
+            }
+        });
+    }
+
+    /**
+     * Rewrites the log, returning once the new log is in place.
+     *
+     * @throws IOException if the new log cannot be written
+     * @throws CommandException if a rewrite is already in progress
+     */
+    public void rewrite() throws IOException {
+        if (!rewriting.compareAndSet(false, true)) {
+            throw new CommandException("ERR Background append only file rewriting already in progress");
+        }
+        try {
+            doRewrite();
+        } finally {
+            rewriting.set(false);
+        }
+    }
+
+    /**
+     * Returns whether a rewrite is in progress.
+     *
+     * @return true while a rewrite is running
+     */
+    public boolean isRewriting() {
+        return rewriting.get();
+    }
+
+    private void doRewrite() throws IOException {
+        Path temp = file.toAbsolutePath().getParent()
+                .resolve("temp-rewriteaof-" + ProcessHandle.current().pid() + "-" + file.getFileName());
+        FileChannel newChannel = null;
+        boolean installed = false;
+        try {
+            newChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(newChannel), 1024 * 1024);
+            store.snapshot(new KeyValueHandler.EntryVisitor() {
+                @Override
+                public void visit(String key, byte[] value, long expiresAt) throws IOException {
+                    String string = new String(value, StandardCharsets.ISO_8859_1);
+                    out.write(expiresAt < 0
+                            ? OutputHandler.getBulkStringArray("SET", key, string)
+                            : OutputHandler.getBulkStringArray("SET", key, string, "PXAT", String.valueOf(expiresAt)));
+                }
+
+                @Override
+                public void visit(String key, CollectionValue value, long expiresAt) throws IOException {
+                    writeCollection(out, key, value);
+                }
+            }, keyLocks, () -> {
+                // Commands change the store before they append, so with none between the two, every command
+                // applied before the snapshot starts is appended before the buffer, and every later one into it
+                lock.lock();
+                try {
+                    rewriteBuffer = new ByteArrayOutputStream();
+                } finally {
+                    lock.unlock();
+                }
+            });
+            // Copy what was appended meanwhile in rounds, so writers are never held up by the copying
+            long copiedOffset;
+            while (true) {
+                byte[] tail;
+                lock.lock();
+                try {
+                    tail = rewriteBuffer.toByteArray();
+                    rewriteBuffer.reset();
+                    copiedOffset = appendedOffset;
+                } finally {
+                    lock.unlock();
+                }
+                out.write(tail);
+                if (tail.length <= REWRITE_TAIL_SIZE) {
+                    break;
+                }
+            }
+            out.flush();
+            newChannel.force(true);
+            lock.lock();
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                installed = true;
+                // Whatever is pending is in the new log already, except what was appended since the last round,
+                // which the writer writes and syncs there as usual
+                byte[] rest = rewriteBuffer.toByteArray();
+                if (rest.length > pending.length) {
+                    pending = rest;
+                } else {
+                    System.arraycopy(rest, 0, pending, 0, rest.length);
+                }
+                pendingCount = rest.length;
+                if (channel != null) {
+                    retired.add(channel);
+                }
+                channel = newChannel;
+                rewriteBuffer = null;
+                appended.signal();
+            } finally {
+                lock.unlock();
+            }
+            publishSynced(newChannel, copiedOffset, false);
+        } finally {
+            if (!installed) {
+                lock.lock();
+                try {
+                    rewriteBuffer = null;
+                } finally {
+                    lock.unlock();
+                }
+                if (newChannel != null) {
+                    newChannel.close();
+                }
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Writes the commands that recreate a collection, each adding up to {@value #REWRITE_ITEMS_PER_COMMAND}
+     * elements as Redis does, so that no single command grows with the collection. A stream is recreated with an
+     * XADD per entry.
+     */
+    private static void writeCollection(OutputStream out, String key, CollectionValue value) throws IOException {
+        List<String> args = new ArrayList<>();
+        String command;
+        int width;
+        if (value instanceof HashValue hash) {
+            command = "HSET";
+            width = 2;
+            hash.forEach((field, v) -> {
+                args.add(field);
+                args.add(new String(v, StandardCharsets.ISO_8859_1));
+            });
+        } else if (value instanceof ListValue list) {
+            command = "RPUSH";
+            width = 1;
+            list.range(0, -1, v -> args.add(new String(v, StandardCharsets.ISO_8859_1)));
+        } else if (value instanceof SetValue set) {
+            command = "SADD";
+            width = 1;
+            set.forEach(args::add);
+        } else if (value instanceof SortedSetValue zset) {
+            command = "ZADD";
+            width = 2;
+            zset.forEach((member, score) -> {
+                args.add(Double.isInfinite(score) ? SortedSetValue.formatScore(score) : Double.toString(score));
+                args.add(member);
+            });
+        } else if (value instanceof StreamValue stream) {
+            // Entries are added one by one, under the IDs they have
+            try {
+                stream.forEach(entry -> {
+                    byte[][] fieldsAndValues = entry.fieldsAndValues();
+                    String[] commandArgs = new String[fieldsAndValues.length + 3];
+                    commandArgs[0] = "XADD";
+                    commandArgs[1] = key;
+                    commandArgs[2] = entry.id().toString();
+                    for (int i = 0; i < fieldsAndValues.length; i++) {
+                        commandArgs[i + 3] = new String(fieldsAndValues[i], StandardCharsets.ISO_8859_1);
+                    }
+                    try {
+                        out.write(OutputHandler.getBulkStringArray(commandArgs));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return;
+        } else {
+            throw new IOException("Cannot rewrite a value of type " + value.type());
+        }
+        int step = REWRITE_ITEMS_PER_COMMAND * width;
+        for (int i = 0; i < args.size(); i += step) {
+            List<String> chunk = args.subList(i, Math.min(i + step, args.size()));
+            String[] commandArgs = new String[chunk.size() + 2];
+            commandArgs[0] = command;
+            commandArgs[1] = key;
+            for (int j = 0; j < chunk.size(); j++) {
+                commandArgs[j + 2] = chunk.get(j);
+            }
+            out.write(OutputHandler.getBulkStringArray(commandArgs));
+        }
+    }
+
+    /**
+     * Returns the number of times the file has been synced by the writer, which under {@code always} is far fewer
+     * than the number of commands when many connections write at once.
+     *
+     * @return the number of syncs
+     */
+    public long getSyncs() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the policy for syncing the file.
+     *
+     * @return the fsync policy
+     */
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Writes and syncs whatever is still pending, then stops the writer and closes the file.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        Thread thread;
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+            thread = writer;
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+        lock.lock();
+        try {
+            closeRetired();
+            if (channel != null) {
+                channel.force(true);
+                channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The BlockedClients class keeps track of the connections waiting for a write to one of a set of keys, as XREAD
+ * BLOCK does, and wakes them when such a write is made.
+ * <p>
+ * A connection registers with {@link #block(String...)} before it looks at the keys, so that a write made between
+ * looking and waiting is not missed, then parks its thread on the returned waiter. A write calls
+ * {@link #signal(String)} once it is visible, which wakes every waiter of the key at once; a key nobody waits for
+ * costs a single map lookup. A woken connection looks at its keys again and either replies or blocks anew.
+ */
+public class BlockedClients {
+    private final ConcurrentHashMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger blocked = new AtomicInteger();
+
+    /**
+     * A connection waiting for writes to some keys.
+     */
+    public static final class Waiter {
+        private final String[] keys;
+        private final CountDownLatch signalled = new CountDownLatch(1);
+
+        private Waiter(String[] keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * Waits until one of the keys is written to, or the timeout expires.
+         *
+         * @param timeoutMs the most milliseconds to wait, or 0 to wait for good
+         * @return true if a key was written to, false if the timeout expired first
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public boolean await(long timeoutMs) throws InterruptedException {
+            if (timeoutMs == 0) {
+                signalled.await();
+                return true;
+            }
+            return signalled.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Registers a waiter for writes to the given keys. It must be passed to {@link #unblock(Waiter)} once done
+     * with, whether it was woken or not.
+     *
+     * @param keys the keys to wait for
+     * @return the waiter
+     */
+    public Waiter block(String... keys) {
+        Waiter waiter = new Waiter(keys);
+        for (String key : keys) {
+            waiters.compute(key, (k, set) -> {
+                Set<Waiter> s = set != null ? set : new HashSet<>();
+                s.add(waiter);
+                return s;
+            });
+        }
+        blocked.incrementAndGet();
+        return waiter;
+    }
+
+    /**
+     * Removes a waiter from the keys it waits for.
+     *
+     * @param waiter the waiter
+     */
+    public void unblock(Waiter waiter) {
+        for (String key : waiter.keys) {
+            waiters.computeIfPresent(key, (k, set) -> {
+                set.remove(waiter);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        blocked.decrementAndGet();
+    }
+
+    /**
+     * Wakes every waiter of a key that has been written to.
+     *
+     * @param key the key
+     */
+    public void signal(String key) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        // Taken out of the map as a whole, a set is no longer changed by anyone else
+        Set<Waiter> set = waiters.remove(key);
+        if (set != null) {
+            for (Waiter waiter : set) {
+                waiter.signalled.countDown();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of waiters, as reported by INFO.
+     *
+     * @return the number of blocked connections
+     */
+    public int size() {
+        return blocked.get();
+    }
+}
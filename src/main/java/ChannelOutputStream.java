@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The ChannelOutputStream class lets an {@link OutputHandler} write to a non-blocking {@link SocketChannel}.
+ * <p>
+ * Bytes are written to the channel right away. Whatever the socket does not take is kept in a write buffer of
+ * its own, and is sent by {@link #flush()} once the {@link EventLoop} sees the channel become writable again.
+ * The write buffer only exists while output is pending. If the channel is switched to blocking mode, every write
+ * completes in full and nothing is ever left pending.
+ */
+public class ChannelOutputStream extends OutputStream {
+    private final SocketChannel channel;
+    // Bytes the channel did not accept yet, ready to be read; null while nothing is pending
+    private ByteBuffer pending;
+
+    /**
+     * Constructs a ChannelOutputStream writing to the specified channel.
+     *
+     * @param channel the channel to be written to
+     */
+    public ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Returns whether bytes are waiting for the channel to become writable.
+     *
+     * @return true if {@link #flush()} has more to write
+     */
+    public boolean hasPending() {
+        return pending != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (pending == null) {
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            channel.write(src);
+            if (src.hasRemaining()) {
+                pending = ByteBuffer.allocate(Math.max(src.remaining(), 1024));
+                pending.put(src).flip();
+            }
+            return;
+        }
+        // Keep the order of the bytes by queueing behind what is already pending
+        if (pending.capacity() - pending.limit() < len) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.remaining() + len, pending.capacity() * 2));
+            grown.put(pending).flip();
+            pending = grown;
+        }
+        int position = pending.position();
+        pending.position(pending.limit()).limit(pending.limit() + len);
+        pending.put(b, off, len).position(position);
+        flush();
+    }
+
+    /**
+     * Writes as much of the pending bytes as the channel accepts without blocking.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void flush() throws IOException {
+        if (pending == null) {
+            return;
+        }
+        channel.write(pending);
+        if (!pending.hasRemaining()) {
+            pending = null;
+        }
+    }
+
+    /**
+     * Closes the channel.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        pending = null;
+        channel.close();
+    }
+}
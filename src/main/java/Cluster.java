@@ -0,0 +1,310 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The Cluster class holds the table of which node serves each of the 16384 hash slots keys are spread over, as in
+ * Redis Cluster, for a server started with {@code --cluster-enabled yes}.
+ * <p>
+ * The table is given at startup by {@code --cluster-nodes}, the same on every node, as a comma-separated list of
+ * nodes, each its {@code host:port} followed by the slots it serves, single or as ranges:
+ * {@code 127.0.0.1:7000 0-5460,127.0.0.1:7001 5461-10922,127.0.0.1:7002 10923-16383}. The node whose address is the
+ * {@code --cluster-announce-ip} and {@code --port} of the server is this one. There is no gossip between nodes: the
+ * ID of each node is derived from its address, so that every node agrees on it, and changes to the table are made
+ * to each node by CLUSTER SETSLOT.
+ * <p>
+ * While a slot moves from one node to another, the source marks it as migrating to the target and the target as
+ * importing from the source. The source then redirects commands on keys it no longer has with ASK, and the target
+ * serves commands on the slot only to connections that sent ASKING first, until CLUSTER SETSLOT NODE hands the
+ * slot over.
+ */
+public class Cluster {
+    /**
+     * The number of hash slots.
+     */
+    public static final int SLOTS = 16384;
+
+    /**
+     * A node of the cluster, serving clients at an address.
+     *
+     * @param id   the ID of the node, 40 hexadecimal characters
+     * @param host the host clients reach the node at
+     * @param port the port clients reach the node at
+     */
+    public record Node(String id, String host, int port) {
+        /**
+         * Returns the address of the node, as redirects give it.
+         *
+         * @return {@code host:port}
+         */
+        public String address() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * Consecutive slots served by one node.
+     *
+     * @param start the first slot
+     * @param end   the last slot
+     * @param node  the node serving them
+     */
+    public record SlotRange(int start, int end, Node node) {
+    }
+
+    private final List<Node> nodes;
+    private final Node myself;
+    private final AtomicReferenceArray<Node> owners = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicReferenceArray<Node> migrating = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicReferenceArray<Node> importing = new AtomicReferenceArray<>(SLOTS);
+
+    /**
+     * Constructs a Cluster from the nodes and slots given at startup.
+     *
+     * @param spec the nodes, each {@code host:port} followed by its slots, separated by commas
+     * @param host the host of this node
+     * @param port the port of this node
+     * @throws IllegalArgumentException if the nodes cannot be parsed, a slot is served twice, or this node is not
+     *                                  among them
+     */
+    public Cluster(String spec, String host, int port) {
+        List<Node> parsed = new ArrayList<>();
+        Node self = null;
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split("\\s+");
+            int colon = parts[0].lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid cluster node address: " + parts[0]);
+            }
+            String nodeHost = parts[0].substring(0, colon);
+            int nodePort = Integer.parseInt(parts[0].substring(colon + 1));
+            Node node = new Node(idOf(nodeHost, nodePort), nodeHost, nodePort);
+            for (Node other : parsed) {
+                if (other.id().equals(node.id())) {
+                    throw new IllegalArgumentException("Cluster node listed twice: " + parts[0]);
+                }
+            }
+            parsed.add(node);
+            for (int i = 1; i < parts.length; i++) {
+                int dash = parts[i].indexOf('-');
+                int start = parseSlot(dash < 0 ? parts[i] : parts[i].substring(0, dash));
+                int end = dash < 0 ? start : parseSlot(parts[i].substring(dash + 1));
+                for (int slot = start; slot <= end; slot++) {
+                    if (owners.get(slot) != null) {
+                        throw new IllegalArgumentException("Slot " + slot + " is served by two cluster nodes");
+                    }
+                    owners.set(slot, node);
+                }
+            }
+            if (nodeHost.equals(host) && nodePort == port) {
+                self = node;
+            }
+        }
+        if (self == null) {
+            throw new IllegalArgumentException("This node, " + host + ":" + port + ", is not a cluster node");
+        }
+        nodes = Collections.unmodifiableList(parsed);
+        myself = self;
+    }
+
+    /**
+     * Derives the ID of a node from its address, so that every node gives it the same one.
+     */
+    private static String idOf(String host, int port) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return HexFormat.of().formatHex(sha1.digest((host + ":" + port).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int parseSlot(String slot) {
+        int n = Integer.parseInt(slot);
+        if (n < 0 || n >= SLOTS) {
+            throw new IllegalArgumentException("Invalid slot: " + slot);
+        }
+        return n;
+    }
+
+    /**
+     * Returns the hash slot of a key: the CRC16 of the key modulo 16384. If the key has a hash tag, a non-empty part
+     * between its first {@code {} and the next {@code }}, only that part is hashed, so that keys sharing a tag
+     * share a slot.
+     *
+     * @param key the key
+     * @return the slot, from 0 to 16383
+     */
+    public static int keySlot(String key) {
+        int open = key.indexOf('{');
+        if (open >= 0) {
+            int close = key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return Crc16.of(key, open + 1, close) & (SLOTS - 1);
+            }
+        }
+        return Crc16.of(key, 0, key.length()) & (SLOTS - 1);
+    }
+
+    /**
+     * Returns this node.
+     *
+     * @return this node
+     */
+    public Node myself() {
+        return myself;
+    }
+
+    /**
+     * Returns the nodes of the cluster, in the order they were given.
+     *
+     * @return the nodes
+     */
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the node with an ID.
+     *
+     * @param id the ID
+     * @return the node, or null if there is none
+     */
+    public Node node(String id) {
+        for (Node node : nodes) {
+            if (node.id().equalsIgnoreCase(id)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the node serving a slot.
+     *
+     * @param slot the slot
+     * @return the node, or null if no node serves it
+     */
+    public Node owner(int slot) {
+        return owners.get(slot);
+    }
+
+    /**
+     * Returns the node a slot served here is migrating to.
+     *
+     * @param slot the slot
+     * @return the node, or null if the slot is not migrating
+     */
+    public Node migratingTo(int slot) {
+        return migrating.get(slot);
+    }
+
+    /**
+     * Returns the node a slot is being imported from.
+     *
+     * @param slot the slot
+     * @return the node, or null if the slot is not being imported
+     */
+    public Node importingFrom(int slot) {
+        return importing.get(slot);
+    }
+
+    /**
+     * Marks a slot served here as migrating to another node.
+     *
+     * @param slot   the slot
+     * @param target the node it migrates to
+     */
+    public void setMigrating(int slot, Node target) {
+        migrating.set(slot, target);
+    }
+
+    /**
+     * Marks a slot served by another node as being imported from it.
+     *
+     * @param slot   the slot
+     * @param source the node it is imported from
+     */
+    public void setImporting(int slot, Node source) {
+        importing.set(slot, source);
+    }
+
+    /**
+     * Clears the migrating and importing state of a slot.
+     *
+     * @param slot the slot
+     */
+    public void setStable(int slot) {
+        migrating.set(slot, null);
+        importing.set(slot, null);
+    }
+
+    /**
+     * Hands a slot to a node, ending its migration.
+     *
+     * @param slot the slot
+     * @param node the node that serves it from now on
+     */
+    public void setOwner(int slot, Node node) {
+        owners.set(slot, node);
+        setStable(slot);
+    }
+
+    /**
+     * Returns the slots served, as ranges of consecutive slots served by one node.
+     *
+     * @return the ranges, in slot order
+     */
+    public List<SlotRange> slotRanges() {
+        List<SlotRange> ranges = new ArrayList<>();
+        int start = 0;
+        Node current = null;
+        for (int slot = 0; slot <= SLOTS; slot++) {
+            Node owner = slot < SLOTS ? owners.get(slot) : null;
+            if (owner != current) {
+                if (current != null) {
+                    ranges.add(new SlotRange(start, slot - 1, current));
+                }
+                start = slot;
+                current = owner;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the slots a node serves, as ranges of consecutive slots.
+     *
+     * @param node the node
+     * @return the ranges, in slot order
+     */
+    public List<SlotRange> slotRanges(Node node) {
+        List<SlotRange> ranges = new ArrayList<>();
+        for (SlotRange range : slotRanges()) {
+            if (range.node().equals(node)) {
+                ranges.add(range);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the number of slots some node serves.
+     *
+     * @return the number of slots
+     */
+    public int assignedSlots() {
+        int assigned = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (owners.get(slot) != null) {
+                assigned++;
+            }
+        }
+        return assigned;
+    }
+}
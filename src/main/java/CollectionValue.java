@@ -0,0 +1,56 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The CollectionValue class is the base of the values besides strings that a key can hold: hashes, lists, sets and
+ * sorted sets.
+ * <p>
+ * Each starts out in a compact encoding packed into a {@link ListPack} and switches to a general-purpose structure
+ * for good once it grows past the limits set for its type. A collection is not thread-safe by itself;
+ * {@link KeyValueHandler} only reads and changes it with the map bin of its key locked.
+ */
+public abstract class CollectionValue {
+    // Rough cost of an element of a general-purpose structure besides its bytes: node, references and table slot
+    static final int ELEMENT_OVERHEAD = 48;
+
+    /**
+     * Returns the name of the type, as reported by the TYPE command.
+     *
+     * @return the type name, e.g. {@code hash}
+     */
+    public abstract String type();
+
+    /**
+     * Returns the name of the current encoding, as reported by OBJECT ENCODING.
+     *
+     * @return the encoding name, e.g. {@code listpack}
+     */
+    public abstract String encoding();
+
+    /**
+     * Returns the number of elements, counting a field-value pair or a member with its score as one.
+     *
+     * @return the number of elements
+     */
+    public abstract int size();
+
+    /**
+     * Returns the estimated memory taken by the collection, for the memory accounting of the store.
+     *
+     * @return the estimated size in bytes
+     */
+    public abstract long memoryUsage();
+
+    /**
+     * Returns a copy that can be changed without affecting this collection, as kept by a running snapshot.
+     *
+     * @return the copy
+     */
+    public abstract CollectionValue copy();
+
+    /**
+     * Converts a command argument to the bytes it was received as.
+     */
+    static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Thrown when a command cannot be carried out. The message is sent back to the client as an error reply,
+ * so it starts with an error code such as {@code ERR} or {@code OOM}.
+ */
+public class CommandException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a CommandException with the error reply to send.
+     *
+     * @param message the error, starting with its code
+     */
+    public CommandException(String message) {
+        super(message);
+    }
+}
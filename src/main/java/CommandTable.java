@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CommandTable class is the registry of the commands the server knows: for each, its arity, its flags, where
+ * its keys are among its arguments, its handler, and the statistics of its calls.
+ * <p>
+ * Commands are found by name ignoring case, without allocating: the hash of a name is computed over its characters
+ * folded to lower case, and looks up an open-addressing table whose slots hold each command with its hash
+ * precomputed, so that only a command with the same hash is compared, character by character. This replaces
+ * upper-casing every command name into a new String and switching over it.
+ */
+public class CommandTable {
+    /**
+     * What a command does, as far as the server needs to know before running it.
+     */
+    public enum Flag {
+        /**
+         * May change the keyspace; refused on a replica, except from its master.
+         */
+        WRITE,
+        /**
+         * Only reads the keyspace.
+         */
+        READONLY,
+        /**
+         * Travels in the replication stream, from a master to its replicas.
+         */
+        REPLICATED,
+        /**
+         * Cannot be queued in a transaction.
+         */
+        NO_MULTI,
+        /**
+         * May park the thread running it, waiting for something other than the keys it locks.
+         */
+        MAY_BLOCK,
+        /**
+         * Deals with each of its keys on its own, so that with {@code --shards} it may be split between the shards
+         * owning them rather than locking all of them together.
+         */
+        KEYWISE
+    }
+
+    /**
+     * Runs a command on a connection.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * Runs the command.
+         *
+         * @param connection the connection the command arrived on
+         * @param args       the command arguments
+         * @param position   the read position before the command
+         * @throws IOException          if an I/O error occurs
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void handle(ConnectionHandler connection, String[] args, long position)
+                throws IOException, InterruptedException;
+    }
+
+    /**
+     * A command the server knows, with the statistics of its calls.
+     */
+    public static final class Command {
+        final String name;
+        final int hash;
+        final int arity;
+        final EnumSet<Flag> flags;
+        final int firstKey;
+        final int lastKey;
+        final int keyStep;
+        final Handler handler;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder failedCalls = new LongAdder();
+        private final LongAdder rejectedCalls = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Command(String name, int arity, EnumSet<Flag> flags, int firstKey, int lastKey, int keyStep,
+                        Handler handler) {
+            this.name = name.toLowerCase();
+            this.hash = hashOf(name);
+            this.arity = arity;
+            this.flags = flags;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+            this.keyStep = keyStep;
+            this.handler = handler;
+        }
+
+        /**
+         * Returns the name of the command, in lower case.
+         *
+         * @return the name
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Returns whether the command has a flag.
+         *
+         * @param flag the flag
+         * @return true if it has the flag
+         */
+        public boolean has(Flag flag) {
+            return flags.contains(flag);
+        }
+
+        /**
+         * Returns whether the command takes the given number of arguments, counting its name. As in Redis, a
+         * positive arity is the exact number, and a negative one the least number.
+         *
+         * @param length the number of arguments
+         * @return true if the number is right
+         */
+        public boolean acceptsArity(int length) {
+            return arity >= 0 ? length == arity : length >= -arity;
+        }
+
+        /**
+         * Returns the index of the only key of a command that touches exactly one key.
+         *
+         * @param args the command arguments
+         * @return the index of the key, or -1 if the command touches no key or several
+         */
+        public int singleKey(String[] args) {
+            if (firstKey == 0 || firstKey >= args.length) {
+                return -1;
+            }
+            return lastIndex(args) == firstKey ? firstKey : -1;
+        }
+
+        /**
+         * Returns the keys of a command, as its key specification places them among its arguments.
+         *
+         * @param args the command arguments
+         * @return the keys, possibly none
+         */
+        public String[] keys(String[] args) {
+            if (firstKey == 0 || firstKey >= args.length) {
+                return NO_KEYS;
+            }
+            int last = lastIndex(args);
+            String[] keys = new String[(last - firstKey) / keyStep + 1];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = args[firstKey + i * keyStep];
+            }
+            return keys;
+        }
+
+        private int lastIndex(String[] args) {
+            int last = lastKey < 0 ? args.length + lastKey : Math.min(lastKey, args.length - 1);
+            // A trailing argument without a partner, as in MSET a 1 b, is not a key
+            return last - (last - firstKey) % keyStep;
+        }
+
+        /**
+         * Records a call that ran, and how long it took.
+         *
+         * @param elapsedNanos the time the call took, in nanoseconds
+         * @param failed       whether it ended in an error
+         */
+        public void recordCall(long elapsedNanos, boolean failed) {
+            calls.increment();
+            nanos.add(elapsedNanos);
+            latency.record(elapsedNanos);
+            if (failed) {
+                failedCalls.increment();
+            }
+        }
+
+        /**
+         * Records a call refused before it could run, e.g. for a wrong number of arguments.
+         */
+        public void recordRejected() {
+            rejectedCalls.increment();
+        }
+
+        /**
+         * Returns the number of calls that ran.
+         *
+         * @return the number of calls
+         */
+        public long calls() {
+            return calls.sum();
+        }
+
+        /**
+         * Returns the time the calls took in total.
+         *
+         * @return the total time in microseconds
+         */
+        public long totalMicros() {
+            return nanos.sum() / 1000;
+        }
+
+        /**
+         * Returns the number of calls that ran and ended in an error.
+         *
+         * @return the number of failed calls
+         */
+        public long failedCalls() {
+            return failedCalls.sum();
+        }
+
+        /**
+         * Returns the number of calls refused before they could run.
+         *
+         * @return the number of rejected calls
+         */
+        public long rejectedCalls() {
+            return rejectedCalls.sum();
+        }
+
+        /**
+         * Returns the distribution of the time the calls took, in nanoseconds.
+         *
+         * @return the histogram
+         */
+        public LatencyHistogram latency() {
+            return latency;
+        }
+    }
+
+    private static final String[] NO_KEYS = new String[0];
+
+    private Command[] slots = new Command[64];
+    private final List<Command> commands = new ArrayList<>();
+
+    /**
+     * Registers a command that touches no keys.
+     *
+     * @param name    the name
+     * @param arity   the exact number of arguments, counting the name, or its negation for a least number
+     * @param flags   the flags
+     * @param handler runs the command
+     */
+    public void register(String name, int arity, EnumSet<Flag> flags, Handler handler) {
+        register(name, arity, flags, 0, 0, 0, handler);
+    }
+
+    /**
+     * Registers a command.
+     *
+     * @param name     the name
+     * @param arity    the exact number of arguments, counting the name, or its negation for a least number
+     * @param flags    the flags
+     * @param firstKey the index of the first key argument, or 0 if the command touches no keys
+     * @param lastKey  the index of the last key argument, negative to count from the end, -1 being the last
+     * @param keyStep  the distance between key arguments, e.g. 2 for keys alternating with values
+     * @param handler  runs the command
+     */
+    public void register(String name, int arity, EnumSet<Flag> flags, int firstKey, int lastKey, int keyStep,
+                         Handler handler) {
+        if (lookup(name) != null) {
+            throw new IllegalArgumentException("Command registered twice: " + name);
+        }
+        Command command = new Command(name, arity, flags, firstKey, lastKey, keyStep, handler);
+        commands.add(command);
+        if (commands.size() * 4 > slots.length) {
+            // Kept at most a quarter full, so that lookups rarely probe beyond their first slot
+            Command[] old = slots;
+            slots = new Command[old.length * 2];
+            for (Command c : old) {
+                if (c != null) {
+                    insert(c);
+                }
+            }
+        }
+        insert(command);
+    }
+
+    private void insert(Command command) {
+        int mask = slots.length - 1;
+        int i = command.hash & mask;
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = command;
+    }
+
+    /**
+     * Looks up a command by name, ignoring case.
+     *
+     * @param name the name, as sent by the client
+     * @return the command, or null if there is none of that name
+     */
+    public Command lookup(String name) {
+        int hash = hashOf(name);
+        Command[] table = slots;
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Command command = table[i];
+            if (command == null) {
+                return null;
+            }
+            if (command.hash == hash && command.name.length() == name.length()
+                    && command.name.regionMatches(true, 0, name, 0, name.length())) {
+                return command;
+            }
+        }
+    }
+
+    /**
+     * Returns every command, in the order registered.
+     *
+     * @return the commands
+     */
+    public List<Command> commands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * Hashes a name folded to lower case, so that names differing only in case hash alike. Only ASCII letters are
+     * folded; command names are made of them.
+     */
+    private static int hashOf(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        // Spread the high bits into the low ones the table uses
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,22 +1,123 @@
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * The ConnectionHandler class handles a client connection, processes commands, and communicates with the client
  * through the InputHandler and OutputHandler. It also supports replication for a master-slave architecture.
+ * <p>
+ * A connection either runs on a thread of its own through {@link #run()}, or is served by an {@link EventLoop}
+ * that feeds it the bytes it reads and calls {@link #runBufferedCommands()}. Commands that park their thread,
+ * such as PSYNC, WAIT and XREAD BLOCK, cannot run inside the loop; the loop then hands the connection to a thread
+ * of its own, which carries on through {@link #resume()}.
+ * <p>
+ * Every command locks the {@link KeyLocks} stripes of the keys it touches while it runs. Between MULTI and EXEC a
+ * connection queues its commands instead of running them; EXEC then locks the keys of all of them at once, so the
+ * block runs without any other command on those keys in between, while commands on other keys carry on. WATCHed
+ * keys are checked against their versions in the store under the same locks. The writes of a transaction are
+ * logged and propagated together, between MULTI and EXEC, so that replicas and a replay of the append-only file
+ * apply them as one unit too.
+ * <p>
+ * With {@code --shards}, a command on a single key is handed to the {@link ShardExecutor} thread owning the key,
+ * and the connection waits for it to be done. Keywise commands such as MGET and DEL are split between the shards
+ * owning their keys. Commands that may block, and those of a transaction, still run on the connection's thread with
+ * the stripes of their keys locked, which the shard threads respect.
+ * <p>
+ * In cluster mode, the keys of a command must all hash to one {@link Cluster} slot. A command on a slot another node
+ * serves is refused with a MOVED redirect to that node, and one on a slot migrating away whose keys are no longer
+ * here with an ASK redirect to the node it migrates to. Commands of a transaction are checked as they are queued.
+ * <p>
+ * A connection that switched to RESP3 with HELLO 3 can ask with CLIENT TRACKING to be told when keys it read, or
+ * keys with given prefixes, change. The keys are remembered by the {@link TrackingTable} before each read, and
+ * invalidated keys are queued by whichever thread changed them. They are pushed to the connection between replies:
+ * by the event loop serving it, or else by a virtual thread that takes the lock the connection's own thread holds
+ * while it runs a command, so that a push never lands inside a reply.
  */
 public class ConnectionHandler implements Runnable {
     private final Socket socket;
     private final InputHandler in;
     private final OutputHandler out;
     private final KeyValueHandler store;
+    // event-loop connections only
+    private final ChannelOutputStream channelOut;
+    private String[] parkedCommand;
+    private long parkedPosition;
     private boolean isReplicationConnection;
-    private static List<BlockingQueue<String[]>> queues = new ArrayList<>();
-    private static long master_repl_offset = 0;
-    private static List<Long> replOffsets = new ArrayList<>();
+    // Keeps replies from interleaving with what other threads write: the heartbeat of a replica, and invalidations
+    private final ReentrantLock replyLock = new ReentrantLock();
+    // master-only: the port a replica on this connection serves clients on
+    private int replicaListeningPort;
+    // master-only: whether the replica on this connection reads a full resync payload ended by a mark
+    private boolean replicaCapaEof;
+    // Append-only file offset of the last write of this connection; its reply waits until the file is synced there
+    private long aofOffset;
+    // Replica-side offset the stream read on this connection starts at
+    private long replicationBase;
+    // master-only: the replicas being sent the replication stream
+    private static final ReplicaRegistry replicas = new ReplicaRegistry();
+    // Connections waiting in XREAD BLOCK for entries to be added
+    private static final BlockedClients blockedClients = new BlockedClients();
+    // Serializes commands on the same keys, so that transactions run as a block
+    private static final KeyLocks keyLocks = new KeyLocks();
+    // The connection whose command the current thread is running, for the evictions the command causes
+    private static final ThreadLocal<ConnectionHandler> running = new ThreadLocal<>();
+    // The commands queued since MULTI, or null outside a transaction
+    private List<String[]> queued;
+    // Whether a command was refused while queueing, which makes EXEC discard the transaction
+    private boolean queueFailed;
+    // cluster-only: whether ASKING came before the command being run, admitting it to a slot being imported
+    private boolean asking;
+    // The command this connection last ran on a shard, kept to run the next one; null until --shards makes one
+    private RoutedCommand routedCommand;
+    // The WATCHed keys with their versions when watched
+    private final Map<String, Long> watchedVersions = new HashMap<>();
+    // The writes of the transaction being executed, logged and propagated once it is done; null outside EXEC
+    private boolean executing;
+    private List<String[]> transactionAof;
+    private List<String[]> transactionPropagation;
+    // replica-only: the replication stream last followed, to continue it after a reconnect
+    private static volatile String masterReplid = "?";
+    private static volatile long masterOffset = -1;
+    // replica-only: whether the connection to the master is up, and when it last brought anything
+    private static volatile boolean masterLinkUp;
+    private static volatile long masterLastIoMillis;
+    private static final AtomicLong nextClientId = new AtomicLong();
+    private final long clientId = nextClientId.incrementAndGet();
+    // Set by CLIENT SETNAME or HELLO SETNAME
+    private String clientName;
+    // The keys this connection tracks, or null unless CLIENT TRACKING is on
+    private TrackingTable.Client trackingClient;
+    // Keys invalidated for this connection, to be pushed between replies
+    private final Queue<String> invalidated = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean pushScheduled = new AtomicBoolean();
+    // event-loop connections only: asks the loop to push the invalidated keys; null once on a thread of its own
+    private volatile Runnable pushWakeup;
+    // The Redis version whose commands and replies this server follows, as given by HELLO and INFO
+    private static final String REDIS_VERSION = "7.2.0";
+    // The bytes read and written so far that have been added to the ServerStats
+    private long reportedInput;
+    private long reportedOutput;
+    // Length of the random mark ending a full resync payload of unknown length, as in Redis
+    private static final int EOF_MARK_LENGTH = 40;
+    // Most bytes of the replication stream copied out of the backlog for one write to a replica
+    private static final int REPLICA_CHUNK_SIZE = 256 * 1024;
 
     /**
      * Constructs a ConnectionHandler with the specified socket and key-value store.
@@ -27,9 +128,26 @@ public class ConnectionHandler implements Runnable {
      */
     public ConnectionHandler(Socket socket, KeyValueHandler store) throws IOException {
         this.socket = socket;
-        this.in = new InputHandler(socket.getInputStream());
         this.out = new OutputHandler(socket.getOutputStream());
+        this.in = new InputHandler(socket.getInputStream(), this::flushReplies);
         this.store = store;
+        this.channelOut = null;
+        ServerStats.connectionOpened();
+    }
+
+    /**
+     * Constructs a ConnectionHandler for a non-blocking channel served by an {@link EventLoop}.
+     *
+     * @param channel the client channel
+     * @param store   the key-value store
+     */
+    public ConnectionHandler(SocketChannel channel, KeyValueHandler store) {
+        this.socket = channel.socket();
+        this.channelOut = new ChannelOutputStream(channel);
+        this.out = new OutputHandler(channelOut);
+        this.in = new InputHandler(this::flushReplies);
+        this.store = store;
+        ServerStats.connectionOpened();
     }
 
     /**
@@ -46,242 +164,3229 @@ public class ConnectionHandler implements Runnable {
         this.isReplicationConnection = true;
         // PING
         out.writeBulkStringArray("PING");
+        out.flush();
         in.readSimpleString();
         // REPLCONF listening-port <PORT>
         out.writeBulkStringArray("REPLCONF", "listening-port", String.valueOf(port));
+        out.flush();
         in.readSimpleString();
-        // REPLCONF capa psync2
-        out.writeBulkStringArray("REPLCONF", "capa", "psync2");
+        // REPLCONF capa eof capa psync2
+        out.writeBulkStringArray("REPLCONF", "capa", "eof", "capa", "psync2");
+        out.flush();
         in.readSimpleString();
-        // PSYNC ? -1
-        out.writeBulkStringArray("PSYNC", "?", "-1");
-        in.readSimpleString();
-        int contentLength = Integer.parseInt(in.readLine().substring(1));
-        in.readNBytes(contentLength);
+        // PSYNC <replid> <offset>, where the offset is that of the next byte wanted, counted from 1 as in Redis.
+        // The first time round this is PSYNC ? -1, which asks for a full resync.
+        long offset = masterOffset;
+        out.writeBulkStringArray("PSYNC", masterReplid, String.valueOf(offset < 0 ? -1 : offset + 1));
+        out.flush();
+        String[] reply = in.readSimpleString().split(" ");
+        if (reply[0].equals("+FULLRESYNC")) {
+            masterReplid = reply[1];
+            replicationBase = Long.parseLong(reply[2]);
+            loadSnapshot();
+        } else if (reply[0].equals("+CONTINUE")) {
+            // The master sends what we missed, followed by the live stream
+            if (reply.length > 1) {
+                masterReplid = reply[1];
+            }
+            replicationBase = offset;
+        } else {
+            throw new IOException("Unexpected PSYNC reply: " + String.join(" ", reply));
+        }
+        masterOffset = replicationBase;
         in.resetPosition();
+        reportedInput = 0;
+        masterLinkUp = true;
+        masterLastIoMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Replaces the contents of the store with the snapshot a master sends on a full resync. The snapshot is decoded
+     * as it arrives and restored by a {@link StoreLoader}, so it is never held in memory as a whole. It comes either
+     * as {@code $<length>} followed by the RDB data, or as {@code $EOF:<mark>} followed by the RDB data and the mark.
+     *
+     * @throws IOException if an I/O error occurs or the snapshot is not valid RDB data
+     */
+    private void loadSnapshot() throws IOException {
+        String header = in.readLine();
+        InputStream payload;
+        if (header.startsWith("$EOF:")) {
+            payload = in.readPayloadUntil(header.substring(5).getBytes(StandardCharsets.ISO_8859_1));
+        } else {
+            payload = in.readPayload(Long.parseLong(header.substring(1)));
+        }
+        long start = System.currentTimeMillis();
+        store.clear();
+        try (StoreLoader loader = new StoreLoader(store)) {
+            new RdbReader(payload).read(loader);
+        }
+        // Whatever follows the checksum up to the end of the payload, such as the mark
+        payload.transferTo(OutputStream.nullOutputStream());
+        Log.notice("MASTER <-> REPLICA sync: loaded " + store.size() + " keys in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Keeps a replica connected to its master for good. A lost connection is reestablished after a second, and
+     * picks up the replication stream where it left off if the master still has the missing part in its backlog.
+     *
+     * @param host       the master host
+     * @param masterPort the master port
+     * @param store      the key-value store
+     * @param port       the port this replica listens on
+     */
+    static void replicate(String host, int masterPort, KeyValueHandler store, int port) {
+        while (true) {
+            try {
+                Socket socket = new Socket(host, masterPort);
+                ConnectionHandler connection;
+                try {
+                    connection = new ConnectionHandler(socket, store, port);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                Thread.ofVirtual().start(connection::sendHeartbeats);
+                connection.run();
+            } catch (IOException e) {
+                Log.warning("Connection with master lost: " + e.getMessage());
+            }
+            masterLinkUp = false;
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the master a REPLCONF ACK with the offset processed so far once a second, for as long as the connection
+     * lasts, so that the master knows how far behind this replica is without having to ask.
+     */
+    private void sendHeartbeats() {
+        while (!socket.isClosed()) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            replyLock.lock();
+            try {
+                out.writeBulkStringArray("REPLCONF", "ACK", String.valueOf(masterOffset));
+                out.flush();
+            } catch (IOException e) {
+                return;
+            } finally {
+                replyLock.unlock();
+            }
+        }
     }
 
     /**
      * The main run method for the thread. Processes commands from the client and handles them appropriately.
+     * Commands that arrive pipelined are executed back to back; their replies are buffered and written together
+     * when the input handler runs out of data and is about to wait for the client.
      */
     @Override
     public void run() {
-        System.out.println("this is a: " + Main.role);
         try (socket; in; out) {
-            while (true) {
-                long position = in.getPosition();
-                String[] args = in.readBulkStringArray();
-                String commandName = args[0].toUpperCase();
-                switch (commandName) {
-                    case "PING" -> handlePingCommand();
-                    case "ECHO" -> handleEchoCommand(args);
-                    case "SET" -> handleSetCommand(args);
-                    case "GET" -> handleGetCommand(args);
-                    case "INFO" -> handleInfoCommand();
-                    case "REPLCONF" -> handleReplconfCommand(args, position);
-                    case "PSYNC" -> handlePsyncCommand();
-                    case "WAIT" -> handleWaitCommand(args);
-                    case "CONFIG" -> handleConfigCommand();
-                }
-            }
+            serve();
         } catch (IOException | InterruptedException e) {
-            System.out.println("Exception: " + e.getMessage());
+            Log.verbose("Client closed connection: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.warning("Error serving client, closing connection: " + e);
+        } finally {
+            closed();
         }
     }
 
     /**
-     * Handles the PING command from the client. Responds with PONG if not a replication connection.
+     * Reads and handles commands until the connection fails.
      *
-     * @throws IOException if an I/O error occurs
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
      */
-    private void handlePingCommand() throws IOException {
-        if (!isReplicationConnection) {
-            out.writeSimpleString("PONG");
+    private void serve() throws IOException, InterruptedException {
+        while (true) {
+            long position = in.getPosition();
+            String[] args = in.readBulkStringArray();
+            handleOwnCommand(args, position);
+            if (isReplicationConnection) {
+                masterOffset = replicationBase + in.getPosition();
+                masterLastIoMillis = System.currentTimeMillis();
+            }
         }
     }
 
     /**
-     * Handles the ECHO command from the client. Responds with the same message.
+     * Handles a command on the connection's own thread, holding the reply lock if another thread may write to the
+     * connection meanwhile: the heartbeat of a replica, or the pushes of a connection tracking keys.
      *
-     * @param args the command arguments
+     * @param args     the command arguments
+     * @param position the read position before the command
      * @throws IOException          if an I/O error occurs
      * @throws InterruptedException if interrupted while waiting
      */
-    private void handleEchoCommand(String[] args) throws IOException, InterruptedException {
-        String message = args[1];
-        out.writeBulkString(message);
+    private void handleOwnCommand(String[] args, long position) throws IOException, InterruptedException {
+        boolean locked = isReplicationConnection || trackingClient != null;
+        if (locked) {
+            replyLock.lock();
+        }
+        try {
+            handleCommand(args, position);
+        } finally {
+            if (locked) {
+                replyLock.unlock();
+            }
+        }
     }
 
     /**
-     * Handles the SET command from the client. Sets a key-value pair in the store and optionally sets an expiration.
+     * Handles a single command: looks it up in the command table, checks it may run, queues it if a transaction is
+     * open, and otherwise runs it with the stripes of its keys locked. A command that fails with a
+     * {@link CommandException} gets the exception's message as an error reply, except on the connection to the
+     * master, which expects no replies but acknowledgements. As with Redis, an empty request is ignored, and one
+     * with a null bulk string among its arguments gets a protocol error without being looked up.
      *
-     * @param args the command arguments
+     * @param args     the command arguments
+     * @param position the read position before the command
      * @throws IOException          if an I/O error occurs
      * @throws InterruptedException if interrupted while waiting
      */
-    private void handleSetCommand(String[] args) throws IOException, InterruptedException {
-        String key = args[1];
-        String value = args[2];
-        if (args.length == 5 && args[3].equals("px")) {
-            int milliseconds = Integer.parseInt(args[4]);
-            store.set(key, value, milliseconds);
-        } else {
-            store.set(key, value);
+    private void handleCommand(String[] args, long position) throws IOException, InterruptedException {
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Command received: " + Arrays.toString(args));
         }
-        if (Main.role.equals("master")) {
-            propagateToReplicas(args);
-            out.writeSimpleString("OK");
+        if (args.length == 0) {
+            return;
+        }
+        if (isMalformed(args)) {
+            writeError(new CommandException("ERR Protocol error: invalid bulk length"));
+            return;
+        }
+        CommandTable.Command command = commands.lookup(args[0]);
+        // ASKING only holds for the next command, or for the transaction it comes before
+        boolean asked = asking;
+        if (queued == null && !executing && (command == null || !command.name().equals("multi"))) {
+            asking = false;
+        }
+        try {
+            checkCommand(command, args, asked);
+            if (queued != null && queueCommand(command, args)) {
+                return;
+            }
+        } catch (CommandException e) {
+            if (command != null) {
+                command.recordRejected();
+            }
+            writeError(e);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean failed = false;
+        TrackingTable.Client client = trackingClient;
+        if (client != null) {
+            track(client, command, args);
+        }
+        ConnectionHandler outer = running.get();
+        running.set(this);
+        try {
+            int key = command.singleKey(args);
+            if (command.has(CommandTable.Flag.KEYWISE) && fansOut()) {
+                // Each shard locks the keys it owns; checked first, as a shard must not wait for another one
+                command.handler.handle(this, args, position);
+            } else if (key > 0 && Main.shards != null && !executing && !command.has(CommandTable.Flag.MAY_BLOCK)) {
+                if (routedCommand == null) {
+                    routedCommand = new RoutedCommand();
+                }
+                routedCommand.command = command;
+                routedCommand.args = args;
+                routedCommand.key = key;
+                routedCommand.position = position;
+                // The shard thread only fills the reply buffer; sending the reply is left to this thread
+                out.hold();
+                try {
+                    Main.shards.run(Main.shards.shardOf(args[key]), routedCommand);
+                } finally {
+                    out.endHold();
+                }
+            } else if (key > 0) {
+                int stripe = keyLocks.lock(args[key]);
+                try {
+                    command.handler.handle(this, args, position);
+                } finally {
+                    keyLocks.unlock(stripe);
+                }
+            } else {
+                int[] held = keyLocks.lock(command.keys(args));
+                try {
+                    command.handler.handle(this, args, position);
+                } finally {
+                    keyLocks.unlock(held);
+                }
+            }
+        } catch (CommandException e) {
+            failed = true;
+            writeError(e);
+        } finally {
+            running.set(outer);
+            if (client != null && client.noLoop()) {
+                Main.tracking.setWriter(null);
+            }
+            command.recordCall(System.nanoTime() - start, failed);
         }
     }
 
     /**
-     * Handles the GET command from the client. Retrieves a value from the store.
-     *
-     * @param args the command arguments
-     * @throws IOException if an I/O error occurs
+     * Remembers the keys a command of a connection tracking them in the default mode reads, before it reads them,
+     * and makes the connection known as the writer of what the command changes if it asked for NOLOOP.
      */
-    private void handleGetCommand(String[] args) throws IOException {
-        String key = args[1];
-        String value = store.get(key);
-        System.out.println("t=" + Thread.currentThread().getName() + ", get key=" + key + ", value=" + value);
-        if (value == null) {
-            out.writeNullBulkString();
-        } else {
-            out.writeBulkString(value);
+    private static void track(TrackingTable.Client client, CommandTable.Command command, String[] args) {
+        if (!client.broadcast() && command.has(CommandTable.Flag.READONLY)) {
+            for (String key : clusterKeys(command, args)) {
+                Main.tracking.remember(client, key);
+            }
+        }
+        if (client.noLoop()) {
+            Main.tracking.setWriter(client);
         }
     }
 
     /**
-     * Handles the INFO command from the client. Responds with server information.
-     *
-     * @throws IOException if an I/O error occurs
+     * A single-key command run on the thread of the shard owning its key, with the key's stripe locked. One is kept
+     * per connection, since a connection waits for its command to be done before reading the next. The reply is
+     * held in the connection's buffer while the command runs, so that a client slow to read never blocks the shard.
      */
-    private void handleInfoCommand() throws IOException {
-        Map<String, String> infoFields = new HashMap<>();
-        infoFields.put("role", Main.role);
-        if (Main.role.equals("master")) {
-            infoFields.put("master_replid", Main.master_replid);
-            infoFields.put("master_repl_offset", "" + master_repl_offset);
+    private final class RoutedCommand extends ShardExecutor.Task {
+        CommandTable.Command command;
+        String[] args;
+        int key;
+        long position;
+
+        @Override
+        protected void execute() throws Exception {
+            TrackingTable.Client writer = noLoopClient();
+            if (writer != null) {
+                Main.tracking.setWriter(writer);
+            }
+            running.set(ConnectionHandler.this);
+            int stripe = keyLocks.lock(args[key]);
+            try {
+                command.handler.handle(ConnectionHandler.this, args, position);
+            } finally {
+                keyLocks.unlock(stripe);
+                running.remove();
+                if (writer != null) {
+                    Main.tracking.setWriter(null);
+                }
+            }
         }
-        out.writeBulkString(infoFields);
     }
 
     /**
-     * Handles the REPLCONF command from the client. Responds with acknowledgment if needed.
-     *
-     * @param args     the command arguments
-     * @param position the current read position
-     * @throws IOException if an I/O error occurs
+     * Deals with the keys of a command owned by one shard, with any value following each key.
      */
-    private void handleReplconfCommand(String[] args, long position) throws IOException {
-        if (args[1].equals("GETACK")) {
-            String[] response = {"REPLCONF", "ACK", String.valueOf(position)};
-            out.writeBulkStringArray(response);
-        } else {
-            out.writeSimpleString("OK");
-        }
+    @FunctionalInterface
+    private interface KeyBatch {
+        /**
+         * Runs on the thread owning the shard, with the stripes of the keys locked.
+         *
+         * @param keys      the keys, each followed by its values if the command has any
+         * @param positions for each key, its index among the command arguments
+         * @return a count, summed over the shards
+         */
+        long apply(String[] keys, int[] positions);
+    }
+
+    /**
+     * Returns the tracking of this connection if it asked for NOLOOP, for the shard threads running its commands.
+     */
+    private TrackingTable.Client noLoopClient() {
+        TrackingTable.Client client = trackingClient;
+        return client != null && client.noLoop() ? client : null;
+    }
+
+    /**
+     * Returns whether the keywise command being handled is to be split between shards: with {@code --shards},
+     * unless it runs in a transaction, whose EXEC already holds the stripes of every key.
+     */
+    private boolean fansOut() {
+        return Main.shards != null && !executing;
     }
 
     /**
-     * Handles the PSYNC command from the client. Initiates full resynchronization.
+     * Splits the keys of a command between the shards owning them and runs a batch on each of those shards at once.
      *
-     * @throws IOException          if an I/O error occurs
+     * @param args  the command arguments
+     * @param from  the index of the first key
+     * @param step  the distance between keys, e.g. 2 for keys alternating with values
+     * @param batch deals with the keys of one shard
+     * @return the sum of the counts the batches returned
+     * @throws IOException          if a batch threw one
      * @throws InterruptedException if interrupted while waiting
      */
-    private void handlePsyncCommand() throws IOException, InterruptedException {
-        byte[] contents = HexFormat.of().parseHex("524544495330303131fa0972656469732d76657205372e322e30fa0a72656469732d62697473c040fa056374696d65c26d08bc65fa08757365642d6d656dc2b0c41000fa08616f662d62617365c000fff06e3bfec0ff5aa2");
-        out.writeSimpleString("FULLRESYNC %s 0".formatted(Main.master_replid));
-        out.writeBulkString(contents);
-        propagateToReplica();
+    private long fanOut(String[] args, int from, int step, KeyBatch batch) throws IOException, InterruptedException {
+        return fanOut(args, from, step, batch, false);
     }
 
     /**
-     * Handles the WAIT command from the client. Waits for replication to complete to a specified number of replicas.
+     * Splits the keys of a write command between the shards owning them like {@link #fanOut(String[], int, int,
+     * KeyBatch)}, and logs the part of each shard as a command of its own while its keys are still locked, so that
+     * the append-only file and the replicas see the writes to a key in the order the store did. A part is appended
+     * to the file if its batch counted any change, and propagated to replicas by a master in any case.
      *
-     * @param args the command arguments
-     * @throws IOException          if an I/O error occurs
+     * @param args  the command arguments
+     * @param from  the index of the first key
+     * @param step  the distance between keys, e.g. 2 for keys alternating with values
+     * @param batch changes the keys of one shard, returning how many it changed
+     * @return the sum of the counts the batches returned
+     * @throws IOException          if a batch threw one
      * @throws InterruptedException if interrupted while waiting
      */
-    private void handleWaitCommand(String[] args) throws IOException, InterruptedException {
-        int expectedReplicas = Integer.parseInt(args[1]);
-        int actualReplicas = 0;
-        int connectedReplicas = queues.size();
-        long timeoutTimestamp = System.currentTimeMillis() + Long.parseLong(args[2]);
-        long currentReplicationOffset = master_repl_offset;
-        System.out.println("connected replica=" + connectedReplicas);
-        if (currentReplicationOffset == 0) {
-            out.writeInteger(connectedReplicas);
-            return;
+    private long fanOutWrite(String[] args, int from, int step, KeyBatch batch)
+            throws IOException, InterruptedException {
+        return fanOut(args, from, step, batch, true);
+    }
+
+    private long fanOut(String[] args, int from, int step, KeyBatch batch, boolean logged)
+            throws IOException, InterruptedException {
+        ShardExecutor shards = Main.shards;
+        int keys = (args.length - from) / step;
+        int[] shardOfKey = new int[keys];
+        int[] counts = new int[shards.size()];
+        for (int k = 0; k < keys; k++) {
+            shardOfKey[k] = shards.shardOf(args[from + k * step]);
+            counts[shardOfKey[k]]++;
         }
-        replOffsets.clear();
-        propagateToReplicas(new String[]{"REPLCONF", "GETACK", "*"});
-        while (true) {
-            if (actualReplicas >= expectedReplicas) {
-                break;
+        KeyBatchTask[] tasks = new KeyBatchTask[shards.size()];
+        for (int s = 0; s < tasks.length; s++) {
+            if (counts[s] > 0) {
+                tasks[s] = new KeyBatchTask(batch, counts[s], step, noLoopClient(), logged ? args[0] : null);
             }
-            if (System.currentTimeMillis() > timeoutTimestamp) {
-                break;
+        }
+        for (int k = 0; k < keys; k++) {
+            tasks[shardOfKey[k]].add(args, from + k * step);
+        }
+        shards.runAll(tasks);
+        long sum = 0;
+        for (KeyBatchTask task : tasks) {
+            if (task != null) {
+                sum += task.result;
+                aofOffset = Math.max(aofOffset, task.aofOffset);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The part of a keywise command owned by one shard.
+     */
+    private static final class KeyBatchTask extends ShardExecutor.Task {
+        final KeyBatch batch;
+        final int step;
+        final String[] keys;
+        final String[] locked;
+        final int[] positions;
+        // The connection to leave out of the invalidations of the keys changed, with NOLOOP
+        final TrackingTable.Client writer;
+        // The command to log this part as, or null if it is not to be logged
+        final String logged;
+        int added;
+        long result;
+        long aofOffset;
+
+        KeyBatchTask(KeyBatch batch, int count, int step, TrackingTable.Client writer, String logged) {
+            this.batch = batch;
+            this.step = step;
+            this.writer = writer;
+            this.logged = logged;
+            this.keys = new String[count * step];
+            this.locked = step == 1 ? keys : new String[count];
+            this.positions = new int[count];
+        }
+
+        void add(String[] args, int position) {
+            System.arraycopy(args, position, keys, added * step, step);
+            if (locked != keys) {
+                locked[added] = args[position];
+            }
+            positions[added++] = position;
+        }
+
+        private void log() {
+            String[] part = new String[keys.length + 1];
+            part[0] = logged;
+            System.arraycopy(keys, 0, part, 1, keys.length);
+            if (result > 0 && Main.aof != null) {
+                aofOffset = Main.aof.append(part);
+            }
+            if (Main.role.equals("master")) {
+                propagateToReplicas(part);
+            }
+        }
+
+        @Override
+        protected void execute() {
+            if (writer != null) {
+                Main.tracking.setWriter(writer);
+            }
+            int[] held = keyLocks.lock(locked);
+            try {
+                result = batch.apply(keys, positions);
+                if (logged != null) {
+                    log();
+                }
+            } finally {
+                keyLocks.unlock(held);
+                if (writer != null) {
+                    Main.tracking.setWriter(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a command is known, has the right number of arguments, and may run on this connection and, in
+     * cluster mode, on this node. A command refused while a transaction is open makes EXEC discard the transaction,
+     * as in Redis.
+     *
+     * @param asked whether ASKING came before the command
+     * @throws CommandException if the command may not run
+     */
+    private void checkCommand(CommandTable.Command command, String[] args, boolean asked) {
+        CommandException refused = null;
+        if (command == null) {
+            refused = unknownCommand(args);
+        } else if (!command.acceptsArity(args.length)) {
+            refused = wrongArity(args);
+        } else if (command.has(CommandTable.Flag.WRITE) && !isReplicationConnection
+                && !Main.role.equals("master")) {
+            refused = new CommandException("READONLY You can't write against a read only replica.");
+        } else if (Main.cluster != null && !isReplicationConnection && !executing) {
+            refused = redirect(command, args, asked);
+        }
+        if (refused != null) {
+            if (queued != null) {
+                queueFailed = true;
+            }
+            throw refused;
+        }
+    }
+
+    /**
+     * Works out whether a command on keys may run on this cluster node, as Redis Cluster does: all its keys must be
+     * in one slot, which this node must serve, unless the command was ASKed to a slot being imported here. If the
+     * slot is migrating away, the command runs here only if all its keys still are.
+     *
+     * @return the error redirecting the client, or null if the command may run here
+     */
+    private CommandException redirect(CommandTable.Command command, String[] args, boolean asked) {
+        String[] keys = clusterKeys(command, args);
+        if (keys.length == 0) {
+            return null;
+        }
+        int slot = Cluster.keySlot(keys[0]);
+        for (int i = 1; i < keys.length; i++) {
+            if (Cluster.keySlot(keys[i]) != slot) {
+                return new CommandException("CROSSSLOT Keys in request don't hash to the same slot");
+            }
+        }
+        Cluster cluster = Main.cluster;
+        Cluster.Node owner = cluster.owner(slot);
+        if (owner == null) {
+            return new CommandException("CLUSTERDOWN Hash slot not served");
+        }
+        if (owner != cluster.myself()) {
+            if (asked && cluster.importingFrom(slot) != null) {
+                return null;
+            }
+            return new CommandException("MOVED " + slot + " " + owner.address());
+        }
+        Cluster.Node target = cluster.migratingTo(slot);
+        if (target == null) {
+            return null;
+        }
+        int missing = 0;
+        for (String key : keys) {
+            if (!store.exists(key)) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return null;
+        }
+        if (missing < keys.length) {
+            return new CommandException("TRYAGAIN Multiple keys request during rehashing of slot");
+        }
+        return new CommandException("ASK " + slot + " " + target.address());
+    }
+
+    /**
+     * Returns the keys a command touches, for placing it on a cluster node. Besides those of its key specification,
+     * these are the keys WATCH watches and the streams XREAD reads.
+     */
+    private static String[] clusterKeys(CommandTable.Command command, String[] args) {
+        switch (command.name()) {
+            case "watch" -> {
+                return Arrays.copyOfRange(args, 1, args.length);
             }
-            actualReplicas = 0;
-            System.out.println("new iteration");
-            System.out.println("   expected=" + expectedReplicas);
-            System.out.println("   currentReplicationOffset=" + currentReplicationOffset);
-            for (long replicaOffset : replOffsets) {
-                System.out.println("   replicaOffset=" + replicaOffset);
-                if (replicaOffset >= currentReplicationOffset) {
-                    actualReplicas++;
+            case "xread" -> {
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equalsIgnoreCase("STREAMS")) {
+                        return Arrays.copyOfRange(args, i + 1, i + 1 + (args.length - i - 1) / 2);
+                    }
                 }
+                return new String[0];
+            }
+            default -> {
+                return command.keys(args);
+            }
+        }
+    }
+
+    private void writeError(CommandException e) throws IOException {
+        if (isReplicationConnection) {
+            Log.warning("Error in replication stream: " + e.getMessage());
+        } else {
+            ServerStats.errorReplied();
+            out.writeError(e.getMessage());
+        }
+    }
+
+    /**
+     * The commands the server knows, with their arity, flags and keys. A positive arity is the exact number of
+     * arguments, counting the name, and a negative one the least number. Keys are given as the index of the first
+     * and the last key, negative counting from the end, and the step between them; XREAD has none, as it may wait
+     * for its streams, and only reads them, each whole.
+     */
+    private static final CommandTable commands = new CommandTable();
+
+    static {
+        EnumSet<CommandTable.Flag> none = EnumSet.noneOf(CommandTable.Flag.class);
+        EnumSet<CommandTable.Flag> read = EnumSet.of(CommandTable.Flag.READONLY);
+        EnumSet<CommandTable.Flag> write = EnumSet.of(CommandTable.Flag.WRITE, CommandTable.Flag.REPLICATED);
+        EnumSet<CommandTable.Flag> blocking = EnumSet.of(CommandTable.Flag.NO_MULTI, CommandTable.Flag.MAY_BLOCK);
+        EnumSet<CommandTable.Flag> transaction = EnumSet.of(CommandTable.Flag.REPLICATED);
+        EnumSet<CommandTable.Flag> readKeywise = EnumSet.of(CommandTable.Flag.READONLY, CommandTable.Flag.KEYWISE);
+        EnumSet<CommandTable.Flag> writeKeywise = EnumSet.of(CommandTable.Flag.WRITE, CommandTable.Flag.REPLICATED,
+                CommandTable.Flag.KEYWISE);
+        CommandTable t = commands;
+        t.register("PING", -1, none, (c, a, p) -> c.handlePingCommand());
+        t.register("ECHO", 2, none, (c, a, p) -> c.handleEchoCommand(a));
+        t.register("SET", -3, write, 1, 1, 1, (c, a, p) -> c.handleSetCommand(a));
+        t.register("GET", 2, read, 1, 1, 1, (c, a, p) -> c.handleGetCommand(a));
+        t.register("DEL", -2, writeKeywise, 1, -1, 1, (c, a, p) -> c.handleDelCommand(a));
+        t.register("MGET", -2, readKeywise, 1, -1, 1, (c, a, p) -> c.handleMgetCommand(a));
+        t.register("MSET", -3, writeKeywise, 1, -1, 2, (c, a, p) -> c.handleMsetCommand(a));
+        t.register("EXISTS", -2, readKeywise, 1, -1, 1, (c, a, p) -> c.handleExistsCommand(a));
+        t.register("INCR", 2, write, 1, 1, 1, (c, a, p) -> c.handleIncrCommand(a));
+        t.register("INCRBY", 3, write, 1, 1, 1, (c, a, p) -> c.handleIncrCommand(a));
+        t.register("DECR", 2, write, 1, 1, 1, (c, a, p) -> c.handleIncrCommand(a));
+        t.register("DECRBY", 3, write, 1, 1, 1, (c, a, p) -> c.handleIncrCommand(a));
+        t.register("APPEND", 3, write, 1, 1, 1, (c, a, p) -> c.handleAppendCommand(a));
+        t.register("GETSET", 3, write, 1, 1, 1, (c, a, p) -> c.handleGetsetCommand(a));
+        t.register("INFO", -1, none, (c, a, p) -> c.handleInfoCommand(a));
+        t.register("REPLCONF", -2, EnumSet.of(CommandTable.Flag.REPLICATED, CommandTable.Flag.NO_MULTI),
+                (c, a, p) -> c.handleReplconfCommand(a, p));
+        t.register("PSYNC", 3, blocking, (c, a, p) -> c.handlePsyncCommand(a));
+        t.register("WAIT", 3, blocking, (c, a, p) -> c.handleWaitCommand(a));
+        t.register("CONFIG", -2, none, (c, a, p) -> c.handleConfigCommand(a));
+        t.register("SAVE", 1, none, (c, a, p) -> c.handleSaveCommand());
+        t.register("BGSAVE", -1, none, (c, a, p) -> c.handleBgsaveCommand());
+        t.register("LASTSAVE", 1, none, (c, a, p) -> c.handleLastsaveCommand());
+        t.register("BGREWRITEAOF", 1, none, (c, a, p) -> c.handleBgrewriteaofCommand());
+        t.register("MULTI", 1, transaction, (c, a, p) -> c.handleMultiCommand());
+        t.register("EXEC", 1, transaction, (c, a, p) -> c.handleExecCommand());
+        t.register("DISCARD", 1, none, (c, a, p) -> c.handleDiscardCommand());
+        t.register("WATCH", -2, none, (c, a, p) -> c.handleWatchCommand(a));
+        t.register("UNWATCH", 1, none, (c, a, p) -> c.handleUnwatchCommand());
+        t.register("CLUSTER", -2, none, (c, a, p) -> c.handleClusterCommand(a));
+        t.register("HELLO", -1, none, (c, a, p) -> c.handleHelloCommand(a));
+        t.register("CLIENT", -2, none, (c, a, p) -> c.handleClientCommand(a));
+        t.register("ASKING", 1, none, (c, a, p) -> c.handleAskingCommand());
+        t.register("TYPE", 2, read, 1, 1, 1, (c, a, p) -> c.handleTypeCommand(a));
+        t.register("DBSIZE", 1, read, (c, a, p) -> c.handleDbsizeCommand());
+        t.register("KEYS", 2, read, (c, a, p) -> c.handleKeysCommand(a));
+        t.register("SCAN", -2, read, (c, a, p) -> c.handleScanCommand(a));
+        t.register("OBJECT", -2, read, 2, 2, 1, (c, a, p) -> c.handleObjectCommand(a));
+        t.register("HSET", -4, write, 1, 1, 1, (c, a, p) -> c.handleHsetCommand(a));
+        t.register("HGET", 3, read, 1, 1, 1, (c, a, p) -> c.handleHgetCommand(a));
+        t.register("HMGET", -3, read, 1, 1, 1, (c, a, p) -> c.handleHmgetCommand(a));
+        t.register("HDEL", -3, write, 1, 1, 1, (c, a, p) -> c.handleHdelCommand(a));
+        t.register("HLEN", 2, read, 1, 1, 1, (c, a, p) -> c.handleHlenCommand(a));
+        t.register("HEXISTS", 3, read, 1, 1, 1, (c, a, p) -> c.handleHexistsCommand(a));
+        t.register("HGETALL", 2, read, 1, 1, 1, (c, a, p) -> c.handleHgetallCommand(a));
+        t.register("HKEYS", 2, read, 1, 1, 1, (c, a, p) -> c.handleHgetallCommand(a));
+        t.register("HVALS", 2, read, 1, 1, 1, (c, a, p) -> c.handleHgetallCommand(a));
+        t.register("LPUSH", -3, write, 1, 1, 1, (c, a, p) -> c.handlePushCommand(a));
+        t.register("RPUSH", -3, write, 1, 1, 1, (c, a, p) -> c.handlePushCommand(a));
+        t.register("LPOP", -2, write, 1, 1, 1, (c, a, p) -> c.handlePopCommand(a));
+        t.register("RPOP", -2, write, 1, 1, 1, (c, a, p) -> c.handlePopCommand(a));
+        t.register("LRANGE", 4, read, 1, 1, 1, (c, a, p) -> c.handleLrangeCommand(a));
+        t.register("LLEN", 2, read, 1, 1, 1, (c, a, p) -> c.handleLlenCommand(a));
+        t.register("LINDEX", 3, read, 1, 1, 1, (c, a, p) -> c.handleLindexCommand(a));
+        t.register("SADD", -3, write, 1, 1, 1, (c, a, p) -> c.handleSaddCommand(a));
+        t.register("SREM", -3, write, 1, 1, 1, (c, a, p) -> c.handleSremCommand(a));
+        t.register("SISMEMBER", 3, read, 1, 1, 1, (c, a, p) -> c.handleSismemberCommand(a));
+        t.register("SMEMBERS", 2, read, 1, 1, 1, (c, a, p) -> c.handleSmembersCommand(a));
+        t.register("SCARD", 2, read, 1, 1, 1, (c, a, p) -> c.handleScardCommand(a));
+        t.register("ZADD", -4, write, 1, 1, 1, (c, a, p) -> c.handleZaddCommand(a));
+        t.register("ZREM", -3, write, 1, 1, 1, (c, a, p) -> c.handleZremCommand(a));
+        t.register("ZSCORE", 3, read, 1, 1, 1, (c, a, p) -> c.handleZscoreCommand(a));
+        t.register("ZRANK", 3, read, 1, 1, 1, (c, a, p) -> c.handleZrankCommand(a));
+        t.register("ZCARD", 2, read, 1, 1, 1, (c, a, p) -> c.handleZcardCommand(a));
+        t.register("ZRANGE", -4, read, 1, 1, 1, (c, a, p) -> c.handleZrangeCommand(a));
+        t.register("ZRANGEBYSCORE", -4, read, 1, 1, 1, (c, a, p) -> c.handleZrangeCommand(a));
+        t.register("XADD", -5, write, 1, 1, 1, (c, a, p) -> c.handleXaddCommand(a));
+        t.register("XLEN", 2, read, 1, 1, 1, (c, a, p) -> c.handleXlenCommand(a));
+        t.register("XRANGE", -4, read, 1, 1, 1, (c, a, p) -> c.handleXrangeCommand(a));
+        t.register("XREAD", -4, EnumSet.of(CommandTable.Flag.READONLY, CommandTable.Flag.MAY_BLOCK),
+                (c, a, p) -> c.handleXreadCommand(a));
+    }
+
+    /**
+     * Writes the buffered replies, once the writes they acknowledge are as durable as the append-only file's fsync
+     * policy promises. Runs before the connection's thread waits for more input.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void flushReplies() throws IOException {
+        if (Main.aof != null) {
+            Main.aof.awaitSynced(aofOffset);
+        }
+        if (isReplicationConnection || trackingClient != null) {
+            replyLock.lock();
+            try {
+                out.flush();
+            } finally {
+                replyLock.unlock();
             }
-            Thread.sleep(200);
+        } else {
+            out.flush();
         }
-        System.out.println("wait response actual=" + actualReplicas);
-        out.writeInteger(actualReplicas);
+        reportTraffic();
     }
 
     /**
-     * Handles the CONFIG command from the client.
+     * Returns whether the replies of an event-loop connection have to wait for the append-only file to be synced.
+     * If so, the callback is run once they may be sent.
+     *
+     * @param onSynced run, on another thread, once the replies may be sent
+     * @return true if the replies must be held back until then
      */
-    private void handleConfigCommand() {
+    boolean holdReplies(Runnable onSynced) {
+        return Main.aof != null && Main.aof.whenSynced(aofOffset, onSynced);
+    }
 
+    /**
+     * Logs a write command to the append-only file, if there is one.
+     *
+     * @param args the command arguments
+     */
+    private void appendToAof(String... args) {
+        if (transactionAof != null) {
+            transactionAof.add(args);
+        } else if (Main.aof != null) {
+            aofOffset = Main.aof.append(args);
+        }
     }
 
     /**
-     * Propagates a command to all replicas.
+     * Propagates a write command to the replicas, or keeps it to be propagated with the rest of the transaction
+     * being executed.
      *
      * @param args the command arguments
-     * @throws InterruptedException if interrupted while waiting
      */
-    private void propagateToReplicas(String[] args) throws InterruptedException {
-        master_repl_offset += out.getBulkStringArray(args).length;
-        for (BlockingQueue<String[]> queue : queues) {
-            queue.put(args);
+    private void propagate(String[] args) {
+        if (transactionPropagation != null) {
+            transactionPropagation.add(args);
+        } else {
+            propagateToReplicas(args);
         }
     }
 
     /**
-     * Propagates commands to a single replica.
+     * Appends bytes read from the channel to the input of an event-loop connection.
      *
-     * @throws InterruptedException if interrupted while waiting
-     * @throws IOException          if an I/O error occurs
+     * @param src the bytes read
      */
-    private void propagateToReplica() throws InterruptedException, IOException {
-        BlockingQueue<String[]> queue = new LinkedBlockingDeque<>();
-        queues.add(queue);
-        Thread.ofVirtual().start(() -> {
+    void feed(ByteBuffer src) {
+        in.feed(src);
+    }
+
+    /**
+     * Handles every complete command fed so far, in order. Stops at a command that would park the event loop,
+     * which is kept to be handled by {@link #resume()}.
+     *
+     * @return false if a parked command is waiting for {@link #resume()}
+     * @throws IOException if an I/O error occurs
+     */
+    boolean runBufferedCommands() throws IOException {
+        try {
             while (true) {
+                long position = in.getPosition();
+                String[] args;
                 try {
-                    String[] response = in.readBulkStringArray();
-                    replOffsets.add(Long.parseLong(response[2]));
-                } catch (IOException e) {
-                    new RuntimeException(e);
+                    args = in.readBulkStringArray();
+                } catch (IncompleteInputException e) {
+                    return true;
                 }
+                if (queued == null && parksThread(args)) {
+                    parkedCommand = args;
+                    parkedPosition = position;
+                    return false;
+                }
+                handleCommand(args, position);
             }
-        });
-        while (true) {
-            String[] args = queue.take();
-            System.out.println("propagating: " + Arrays.toString(args));
-            out.writeBulkStringArray(args);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether a request is empty or has a null bulk string among its arguments, so that it is not a command
+     * to look up.
+     */
+    private static boolean isMalformed(String[] args) {
+        if (args.length == 0) {
+            return true;
+        }
+        for (String arg : args) {
+            if (arg == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a command may park its thread: PSYNC, WAIT, and XREAD with BLOCK. Commands queued in a
+     * transaction never do.
+     */
+    private static boolean parksThread(String[] args) {
+        if (isMalformed(args)) {
+            return false;
+        }
+        CommandTable.Command command = commands.lookup(args[0]);
+        if (command == null || !command.has(CommandTable.Flag.MAY_BLOCK)) {
+            return false;
+        }
+        if (command.name().equals("xread")) {
+            for (int i = 1; i < args.length && !args[i].equalsIgnoreCase("STREAMS"); i++) {
+                if (args[i].equalsIgnoreCase("BLOCK")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the replies of an event-loop connection to its channel as far as it accepts them without blocking.
+     * The reply buffer goes back to the shared pool meanwhile.
+     *
+     * @return true if everything was written, false if the channel has to become writable first
+     * @throws IOException if an I/O error occurs
+     */
+    boolean flushOutput() throws IOException {
+        out.flush();
+        channelOut.flush();
+        out.release();
+        reportTraffic();
+        return !channelOut.hasPending();
+    }
+
+    /**
+     * Sets how an event-loop connection asks its loop to push the keys invalidated for it.
+     *
+     * @param wakeup run, on the thread that invalidated a key, to have the loop call {@link #writeInvalidations()}
+     */
+    void setPushWakeup(Runnable wakeup) {
+        this.pushWakeup = wakeup;
+    }
+
+    /**
+     * Queues a key invalidated for this connection, to be pushed between replies. Called by the tracking table on
+     * the thread that changed the key, so it only hands the push over, once per batch of keys.
+     */
+    private void invalidate(String key) {
+        invalidated.add(key);
+        if (pushScheduled.compareAndSet(false, true)) {
+            Runnable wakeup = pushWakeup;
+            if (wakeup != null) {
+                wakeup.run();
+            } else {
+                Thread.ofVirtual().start(this::pushInvalidations);
+            }
+        }
+    }
+
+    /**
+     * Pushes the invalidated keys to a connection served by a thread of its own, once it is between commands.
+     * Replies still buffered are left for the connection to flush, once the append-only file allows, along with
+     * the push.
+     */
+    private void pushInvalidations() {
+        replyLock.lock();
+        try {
+            if (socket.isClosed()) {
+                return;
+            }
+            if (trackingClient == null) {
+                // Turned off meanwhile, so the connection's thread no longer takes the lock: leave its output alone
+                pushScheduled.set(false);
+                invalidated.clear();
+                return;
+            }
+            boolean idle = !out.hasPendingOutput();
+            writeInvalidations();
+            if (idle) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.verbose("Client closed connection: " + e.getMessage());
+        } finally {
+            replyLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the keys invalidated so far as a single {@code invalidate} push, after the replies buffered. Keys
+     * invalidated for a connection that has since stopped tracking, or gone back to RESP2, which cannot carry them,
+     * are dropped.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void writeInvalidations() throws IOException {
+        // Cleared first, so that a key queued from here on schedules another push
+        pushScheduled.set(false);
+        List<String> keys = new ArrayList<>();
+        for (String key; (key = invalidated.poll()) != null; ) {
+            keys.add(key);
+        }
+        if (keys.isEmpty() || trackingClient == null || out.getProtocol() != 3) {
+            return;
+        }
+        out.writePushHeader(2);
+        out.writeBulkString("invalidate");
+        out.writeArrayHeader(keys.size());
+        for (String key : keys) {
+            out.writeBulkString(key);
+        }
+    }
+
+    /**
+     * Handles the parked command of an event-loop connection, then keeps serving the connection on the current
+     * thread. The channel must have been taken off the event loop and switched to blocking mode.
+     */
+    void resume() {
+        // Invalidations are pushed by a thread of the connection's own from now on, including any the loop missed
+        pushWakeup = null;
+        if (pushScheduled.get()) {
+            Thread.ofVirtual().start(this::pushInvalidations);
+        }
+        try (socket; in; out) {
+            // Replies left over from the event loop go out before anything else
+            channelOut.flush();
+            in.attach(socket.getInputStream());
+            handleOwnCommand(parkedCommand, parkedPosition);
+            parkedCommand = null;
+            serve();
+        } catch (IOException | InterruptedException e) {
+            Log.verbose("Client closed connection: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.warning("Error serving client, closing connection: " + e);
+        } finally {
+            closed();
+        }
+    }
+
+    /**
+     * Closes an event-loop connection, sending whatever replies are still buffered if the channel accepts them.
+     */
+    void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.verbose("Client closed connection: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+            closed();
+        }
+    }
+
+    /**
+     * Cleans up after the connection has closed: unwatches its keys, stops tracking keys, and records its last
+     * traffic and its end in the {@link ServerStats}.
+     */
+    private void closed() {
+        unwatchAll();
+        stopTracking();
+        reportTraffic();
+        ServerStats.connectionClosed();
+    }
+
+    /**
+     * Adds the bytes read and written since the last call to the {@link ServerStats}. Called once per batch of
+     * replies, so that the shared counters are not touched for every command.
+     */
+    private void reportTraffic() {
+        long read = in.getPosition();
+        long written = out.getBytesWritten();
+        ServerStats.addInputBytes(read - reportedInput);
+        ServerStats.addOutputBytes(written - reportedOutput);
+        reportedInput = read;
+        reportedOutput = written;
+    }
+
+    /**
+     * Handles the PING command from the client. Responds with PONG if not a replication connection.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handlePingCommand() throws IOException {
+        if (!isReplicationConnection) {
+            out.writeSimpleString("PONG");
+        }
+    }
+
+    /**
+     * Handles the ECHO command from the client. Responds with the same message.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleEchoCommand(String[] args) throws IOException, InterruptedException {
+        String message = args[1];
+        out.writeBulkString(message);
+    }
+
+    /**
+     * Handles the SET command from the client. Sets a key-value pair in the store and optionally sets an expiration,
+     * given as {@code PX <milliseconds>} in any case.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleSetCommand(String[] args) throws IOException, InterruptedException {
+        String key = args[1];
+        String value = args[2];
+        if (args.length == 5 && args[3].equalsIgnoreCase("PX")) {
+            long milliseconds = parseInteger(args[4]);
+            if (milliseconds <= 0 || milliseconds > Long.MAX_VALUE - System.currentTimeMillis()) {
+                throw new CommandException("ERR value is not an integer or out of range");
+            }
+            store.set(key, value, milliseconds);
+            // Logged with an absolute time, so that replaying the log does not extend the expiry
+            appendToAof("SET", key, value, "PXAT", String.valueOf(System.currentTimeMillis() + milliseconds));
+        } else if (args.length == 3) {
+            store.set(key, value);
+            appendToAof(args);
+        } else {
+            throw new CommandException("ERR syntax error");
+        }
+        if (Main.role.equals("master")) {
+            propagate(args);
+            out.writeSimpleString("OK");
+        }
+    }
+
+    /**
+     * Handles the GET command from the client. Retrieves a value from the store.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleGetCommand(String[] args) throws IOException {
+        store.writeValue(args[1], out);
+    }
+
+    /**
+     * Handles the DEL command from the client. Removes the given keys in one pass over the store and responds with
+     * how many existed.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleDelCommand(String[] args) throws IOException, InterruptedException {
+        long deleted;
+        if (fansOut()) {
+            deleted = fanOutWrite(args, 1, 1, (keys, positions) -> store.deleteAll(keys, 0));
+        } else {
+            deleted = store.deleteAll(args, 1);
+            if (deleted > 0) {
+                appendToAof(args);
+            }
+            if (Main.role.equals("master")) {
+                propagate(args);
+            }
+        }
+        if (Main.role.equals("master")) {
+            out.writeInteger(deleted);
+        }
+    }
+
+    /**
+     * Handles the MGET command from the client. Reads the given keys in one pass over the store and responds with
+     * their values, with a null bulk string for each key that does not exist or does not hold a string.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleMgetCommand(String[] args) throws IOException, InterruptedException {
+        byte[][] values;
+        if (fansOut()) {
+            byte[][] gathered = new byte[args.length - 1][];
+            fanOut(args, 1, 1, (keys, positions) -> {
+                byte[][] part = store.getAll(keys, 0);
+                for (int i = 0; i < part.length; i++) {
+                    gathered[positions[i] - 1] = part[i];
+                }
+                return 0;
+            });
+            values = gathered;
+        } else {
+            values = store.getAll(args, 1);
+        }
+        out.writeArrayHeader(values.length);
+        for (byte[] value : values) {
+            if (value == null) {
+                out.writeNullBulkString();
+            } else {
+                out.writeBulkString(value);
+            }
+        }
+    }
+
+    /**
+     * Handles the MSET command from the client. Sets the given keys in one pass over the store; as the keys are
+     * locked together, no other command sees some of them set and others not. With {@code --shards}, that only
+     * holds for the keys of each shard, unless MSET runs in a transaction.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleMsetCommand(String[] args) throws IOException, InterruptedException {
+        checkPairs(args, 1);
+        if (fansOut()) {
+            fanOutWrite(args, 1, 2, (keysAndValues, positions) -> {
+                store.setAll(keysAndValues, 0);
+                return positions.length;
+            });
+        } else {
+            store.setAll(args, 1);
+            logWrite(args);
+        }
+        if (Main.role.equals("master")) {
+            out.writeSimpleString("OK");
+        }
+    }
+
+    /**
+     * Handles the EXISTS command from the client. Responds with how many of the given keys exist, counting a key
+     * given twice twice.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleExistsCommand(String[] args) throws IOException, InterruptedException {
+        long count = fansOut()
+                ? fanOut(args, 1, 1, (keys, positions) -> store.countExisting(keys, 0))
+                : store.countExisting(args, 1);
+        out.writeInteger(count);
+    }
+
+    /**
+     * Handles the INCR, INCRBY, DECR and DECRBY commands from the client. Adds to the integer held by a key,
+     * starting from 0, and responds with the result.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleIncrCommand(String[] args) throws IOException {
+        long delta = args.length == 3 ? parseInteger(args[2]) : 1;
+        if (args[0].regionMatches(true, 0, "DECR", 0, 4)) {
+            if (delta == Long.MIN_VALUE) {
+                throw new CommandException("ERR decrement would overflow");
+            }
+            delta = -delta;
+        }
+        long value = store.incrementBy(args[1], delta);
+        logWrite(args);
+        if (Main.role.equals("master")) {
+            out.writeInteger(value);
+        }
+    }
+
+    /**
+     * Handles the APPEND command from the client. Appends to the value of a key, creating it if needed, and
+     * responds with the length of the value afterwards.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleAppendCommand(String[] args) throws IOException {
+        int length = store.append(args[1], args[2].getBytes(StandardCharsets.ISO_8859_1));
+        logWrite(args);
+        if (Main.role.equals("master")) {
+            out.writeInteger(length);
+        }
+    }
+
+    /**
+     * Handles the GETSET command from the client. Sets a key and responds with the value it had, or a null bulk
+     * string if it had none.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleGetsetCommand(String[] args) throws IOException {
+        byte[] old = store.getAndSet(args[1], args[2].getBytes(StandardCharsets.ISO_8859_1));
+        logWrite(args);
+        if (Main.role.equals("master")) {
+            if (old == null) {
+                out.writeNullBulkString();
+            } else {
+                out.writeBulkString(old);
+            }
+        }
+    }
+
+    /**
+     * Deals with a command that arrives while a transaction is open. EXEC and DISCARD go on to be run; other commands
+     * are queued, and replied to with QUEUED, unless they cannot be used inside a transaction.
+     *
+     * @return true if the command has been dealt with, false if it is to be run now
+     * @throws CommandException if the command cannot be queued
+     */
+    private boolean queueCommand(CommandTable.Command command, String[] args) throws IOException {
+        switch (command.name()) {
+            case "exec", "discard" -> {
+                return false;
+            }
+            case "multi" -> throw new CommandException("ERR MULTI calls can not be nested");
+            case "watch" -> throw new CommandException("ERR WATCH inside MULTI is not allowed");
+        }
+        if (command.has(CommandTable.Flag.NO_MULTI)) {
+            queueFailed = true;
+            throw new CommandException("ERR Command not allowed inside a transaction");
+        }
+        queued.add(args);
+        if (!isReplicationConnection) {
+            out.writeSimpleString("QUEUED");
+        }
+        return true;
+    }
+
+    /**
+     * Handles the MULTI command from the client. Opens a transaction: commands are queued until EXEC or DISCARD.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleMultiCommand() throws IOException {
+        queued = new ArrayList<>();
+        if (!isReplicationConnection) {
+            out.writeSimpleString("OK");
+        }
+    }
+
+    /**
+     * Handles the EXEC command from the client. Runs the queued commands as one block, with the keys of all of them
+     * and the WATCHed keys locked, and responds with an array of their replies. If a WATCHed key has changed since,
+     * nothing is run and the response is a null array. The writes are logged and propagated as one unit before the
+     * keys are unlocked, so they come in the same order as on any other connection.
+     *
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleExecCommand() throws IOException, InterruptedException {
+        if (queued == null) {
+            throw new CommandException("ERR EXEC without MULTI");
+        }
+        List<String[]> commands = queued;
+        queued = null;
+        try {
+            if (queueFailed) {
+                throw new CommandException("EXECABORT Transaction discarded because of previous errors.");
+            }
+            List<String> keys = new ArrayList<>(watchedVersions.keySet());
+            for (String[] args : commands) {
+                Collections.addAll(keys, ConnectionHandler.commands.lookup(args[0]).keys(args));
+            }
+            int[] held = keyLocks.lock(keys.toArray(new String[0]));
+            try {
+                for (Map.Entry<String, Long> watched : watchedVersions.entrySet()) {
+                    if (store.version(watched.getKey()) != watched.getValue()) {
+                        if (!isReplicationConnection) {
+                            out.writeNullArray();
+                        }
+                        return;
+                    }
+                }
+                if (!isReplicationConnection) {
+                    out.writeArrayHeader(commands.size());
+                }
+                executeTransaction(commands);
+            } finally {
+                keyLocks.unlock(held);
+            }
+        } finally {
+            queueFailed = false;
+            asking = false;
+            unwatchAll();
+        }
+    }
+
+    /**
+     * Runs the commands of a transaction, then logs and propagates their writes together: a single write as it is,
+     * several between MULTI and EXEC.
+     */
+    private void executeTransaction(List<String[]> commands) throws IOException, InterruptedException {
+        List<String[]> aof = new ArrayList<>();
+        List<String[]> propagation = new ArrayList<>();
+        executing = true;
+        transactionAof = aof;
+        transactionPropagation = propagation;
+        try {
+            for (String[] args : commands) {
+                handleCommand(args, -1);
+            }
+        } finally {
+            executing = false;
+            transactionAof = null;
+            transactionPropagation = null;
+            if (aof.size() == 1) {
+                appendToAof(aof.get(0));
+            } else if (aof.size() > 1 && Main.aof != null) {
+                aofOffset = Main.aof.appendTransaction(aof);
+            }
+            if (propagation.size() == 1) {
+                propagateToReplicas(propagation.get(0));
+            } else if (propagation.size() > 1) {
+                propagateTransaction(propagation);
+            }
+        }
+    }
+
+    /**
+     * Handles the DISCARD command from the client. Drops the queued commands and unwatches every key.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleDiscardCommand() throws IOException {
+        if (queued == null) {
+            throw new CommandException("ERR DISCARD without MULTI");
+        }
+        queued = null;
+        queueFailed = false;
+        asking = false;
+        unwatchAll();
+        if (!isReplicationConnection) {
+            out.writeSimpleString("OK");
+        }
+    }
+
+    /**
+     * Handles the WATCH command from the client. Makes the next EXEC fail if any of the given keys changes before
+     * it. Only the version of each key is kept, not its value.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleWatchCommand(String[] args) throws IOException {
+        for (int i = 1; i < args.length; i++) {
+            if (!watchedVersions.containsKey(args[i])) {
+                watchedVersions.put(args[i], store.watch(args[i]));
+            }
+        }
+        out.writeSimpleString("OK");
+    }
+
+    /**
+     * Handles the UNWATCH command from the client. Unwatches every key.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleUnwatchCommand() throws IOException {
+        unwatchAll();
+        out.writeSimpleString("OK");
+    }
+
+    /**
+     * Unwatches every key this connection watches, as EXEC, DISCARD and closing the connection do.
+     */
+    private void unwatchAll() {
+        for (String key : watchedVersions.keySet()) {
+            store.unwatch(key);
+        }
+        watchedVersions.clear();
+    }
+
+    /**
+     * Handles the TYPE command from the client. Responds with the type of the value of a key.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleTypeCommand(String[] args) throws IOException {
+        out.writeSimpleString(store.type(args[1]));
+    }
+
+    /**
+     * Handles the HELLO command from the client. Switches the connection to the protocol version given, RESP2 or
+     * RESP3, and responds with a map describing the server and the connection. AUTH is accepted for the default
+     * user with any password, as Redis does when no password is set; SETNAME names the connection.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHelloCommand(String[] args) throws IOException {
+        int protocol = out.getProtocol();
+        int i = 1;
+        if (args.length > 1) {
+            long version;
+            try {
+                version = Long.parseLong(args[1]);
+            } catch (NumberFormatException e) {
+                throw new CommandException("ERR Protocol version is not an integer or out of range");
+            }
+            if (version < 2 || version > 3) {
+                throw new CommandException("NOPROTO unsupported protocol version");
+            }
+            protocol = (int) version;
+            i = 2;
+        }
+        String name = null;
+        for (; i < args.length; i++) {
+            String option = args[i].toUpperCase();
+            int values = option.equals("AUTH") ? 2 : option.equals("SETNAME") ? 1 : -1;
+            if (values < 0 || i + values >= args.length) {
+                throw new CommandException("ERR Syntax error in HELLO option '" + args[i] + "'");
+            }
+            if (values == 2 && !args[i + 1].equals("default")) {
+                throw new CommandException("WRONGPASS invalid username-password pair or user is disabled.");
+            }
+            if (values == 1) {
+                name = checkClientName(args[i + 1]);
+            }
+            i += values;
+        }
+        if (name != null) {
+            clientName = name.isEmpty() ? null : name;
+        }
+        out.setProtocol(protocol);
+        out.writeMapHeader(7);
+        out.writeBulkString("server");
+        out.writeBulkString("redis");
+        out.writeBulkString("version");
+        out.writeBulkString(REDIS_VERSION);
+        out.writeBulkString("proto");
+        out.writeInteger(protocol);
+        out.writeBulkString("id");
+        out.writeInteger(clientId);
+        out.writeBulkString("mode");
+        out.writeBulkString(Main.cluster != null ? "cluster" : "standalone");
+        out.writeBulkString("role");
+        out.writeBulkString(Main.role.equals("master") ? "master" : "replica");
+        out.writeBulkString("modules");
+        out.writeArrayHeader(0);
+    }
+
+    /**
+     * Handles the CLIENT command from the client: ID, SETNAME and GETNAME identify the connection, and TRACKING and
+     * TRACKINGINFO turn on, turn off and describe the tracking of the keys it caches.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleClientCommand(String[] args) throws IOException {
+        String subcommand = args[1].toUpperCase();
+        switch (subcommand) {
+            case "ID" -> {
+                checkSubcommandArity(args, 2, 2);
+                out.writeInteger(clientId);
+            }
+            case "SETNAME" -> {
+                checkSubcommandArity(args, 3, 3);
+                String name = checkClientName(args[2]);
+                clientName = name.isEmpty() ? null : name;
+                out.writeSimpleString("OK");
+            }
+            case "GETNAME" -> {
+                checkSubcommandArity(args, 2, 2);
+                if (clientName == null) {
+                    out.writeNullBulkString();
+                } else {
+                    out.writeBulkString(clientName);
+                }
+            }
+            case "TRACKING" -> {
+                checkSubcommandArity(args, 3, Integer.MAX_VALUE);
+                handleClientTracking(args);
+                out.writeSimpleString("OK");
+            }
+            case "TRACKINGINFO" -> {
+                checkSubcommandArity(args, 2, 2);
+                writeTrackingInfo();
+            }
+            default -> throw new CommandException("ERR unknown subcommand '" + args[1] + "'. Try CLIENT HELP.");
+        }
+    }
+
+    private static void checkSubcommandArity(String[] args, int min, int max) {
+        if (args.length < min || args.length > max) {
+            throw new CommandException("ERR wrong number of arguments for '" + args[0].toLowerCase() + "|"
+                    + args[1].toLowerCase() + "' command");
+        }
+    }
+
+    private static String checkClientName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '!' || c > '~') {
+                throw new CommandException("ERR Client names cannot contain spaces, newlines or special characters.");
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Turns the tracking of keys for this connection on or off, as CLIENT TRACKING ON|OFF [BCAST] [PREFIX prefix]
+     * [NOLOOP] asks. Turning it on again adds the prefixes given to those of broadcast mode, or changes NOLOOP.
+     * Invalidations are only pushed in RESP3, since without Pub/Sub there is nowhere to redirect them to.
+     */
+    private void handleClientTracking(String[] args) {
+        boolean on = switch (args[2].toUpperCase()) {
+            case "ON" -> true;
+            case "OFF" -> false;
+            default -> throw new CommandException("ERR syntax error");
+        };
+        boolean broadcast = false;
+        boolean noLoop = false;
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (int i = 3; i < args.length; i++) {
+            switch (args[i].toUpperCase()) {
+                case "BCAST" -> broadcast = true;
+                case "NOLOOP" -> noLoop = true;
+                case "PREFIX" -> {
+                    if (i + 1 == args.length) {
+                        throw new CommandException("ERR syntax error");
+                    }
+                    prefixes.add(args[++i]);
+                }
+                case "OPTIN", "OPTOUT", "REDIRECT" ->
+                        throw new CommandException("ERR CLIENT TRACKING " + args[i].toUpperCase() + " is not supported");
+                default -> throw new CommandException("ERR syntax error");
+            }
+        }
+        if (!on) {
+            stopTracking();
+            return;
+        }
+        if (!prefixes.isEmpty() && !broadcast) {
+            throw new CommandException("ERR PREFIX option requires BCAST mode to be enabled");
+        }
+        if (out.getProtocol() != 3) {
+            throw new CommandException("ERR CLIENT TRACKING needs RESP3, as switched to by HELLO 3, to push "
+                    + "invalidations on");
+        }
+        TrackingTable.Client current = trackingClient;
+        if (current != null && current.broadcast() != broadcast) {
+            throw new CommandException("ERR You can't switch BCAST mode on/off before disabling tracking for this "
+                    + "client, and then re-enabling it with a different mode.");
+        }
+        List<String> all = null;
+        if (broadcast) {
+            all = new ArrayList<>(current != null ? current.prefixes() : List.of());
+            for (String prefix : prefixes) {
+                if (!all.contains(prefix)) {
+                    all.add(prefix);
+                }
+            }
+            if (all.isEmpty()) {
+                // No prefix means every key
+                all.add("");
+            }
+        }
+        TrackingTable.Client client = new TrackingTable.Client(clientId, noLoop, all, this::invalidate);
+        try {
+            // The new tracking starts before the old one ends, so that no change is missed in between
+            Main.tracking.enable(client);
+        } catch (IllegalArgumentException e) {
+            throw new CommandException("ERR " + e.getMessage());
+        }
+        if (current != null) {
+            Main.tracking.disable(current);
+        }
+        trackingClient = client;
+    }
+
+    /**
+     * Stops tracking keys for this connection, if it did.
+     */
+    private void stopTracking() {
+        TrackingTable.Client client = trackingClient;
+        if (client != null) {
+            Main.tracking.disable(client);
+            trackingClient = null;
+        }
+    }
+
+    /**
+     * Responds to CLIENT TRACKINGINFO with the flags, redirect and prefixes of the tracking of this connection.
+     */
+    private void writeTrackingInfo() throws IOException {
+        TrackingTable.Client client = trackingClient;
+        List<String> flags = new ArrayList<>();
+        if (client == null) {
+            flags.add("off");
+        } else {
+            flags.add("on");
+            if (client.broadcast()) {
+                flags.add("bcast");
+            }
+            if (client.noLoop()) {
+                flags.add("noloop");
+            }
+        }
+        out.writeMapHeader(3);
+        out.writeBulkString("flags");
+        out.writeBulkStringArray(flags.toArray(new String[0]));
+        out.writeBulkString("redirect");
+        out.writeInteger(-1);
+        out.writeBulkString("prefixes");
+        out.writeBulkStringArray(client == null ? new String[0] : client.prefixes().toArray(new String[0]));
+    }
+
+    /**
+     * Handles the DBSIZE command from the client. Responds with the number of keys, kept as they change rather than
+     * counted.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleDbsizeCommand() throws IOException {
+        out.writeInteger(store.size());
+    }
+
+    /**
+     * Handles the KEYS command from the client. Responds with every key matching a glob-style pattern, each written
+     * to the reply as it is found rather than collected first. Writes carry on meanwhile; keys they add or remove
+     * may or may not be listed.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleKeysCommand(String[] args) throws IOException {
+        String pattern = args[1];
+        if (Glob.isLiteral(pattern)) {
+            // Only the key itself can match, so there is no need to look at the others
+            if (store.exists(pattern)) {
+                out.writeBulkStringArray(pattern);
+            } else {
+                out.writeArrayHeader(0);
+            }
+            return;
+        }
+        boolean all = pattern.equals("*");
+        long[] n = new long[1];
+        out.beginDeferredArray();
+        store.forEachKey(key -> {
+            if (all || Glob.matches(pattern, key)) {
+                out.writeBulkString(key);
+                n[0]++;
+            }
+        });
+        out.endDeferredArray(n[0]);
+    }
+
+    /**
+     * Handles the SCAN command from the client. Responds with the cursor to continue from, 0 once the scan is
+     * complete, and the keys found in the next few buckets of the store from a cursor. MATCH keeps the keys matching
+     * a glob-style pattern, COUNT sets roughly how many keys to look at (10), and TYPE keeps the keys of a type.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleScanCommand(String[] args) throws IOException {
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(args[1]);
+        } catch (NumberFormatException e) {
+            throw new CommandException("ERR invalid cursor");
+        }
+        String pattern = null;
+        long count = 10;
+        String type = null;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i].toUpperCase()) {
+                case "MATCH" -> {
+                    checkArity(args, i + 2);
+                    pattern = args[++i];
+                }
+                case "COUNT" -> {
+                    checkArity(args, i + 2);
+                    count = parseInteger(args[++i]);
+                    if (count < 1) {
+                        throw new CommandException("ERR syntax error");
+                    }
+                }
+                case "TYPE" -> {
+                    checkArity(args, i + 2);
+                    type = args[++i];
+                }
+                default -> throw new CommandException("ERR syntax error");
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        long next = store.scan(cursor, (int) Math.min(count, Integer.MAX_VALUE), type, keys);
+        if (pattern != null && !pattern.equals("*")) {
+            String match = pattern;
+            // As in Redis, COUNT bounds the keys looked at, not those matching
+            keys.removeIf(key -> !Glob.matches(match, key));
+        }
+        out.writeArrayHeader(2);
+        out.writeBulkString(Long.toString(next));
+        out.writeArrayHeader(keys.size());
+        for (String key : keys) {
+            out.writeBulkString(key);
+        }
+    }
+
+    /**
+     * Handles the OBJECT command from the client. Supports OBJECT ENCODING, responding with how the value of a key
+     * is encoded, or a null bulk string if the key does not exist.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleObjectCommand(String[] args) throws IOException {
+        if (args.length != 3 || !args[1].equalsIgnoreCase("ENCODING")) {
+            throw new CommandException("ERR unsupported OBJECT subcommand");
+        }
+        String encoding = store.encoding(args[2]);
+        if (encoding == null) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(encoding);
+        }
+    }
+
+    /**
+     * Handles the HSET command from the client. Sets fields of a hash, creating it if needed, and responds with the
+     * number of fields that were new.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHsetCommand(String[] args) throws IOException {
+        checkPairs(args, 2);
+        int added = store.update(args[1], HashValue.class, HashValue::new, hash -> hash.set(args, 2));
+        logWrite(args);
+        if (Main.role.equals("master")) {
+            out.writeInteger(added);
+        }
+    }
+
+    /**
+     * Handles the HGET command from the client. Responds with the value of a field of a hash.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHgetCommand(String[] args) throws IOException {
+        byte[] value = store.read(args[1], HashValue.class, hash -> hash.get(args[2]));
+        if (value == null) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(value);
+        }
+    }
+
+    /**
+     * Handles the HMGET command from the client. Responds with the values of the given fields of a hash, with a null
+     * bulk string for each field it does not have.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHmgetCommand(String[] args) throws IOException {
+        List<byte[]> values = store.read(args[1], HashValue.class, hash -> {
+            List<byte[]> found = new ArrayList<>(args.length - 2);
+            for (int i = 2; i < args.length; i++) {
+                found.add(hash.get(args[i]));
+            }
+            return found;
+        });
+        out.writeArrayHeader(args.length - 2);
+        for (int i = 2; i < args.length; i++) {
+            byte[] value = values == null ? null : values.get(i - 2);
+            if (value == null) {
+                out.writeNullBulkString();
+            } else {
+                out.writeBulkString(value);
+            }
+        }
+    }
+
+    /**
+     * Handles the HDEL command from the client. Removes fields from a hash and responds with how many it had.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHdelCommand(String[] args) throws IOException {
+        Integer deleted = store.update(args[1], HashValue.class, null, hash -> {
+            int n = 0;
+            for (int i = 2; i < args.length; i++) {
+                if (hash.delete(args[i])) {
+                    n++;
+                }
+            }
+            return n;
+        }, n -> n > 0);
+        int count = deleted == null ? 0 : deleted;
+        if (count > 0) {
+            logWrite(args);
+        }
+        if (Main.role.equals("master")) {
+            out.writeInteger(count);
+        }
+    }
+
+    /**
+     * Handles the HLEN command from the client. Responds with the number of fields of a hash.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHlenCommand(String[] args) throws IOException {
+        Integer size = store.read(args[1], HashValue.class, HashValue::size);
+        out.writeInteger(size == null ? 0 : size);
+    }
+
+    /**
+     * Handles the HEXISTS command from the client. Responds with 1 if a hash has the given field, 0 otherwise.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHexistsCommand(String[] args) throws IOException {
+        Boolean exists = store.read(args[1], HashValue.class, hash -> hash.get(args[2]) != null);
+        out.writeInteger(exists != null && exists ? 1 : 0);
+    }
+
+    /**
+     * Handles the HGETALL, HKEYS and HVALS commands from the client. Responds with the fields and values of a hash,
+     * only its fields, or only its values.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleHgetallCommand(String[] args) throws IOException {
+        boolean fields = !args[0].equalsIgnoreCase("HVALS");
+        boolean values = !args[0].equalsIgnoreCase("HKEYS");
+        List<byte[]> reply = store.read(args[1], HashValue.class, hash -> {
+            List<byte[]> items = new ArrayList<>(hash.size() * (fields && values ? 2 : 1));
+            hash.forEach((field, value) -> {
+                if (fields) {
+                    items.add(field.getBytes(StandardCharsets.ISO_8859_1));
+                }
+                if (values) {
+                    items.add(value);
+                }
+            });
+            return items;
+        });
+        List<byte[]> items = reply == null ? List.of() : reply;
+        if (fields && values) {
+            // A map in RESP3
+            out.writeMapHeader(items.size() / 2);
+            for (byte[] item : items) {
+                out.writeBulkString(item);
+            }
+        } else {
+            out.writeBulkStringArray(items);
+        }
+    }
+
+    /**
+     * Handles the LPUSH and RPUSH commands from the client. Adds elements at the head or the tail of a list,
+     * creating it if needed, and responds with the length of the list.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handlePushCommand(String[] args) throws IOException {
+        boolean left = args[0].equalsIgnoreCase("LPUSH");
+        int size = store.update(args[1], ListValue.class, ListValue::new, list -> {
+            list.push(args, 2, left);
+            return list.size();
+        });
+        logWrite(args);
+        if (Main.role.equals("master")) {
+            out.writeInteger(size);
+        }
+    }
+
+    /**
+     * Handles the LPOP and RPOP commands from the client. Removes elements from the head or the tail of a list and
+     * responds with the element, or with an array of them if a count is given.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handlePopCommand(String[] args) throws IOException {
+        boolean left = args[0].equalsIgnoreCase("LPOP");
+        long count = 1;
+        if (args.length > 2) {
+            count = parseInteger(args[2]);
+            if (count < 0) {
+                throw new CommandException("ERR value is out of range, must be positive");
+            }
+        }
+        long n = count;
+        List<byte[]> popped = store.update(args[1], ListValue.class, null, list -> {
+            List<byte[]> elements = new ArrayList<>((int) Math.min(n, list.size()));
+            for (long i = 0; i < n; i++) {
+                byte[] element = list.pop(left);
+                if (element == null) {
+                    break;
+                }
+                elements.add(element);
+            }
+            return elements;
+        });
+        if (popped != null && !popped.isEmpty()) {
+            logWrite(args);
+        }
+        if (!Main.role.equals("master")) {
+            return;
+        }
+        if (args.length > 2) {
+            if (popped == null) {
+                out.writeNullArray();
+            } else {
+                out.writeBulkStringArray(popped);
+            }
+        } else if (popped == null || popped.isEmpty()) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(popped.get(0));
+        }
+    }
+
+    /**
+     * Handles the LRANGE command from the client. Responds with the elements of a list between two indexes.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleLrangeCommand(String[] args) throws IOException {
+        long start = parseInteger(args[2]);
+        long stop = parseInteger(args[3]);
+        List<byte[]> elements = store.read(args[1], ListValue.class, list -> {
+            List<byte[]> range = new ArrayList<>();
+            list.range(start, stop, range::add);
+            return range;
+        });
+        out.writeBulkStringArray(elements == null ? List.of() : elements);
+    }
+
+    /**
+     * Handles the LLEN command from the client. Responds with the length of a list.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleLlenCommand(String[] args) throws IOException {
+        Integer size = store.read(args[1], ListValue.class, ListValue::size);
+        out.writeInteger(size == null ? 0 : size);
+    }
+
+    /**
+     * Handles the LINDEX command from the client. Responds with the element of a list at an index.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleLindexCommand(String[] args) throws IOException {
+        long index = parseInteger(args[2]);
+        byte[] element = store.read(args[1], ListValue.class, list -> list.get(index));
+        if (element == null) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(element);
+        }
+    }
+
+    /**
+     * Handles the SADD command from the client. Adds members to a set, creating it if needed, and responds with the
+     * number of members that were new.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleSaddCommand(String[] args) throws IOException {
+        int added = store.update(args[1], SetValue.class, SetValue::new, set -> set.add(args, 2), n -> n > 0);
+        if (added > 0) {
+            logWrite(args);
+        }
+        if (Main.role.equals("master")) {
+            out.writeInteger(added);
+        }
+    }
+
+    /**
+     * Handles the SREM command from the client. Removes members from a set and responds with how many it had.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleSremCommand(String[] args) throws IOException {
+        Integer removed = store.update(args[1], SetValue.class, null, set -> set.remove(args, 2), n -> n > 0);
+        int count = removed == null ? 0 : removed;
+        if (count > 0) {
+            logWrite(args);
+        }
+        if (Main.role.equals("master")) {
+            out.writeInteger(count);
+        }
+    }
+
+    /**
+     * Handles the SISMEMBER command from the client. Responds with 1 if a set holds the member, 0 otherwise.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleSismemberCommand(String[] args) throws IOException {
+        Boolean member = store.read(args[1], SetValue.class, set -> set.contains(args[2]));
+        out.writeInteger(member != null && member ? 1 : 0);
+    }
+
+    /**
+     * Handles the SMEMBERS command from the client. Responds with the members of a set.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleSmembersCommand(String[] args) throws IOException {
+        List<byte[]> members = store.read(args[1], SetValue.class, set -> {
+            List<byte[]> all = new ArrayList<>(set.size());
+            set.forEach(member -> all.add(member.getBytes(StandardCharsets.ISO_8859_1)));
+            return all;
+        });
+        out.writeBulkStringArray(members == null ? List.of() : members);
+    }
+
+    /**
+     * Handles the SCARD command from the client. Responds with the number of members of a set.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleScardCommand(String[] args) throws IOException {
+        Integer size = store.read(args[1], SetValue.class, SetValue::size);
+        out.writeInteger(size == null ? 0 : size);
+    }
+
+    /**
+     * Handles the ZADD command from the client. Adds members with their scores to a sorted set, creating it if
+     * needed, and responds with the number of members that were new. Every score is checked before anything is
+     * added.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleZaddCommand(String[] args) throws IOException {
+        checkPairs(args, 2);
+        double[] scores = new double[(args.length - 2) / 2];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = SortedSetValue.parseScore(args[2 + 2 * i]);
+        }
+        int added = store.update(args[1], SortedSetValue.class, SortedSetValue::new, zset -> {
+            int n = 0;
+            for (int i = 0; i < scores.length; i++) {
+                if (zset.add(args[3 + 2 * i], scores[i])) {
+                    n++;
+                }
+            }
+            return n;
+        });
+        logWrite(args);
+        if (Main.role.equals("master")) {
+            out.writeInteger(added);
+        }
+    }
+
+    /**
+     * Handles the ZREM command from the client. Removes members from a sorted set and responds with how many it
+     * had.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleZremCommand(String[] args) throws IOException {
+        Integer removed = store.update(args[1], SortedSetValue.class, null, zset -> {
+            int n = 0;
+            for (int i = 2; i < args.length; i++) {
+                if (zset.remove(args[i])) {
+                    n++;
+                }
+            }
+            return n;
+        }, n -> n > 0);
+        int count = removed == null ? 0 : removed;
+        if (count > 0) {
+            logWrite(args);
+        }
+        if (Main.role.equals("master")) {
+            out.writeInteger(count);
+        }
+    }
+
+    /**
+     * Handles the ZSCORE command from the client. Responds with the score of a member of a sorted set.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleZscoreCommand(String[] args) throws IOException {
+        Double score = store.read(args[1], SortedSetValue.class, zset -> zset.score(args[2]));
+        if (score == null) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(SortedSetValue.formatScore(score));
+        }
+    }
+
+    /**
+     * Handles the ZRANK command from the client. Responds with the rank of a member of a sorted set, counted from 0
+     * for the lowest score.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleZrankCommand(String[] args) throws IOException {
+        Long rank = store.read(args[1], SortedSetValue.class, zset -> zset.rank(args[2]));
+        if (rank == null || rank < 0) {
+            out.writeNullBulkString();
+        } else {
+            out.writeInteger(rank);
+        }
+    }
+
+    /**
+     * Handles the ZCARD command from the client. Responds with the number of members of a sorted set.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleZcardCommand(String[] args) throws IOException {
+        Integer size = store.read(args[1], SortedSetValue.class, SortedSetValue::size);
+        out.writeInteger(size == null ? 0 : size);
+    }
+
+    /**
+     * Handles the ZRANGE and ZRANGEBYSCORE commands from the client. Responds with the members of a sorted set
+     * between two ranks, or with a score between two bounds, and their scores if WITHSCORES is given. A score bound
+     * starting with {@code (} is exclusive.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleZrangeCommand(String[] args) throws IOException {
+        boolean withScores = args.length > 4 && args[4].equalsIgnoreCase("WITHSCORES");
+        if (args.length > (withScores ? 5 : 4)) {
+            throw new CommandException("ERR syntax error");
+        }
+        boolean byScore = args[0].equalsIgnoreCase("ZRANGEBYSCORE");
+        Function<SortedSetValue, List<byte[]>> reader;
+        if (byScore) {
+            boolean minExclusive = args[2].startsWith("(");
+            boolean maxExclusive = args[3].startsWith("(");
+            double min = parseScoreBound(args[2]);
+            double max = parseScoreBound(args[3]);
+            reader = zset -> {
+                List<byte[]> items = new ArrayList<>();
+                zset.rangeByScore(min, minExclusive, max, maxExclusive, (member, score) -> addMember(items, member,
+                        score, withScores));
+                return items;
+            };
+        } else {
+            long start = parseInteger(args[2]);
+            long stop = parseInteger(args[3]);
+            reader = zset -> {
+                List<byte[]> items = new ArrayList<>();
+                zset.range(start, stop, (member, score) -> addMember(items, member, score, withScores));
+                return items;
+            };
+        }
+        List<byte[]> items = store.read(args[1], SortedSetValue.class, reader);
+        out.writeBulkStringArray(items == null ? List.of() : items);
+    }
+
+    private static void addMember(List<byte[]> items, String member, double score, boolean withScore) {
+        items.add(member.getBytes(StandardCharsets.ISO_8859_1));
+        if (withScore) {
+            items.add(SortedSetValue.formatScore(score).getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * Parses a bound of a score range, which is exclusive if it starts with {@code (}.
+     */
+    private static double parseScoreBound(String bound) {
+        try {
+            return SortedSetValue.parseScore(bound.startsWith("(") ? bound.substring(1) : bound);
+        } catch (CommandException e) {
+            throw new CommandException("ERR min or max is not a float");
+        }
+    }
+
+    /**
+     * Handles the XADD command from the client. Appends an entry to a stream, creating it if needed, and responds
+     * with the ID of the entry. An ID worked out by the server is logged and propagated as the ID it became, so
+     * that replicas and a replay of the append-only file add the same entry. Connections blocked on the stream are
+     * woken.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleXaddCommand(String[] args) throws IOException {
+        checkPairs(args, 3);
+        StreamValue.Id id = store.update(args[1], StreamValue.class, StreamValue::new, stream -> {
+            StreamValue.Id next = stream.nextId(args[2]);
+            stream.append(next, args, 3);
+            return next;
+        });
+        String[] logged = args.clone();
+        logged[2] = id.toString();
+        logWrite(logged);
+        blockedClients.signal(args[1]);
+        if (Main.role.equals("master")) {
+            out.writeBulkString(logged[2]);
+        }
+    }
+
+    /**
+     * Handles the XLEN command from the client. Responds with the number of entries of a stream.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleXlenCommand(String[] args) throws IOException {
+        Integer size = store.read(args[1], StreamValue.class, StreamValue::size);
+        out.writeInteger(size == null ? 0 : size);
+    }
+
+    /**
+     * Handles the XRANGE command from the client. Responds with the entries of a stream between two IDs, which
+     * may be {@code -} and {@code +} for either end, given without a sequence number, or exclusive if prefixed with
+     * {@code (}, optionally only the first COUNT of them.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleXrangeCommand(String[] args) throws IOException {
+        long count = -1;
+        if (args.length == 6 && args[4].equalsIgnoreCase("COUNT")) {
+            count = Math.max(parseInteger(args[5]), 0);
+        } else if (args.length != 4) {
+            throw new CommandException("ERR syntax error");
+        }
+        StreamValue.Id start = parseRangeBound(args[2], true);
+        StreamValue.Id end = parseRangeBound(args[3], false);
+        long limit = count;
+        List<StreamValue.Entry> entries = start == null || end == null ? null
+                : store.read(args[1], StreamValue.class, stream -> {
+                    List<StreamValue.Entry> range = new ArrayList<>();
+                    stream.range(start, end, limit, range::add);
+                    return range;
+                });
+        writeStreamEntries(entries == null ? List.of() : entries);
+    }
+
+    /**
+     * Handles the XREAD command from the client. Responds with the entries added to each of the given streams
+     * after the given IDs, {@code $} standing for the last ID of a stream, or with a null array if there are none.
+     * With BLOCK, waits until an entry is added to one of the streams or the timeout in milliseconds expires, 0
+     * waiting for good; XADD wakes the connection as soon as it adds one.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleXreadCommand(String[] args) throws IOException, InterruptedException {
+        long count = -1;
+        long block = -1;
+        int streams = -1;
+        for (int i = 1; i < args.length && streams < 0; i++) {
+            switch (args[i].toUpperCase()) {
+                case "COUNT" -> {
+                    checkArity(args, i + 2);
+                    long n = parseInteger(args[++i]);
+                    count = n <= 0 ? -1 : n;
+                }
+                case "BLOCK" -> {
+                    checkArity(args, i + 2);
+                    block = parseInteger(args[++i]);
+                    if (block < 0) {
+                        throw new CommandException("ERR timeout is negative");
+                    }
+                }
+                case "STREAMS" -> streams = i + 1;
+                default -> throw new CommandException("ERR syntax error");
+            }
+        }
+        if (streams < 0 || streams == args.length || (args.length - streams) % 2 != 0) {
+            throw new CommandException("ERR Unbalanced 'xread' list of streams: for each stream key an ID or '$' "
+                    + "must be specified.");
+        }
+        int n = (args.length - streams) / 2;
+        String[] keys = Arrays.copyOfRange(args, streams, streams + n);
+        StreamValue.Id[] after = new StreamValue.Id[n];
+        for (int i = 0; i < n; i++) {
+            String id = args[streams + n + i];
+            if (id.equals("$")) {
+                StreamValue.Id last = store.read(keys[i], StreamValue.class, StreamValue::lastId);
+                after[i] = last == null ? StreamValue.Id.MIN : last;
+            } else {
+                after[i] = StreamValue.Id.parse(id, 0);
+            }
+        }
+        long deadline = System.currentTimeMillis() + block;
+        while (true) {
+            // Registered before reading, so that an entry added in between still wakes the connection
+            // Inside a transaction, XREAD does not wait, as in Redis
+            BlockedClients.Waiter waiter = block >= 0 && !executing ? blockedClients.block(keys) : null;
+            try {
+                if (readStreams(keys, after, count)) {
+                    return;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (waiter == null || block > 0 && remaining <= 0) {
+                    out.writeNullArray();
+                    return;
+                }
+                flushReplies();
+                if (!waiter.await(block == 0 ? 0 : remaining)) {
+                    out.writeNullArray();
+                    return;
+                }
+            } finally {
+                if (waiter != null) {
+                    blockedClients.unblock(waiter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of each stream added after the given ID, as replied to XREAD.
+     *
+     * @return false if no stream has any, in which case nothing is written
+     */
+    private boolean readStreams(String[] keys, StreamValue.Id[] after, long count) throws IOException {
+        List<String> found = new ArrayList<>();
+        List<List<StreamValue.Entry>> entries = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            StreamValue.Id start = after[i].next();
+            if (start == null) {
+                continue;
+            }
+            List<StreamValue.Entry> added = store.read(keys[i], StreamValue.class, stream -> {
+                List<StreamValue.Entry> range = new ArrayList<>();
+                stream.range(start, StreamValue.Id.MAX, count, range::add);
+                return range;
+            });
+            if (added != null && !added.isEmpty()) {
+                found.add(keys[i]);
+                entries.add(added);
+            }
+        }
+        if (found.isEmpty()) {
+            return false;
+        }
+        out.writeArrayHeader(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            out.writeArrayHeader(2);
+            out.writeBulkString(found.get(i));
+            writeStreamEntries(entries.get(i));
+        }
+        return true;
+    }
+
+    private void writeStreamEntries(List<StreamValue.Entry> entries) throws IOException {
+        out.writeArrayHeader(entries.size());
+        for (StreamValue.Entry entry : entries) {
+            out.writeArrayHeader(2);
+            out.writeBulkString(entry.id().toString());
+            out.writeArrayHeader(entry.fieldsAndValues().length);
+            for (byte[] b : entry.fieldsAndValues()) {
+                out.writeBulkString(b);
+            }
+        }
+    }
+
+    /**
+     * Parses a bound of an XRANGE: {@code -} or {@code +}, an ID with or without its sequence number, or an
+     * exclusive ID prefixed with {@code (}.
+     *
+     * @return the inclusive bound, or null if an exclusive bound leaves nothing in range
+     */
+    private static StreamValue.Id parseRangeBound(String bound, boolean start) {
+        if (bound.equals("-")) {
+            return StreamValue.Id.MIN;
+        }
+        if (bound.equals("+")) {
+            return StreamValue.Id.MAX;
+        }
+        if (bound.startsWith("(")) {
+            StreamValue.Id id = StreamValue.Id.parse(bound.substring(1), start ? 0 : -1);
+            return start ? id.next() : id.previous();
+        }
+        return StreamValue.Id.parse(bound, start ? 0 : -1);
+    }
+
+    /**
+     * Logs a write command that changed the store to the append-only file and, on a master, propagates it to the
+     * replicas.
+     *
+     * @param args the command arguments
+     */
+    private void logWrite(String[] args) {
+        appendToAof(args);
+        if (Main.role.equals("master")) {
+            propagate(args);
+        }
+    }
+
+    /**
+     * Checks that a command has at least the given number of arguments, counting the command name.
+     */
+    private static void checkArity(String[] args, int min) {
+        if (args.length < min) {
+            throw wrongArity(args);
+        }
+    }
+
+    /**
+     * Checks that the arguments from an index on come in pairs, such as the fields and values of HSET.
+     */
+    private static void checkPairs(String[] args, int from) {
+        if ((args.length - from) % 2 != 0) {
+            throw wrongArity(args);
+        }
+    }
+
+    private static CommandException wrongArity(String[] args) {
+        return new CommandException("ERR wrong number of arguments for '" + args[0].toLowerCase() + "' command");
+    }
+
+    /**
+     * Returns the error for a command the server does not know, worded as Redis words it.
+     */
+    private static CommandException unknownCommand(String[] args) {
+        StringBuilder message = new StringBuilder("ERR unknown command '").append(args[0])
+                .append("', with args beginning with: ");
+        for (int i = 1; i < args.length; i++) {
+            message.append('\'').append(args[i]).append("' ");
+        }
+        return new CommandException(message.toString());
+    }
+
+    /**
+     * Parses an integer argument, such as an index or a count.
+     */
+    private static long parseInteger(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new CommandException("ERR value is not an integer or out of range");
+        }
+    }
+
+    /**
+     * Handles the CLUSTER command from the client, in cluster mode: INFO, MYID, KEYSLOT, SLOTS, SHARDS and NODES
+     * describe the cluster; COUNTKEYSINSLOT and GETKEYSINSLOT list the keys of a slot, as moving it needs; SETSLOT
+     * marks a slot as migrating or importing, makes it stable again, or hands it to a node.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleClusterCommand(String[] args) throws IOException {
+        Cluster cluster = Main.cluster;
+        if (cluster == null) {
+            throw new CommandException("ERR This instance has cluster support disabled");
+        }
+        String subcommand = args[1].toUpperCase(Locale.ROOT);
+        int arity = switch (subcommand) {
+            case "INFO", "MYID", "SLOTS", "SHARDS", "NODES" -> 2;
+            case "KEYSLOT", "COUNTKEYSINSLOT" -> 3;
+            case "GETKEYSINSLOT" -> 4;
+            case "SETSLOT" -> -4;
+            default -> throw new CommandException("ERR unknown subcommand '" + args[1] + "'. Try CLUSTER HELP.");
+        };
+        if (arity >= 0 ? args.length != arity : args.length < -arity) {
+            throw new CommandException("ERR wrong number of arguments for 'cluster|"
+                    + subcommand.toLowerCase(Locale.ROOT) + "' command");
+        }
+        switch (subcommand) {
+            case "INFO" -> out.writeBulkString(clusterInfo(cluster));
+            case "MYID" -> out.writeBulkString(cluster.myself().id());
+            case "KEYSLOT" -> out.writeInteger(Cluster.keySlot(args[2]));
+            case "COUNTKEYSINSLOT" -> out.writeInteger(store.countKeysInSlot(parseSlot(args[2])));
+            case "GETKEYSINSLOT" -> {
+                int slot = parseSlot(args[2]);
+                long count = parseInteger(args[3]);
+                if (count < 0) {
+                    throw new CommandException("ERR Invalid number of keys");
+                }
+                List<String> keys = store.getKeysInSlot(slot, (int) Math.min(count, Integer.MAX_VALUE));
+                out.writeBulkStringArray(keys.toArray(new String[0]));
+            }
+            case "SLOTS" -> writeClusterSlots(cluster);
+            case "SHARDS" -> writeClusterShards(cluster);
+            case "NODES" -> out.writeBulkString(clusterNodes(cluster));
+            case "SETSLOT" -> {
+                setSlot(cluster, args);
+                out.writeSimpleString("OK");
+            }
+        }
+    }
+
+    private static int parseSlot(String value) {
+        long slot;
+        try {
+            slot = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            slot = -1;
+        }
+        if (slot < 0 || slot >= Cluster.SLOTS) {
+            throw new CommandException("ERR Invalid or out of range slot");
+        }
+        return (int) slot;
+    }
+
+    /**
+     * Returns the fields of CLUSTER INFO. Nodes do not watch each other, so every slot served counts as ok.
+     */
+    private static String clusterInfo(Cluster cluster) {
+        int assigned = cluster.assignedSlots();
+        int serving = 0;
+        for (Cluster.Node node : cluster.nodes()) {
+            if (!cluster.slotRanges(node).isEmpty()) {
+                serving++;
+            }
+        }
+        StringBuilder info = new StringBuilder();
+        infoField(info, "cluster_state", assigned == Cluster.SLOTS ? "ok" : "fail");
+        infoField(info, "cluster_slots_assigned", assigned);
+        infoField(info, "cluster_slots_ok", assigned);
+        infoField(info, "cluster_slots_pfail", 0);
+        infoField(info, "cluster_slots_fail", 0);
+        infoField(info, "cluster_known_nodes", cluster.nodes().size());
+        infoField(info, "cluster_size", serving);
+        infoField(info, "cluster_current_epoch", 0);
+        infoField(info, "cluster_my_epoch", 0);
+        return info.toString();
+    }
+
+    /**
+     * Writes the reply of CLUSTER SLOTS: for each range of slots served by one node, in slot order, its first and
+     * last slot and the node's host, port and ID.
+     */
+    private void writeClusterSlots(Cluster cluster) throws IOException {
+        List<Cluster.SlotRange> ranges = cluster.slotRanges();
+        out.writeArrayHeader(ranges.size());
+        for (Cluster.SlotRange range : ranges) {
+            Cluster.Node node = range.node();
+            out.writeArrayHeader(3);
+            out.writeInteger(range.start());
+            out.writeInteger(range.end());
+            out.writeArrayHeader(3);
+            out.writeBulkString(node.host());
+            out.writeInteger(node.port());
+            out.writeBulkString(node.id());
+        }
+    }
+
+    /**
+     * Writes the reply of CLUSTER SHARDS: for each node, the ranges of slots it serves and a description of it. Every
+     * node is a master of a shard of its own, as there are no replicas in the cluster.
+     */
+    private void writeClusterShards(Cluster cluster) throws IOException {
+        out.writeArrayHeader(cluster.nodes().size());
+        for (Cluster.Node node : cluster.nodes()) {
+            List<Cluster.SlotRange> ranges = cluster.slotRanges(node);
+            out.writeArrayHeader(4);
+            out.writeBulkString("slots");
+            out.writeArrayHeader(ranges.size() * 2);
+            for (Cluster.SlotRange range : ranges) {
+                out.writeInteger(range.start());
+                out.writeInteger(range.end());
+            }
+            out.writeBulkString("nodes");
+            out.writeArrayHeader(1);
+            out.writeArrayHeader(14);
+            out.writeBulkString("id");
+            out.writeBulkString(node.id());
+            out.writeBulkString("port");
+            out.writeInteger(node.port());
+            out.writeBulkString("ip");
+            out.writeBulkString(node.host());
+            out.writeBulkString("endpoint");
+            out.writeBulkString(node.host());
+            out.writeBulkString("role");
+            out.writeBulkString("master");
+            out.writeBulkString("replication-offset");
+            out.writeInteger(node.equals(cluster.myself()) ? Main.backlog.getOffset() : 0);
+            out.writeBulkString("health");
+            out.writeBulkString("online");
+        }
+    }
+
+    /**
+     * Returns the reply of CLUSTER NODES: a line per node, with its ID, address, flags and slots, and for this node
+     * the slots it is migrating or importing.
+     */
+    private static String clusterNodes(Cluster cluster) {
+        StringBuilder nodes = new StringBuilder();
+        for (Cluster.Node node : cluster.nodes()) {
+            boolean myself = node.equals(cluster.myself());
+            nodes.append(node.id()).append(' ').append(node.address()).append('@').append(node.port() + 10000)
+                    .append(myself ? " myself,master" : " master").append(" - 0 0 0 connected");
+            for (Cluster.SlotRange range : cluster.slotRanges(node)) {
+                nodes.append(' ').append(range.start());
+                if (range.end() > range.start()) {
+                    nodes.append('-').append(range.end());
+                }
+            }
+            if (myself) {
+                for (int slot = 0; slot < Cluster.SLOTS; slot++) {
+                    Cluster.Node target = cluster.migratingTo(slot);
+                    Cluster.Node source = cluster.importingFrom(slot);
+                    if (target != null) {
+                        nodes.append(" [").append(slot).append("->-").append(target.id()).append(']');
+                    }
+                    if (source != null) {
+                        nodes.append(" [").append(slot).append("-<-").append(source.id()).append(']');
+                    }
+                }
+            }
+            nodes.append('\n');
+        }
+        return nodes.toString();
+    }
+
+    /**
+     * Handles CLUSTER SETSLOT: {@code MIGRATING} and {@code IMPORTING} a node start moving a slot, on the node it
+     * leaves and the one it goes to; {@code STABLE} stops; {@code NODE} hands the slot to a node, which every node
+     * is told once the keys have been moved.
+     */
+    private void setSlot(Cluster cluster, String[] args) {
+        int slot = parseSlot(args[2]);
+        String action = args[3].toUpperCase(Locale.ROOT);
+        if (action.equals("STABLE") && args.length == 4) {
+            cluster.setStable(slot);
+            return;
+        }
+        if (args.length != 5 || !List.of("MIGRATING", "IMPORTING", "NODE").contains(action)) {
+            throw new CommandException("ERR Invalid CLUSTER SETSLOT action or number of arguments. Try CLUSTER HELP");
+        }
+        Cluster.Node node = cluster.node(args[4]);
+        if (node == null) {
+            throw new CommandException("ERR I don't know about node " + args[4]);
+        }
+        Cluster.Node myself = cluster.myself();
+        switch (action) {
+            case "MIGRATING" -> {
+                if (!myself.equals(cluster.owner(slot))) {
+                    throw new CommandException("ERR I'm not the owner of hash slot " + slot);
+                }
+                if (node.equals(myself)) {
+                    throw new CommandException("ERR Target node is myself");
+                }
+                cluster.setMigrating(slot, node);
+            }
+            case "IMPORTING" -> {
+                if (myself.equals(cluster.owner(slot))) {
+                    throw new CommandException("ERR I'm already the owner of hash slot " + slot);
+                }
+                if (node.equals(myself)) {
+                    throw new CommandException("ERR Source node is myself");
+                }
+                cluster.setImporting(slot, node);
+            }
+            default -> {
+                if (myself.equals(cluster.owner(slot)) && !node.equals(myself) && store.countKeysInSlot(slot) > 0) {
+                    throw new CommandException("ERR Can't assign hashslot " + slot
+                            + " to a different node while I still hold keys for this hash slot.");
+                }
+                cluster.setOwner(slot, node);
+            }
+        }
+    }
+
+    /**
+     * Handles the ASKING command from the client, in cluster mode. Lets the next command run on a slot being
+     * imported to this node, as the node the slot migrates from asked the client to.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleAskingCommand() throws IOException {
+        if (Main.cluster == null) {
+            throw new CommandException("ERR This instance has cluster support disabled");
+        }
+        asking = true;
+        out.writeSimpleString("OK");
+    }
+
+    /**
+     * The sections of INFO, in the order they are listed. INFO without arguments lists the default ones, which are
+     * all but those with a line per command, as in Redis.
+     */
+    private static final List<String> INFO_SECTIONS = List.of("server", "clients", "memory", "persistence", "stats",
+            "replication", "cluster", "keyspace", "commandstats", "latencystats");
+    private static final List<String> DEFAULT_INFO_SECTIONS = INFO_SECTIONS.subList(0, 8);
+
+    /**
+     * Handles the INFO command from the client. Responds with the sections asked for, by name, or with
+     * {@code default}, {@code all} or {@code everything}; without arguments, with the default sections.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleInfoCommand(String[] args) throws IOException {
+        Set<String> wanted = new HashSet<>();
+        if (args.length == 1) {
+            wanted.addAll(DEFAULT_INFO_SECTIONS);
+        }
+        for (int i = 1; i < args.length; i++) {
+            String section = args[i].toLowerCase(Locale.ROOT);
+            switch (section) {
+                case "default" -> wanted.addAll(DEFAULT_INFO_SECTIONS);
+                case "all", "everything" -> wanted.addAll(INFO_SECTIONS);
+                default -> wanted.add(section);
+            }
+        }
+        StringBuilder info = new StringBuilder();
+        for (String section : INFO_SECTIONS) {
+            if (wanted.contains(section)) {
+                if (!info.isEmpty()) {
+                    info.append("\r\n");
+                }
+                info.append("# ").append(Character.toUpperCase(section.charAt(0))).append(section.substring(1))
+                        .append("\r\n");
+                appendInfoSection(info, section);
+            }
+        }
+        out.writeBulkString(info.toString());
+    }
+
+    /**
+     * Appends the fields of an INFO section, one {@code name:value} line each.
+     */
+    private void appendInfoSection(StringBuilder info, String section) {
+        switch (section) {
+            case "server" -> {
+                infoField(info, "redis_version", REDIS_VERSION);
+                infoField(info, "redis_mode", Main.cluster != null ? "cluster" : "standalone");
+                infoField(info, "server_mode", Main.serverMode);
+                if (Main.serverMode.equals("eventloop")) {
+                    infoField(info, "event_loops", Main.eventLoops);
+                }
+                infoField(info, "shards", Main.shards != null ? Main.shards.size() : 0);
+                infoField(info, "process_id", ProcessHandle.current().pid());
+                infoField(info, "tcp_port", Main.port);
+                infoField(info, "uptime_in_seconds", ServerStats.getUptimeSeconds());
+                infoField(info, "uptime_in_days", ServerStats.getUptimeSeconds() / 86400);
+                infoField(info, "java_version", System.getProperty("java.version"));
+            }
+            case "clients" -> {
+                // As in Redis, replicas are not counted as clients
+                infoField(info, "connected_clients", Math.max(ServerStats.getConnectedClients() - replicas.size(), 0));
+                infoField(info, "blocked_clients", blockedClients.size());
+                infoField(info, "tracking_clients", Main.tracking.clientCount());
+            }
+            case "memory" -> {
+                infoField(info, "used_memory", store.getUsedMemory());
+                infoField(info, "used_memory_offheap", store.getOffHeapMemory());
+                infoField(info, "maxmemory", store.getMaxMemory());
+                infoField(info, "maxmemory_policy", store.getEvictionPolicy().configName());
+            }
+            case "persistence" -> {
+                if (Main.rdb != null) {
+                    infoField(info, "rdb_last_save_time", Main.rdb.getLastSave());
+                }
+                infoField(info, "aof_enabled", Main.aof != null ? 1 : 0);
+                infoField(info, "aof_rewrite_in_progress", Main.aof != null && Main.aof.isRewriting() ? 1 : 0);
+            }
+            case "stats" -> {
+                long processed = 0;
+                for (CommandTable.Command command : commands.commands()) {
+                    processed += command.calls();
+                }
+                infoField(info, "total_connections_received", ServerStats.getConnectionsReceived());
+                infoField(info, "total_commands_processed", processed);
+                infoField(info, "total_net_input_bytes", ServerStats.getNetInputBytes());
+                infoField(info, "total_net_output_bytes", ServerStats.getNetOutputBytes());
+                infoField(info, "total_error_replies", ServerStats.getErrorReplies());
+                infoField(info, "expired_keys", store.getExpiredKeys());
+                infoField(info, "evicted_keys", store.getEvictedKeys());
+                infoField(info, "tracking_total_keys", Main.tracking.keyCount());
+                infoField(info, "tracking_total_prefixes", Main.tracking.prefixCount());
+                infoField(info, "keyspace_hits", store.getKeyspaceHits());
+                infoField(info, "keyspace_misses", store.getKeyspaceMisses());
+            }
+            case "replication" -> {
+                infoField(info, "role", Main.role);
+                long now = System.currentTimeMillis();
+                if (Main.role.equals("master")) {
+                    infoField(info, "connected_slaves", replicas.size());
+                    int i = 0;
+                    long offset = Main.backlog.getOffset();
+                    for (Replica replica : replicas) {
+                        infoField(info, "slave" + i++, "ip=%s,port=%d,state=online,offset=%d,lag=%d".formatted(
+                                replica.getHost(), replica.getListeningPort(), replica.getAckOffset(),
+                                (now - replica.getLastAckMillis()) / 1000));
+                    }
+                    infoField(info, "master_replid", Main.master_replid);
+                    infoField(info, "master_repl_offset", offset);
+                } else {
+                    infoField(info, "master_host", Main.master_host);
+                    infoField(info, "master_port", Main.master_port);
+                    infoField(info, "master_link_status", masterLinkUp ? "up" : "down");
+                    infoField(info, "master_last_io_seconds_ago",
+                            masterLinkUp ? (now - masterLastIoMillis) / 1000 : -1);
+                    infoField(info, "slave_repl_offset", masterOffset);
+                }
+                infoField(info, "repl_backlog_size", Main.backlog.getSize());
+                // Counted from 1, as in Redis
+                infoField(info, "repl_backlog_first_byte_offset", Main.backlog.getFirstOffset() + 1);
+            }
+            case "cluster" -> infoField(info, "cluster_enabled", Main.cluster != null ? 1 : 0);
+            case "keyspace" -> {
+                long keys = store.size();
+                if (keys > 0) {
+                    infoField(info, "db0", "keys=" + keys);
+                }
+            }
+            case "commandstats" -> {
+                for (CommandTable.Command command : commands.commands()) {
+                    long calls = command.calls();
+                    if (calls == 0 && command.rejectedCalls() == 0) {
+                        continue;
+                    }
+                    long usec = command.totalMicros();
+                    infoField(info, "cmdstat_" + command.name(), String.format(Locale.ROOT,
+                            "calls=%d,usec=%d,usec_per_call=%.2f,rejected_calls=%d,failed_calls=%d", calls, usec,
+                            calls == 0 ? 0.0 : (double) usec / calls, command.rejectedCalls(),
+                            command.failedCalls()));
+                }
+            }
+            case "latencystats" -> {
+                for (CommandTable.Command command : commands.commands()) {
+                    if (command.calls() == 0) {
+                        continue;
+                    }
+                    long[] nanos = command.latency().percentiles(50, 99, 99.9);
+                    infoField(info, "latency_percentiles_usec_" + command.name(), String.format(Locale.ROOT,
+                            "p50=%.3f,p99=%.3f,p99.9=%.3f", nanos[0] / 1000.0, nanos[1] / 1000.0,
+                            nanos[2] / 1000.0));
+                }
+            }
+        }
+    }
+
+    private static void infoField(StringBuilder info, String name, Object value) {
+        info.append(name).append(':').append(value).append("\r\n");
+    }
+
+    /**
+     * Handles the REPLCONF command from the client. Responds with acknowledgment if needed.
+     *
+     * @param args     the command arguments
+     * @param position the current read position
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleReplconfCommand(String[] args, long position) throws IOException {
+        if (args[1].equals("GETACK")) {
+            String[] response = {"REPLCONF", "ACK", String.valueOf(replicationBase + position)};
+            out.writeBulkStringArray(response);
+        } else if (args[1].equalsIgnoreCase("listening-port") && args.length == 3) {
+            long listeningPort = parseInteger(args[2]);
+            if (listeningPort < 0 || listeningPort > 65535) {
+                throw new CommandException("ERR value is not an integer or out of range");
+            }
+            replicaListeningPort = (int) listeningPort;
+            out.writeSimpleString("OK");
+        } else if (args[1].equalsIgnoreCase("capa")) {
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                if (args[i].equalsIgnoreCase("capa") && args[i + 1].equalsIgnoreCase("eof")) {
+                    replicaCapaEof = true;
+                }
+            }
+            out.writeSimpleString("OK");
+        } else {
+            out.writeSimpleString("OK");
+        }
+    }
+
+    /**
+     * Handles the PSYNC command from the client. A replica that asks to continue our replication stream from an
+     * offset still in the backlog gets {@code +CONTINUE} and only the bytes it missed; any other gets a full
+     * resynchronization. Either way the connection then carries the replication stream.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handlePsyncCommand(String[] args) throws IOException, InterruptedException {
+        long offset = -1;
+        if (args.length == 3 && args[1].equals(Main.master_replid)) {
+            offset = parseOffset(args[2]) - 1;
+        }
+        // Everything from the requested offset on is streamed out of the backlog, including what was missed
+        if (offset >= 0 && Main.backlog.isRetained(offset)) {
+            out.writeSimpleString("CONTINUE " + Main.master_replid);
+        } else {
+            offset = sendSnapshot();
+        }
+        out.flush();
+        Replica replica = new Replica(socket, replicaListeningPort, offset);
+        replicas.add(replica);
+        try {
+            propagateToReplica(replica);
+        } finally {
+            replicas.remove(replica);
+        }
+    }
+
+    /**
+     * Tells a replica doing a full resync the offset to continue from and sends it a point-in-time snapshot of the
+     * store at that offset. The snapshot is started and the offset taken with the stripes of every key locked, and
+     * commands propagate their writes before they release their keys, so each write is either in the snapshot or
+     * streamed from the offset on, never both. A replica that announced {@code REPLCONF capa eof} is sent the
+     * snapshot straight from the store as it is written, ended by a random mark since its length is not known up
+     * front. Any other replica is sent it through a temporary file, since the length has to come first.
+     *
+     * @return the offset the replica continues from
+     * @throws IOException if an I/O error occurs
+     */
+    private long sendSnapshot() throws IOException {
+        long[] offset = {-1};
+        Runnable atStart = () -> offset[0] = Main.backlog.getOffset();
+        out.flush();
+        OutputStream raw = channelOut != null ? channelOut : socket.getOutputStream();
+        if (replicaCapaEof) {
+            byte[] mark = new byte[EOF_MARK_LENGTH / 2];
+            ThreadLocalRandom.current().nextBytes(mark);
+            String hex = HexFormat.of().formatHex(mark);
+            // The offset is only known once the snapshot has started, which is before its first byte is written
+            OutputStream payload = new FilterOutputStream(raw) {
+                private boolean begun;
+
+                @Override
+                public void write(int b) throws IOException {
+                    begin();
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    begin();
+                    out.write(b, off, len);
+                }
+
+                private void begin() throws IOException {
+                    if (!begun) {
+                        begun = true;
+                        out.write(("+FULLRESYNC %s %d\r\n$EOF:%s\r\n".formatted(Main.master_replid, offset[0], hex))
+                                .getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                }
+            };
+            Main.rdb.writeTo(payload, keyLocks, atStart);
+            raw.write(hex.getBytes(StandardCharsets.ISO_8859_1));
+            raw.flush();
+            return offset[0];
+        }
+        Path temp = Files.createTempFile(Path.of(Main.dir), "temp-sync-", ".rdb");
+        try {
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(temp), 1024 * 1024)) {
+                Main.rdb.writeTo(file, keyLocks, atStart);
+            }
+            out.writeSimpleString("FULLRESYNC %s %d".formatted(Main.master_replid, offset[0]));
+            out.writeBytes(("$" + Files.size(temp) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            Files.copy(temp, raw);
+            raw.flush();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return offset[0];
+    }
+
+    /**
+     * Parses the offset of a PSYNC command, taking anything unusable as a request for a full resync.
+     */
+    private static long parseOffset(String offset) {
+        try {
+            return Long.parseLong(offset);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Handles the WAIT command from the client. Waits until the given number of replicas have acknowledged every
+     * write made so far, or the timeout expires, and responds with the number of replicas that have. Replicas are
+     * asked for a fresh acknowledgement, and the command is woken as soon as enough of them have answered.
+     *
+     * @param args the command arguments
+     * @throws IOException          if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void handleWaitCommand(String[] args) throws IOException, InterruptedException {
+        long expectedReplicas = parseInteger(args[1]);
+        long timeout = parseInteger(args[2]);
+        if (timeout < 0) {
+            throw new CommandException("ERR timeout is negative");
+        }
+        long offset = Main.backlog.getOffset();
+        int acknowledged = replicas.countAcknowledged(offset);
+        if (acknowledged < expectedReplicas) {
+            propagateToReplicas(new String[]{"REPLCONF", "GETACK", "*"});
+            acknowledged = replicas.await(offset, (int) Math.min(expectedReplicas, Integer.MAX_VALUE), timeout);
+        }
+        out.writeInteger(acknowledged);
+    }
+
+    /**
+     * Handles the CONFIG command from the client. Supports CONFIG GET for a single parameter, responding with the
+     * parameter name and value, or an empty array for a parameter it does not know.
+     *
+     * @param args the command arguments
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleConfigCommand(String[] args) throws IOException {
+        if (args.length != 3 || !args[1].equalsIgnoreCase("GET")) {
+            throw new CommandException("ERR unsupported CONFIG subcommand");
+        }
+        String parameter = args[2].toLowerCase();
+        String value = switch (parameter) {
+            case "dir" -> Main.dir;
+            case "dbfilename" -> Main.dbfilename;
+            case "maxmemory" -> String.valueOf(store.getMaxMemory());
+            case "maxmemory-policy" -> store.getEvictionPolicy().configName();
+            case "appendonly" -> Main.aof != null ? "yes" : "no";
+            case "appendfilename" -> Main.appendfilename;
+            case "appendfsync" -> Main.appendfsync;
+            case "hash-max-listpack-entries" -> String.valueOf(HashValue.maxListpackEntries);
+            case "hash-max-listpack-value" -> String.valueOf(HashValue.maxListpackValue);
+            case "list-max-listpack-size" -> String.valueOf(ListValue.maxListpackSize);
+            case "list-max-listpack-value" -> String.valueOf(ListValue.maxListpackValue);
+            case "set-max-listpack-entries" -> String.valueOf(SetValue.maxListpackEntries);
+            case "set-max-listpack-value" -> String.valueOf(SetValue.maxListpackValue);
+            case "zset-max-listpack-entries" -> String.valueOf(SortedSetValue.maxListpackEntries);
+            case "zset-max-listpack-value" -> String.valueOf(SortedSetValue.maxListpackValue);
+            case "stream-node-max-entries" -> String.valueOf(StreamValue.maxNodeEntries);
+            case "stream-node-max-bytes" -> String.valueOf(StreamValue.maxNodeBytes);
+            case "loglevel" -> Log.getLevel().configName();
+            case "cluster-enabled" -> Main.cluster != null ? "yes" : "no";
+            case "tracking-table-max-keys" -> String.valueOf(Main.tracking_table_max_keys);
+            default -> null;
+        };
+        if (value == null) {
+            out.writeMapHeader(0);
+        } else {
+            out.writeMapHeader(1);
+            out.writeBulkString(parameter);
+            out.writeBulkString(value);
+        }
+    }
+
+    /**
+     * Handles the SAVE command from the client. Saves the store to the RDB file before responding.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleSaveCommand() throws IOException {
+        Main.rdb.save();
+        out.writeSimpleString("OK");
+    }
+
+    /**
+     * Handles the BGSAVE command from the client. Starts saving the store to the RDB file and responds at once.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleBgsaveCommand() throws IOException {
+        Main.rdb.backgroundSave();
+        out.writeSimpleString("Background saving started");
+    }
+
+    /**
+     * Handles the BGREWRITEAOF command from the client. Starts rewriting the append-only file and responds at once.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleBgrewriteaofCommand() throws IOException {
+        if (Main.aof == null) {
+            throw new CommandException("ERR Append only file is not enabled");
+        }
+        Main.aof.backgroundRewrite();
+        out.writeSimpleString("Background append only file rewriting started");
+    }
+
+    /**
+     * Handles the LASTSAVE command from the client. Responds with the time of the last successful save.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleLastsaveCommand() throws IOException {
+        out.writeInteger(Main.rdb.getLastSave());
+    }
+
+    /**
+     * Logs the eviction of a key as a DEL with the command running on the current thread, whose write caused it:
+     * in its transaction if it runs in one, so that the DEL is not logged ahead of the transaction's block. Called
+     * with the stripe of the key locked, so the DEL is logged in order with the commands on the key.
+     *
+     * @param key the key evicted
+     */
+    static void logEviction(String key) {
+        String[] del = {"DEL", key};
+        ConnectionHandler connection = running.get();
+        if (connection != null) {
+            connection.logWrite(del);
+        } else {
+            // Part of a command split between shards, which logs each part itself
+            if (Main.aof != null) {
+                Main.aof.append(del);
+            }
+            propagateToReplicas(del);
+        }
+    }
+
+    /**
+     * Returns the locks commands hold on their keys while they change the store and log the change, for the
+     * append-only file to start its rewrites in step with them.
+     *
+     * @return the key locks shared by all connections
+     */
+    static KeyLocks keyLocks() {
+        return keyLocks;
+    }
+
+    /**
+     * Propagates a command to all replicas: encodes it once into the replication backlog, which every replica is
+     * sent from. Replicas that have fallen further behind than the output limit allows are dropped.
+     *
+     * @param args the command arguments
+     */
+    static void propagateToReplicas(String[] args) {
+        propagateToReplicas(OutputHandler.getBulkStringArray(args));
+    }
+
+    /**
+     * Propagates the write commands of a transaction to all replicas as one unit, between MULTI and EXEC, encoded
+     * into the replication backlog in a single append so that nothing else can come in between.
+     *
+     * @param commands the commands, each with its arguments
+     */
+    static void propagateTransaction(List<String[]> commands) {
+        ByteArrayOutputStream transaction = new ByteArrayOutputStream();
+        transaction.writeBytes(OutputHandler.getBulkStringArray("MULTI"));
+        for (String[] args : commands) {
+            transaction.writeBytes(OutputHandler.getBulkStringArray(args));
+        }
+        transaction.writeBytes(OutputHandler.getBulkStringArray("EXEC"));
+        propagateToReplicas(transaction.toByteArray());
+    }
+
+    private static void propagateToReplicas(byte[] commands) {
+        long offset = Main.backlog.append(commands);
+        for (Replica replica : replicas) {
+            if (offset - replica.getSentOffset() > Main.replica_output_limit) {
+                replica.drop("output limit of " + Main.replica_output_limit + " bytes reached");
+            }
+        }
+    }
+
+    /**
+     * Streams the replication stream to a single replica from the backlog. Whatever has been added since the last
+     * write is copied out of the ring buffer, in chunks of at most {@value #REPLICA_CHUNK_SIZE} bytes, and goes out
+     * in one write per chunk however many commands it holds; the copy is taken with the backlog locked, so a replica
+     * is never sent bytes overwritten meanwhile. A replica that is dropped, or falls out of the backlog, ends the
+     * stream.
+     *
+     * @param replica the replica to stream to
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException          if an I/O error occurs
+     */
+    private void propagateToReplica(Replica replica) throws InterruptedException, IOException {
+        Thread.ofVirtual().start(() -> {
+            while (true) {
+                try {
+                    String[] response = in.readBulkStringArray();
+                    if (response.length == 3 && "REPLCONF".equalsIgnoreCase(response[0])
+                            && "ACK".equalsIgnoreCase(response[1])) {
+                        replicas.acknowledge(replica, Long.parseLong(response[2]));
+                    }
+                } catch (IOException e) {
+                    // The replica went away; stop reading acknowledgements instead of spinning on EOF
+                    return;
+                } catch (NumberFormatException e) {
+                    // Its acknowledgements can no longer be counted, so WAIT must not count on it either
+                    replica.drop("malformed REPLCONF ACK offset");
+                    return;
+                }
+            }
+        });
+        ReplicationBacklog backlog = Main.backlog;
+        SocketChannel channel = socket.getChannel();
+        OutputStream stream = socket.getOutputStream();
+        byte[] chunk = new byte[REPLICA_CHUNK_SIZE];
+        long offset = replica.getSentOffset();
+        while (!replica.isDropped()) {
+            long end = backlog.awaitBeyond(offset, 1000);
+            if (end == offset) {
+                continue;
+            }
+            int n = backlog.read(offset, chunk);
+            if (n < 0) {
+                replica.drop("fell out of the replication backlog");
+                break;
+            }
+            if (channel != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } else {
+                stream.write(chunk, 0, n);
+                stream.flush();
+            }
+            offset += n;
+            replica.setSentOffset(offset);
         }
+        throw new IOException("Replica dropped");
     }
 
 }
@@ -0,0 +1,37 @@
+/**
+ * The Crc16 class computes the 16-bit CRC (XMODEM: polynomial 0x1021, no reflection, zero initial value) that Redis
+ * Cluster hashes keys to slots with.
+ */
+public final class Crc16 {
+    private static final int POLY = 0x1021;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLY : crc << 1;
+            }
+            TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    /**
+     * Returns the checksum of part of a string of ISO-8859-1 characters, each taken as the byte it stands for.
+     *
+     * @param s    the string
+     * @param from the index of the first character
+     * @param to   the index after the last character
+     * @return the checksum, from 0 to 65535
+     */
+    public static int of(String s, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ s.charAt(i)) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
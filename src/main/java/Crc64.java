@@ -0,0 +1,52 @@
+/**
+ * The Crc64 class computes the 64-bit CRC (Jones polynomial, reflected) that Redis appends to RDB files.
+ */
+public class Crc64 {
+    private static final long POLY = 0x95ac9329ac4bc9b5L;
+    private static final long[] TABLE = new long[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            long crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private long crc;
+
+    /**
+     * Adds bytes to the checksum.
+     *
+     * @param b   the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     */
+    public void update(byte[] b, int off, int len) {
+        long c = crc;
+        for (int i = off, end = off + len; i < end; i++) {
+            c = TABLE[(int) (c ^ b[i]) & 0xff] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    /**
+     * Adds a single byte to the checksum.
+     *
+     * @param b the byte
+     */
+    public void update(int b) {
+        crc = TABLE[(int) (crc ^ b) & 0xff] ^ (crc >>> 8);
+    }
+
+    /**
+     * Returns the checksum of the bytes added so far.
+     *
+     * @return the checksum
+     */
+    public long getValue() {
+        return crc;
+    }
+}
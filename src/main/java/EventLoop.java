@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The EventLoop class serves many client connections from a single thread using a {@link Selector}.
+ * <p>
+ * Connections accepted by {@link Main} are handed to a loop with {@link #register(SocketChannel)}. Whenever a
+ * connection becomes readable, the loop reads what has arrived, runs every complete command through the
+ * connection's {@link ConnectionHandler} and writes the replies in one go. Replies the socket cannot take right
+ * away are sent once it becomes writable, and the connection is not read from until then.
+ * Replies to writes that must be on disk first, under {@code appendfsync always}, are held back the same way
+ * until the {@link AppendOnlyFile} reports them synced.
+ * <p>
+ * Keys invalidated for a connection tracking them, by a write on any thread, are pushed to it by the loop between
+ * batches, taking the same way as replies.
+ * <p>
+ * A command that parks its thread, such as PSYNC or WAIT, takes the connection off the loop for good: the channel
+ * is switched to blocking mode and the connection continues on a virtual thread of its own.
+ */
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final KeyValueHandler store;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    // Shared by all connections of this loop, since whatever is read is fed to the connection right away
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final List<SelectionKey> parked = new ArrayList<>();
+    // Connections whose replies were held back for the append-only file and may now be sent
+    private final Queue<SelectionKey> synced = new ConcurrentLinkedQueue<>();
+    // Connections with invalidated keys to push
+    private final Queue<SelectionKey> invalidated = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructs an EventLoop serving connections with the specified key-value store.
+     *
+     * @param store the key-value store
+     * @throws IOException if the selector cannot be opened
+     */
+    public EventLoop(KeyValueHandler store) throws IOException {
+        this.selector = Selector.open();
+        this.store = store;
+    }
+
+    /**
+     * Hands an accepted connection to this loop. May be called from any thread.
+     *
+     * @param channel the accepted channel
+     */
+    public void register(SocketChannel channel) {
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for connections to become ready and serves them, forever.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerAccepted();
+                releaseSynced();
+                pushInvalidations();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                handOffParked();
+            } catch (IOException | RuntimeException e) {
+                // The loop serves every connection on it, so it keeps going whatever went wrong
+                Log.warning("Event loop error: " + e);
+            }
+        }
+    }
+
+    /**
+     * Registers the connections accepted since the last iteration for reading.
+     */
+    private void registerAccepted() {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            ConnectionHandler connection = null;
+            try {
+                channel.configureBlocking(false);
+                connection = new ConnectionHandler(channel, store);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setPushWakeup(() -> {
+                    invalidated.add(key);
+                    selector.wakeup();
+                });
+            } catch (IOException e) {
+                Log.warning("Error registering client: " + e.getMessage());
+                if (connection != null) {
+                    connection.close();
+                } else {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // already closed
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves a single ready connection: sends pending replies, then reads and runs the commands that arrived.
+     *
+     * @param key the selection key of the connection
+     */
+    private void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        ConnectionHandler connection = (ConnectionHandler) key.attachment();
+        try {
+            if (key.isWritable() && !connection.flushOutput()) {
+                return;
+            }
+            if (key.isReadable()) {
+                readBuffer.clear();
+                if (((SocketChannel) key.channel()).read(readBuffer) < 0) {
+                    key.cancel();
+                    connection.close();
+                    return;
+                }
+                readBuffer.flip();
+                connection.feed(readBuffer);
+                if (!connection.runBufferedCommands()) {
+                    parked.add(key);
+                    return;
+                }
+                if (connection.holdReplies(() -> {
+                    synced.add(key);
+                    selector.wakeup();
+                })) {
+                    // Neither read nor write until the writes are on disk, keeping the replies in order
+                    key.interestOps(0);
+                    return;
+                }
+            }
+            key.interestOps(connection.flushOutput() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            Log.verbose("Client closed connection: " + e.getMessage());
+            key.cancel();
+            connection.close();
+        } catch (RuntimeException e) {
+            // A bug in a command is the end of its connection only, not of the loop and the others on it
+            Log.warning("Error serving client, closing connection: " + e);
+            key.cancel();
+            connection.close();
+        }
+    }
+
+    /**
+     * Sends the replies that were held back until the append-only file was synced.
+     */
+    private void releaseSynced() {
+        SelectionKey key;
+        while ((key = synced.poll()) != null) {
+            if (!key.isValid()) {
+                continue;
+            }
+            ConnectionHandler connection = (ConnectionHandler) key.attachment();
+            try {
+                key.interestOps(connection.flushOutput() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                Log.verbose("Client closed connection: " + e.getMessage());
+                key.cancel();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the keys invalidated for connections since the last iteration, and sends them unless the replies
+     * before them are held back for the append-only file, in which case they go along with those.
+     */
+    private void pushInvalidations() {
+        SelectionKey key;
+        while ((key = invalidated.poll()) != null) {
+            if (!key.isValid()) {
+                continue;
+            }
+            ConnectionHandler connection = (ConnectionHandler) key.attachment();
+            try {
+                connection.writeInvalidations();
+                if (key.interestOps() != 0) {
+                    key.interestOps(connection.flushOutput() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                Log.verbose("Client closed connection: " + e.getMessage());
+                key.cancel();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Moves connections that stopped at a parking command onto virtual threads of their own.
+     *
+     * @throws IOException if the selector fails
+     */
+    private void handOffParked() throws IOException {
+        if (parked.isEmpty()) {
+            return;
+        }
+        for (SelectionKey key : parked) {
+            key.cancel();
+        }
+        // A channel can only be made blocking once the selector has dropped its cancelled key
+        selector.selectNow();
+        for (SelectionKey key : parked) {
+            ConnectionHandler connection = (ConnectionHandler) key.attachment();
+            try {
+                key.channel().configureBlocking(true);
+                Thread.ofVirtual().start(connection::resume);
+            } catch (IOException e) {
+                Log.verbose("Client closed connection: " + e.getMessage());
+                connection.close();
+            }
+        }
+        parked.clear();
+    }
+}
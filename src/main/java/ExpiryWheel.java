@@ -0,0 +1,213 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The ExpiryWheel class finds keys whose expiry time has passed without scanning the key space.
+ * <p>
+ * It is a hierarchical timing wheel: {@value #LEVELS} levels of {@value #SLOTS} slots each, where a slot of level
+ * {@code k} covers {@code SLOTS^k} ticks of {@value #TICK_MILLIS} ms. A key is placed in the coarsest level whose
+ * range it falls into and moves down a level each time the wheel reaches its slot, so every key is looked at only
+ * a few times before it expires, no matter how far away its expiry is.
+ * <p>
+ * Any thread may {@link #schedule(String, long)} keys; they are pushed onto a lock-free stack and only placed in
+ * the wheel by the single thread calling {@link #advance(long)}, which owns the wheel and needs no locks. Each call
+ * looks at no more than a fixed number of keys, carrying the rest over to the next call, so a burst of expiring
+ * keys cannot stall the caller for long.
+ */
+public class ExpiryWheel {
+    static final long TICK_MILLIS = 10;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // Largest distance in ticks a key can be placed at; keys further away are placed there and moved again later
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+    private static final int MAX_KEYS_PER_ADVANCE = 20_000;
+
+    /**
+     * Called for every key whose scheduled expiry time has been reached.
+     */
+    @FunctionalInterface
+    public interface Expirer {
+        /**
+         * Expires a key if it still has the given expiry time.
+         *
+         * @param key       the key
+         * @param expiresAt the expiry time the key was scheduled with
+         * @return false if the key is not due yet and must be looked at again later, true otherwise
+         */
+        boolean expire(String key, long expiresAt);
+    }
+
+    /**
+     * A scheduled key, linked into a slot, the incoming stack or the overdue list.
+     */
+    private static final class Node {
+        final String key;
+        final long expiresAt;
+        final long tick;
+        Node next;
+
+        Node(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+            // Due on the first tick that starts after the expiry time
+            this.tick = expiresAt / TICK_MILLIS + 1;
+        }
+    }
+
+    private final Expirer expirer;
+    private final AtomicReference<Node> incoming = new AtomicReference<>();
+    // Owned by the advancing thread
+    private final Node[][] wheel = new Node[LEVELS][SLOTS];
+    private Node overdue;
+    private long currentTick = -1;
+    private volatile long scheduled;
+    private volatile long capReached;
+
+    /**
+     * Constructs an ExpiryWheel that hands due keys to the given expirer.
+     *
+     * @param expirer called for every due key, on the thread calling {@link #advance(long)}
+     */
+    public ExpiryWheel(Expirer expirer) {
+        this.expirer = expirer;
+    }
+
+    /**
+     * Schedules a key to be handed to the expirer once the given time has passed. May be called from any thread.
+     *
+     * @param key       the key
+     * @param expiresAt the expiry time in milliseconds
+     */
+    public void schedule(String key, long expiresAt) {
+        Node node = new Node(key, expiresAt);
+        Node head;
+        do {
+            head = incoming.get();
+            node.next = head;
+        } while (!incoming.compareAndSet(head, node));
+    }
+
+    /**
+     * Returns the number of keys waiting in the wheel, as of the last {@link #advance(long)}.
+     *
+     * @return the number of scheduled keys
+     */
+    public long getScheduled() {
+        return scheduled;
+    }
+
+    /**
+     * Returns how often {@link #advance(long)} stopped early because it had looked at as many keys as it may.
+     *
+     * @return the number of advances that reached the limit
+     */
+    public long getCapReached() {
+        return capReached;
+    }
+
+    /**
+     * Places newly scheduled keys and hands every key due by the given time to the expirer, up to a fixed limit.
+     * Must only be called from one thread at a time.
+     *
+     * @param now the current time in milliseconds
+     */
+    public void advance(long now) {
+        long target = now / TICK_MILLIS;
+        if (currentTick < 0) {
+            currentTick = target;
+        }
+        long count = scheduled;
+        for (Node node = incoming.getAndSet(null); node != null; ) {
+            Node next = node.next;
+            place(node);
+            count++;
+            node = next;
+        }
+        int budget = MAX_KEYS_PER_ADVANCE;
+        while (true) {
+            // Keys carried over from an earlier tick go first
+            while (overdue != null && budget > 0) {
+                Node node = overdue;
+                overdue = node.next;
+                count--;
+                budget--;
+                if (!expirer.expire(node.key, node.expiresAt)) {
+                    // Not due after all, e.g. because the clock went back; look at it again later
+                    node.next = null;
+                    placeAt(node, Math.max(node.tick, currentTick + 1));
+                    count++;
+                }
+            }
+            if (budget == 0) {
+                if (overdue != null) {
+                    capReached++;
+                }
+                break;
+            }
+            if (currentTick >= target) {
+                break;
+            }
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (SLOT_BITS * level)) & MASK);
+                }
+            }
+            int slot = (int) currentTick & MASK;
+            Node due = wheel[0][slot];
+            wheel[0][slot] = null;
+            appendOverdue(due);
+        }
+        scheduled = count;
+    }
+
+    /**
+     * Moves the keys of a slot of a coarser level into the finer levels, now that the wheel has reached it.
+     */
+    private void cascade(int level, int slot) {
+        Node node = wheel[level][slot];
+        wheel[level][slot] = null;
+        while (node != null) {
+            Node next = node.next;
+            place(node);
+            node = next;
+        }
+    }
+
+    private void place(Node node) {
+        placeAt(node, node.tick);
+    }
+
+    /**
+     * Links a key into the slot covering the given tick, or into the overdue list if that tick has been reached.
+     */
+    private void placeAt(Node node, long tick) {
+        long delta = tick - currentTick;
+        if (delta <= 0) {
+            node.next = overdue;
+            overdue = node;
+            return;
+        }
+        if (delta > MAX_DELTA) {
+            tick = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int) (tick >>> (SLOT_BITS * level)) & MASK;
+        node.next = wheel[level][slot];
+        wheel[level][slot] = node;
+    }
+
+    private void appendOverdue(Node list) {
+        while (list != null) {
+            Node next = list.next;
+            list.next = overdue;
+            overdue = list;
+            list = next;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * The Glob class matches strings against glob-style patterns, as KEYS and the MATCH option of SCAN take them in
+ * Redis:
+ * <ul>
+ *     <li>{@code ?} matches any one character</li>
+ *     <li>{@code *} matches any number of characters, including none</li>
+ *     <li>{@code [abc]} matches one of the characters listed, {@code [a-z]} one in a range, and {@code [^a]} any
+ *     but those listed</li>
+ *     <li>{@code \} matches the character after it literally</li>
+ * </ul>
+ * Matching backtracks only to the last {@code *} seen, so it takes time proportional to the lengths of the pattern
+ * and the string multiplied, however many stars the pattern has.
+ */
+public final class Glob {
+    private Glob() {
+    }
+
+    /**
+     * Returns whether a string matches a pattern.
+     *
+     * @param pattern the pattern
+     * @param s       the string
+     * @return true if the whole string matches the whole pattern
+     */
+    public static boolean matches(String pattern, String s) {
+        int p = 0;
+        int i = 0;
+        // Where to resume after the last star: just past it in the pattern, and the next start in the string
+        int star = -1;
+        int resume = 0;
+        while (i < s.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = ++p;
+                resume = i;
+                continue;
+            }
+            int next = p < pattern.length() ? matchChar(pattern, p, s.charAt(i)) : -1;
+            if (next >= 0) {
+                p = next;
+                i++;
+            } else if (star >= 0) {
+                // Let the last star take one more character
+                p = star;
+                i = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Returns whether a pattern has no special characters, so that it only matches itself.
+     *
+     * @param pattern the pattern
+     * @return true if the pattern has no {@code *}, {@code ?}, {@code [} or {@code \}
+     */
+    public static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches a character against the element of the pattern at an index.
+     *
+     * @return the index of the next element, or -1 if the character does not match
+     */
+    private static int matchChar(String pattern, int p, char c) {
+        char element = pattern.charAt(p);
+        if (element == '?') {
+            return p + 1;
+        }
+        if (element == '[') {
+            return matchClass(pattern, p + 1, c);
+        }
+        if (element == '\\' && p + 1 < pattern.length()) {
+            return pattern.charAt(p + 1) == c ? p + 2 : -1;
+        }
+        return element == c ? p + 1 : -1;
+    }
+
+    /**
+     * Matches a character against the class of characters starting at an index, just past its {@code [}. A class
+     * left open runs to the end of the pattern.
+     */
+    private static int matchClass(String pattern, int p, char c) {
+        boolean negated = p < pattern.length() && pattern.charAt(p) == '^';
+        if (negated) {
+            p++;
+        }
+        boolean matched = false;
+        while (p < pattern.length() && pattern.charAt(p) != ']') {
+            char first = pattern.charAt(p);
+            if (first == '\\' && p + 1 < pattern.length()) {
+                matched |= pattern.charAt(p + 1) == c;
+                p += 2;
+            } else if (p + 2 < pattern.length() && pattern.charAt(p + 1) == '-') {
+                char last = pattern.charAt(p + 2);
+                matched |= c >= Math.min(first, last) && c <= Math.max(first, last);
+                p += 3;
+            } else {
+                matched |= first == c;
+                p++;
+            }
+        }
+        if (p < pattern.length()) {
+            // The closing bracket
+            p++;
+        }
+        return matched != negated ? p : -1;
+    }
+}
@@ -0,0 +1,183 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The HashValue class holds the field-value pairs of a hash. Fields and values are kept side by side in a
+ * {@link ListPack} until the hash has more than {@link #maxListpackEntries} fields or a field or value longer than
+ * {@link #maxListpackValue} bytes, and in a hash table from then on.
+ */
+public class HashValue extends CollectionValue {
+    /**
+     * The number of fields above which a hash switches to a hash table, as set by hash-max-listpack-entries.
+     */
+    public static volatile int maxListpackEntries = 128;
+    /**
+     * The length of a field or value above which a hash switches to a hash table, as set by
+     * hash-max-listpack-value.
+     */
+    public static volatile int maxListpackValue = 64;
+
+    // field, value, field, value... while compact
+    private ListPack pack = new ListPack();
+    private HashMap<String, byte[]> table;
+    // Bytes of the fields and values in the table
+    private long tableBytes;
+
+    /**
+     * Constructs an empty hash.
+     */
+    public HashValue() {
+    }
+
+    private HashValue(HashValue other) {
+        if (other.table != null) {
+            this.pack = null;
+            this.table = new HashMap<>(other.table);
+            this.tableBytes = other.tableBytes;
+        } else {
+            this.pack = new ListPack(other.pack);
+        }
+    }
+
+    @Override
+    public String type() {
+        return "hash";
+    }
+
+    @Override
+    public String encoding() {
+        return table == null ? "listpack" : "hashtable";
+    }
+
+    @Override
+    public int size() {
+        return table == null ? pack.size() / 2 : table.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return table == null ? pack.memoryUsage() : tableBytes + (long) table.size() * ELEMENT_OVERHEAD;
+    }
+
+    @Override
+    public HashValue copy() {
+        return new HashValue(this);
+    }
+
+    /**
+     * Returns the value of a field.
+     *
+     * @param field the field
+     * @return the value, or null if the hash has no such field; must not be modified
+     */
+    public byte[] get(String field) {
+        if (table != null) {
+            return table.get(field);
+        }
+        int offset = pack.find(pack.first(), bytes(field), 2);
+        return offset < 0 ? null : pack.get(pack.next(offset));
+    }
+
+    /**
+     * Sets a field to a value.
+     *
+     * @param field the field
+     * @param value the value; the hash takes ownership of the array
+     * @return true if the field is new, false if its value was replaced
+     */
+    public boolean set(String field, byte[] value) {
+        if (table == null && (field.length() > maxListpackValue || value.length > maxListpackValue)) {
+            convert();
+        }
+        if (table != null) {
+            byte[] old = table.put(field, value);
+            tableBytes += old == null ? field.length() + value.length : value.length - old.length;
+            return old == null;
+        }
+        byte[] key = bytes(field);
+        int offset = pack.find(pack.first(), key, 2);
+        if (offset >= 0) {
+            pack.replace(pack.next(offset), value);
+            return false;
+        }
+        pack.insert(pack.end(), key);
+        pack.insert(pack.end(), value);
+        if (pack.size() / 2 > maxListpackEntries) {
+            convert();
+        }
+        return true;
+    }
+
+    /**
+     * Sets the fields and values given as consecutive arguments, as in HSET.
+     *
+     * @param args the arguments
+     * @param from the index of the first field
+     * @return the number of fields that were new
+     */
+    public int set(String[] args, int from) {
+        int added = 0;
+        for (int i = from; i + 1 < args.length; i += 2) {
+            if (set(args[i], bytes(args[i + 1]))) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes a field.
+     *
+     * @param field the field
+     * @return true if the hash had the field
+     */
+    public boolean delete(String field) {
+        if (table != null) {
+            byte[] old = table.remove(field);
+            if (old != null) {
+                tableBytes -= field.length() + old.length;
+            }
+            return old != null;
+        }
+        int offset = pack.find(pack.first(), bytes(field), 2);
+        if (offset < 0) {
+            return false;
+        }
+        pack.delete(offset, 2);
+        return true;
+    }
+
+    /**
+     * Hands every field and value to the consumer.
+     *
+     * @param consumer receives the fields and values; the values must not be modified
+     */
+    public void forEach(BiConsumer<String, byte[]> consumer) {
+        if (table != null) {
+            table.forEach(consumer);
+            return;
+        }
+        for (int offset = pack.first(); offset < pack.end(); ) {
+            int value = pack.next(offset);
+            consumer.accept(new String(pack.get(offset), StandardCharsets.ISO_8859_1), pack.get(value));
+            offset = pack.next(value);
+        }
+    }
+
+    private void convert() {
+        HashMap<String, byte[]> converted = new HashMap<>();
+        long bytes = 0;
+        for (int offset = pack.first(); offset < pack.end(); ) {
+            int value = pack.next(offset);
+            byte[] field = pack.get(offset);
+            byte[] v = pack.get(value);
+            converted.put(new String(field, StandardCharsets.ISO_8859_1), v);
+            bytes += field.length + v.length;
+            offset = pack.next(value);
+        }
+        table = converted;
+        tableBytes = bytes;
+        pack = null;
+    }
+}
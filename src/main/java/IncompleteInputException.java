@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+/**
+ * Thrown by an {@link InputHandler} without a stream when the bytes fed to it so far end in the middle of a command.
+ * Nothing is consumed in that case; the command is parsed again from the start once more bytes have been fed.
+ * <p>
+ * A partial command is an expected event on a busy connection rather than an error, so a single instance without
+ * a stack trace is shared.
+ */
+public class IncompleteInputException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    static final IncompleteInputException INSTANCE = new IncompleteInputException();
+
+    private IncompleteInputException() {
+        super("Incomplete command");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -1,15 +1,48 @@
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
  * The InputHandler class provides various methods to read and process data from an InputStream.
  * It includes functionalities to read bytes, simple strings, lines, and bulk string arrays.
  * It also keeps track of the read position within the stream.
+ * <p>
+ * Data is read from the underlying stream in large chunks into a reusable buffer and decoded from there.
+ * Headers such as {@code *<count>} and {@code $<length>} are parsed as integers straight from the buffer,
+ * and bulk strings are read by their declared length so that payloads containing CR or LF are preserved.
+ * Bulk strings are decoded as ISO-8859-1, which maps every byte to exactly one char and keeps them binary safe.
+ * <p>
+ * An optional {@link Flushable} is flushed right before the handler blocks on the stream for more data. Pairing it
+ * with the connection's {@link OutputHandler} lets a pipeline of commands run back to back from the buffer and
+ * have all of their replies written together once the input runs dry.
+ * <p>
+ * Lengths are bounded as in Redis, at 1M elements per command and 512MB per bulk string, and so is a header line
+ * without its CRLF, so that a malformed or hostile header cannot make the server allocate without limit. Going over
+ * a bound is a protocol error, which closes the connection.
+ * <p>
+ * Without a stream, the handler is fed by {@link #feed(ByteBuffer)}, as done by the {@link EventLoop}. Reading a
+ * command that has not fully arrived then throws {@link IncompleteInputException} and leaves the input untouched.
  */
 public class InputHandler implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Fed handlers start small and grow with the input, since most of their connections are idle
+    private static final int FED_BUFFER_SIZE = 256;
+    private static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    // A header line such as *<count> or $<length> is a few bytes; anything this long without CRLF is not one
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
     private InputStream in;
+    private final Flushable beforeBlocking;
+    private byte[] buffer;
+    // buffer[start, end) holds bytes read from the stream but not consumed yet
+    private int start;
+    private int end;
     private long position;
 
     /**
@@ -18,6 +51,56 @@ public class InputHandler implements Closeable {
      * @param in the InputStream to be read from
      */
     public InputHandler(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * Constructs an InputHandler with the specified InputStream that flushes the given output before blocking.
+     *
+     * @param in             the InputStream to be read from
+     * @param beforeBlocking flushed whenever a read has to wait for the stream, may be null
+     */
+    public InputHandler(InputStream in, Flushable beforeBlocking) {
+        this.in = in;
+        this.beforeBlocking = beforeBlocking;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Constructs an InputHandler without a stream, which only reads the bytes handed to {@link #feed(ByteBuffer)}.
+     *
+     * @param beforeBlocking flushed whenever a read has to wait for a stream attached later, may be null
+     */
+    public InputHandler(Flushable beforeBlocking) {
+        this.beforeBlocking = beforeBlocking;
+        this.buffer = new byte[FED_BUFFER_SIZE];
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer to the input, growing the internal buffer as needed.
+     *
+     * @param src the bytes to append
+     */
+    public void feed(ByteBuffer src) {
+        int n = src.remaining();
+        if (buffer.length - end < n) {
+            int length = end - start;
+            byte[] target = buffer.length - length < n ? new byte[Math.max(length + n, buffer.length * 2)] : buffer;
+            System.arraycopy(buffer, start, target, 0, length);
+            buffer = target;
+            start = 0;
+            end = length;
+        }
+        src.get(buffer, end, n);
+        end += n;
+    }
+
+    /**
+     * Switches a fed InputHandler over to reading from a stream once the bytes fed so far are used up.
+     *
+     * @param in the InputStream to be read from
+     */
+    public void attach(InputStream in) {
         this.in = in;
     }
 
@@ -37,6 +120,15 @@ public class InputHandler implements Closeable {
         position = 0;
     }
 
+    /**
+     * Returns the number of bytes that have been read from the InputStream but not consumed yet.
+     *
+     * @return the number of buffered bytes
+     */
+    public int buffered() {
+        return end - start;
+    }
+
     /**
      * Reads a specified number of bytes from the InputStream.
      *
@@ -45,8 +137,119 @@ public class InputHandler implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public byte[] readNBytes(int len) throws IOException {
-        position += len;
-        return in.readNBytes(len);
+        if (in == null) {
+            fill(len);
+        }
+        byte[] bytes = new byte[len];
+        int copied = Math.min(len, end - start);
+        System.arraycopy(buffer, start, bytes, 0, copied);
+        consume(copied);
+        while (copied < len) {
+            flushBeforeBlocking();
+            int n = in.read(bytes, copied, len - copied);
+            if (n < 0) {
+                throw new EOFException("End of stream after " + copied + " of " + len + " bytes");
+            }
+            copied += n;
+            position += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a stream over the next {@code length} bytes of the input, such as the RDB file of a full resync, which
+     * passes them on a chunk at a time instead of reading them all into one array. Nothing else may be read from
+     * this handler until the stream has been read to its end.
+     *
+     * @param length the number of bytes in the payload
+     * @return the payload
+     */
+    public InputStream readPayload(long length) {
+        return new InputStream() {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                len = (int) Math.min(len, remaining);
+                int n;
+                if (end > start) {
+                    n = Math.min(len, end - start);
+                    System.arraycopy(buffer, start, b, off, n);
+                    consume(n);
+                } else {
+                    if (in == null) {
+                        throw IncompleteInputException.INSTANCE;
+                    }
+                    flushBeforeBlocking();
+                    n = in.read(b, off, len);
+                    if (n < 0) {
+                        throw new EOFException("End of stream with " + remaining + " bytes of payload to go");
+                    }
+                    position += n;
+                }
+                remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns a stream over the input up to the next occurrence of a delimiter, which is consumed but not part of
+     * the stream. This reads the RDB file of a full resync that a master streams without knowing its length up
+     * front, ended by the random mark announced in its {@code $EOF:<mark>} header. The bytes after the delimiter
+     * stay in this handler. Nothing else may be read from this handler until the stream has been read to its end.
+     *
+     * @param delimiter the bytes that end the payload
+     * @return the payload
+     */
+    public InputStream readPayloadUntil(byte[] delimiter) {
+        return new InputStream() {
+            private boolean ended;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (ended) {
+                    return -1;
+                }
+                int d = delimiter.length;
+                while (true) {
+                    // Bytes before the last d - 1 can be passed on once they are known not to start the delimiter
+                    int safe = start;
+                    while (safe <= end - d && (buffer[safe] != delimiter[0]
+                            || !Arrays.equals(buffer, safe, safe + d, delimiter, 0, d))) {
+                        safe++;
+                    }
+                    if (safe > start) {
+                        int n = Math.min(len, safe - start);
+                        System.arraycopy(buffer, start, b, off, n);
+                        consume(n);
+                        return n;
+                    }
+                    if (end - start >= d) {
+                        // The delimiter is at the start of the buffer
+                        consume(d);
+                        ended = true;
+                        return -1;
+                    }
+                    fill(end - start + 1);
+                }
+            }
+        };
     }
 
     /**
@@ -66,15 +269,10 @@ public class InputHandler implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public String readLine() throws IOException {
-        // TODO: make private
-        StringBuilder sb = new StringBuilder();
-        int c;
-        while ((c = in.read()) != '\r') {
-            sb.append((char) c);
-        }
-        c = in.read(); // consume \n
-        position += sb.length() + 2; // add length of \r\n
-        return sb.toString();
+        int cr = findCr();
+        String line = new String(buffer, start, cr - start, StandardCharsets.ISO_8859_1);
+        consume(cr - start + 2); // add length of \r\n
+        return line;
     }
 
     /**
@@ -83,19 +281,179 @@ public class InputHandler implements Closeable {
      *
      * @return an array of strings read from the InputStream
      * @throws IOException if an I/O error occurs
+     * @throws IncompleteInputException if the handler is fed and the command has not fully arrived yet
      */
     public String[] readBulkStringArray() throws IOException {
-        // Expected input format: *<number of elements>\r\n$<length>\r\n<string>\r\n
-        int numberOfElements = Integer.parseInt(readLine().substring(1));
-        String[] strings = new String[numberOfElements];
-        for (int i = 0; i < strings.length; i++) {
-            readLine();              // consume length line
-            strings[i] = readLine(); // read actual string
-        }
-        System.out.println("command received=" + Arrays.toString(strings));
+        int markStart = start;
+        int markEnd = end;
+        long markPosition = position;
+        String[] strings;
+        try {
+            // Expected input format: *<number of elements>\r\n$<length>\r\n<string>\r\n
+            long numberOfElements = readPrefixedInteger('*');
+            if (numberOfElements > MAX_MULTIBULK_LENGTH) {
+                throw new IOException("Protocol error: invalid multibulk length");
+            }
+            strings = new String[(int) Math.max(numberOfElements, 0)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readBulkString();
+            }
+        } catch (IncompleteInputException e) {
+            // Nothing was read into the buffer meanwhile, so the whole command is still there to parse again
+            start = markStart;
+            end = markEnd;
+            position = markPosition;
+            throw e;
+        }
         return strings;
     }
 
+    /**
+     * Reads a single bulk string from the InputStream using its declared length.
+     *
+     * @return the string read, or null for a null bulk string
+     * @throws IOException if an I/O error occurs
+     */
+    private String readBulkString() throws IOException {
+        long declared = readPrefixedInteger('$');
+        if (declared < 0) {
+            return null;
+        }
+        if (declared > MAX_BULK_LENGTH) {
+            throw new IOException("Protocol error: invalid bulk length");
+        }
+        int length = (int) declared;
+        String string;
+        if (in == null || length + 2 <= buffer.length) {
+            fill(length + 2);
+            string = new String(buffer, start, length, StandardCharsets.ISO_8859_1);
+            consume(length);
+        } else {
+            // Payloads larger than the buffer are read directly instead of growing the buffer for good
+            string = new String(readNBytes(length), StandardCharsets.ISO_8859_1);
+            fill(2);
+        }
+        if (buffer[start] != '\r' || buffer[start + 1] != '\n') {
+            throw new IOException("Protocol error: expected CRLF after bulk string of length " + length);
+        }
+        consume(2);
+        return string;
+    }
+
+    /**
+     * Reads an integer header line such as {@code *3} or {@code $5} without creating intermediate strings.
+     *
+     * @param prefix the expected type byte
+     * @return the parsed integer
+     * @throws IOException if an I/O error occurs or the line is malformed
+     */
+    private long readPrefixedInteger(char prefix) throws IOException {
+        int cr = findCr();
+        if (buffer[start] != prefix) {
+            throw new IOException("Protocol error: expected '" + prefix + "', got '" + (char) buffer[start] + "'");
+        }
+        int i = start + 1;
+        boolean negative = i < cr && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == cr) {
+            throw new IOException("Protocol error: missing length after '" + prefix + "'");
+        }
+        long value = 0;
+        for (; i < cr; i++) {
+            int digit = buffer[i] - '0';
+            // Past 18 digits the value could overflow, and it is over every bound anyway
+            if (digit < 0 || digit > 9 || i - start > 18) {
+                throw new IOException("Protocol error: invalid length after '" + prefix + "'");
+            }
+            value = value * 10 + digit;
+        }
+        consume(cr - start + 2);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Locates the CR of the next CRLF, reading more data from the stream as needed.
+     * On return, both the CR and the following LF are in the buffer.
+     *
+     * @return the buffer index of the CR
+     * @throws IOException if an I/O error occurs
+     */
+    private int findCr() throws IOException {
+        int scanned = start;
+        while (true) {
+            for (int i = scanned; i < end - 1; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    return i;
+                }
+            }
+            if (end - start > MAX_LINE_LENGTH) {
+                throw new IOException("Protocol error: line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            scanned = Math.max(start, end - 1);
+            int offset = start;
+            fill(end - start + 1);
+            scanned -= offset - start;
+        }
+    }
+
+    /**
+     * Ensures at least {@code n} unconsumed bytes are in the buffer, compacting or growing it as needed.
+     *
+     * @param n the number of bytes required
+     * @throws IOException if an I/O error occurs or the stream ends first
+     * @throws IncompleteInputException if there is no stream and fewer than {@code n} bytes were fed
+     */
+    private void fill(int n) throws IOException {
+        if (end - start >= n) {
+            return;
+        }
+        if (in == null) {
+            throw IncompleteInputException.INSTANCE;
+        }
+        if (buffer.length - start < n) {
+            byte[] target = buffer.length < n ? new byte[Math.max(n, buffer.length * 2)] : buffer;
+            System.arraycopy(buffer, start, target, 0, end - start);
+            buffer = target;
+            end -= start;
+            start = 0;
+        }
+        while (end - start < n) {
+            flushBeforeBlocking();
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                throw new EOFException("End of stream");
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Flushes pending output before a read that may block, unless the stream already has data available.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void flushBeforeBlocking() throws IOException {
+        if (beforeBlocking != null && in.available() == 0) {
+            beforeBlocking.flush();
+        }
+    }
+
+    /**
+     * Marks {@code n} buffered bytes as consumed and advances the read position.
+     *
+     * @param n the number of bytes consumed
+     */
+    private void consume(int n) {
+        start += n;
+        position += n;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+    }
+
     /**
      * Closes the InputStream and releases any system resources associated with it.
      *
@@ -103,6 +461,8 @@ public class InputHandler implements Closeable {
      */
     @Override
     public void close() throws IOException {
-        in.close();
+        if (in != null) {
+            in.close();
+        }
     }
 }
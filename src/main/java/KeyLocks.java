@@ -0,0 +1,142 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The KeyLocks class serializes commands that touch the same keys, so that a transaction can run its commands as
+ * one block while commands on other keys carry on.
+ * <p>
+ * Keys are hashed onto a fixed number of stripes, each a {@link ReentrantLock}. A command locks the stripes of the
+ * keys it touches, and EXEC those of every key its queued commands touch, always in ascending order, so that two
+ * connections locking overlapping keys cannot deadlock. The locks are reentrant, so the commands of a transaction
+ * take the stripes their EXEC already holds without waiting. Keys that share a stripe by chance only wait for each
+ * other for the length of a command.
+ */
+public class KeyLocks {
+    private static final int DEFAULT_STRIPES = 1024;
+    private static final int[] NONE = new int[0];
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Constructs a KeyLocks with the default number of stripes.
+     */
+    public KeyLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Constructs a KeyLocks with the given number of stripes.
+     *
+     * @param stripes the number of stripes, rounded up to a power of two
+     */
+    public KeyLocks(int stripes) {
+        int n = Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1;
+        this.stripes = new ReentrantLock[Math.max(n, 1)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Locks the stripe of a single key, without allocating anything.
+     *
+     * @param key the key
+     * @return the stripe locked, to pass to {@link #unlock(int)}
+     */
+    public int lock(String key) {
+        int stripe = stripeOf(key);
+        stripes[stripe].lock();
+        return stripe;
+    }
+
+    /**
+     * Locks the stripe of a single key if no other thread holds it, without waiting.
+     *
+     * @param key the key
+     * @return the stripe locked, to pass to {@link #unlock(int)}, or -1 if another thread holds it
+     */
+    public int tryLock(String key) {
+        int stripe = stripeOf(key);
+        return stripes[stripe].tryLock() ? stripe : -1;
+    }
+
+    /**
+     * Unlocks a stripe locked by {@link #lock(String)}.
+     *
+     * @param stripe the stripe locked
+     */
+    public void unlock(int stripe) {
+        stripes[stripe].unlock();
+    }
+
+    /**
+     * Locks the stripes of the given keys in ascending order, waiting for any other thread holding one of them.
+     *
+     * @param keys the keys
+     * @return the stripes locked, to pass to {@link #unlock(int[])}
+     */
+    public int[] lock(String... keys) {
+        if (keys.length == 0) {
+            return NONE;
+        }
+        int[] held = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            held[i] = stripeOf(keys[i]);
+        }
+        if (held.length > 1) {
+            Arrays.sort(held);
+            int distinct = 1;
+            for (int i = 1; i < held.length; i++) {
+                if (held[i] != held[distinct - 1]) {
+                    held[distinct++] = held[i];
+                }
+            }
+            held = distinct == held.length ? held : Arrays.copyOf(held, distinct);
+        }
+        for (int stripe : held) {
+            stripes[stripe].lock();
+        }
+        return held;
+    }
+
+    /**
+     * Unlocks stripes locked by {@link #lock(String...)}.
+     *
+     * @param held the stripes locked
+     */
+    public void unlock(int[] held) {
+        for (int i = held.length - 1; i >= 0; i--) {
+            stripes[held[i]].unlock();
+        }
+    }
+
+    /**
+     * Locks every stripe in ascending order, waiting for each command holding one to finish, and keeping any other
+     * from starting until {@link #unlockAll()}.
+     */
+    public void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    /**
+     * Unlocks the stripes locked by {@link #lockAll()}.
+     */
+    public void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Returns the stripe a key is hashed onto.
+     *
+     * @param key the key
+     * @return the index of the stripe
+     */
+    int stripeOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+}
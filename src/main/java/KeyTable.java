@@ -0,0 +1,280 @@
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * The KeyTable class maps keys to values like a {@link ConcurrentHashMap}, split into a fixed number of segments by
+ * key hash so that the keys can be scanned a few at a time with a cursor that needs no state on the server.
+ * <p>
+ * Each segment is a ConcurrentHashMap of its own, created on the first write to it. Reads and writes go to the
+ * segment of their key and take no lock beyond the bin lock of that map; only the number of keys is shared, kept in
+ * a {@link LongAdder}, so that it can be read at once however many segments there are.
+ * <p>
+ * {@link #scan} works like the SCAN cursor of Redis. The segments are grouped into buckets by the low bits of their
+ * index, as many buckets as it takes for each to hold about one key, so a small table is scanned in few steps. The
+ * cursor runs through the buckets in reverse binary order, as in Redis, which keeps it valid when the number of
+ * buckets changes between calls: a key present from the first call to the last is returned at least once, however
+ * the table grew or shrank meanwhile. Segments themselves never move or split, so the maps resizing underneath does
+ * not matter; a segment is visited whole, without locking it, as its iterator goes.
+ *
+ * @param <V> the type of the values
+ */
+public class KeyTable<V> {
+    static final int SEGMENT_BITS = 14;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    // A scan visits at most this many buckets per key asked for, when it finds them empty
+    private static final int EMPTY_VISITS_PER_KEY = 10;
+
+    private final AtomicReferenceArray<ConcurrentHashMap<String, V>> segments = new AtomicReferenceArray<>(SEGMENTS);
+    private final LongAdder size = new LongAdder();
+
+    private static int segmentOf(String key) {
+        // Fibonacci hashing takes the high bits, leaving the map of the segment the low ones to spread its keys
+        return (key.hashCode() * 0x9E3779B9) >>> (32 - SEGMENT_BITS);
+    }
+
+    private ConcurrentHashMap<String, V> segment(String key) {
+        return segments.get(segmentOf(key));
+    }
+
+    private ConcurrentHashMap<String, V> segmentForWrite(String key) {
+        int i = segmentOf(key);
+        ConcurrentHashMap<String, V> segment = segments.get(i);
+        if (segment == null) {
+            segments.compareAndSet(i, null, new ConcurrentHashMap<>());
+            segment = segments.get(i);
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key the key
+     * @return the value, or null if there is none
+     */
+    public V get(String key) {
+        ConcurrentHashMap<String, V> segment = segment(key);
+        return segment == null ? null : segment.get(key);
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key   the key
+     * @param value the value, not null
+     * @return the value replaced, or null if there was none
+     */
+    public V put(String key, V value) {
+        V old = segmentForWrite(key).put(key, value);
+        if (old == null) {
+            size.increment();
+        }
+        return old;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     * @return the value removed, or null if there was none
+     */
+    public V remove(String key) {
+        ConcurrentHashMap<String, V> segment = segment(key);
+        V old = segment == null ? null : segment.remove(key);
+        if (old != null) {
+            size.decrement();
+        }
+        return old;
+    }
+
+    /**
+     * Removes a key if it has a given value.
+     *
+     * @param key   the key
+     * @param value the value the key must have
+     * @return true if the key was removed
+     */
+    public boolean remove(String key, V value) {
+        ConcurrentHashMap<String, V> segment = segment(key);
+        if (segment != null && segment.remove(key, value)) {
+            size.decrement();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Works out the value of a key from its current one, as {@link ConcurrentHashMap#compute} does, with the bin of
+     * the key locked.
+     *
+     * @param key       the key
+     * @param remapping returns the new value from the current one, either null if there is none or to be
+     * @return the new value, or null if there is none
+     */
+    public V compute(String key, BiFunction<? super String, ? super V, ? extends V> remapping) {
+        Counted<V> counted = new Counted<>(remapping);
+        V value = segmentForWrite(key).compute(key, counted);
+        counted.count(size, value);
+        return value;
+    }
+
+    /**
+     * Works out the value of a key from its current one if it has one, as
+     * {@link ConcurrentHashMap#computeIfPresent} does, with the bin of the key locked.
+     *
+     * @param key       the key
+     * @param remapping returns the new value from the current one, or null to remove the key
+     * @return the new value, or null if there is none
+     */
+    public V computeIfPresent(String key, BiFunction<? super String, ? super V, ? extends V> remapping) {
+        ConcurrentHashMap<String, V> segment = segment(key);
+        if (segment == null) {
+            return null;
+        }
+        Counted<V> counted = new Counted<>(remapping);
+        V value = segment.computeIfPresent(key, counted);
+        counted.count(size, value);
+        return value;
+    }
+
+    /**
+     * Passes a remapping function through, noting whether the key existed before it ran, so that the number of
+     * keys can be kept.
+     */
+    private static final class Counted<V> implements BiFunction<String, V, V> {
+        private final BiFunction<? super String, ? super V, ? extends V> remapping;
+        private boolean ran;
+        private boolean existed;
+
+        Counted(BiFunction<? super String, ? super V, ? extends V> remapping) {
+            this.remapping = remapping;
+        }
+
+        @Override
+        public V apply(String key, V current) {
+            ran = true;
+            existed = current != null;
+            return remapping.apply(key, current);
+        }
+
+        void count(LongAdder size, V value) {
+            if (ran && !existed && value != null) {
+                size.increment();
+            } else if (ran && existed && value == null) {
+                size.decrement();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys, at once.
+     *
+     * @return the number of keys
+     */
+    public long size() {
+        return size.sum();
+    }
+
+    /**
+     * Visits the keys of the next few buckets from a cursor, stopping once it has visited {@code count} keys, or
+     * ten times as many buckets without finding any. A bucket is always visited whole.
+     *
+     * @param cursor  where to start: 0 at first, then the cursor the previous call returned
+     * @param count   the number of keys after which to stop
+     * @param visitor receives each key visited, with its value
+     * @return the cursor to continue from, or 0 once every bucket has been visited
+     */
+    public long scan(long cursor, int count, BiConsumer<String, V> visitor) {
+        // As many buckets as there are keys, rounded up to a power of two
+        long keys = size.sum();
+        int bits = keys <= 1 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(keys - 1), SEGMENT_BITS);
+        int mask = (1 << bits) - 1;
+        int v = (int) cursor & (SEGMENTS - 1);
+        long maxEmptyVisits = (long) Math.max(count, 1) * EMPTY_VISITS_PER_KEY;
+        int[] visited = new int[1];
+        do {
+            int before = visited[0];
+            for (int i = v & mask; i < SEGMENTS; i += mask + 1) {
+                ConcurrentHashMap<String, V> segment = segments.get(i);
+                if (segment != null) {
+                    segment.forEach((key, value) -> {
+                        visited[0]++;
+                        visitor.accept(key, value);
+                    });
+                }
+            }
+            if (visited[0] == before) {
+                maxEmptyVisits--;
+            }
+            // Increment the reversed cursor, as Redis does, so that growing or shrinking never skips a bucket
+            v |= ~mask;
+            v = Integer.reverse(v);
+            v++;
+            v = Integer.reverse(v);
+        } while (v != 0 && visited[0] < count && maxEmptyVisits > 0);
+        return v & (SEGMENTS - 1);
+    }
+
+    /**
+     * Returns an iterator over the keys and values, weakly consistent as those of ConcurrentHashMap are: every key
+     * present from start to end is visited once, and keys added or removed meanwhile may or may not be.
+     *
+     * @return the iterator
+     */
+    public Iterator<Map.Entry<String, V>> iterator() {
+        return new Iterator<>() {
+            private int next;
+            private Iterator<Map.Entry<String, V>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (next == SEGMENTS) {
+                        return false;
+                    }
+                    ConcurrentHashMap<String, V> segment = segments.get(next++);
+                    if (segment != null) {
+                        current = segment.entrySet().iterator();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<String, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Returns the keys, iterated as {@link #iterator()} does.
+     *
+     * @return the keys
+     */
+    public Iterable<String> keys() {
+        return () -> new Iterator<>() {
+            private final Iterator<Map.Entry<String, V>> entries = iterator();
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return entries.next().getKey();
+            }
+        };
+    }
+}
@@ -1,24 +1,424 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * The KeyValueHandler class provides a thread-safe in-memory key-value store with optional time-based expiration.
+ * <p>
+ * Each key maps to a single entry holding both its value and its expiry time, so the two are always replaced
+ * together. Reads go straight to the {@link KeyTable}, a set of ConcurrentHashMaps, without taking any lock;
+ * writes only contend with writes to keys that hash to the same bin.
+ * <p>
+ * Expired keys are removed lazily when read, and actively by an {@link ExpiryWheel} that every key set with an
+ * expiry is scheduled on. The wheel is advanced by {@link #activeExpireCycle()}, which runs on a background thread
+ * once {@link #startActiveExpiry()} is called, so keys that are never read again do not stay in memory.
+ * <p>
+ * Values are kept as raw bytes, either in a byte array per value or, when constructed for off-heap storage, in
+ * chunks of direct memory handed out by a {@link SlabAllocator}. Strings are converted as ISO-8859-1, matching
+ * {@link InputHandler} and {@link OutputHandler}, so every value is stored and returned byte for byte. Keys stay
+ * Strings, which for ISO-8859-1 text are already a compact byte array with a cached hash code.
+ * <p>
+ * The memory taken by each entry is estimated from the length of its key and value. Once a maximum is set with
+ * {@link #setMaxMemory(long, EvictionPolicy)}, writes that find the store over it first evict keys chosen by the
+ * {@link EvictionPolicy}, or fail if nothing can be evicted. Candidates are sampled a few at a time from a cursor
+ * that sweeps the key space, so eviction is approximate but never scans the whole store. Reads only record when
+ * and how often an entry is accessed, and only while a policy that looks at it is in force.
+ * <p>
+ * {@link #snapshot(EntryVisitor)} visits the store as it was at a single point in time while writes carry on.
+ * While it runs, a write first hands the entry it replaces or removes to the snapshot, unless the snapshot has
+ * already visited that key; the snapshot then visits those preserved entries instead of the current ones. Writes
+ * only pay for this while a snapshot is running.
+ * <p>
+ * Besides strings, a key can hold a {@link CollectionValue}: a hash, list, set or sorted set. These are changed in
+ * place through {@link #update}, and read through {@link #read}, with the map bin of the key locked, so each command
+ * sees and leaves a collection whole. While a snapshot runs, the first change to a collection the snapshot has not
+ * visited yet is made to a copy, leaving the original to the snapshot. Collections are always kept on the heap.
+ * <p>
+ * Keys a connection WATCHes get a version counter, registered by {@link #watch(String)}, which every change to the
+ * key bumps: a write, a deletion, an expiry or an eviction. A transaction compares the versions it was handed with
+ * {@link #version(String)} to learn whether its keys were touched, without keeping a copy of any value. Keys nobody
+ * watches have no counter, and writes only pay for a look into an empty map. The same changes are also handed to
+ * the listener set by {@link #setChangeListener(Consumer)}, which invalidates the keys clients track.
+ * <p>
+ * In cluster mode, {@link #indexSlots()} makes the store also keep the keys of each {@link Cluster} hash slot, so
+ * that the keys of a slot being moved to another node can be listed without scanning the whole store. A key is
+ * added to or removed from its slot with its map bin locked, so the index follows the changes to a key in the order
+ * they were made.
  */
 public class KeyValueHandler {
-    // Concurrent map to store key-value pairs
-    private Map<String, String> map = new ConcurrentHashMap<>();
-    // Concurrent map to store expiration times for keys
-    private Map<String, Long> expiry = new ConcurrentHashMap<>();
+    // Expiry time of entries that never expire
+    private static final long NO_EXPIRY = Long.MAX_VALUE;
+    // Rough cost of an entry besides the bytes of its key and value: map node, entry, key String and value array
+    private static final int ENTRY_OVERHEAD = 96;
+    // Logarithmic access counter as used by Redis' LFU policy: new keys start at 5 and decay once per minute idle
+    private static final int LFU_INIT_VAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_SECONDS = 60;
+    // Entries looked at per sample before giving up on finding a key the policy may evict
+    private static final int MAX_SAMPLE_SCAN = 64;
+    // Keys chosen for eviction but locked by a running command that one write passes over before giving up
+    private static final int MAX_BUSY_VICTIMS = 16;
+    private static final String OOM_ERROR = "OOM command not allowed when used memory > 'maxmemory'.";
+    private static final String WRONGTYPE_ERROR = "WRONGTYPE Operation against a key holding the wrong kind of value";
+    private static final long EPOCH = System.currentTimeMillis();
+
+    /**
+     * The ways to choose which keys to evict once the store is over its maximum memory.
+     */
+    public enum EvictionPolicy {
+        NOEVICTION("noeviction"),
+        ALLKEYS_LRU("allkeys-lru"),
+        ALLKEYS_LFU("allkeys-lfu"),
+        VOLATILE_TTL("volatile-ttl");
+
+        private final String configName;
+
+        EvictionPolicy(String configName) {
+            this.configName = configName;
+        }
+
+        /**
+         * Returns the name of this policy as used in configuration, e.g. {@code allkeys-lru}.
+         *
+         * @return the configuration name
+         */
+        public String configName() {
+            return configName;
+        }
+
+        /**
+         * Looks up a policy by its configuration name, ignoring case.
+         *
+         * @param name the configuration name
+         * @return the policy
+         * @throws IllegalArgumentException if there is no policy of that name
+         */
+        public static EvictionPolicy fromConfigName(String name) {
+            for (EvictionPolicy policy : values()) {
+                if (policy.configName.equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown maxmemory policy: " + name);
+        }
+    }
+
+    // Concurrent map to store the entry of each key, in segments that can be scanned with a cursor
+    private final KeyTable<Entry> map = new KeyTable<>();
+    // Off-heap storage for values, or null to keep them on the heap
+    private final SlabAllocator slabs;
+    private final ExpiryWheel expiryWheel = new ExpiryWheel(this::expireIfDue);
+    private final LongAdder expiredKeys = new LongAdder();
+    private final LongAdder activelyExpiredKeys = new LongAdder();
+    private final LongAdder usedMemory = new LongAdder();
+    private final LongAdder evictedKeys = new LongAdder();
+    // Lookups of keys by commands that read them, as counted by Redis
+    private final LongAdder keyspaceHits = new LongAdder();
+    private final LongAdder keyspaceMisses = new LongAdder();
+    private volatile long maxMemory;
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+    private volatile int evictionSamples = 5;
+    private volatile Consumer<String> evictionListener = key -> {
+    };
+    // Held on a key while it is evicted, or null
+    private volatile KeyLocks evictionLocks;
+    private volatile Consumer<String> changeListener = key -> {
+    };
+    // Guards the sampling cursor; only taken by writes that find the store over its maximum
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Entry>> sampler;
+    // Version counters of the keys being watched, with the number of connections watching each
+    private final ConcurrentHashMap<String, WatchedKey> watched = new ConcurrentHashMap<>();
+    // The snapshot in progress, if any
+    private volatile Snapshot snapshot;
+    // The keys of each cluster hash slot, or null unless indexSlots() was called
+    private volatile Set<String>[] slotKeys;
+    // A lock rather than a monitor, so that a snapshot on a virtual thread does not pin its carrier while it waits
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    /**
+     * Receives the entries of the store, e.g. for writing them to a snapshot file or loading them from one.
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+        /**
+         * Receives a single entry.
+         *
+         * @param key       the key
+         * @param value     the value; must not be modified
+         * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+         * @throws IOException if an I/O error occurs
+         */
+        void visit(String key, byte[] value, long expiresAt) throws IOException;
+
+        /**
+         * Receives a single entry holding a collection. Visitors that only deal with strings need not implement it.
+         *
+         * @param key       the key
+         * @param value     the collection; must not be modified
+         * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+         * @throws IOException if an I/O error occurs, or if the visitor does not deal with collections
+         */
+        default void visit(String key, CollectionValue value, long expiresAt) throws IOException {
+            throw new IOException("Cannot handle a value of type " + value.type());
+        }
+    }
+
+    /**
+     * Receives the keys of the store, one at a time, e.g. for listing them to a client.
+     */
+    @FunctionalInterface
+    public interface KeyVisitor {
+        /**
+         * Receives a single key.
+         *
+         * @param key the key
+         * @throws IOException if an I/O error occurs
+         */
+        void visit(String key) throws IOException;
+    }
+
+    /**
+     * A value together with the time in milliseconds after which it expires.
+     * The access fields are updated without synchronization and are only ever used as hints for eviction.
+     */
+    private abstract static class Entry {
+        final long expiresAt;
+        // Seconds since EPOCH of the last access
+        int accessClock;
+        // Logarithmic access counter for LFU
+        int frequency = LFU_INIT_VAL;
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+            this.accessClock = clock();
+        }
+
+        abstract int length();
+
+        boolean isExpired() {
+            // Only entries that can expire pay for reading the clock
+            return expiresAt != NO_EXPIRY && System.currentTimeMillis() > expiresAt;
+        }
+
+        /**
+         * Returns the access counter after decaying it for the minutes the entry has been idle.
+         */
+        int decayedFrequency(int now) {
+            int periods = (now - accessClock) / LFU_DECAY_SECONDS;
+            return Math.max(frequency - periods, 0);
+        }
+
+        void touch(EvictionPolicy policy) {
+            int now = clock();
+            if (policy == EvictionPolicy.ALLKEYS_LFU) {
+                int counter = decayedFrequency(now);
+                // The more often a key was accessed, the less likely another access is to count
+                if (counter < 255 && ThreadLocalRandom.current().nextDouble()
+                        < 1.0 / (Math.max(counter - LFU_INIT_VAL, 0) * LFU_LOG_FACTOR + 1)) {
+                    counter++;
+                }
+                if (counter != frequency) {
+                    frequency = counter;
+                }
+            }
+            // Skip the store when nothing changed, so hot keys read by many cores stay in their caches
+            if (accessClock != now) {
+                accessClock = now;
+            }
+        }
+    }
+
+    /**
+     * A value kept on the heap in an array of its own, which is written to clients as it is.
+     */
+    private static final class HeapEntry extends Entry {
+        final byte[] value;
+
+        HeapEntry(byte[] value, long expiresAt) {
+            super(expiresAt);
+            this.value = value;
+        }
+
+        @Override
+        int length() {
+            return value.length;
+        }
+    }
+
+    /**
+     * A value kept off the heap in a chunk of the slab allocator.
+     */
+    private static final class OffHeapEntry extends Entry {
+        final long handle;
+        final int length;
+
+        OffHeapEntry(long handle, int length, long expiresAt) {
+            super(expiresAt);
+            this.handle = handle;
+            this.length = length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+    }
+
+    /**
+     * A collection, changed in place with the map bin of its key locked.
+     */
+    private static final class ObjectEntry extends Entry {
+        final CollectionValue value;
+
+        ObjectEntry(CollectionValue value, long expiresAt) {
+            super(expiresAt);
+            this.value = value;
+        }
+
+        @Override
+        int length() {
+            return (int) Math.min(value.memoryUsage(), Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Constructs an empty store keeping its values on the heap.
+     */
+    public KeyValueHandler() {
+        this(false);
+    }
+
+    /**
+     * Constructs an empty store.
+     *
+     * @param offHeap whether to keep values off the heap, in memory allocated by a {@link SlabAllocator}
+     */
+    public KeyValueHandler(boolean offHeap) {
+        this.slabs = offHeap ? new SlabAllocator() : null;
+    }
+
+    /**
+     * The state of a snapshot in progress. For each key it holds the entry the key had when the snapshot started,
+     * ABSENT if it had none, or VISITED once the snapshot has dealt with it.
+     */
+    private static final class Snapshot {
+        static final Object ABSENT = new Object();
+        static final Object VISITED = new Object();
+
+        final ConcurrentHashMap<String, Object> keys = new ConcurrentHashMap<>();
+        // Writers preserve entries under the read lock; the write lock keeps them out once the snapshot is done
+        final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+        boolean closed;
+
+        /**
+         * Records the entry a key had before its first change since the snapshot started.
+         * Called by writers with the map bin of the key locked.
+         *
+         * @return true if the snapshot now owns the entry, which must then not be released by the writer
+         */
+        boolean preserve(String key, Entry old) {
+            closeLock.readLock().lock();
+            try {
+                return !closed && keys.putIfAbsent(key, old == null ? ABSENT : old) == null && old != null;
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * The outcome of a change made while a snapshot was running, or of a rewrite.
+     */
+    private static final class Change {
+        Entry old;
+        boolean preserved;
+        // Filled in when the snapshot itself visits a key: the bytes of a string, or a copy of a collection.
+        // A rewrite puts the bytes it replaced here.
+        Object value;
+        long expiresAt;
+    }
+
+    /**
+     * The version counter of a watched key.
+     */
+    private static final class WatchedKey {
+        final AtomicLong version = new AtomicLong();
+        // Changed inside compute() on the map only
+        int watchers;
+    }
+
+    /**
+     * The outcome of a change made to a collection.
+     */
+    private static final class Update<R> {
+        R result;
+        boolean changed;
+        long memoryBefore;
+        long memoryAfter;
+    }
+
+    private static int clock() {
+        return (int) ((System.currentTimeMillis() - EPOCH) / 1000);
+    }
+
+    private static long memoryOf(String key, Entry entry) {
+        return ENTRY_OVERHEAD + key.length() + entry.length();
+    }
+
+    private Entry newEntry(byte[] value, long expiresAt) {
+        if (slabs == null) {
+            return new HeapEntry(value, expiresAt);
+        }
+        return new OffHeapEntry(slabs.store(value), value.length, expiresAt);
+    }
+
+    /**
+     * Frees the off-heap memory of an entry that has been taken out of the map.
+     */
+    private void release(Entry entry) {
+        if (entry instanceof OffHeapEntry offHeap) {
+            slabs.free(offHeap.handle, offHeap.length);
+        }
+    }
 
     /**
      * Sets a key-value pair in the store.
      *
      * @param key   the key to be set
      * @param value the value to be associated with the key
+     * @throws CommandException if the store is over its maximum memory and no key can be evicted
      */
-    public synchronized void set(String key, String value) {
-        map.put(key, value);
-        expiry.remove(key);
+    public void set(String key, String value) {
+        set(key, value.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Sets a key to a value given as raw bytes. The store takes ownership of the array.
+     *
+     * @param key   the key to be set
+     * @param value the value to be associated with the key
+     * @throws CommandException if the store is over its maximum memory and no key can be evicted
+     */
+    public void set(String key, byte[] value) {
+        evictIfNeeded();
+        put(key, newEntry(value, NO_EXPIRY));
     }
 
     /**
@@ -27,10 +427,25 @@ public class KeyValueHandler {
      * @param key          the key to be set
      * @param value        the value to be associated with the key
      * @param milliseconds the time in milliseconds after which the key-value pair should expire
+     * @throws CommandException if the store is over its maximum memory and no key can be evicted
+     */
+    public void set(String key, String value, long milliseconds) {
+        set(key, value.getBytes(StandardCharsets.ISO_8859_1), milliseconds);
+    }
+
+    /**
+     * Sets a key to a value given as raw bytes, with an expiration time. The store takes ownership of the array.
+     *
+     * @param key          the key to be set
+     * @param value        the value to be associated with the key
+     * @param milliseconds the time in milliseconds after which the key-value pair should expire
+     * @throws CommandException if the store is over its maximum memory and no key can be evicted
      */
-    public synchronized void set(String key, String value, int milliseconds) {
-        map.put(key, value);
-        expiry.put(key, System.currentTimeMillis() + milliseconds);
+    public void set(String key, byte[] value, long milliseconds) {
+        evictIfNeeded();
+        long expiresAt = System.currentTimeMillis() + milliseconds;
+        put(key, newEntry(value, expiresAt));
+        expiryWheel.schedule(key, expiresAt);
     }
 
     /**
@@ -40,22 +455,1172 @@ public class KeyValueHandler {
      * @param key the key whose associated value is to be returned
      * @return the value associated with the specified key, or null if the key does not exist or has expired
      */
-    public synchronized String get(String key) {
-        deleteIfExpired(key);
-        return map.get(key);
+    public String get(String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, StandardCharsets.ISO_8859_1);
     }
 
     /**
-     * Checks if a key has expired and removes it from the store if it has.
+     * Retrieves the raw bytes of the value associated with the specified key.
+     * For values kept on the heap this is the stored array itself, which must not be modified.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value associated with the specified key, or null if the key does not exist or has expired
+     */
+    public byte[] getBytes(String key) {
+        return valueOf(key, false);
+    }
+
+    /**
+     * Retrieves the values of several keys in one pass, as MGET does. Keys that do not hold a string count as
+     * missing rather than failing the whole batch.
+     *
+     * @param keys the keys
+     * @param from the index of the first key
+     * @return the values in the order of the keys, with null for each missing key; must not be modified
+     */
+    public byte[][] getAll(String[] keys, int from) {
+        byte[][] values = new byte[keys.length - from][];
+        for (int i = from; i < keys.length; i++) {
+            values[i - from] = valueOf(keys[i], true);
+        }
+        return values;
+    }
+
+    /**
+     * Writes the value of a key to a reply as a bulk string, or a null bulk string if the key does not exist, as GET
+     * does. Off-heap values are copied from their chunk straight into the reply buffer, without an array of their
+     * own on the heap.
+     *
+     * @param key the key
+     * @param out the reply
+     * @throws IOException      if an I/O error occurs
+     * @throws CommandException if the key holds a collection
+     */
+    public void writeValue(String key, OutputHandler out) throws IOException {
+        while (true) {
+            Entry entry = stringEntry(key, false);
+            if (entry == null) {
+                out.writeNullBulkString();
+                return;
+            }
+            if (entry instanceof HeapEntry heap) {
+                keyspaceHits.increment();
+                out.writeBulkString(heap.value);
+                return;
+            }
+            OffHeapEntry offHeap = (OffHeapEntry) entry;
+            // Checked before the copy is kept, for the same reason as in valueOf()
+            if (out.writeBulkString(offHeap.length, (dst, offset) ->
+                    slabs.read(offHeap.handle, offHeap.length, dst, offset) && map.get(key) == entry)) {
+                keyspaceHits.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes of the value of a key, or null if the key does not exist or, if asked to, holds a
+     * collection.
+     */
+    private byte[] valueOf(String key, boolean collectionAsMissing) {
+        while (true) {
+            Entry entry = stringEntry(key, collectionAsMissing);
+            if (entry == null) {
+                return null;
+            }
+            byte[] value = bytesOf(entry);
+            // A chunk is only freed after its entry has left the map, so if the entry is still there, the copy
+            // was made before the chunk could be reused; otherwise read the key again
+            if (value != null && (entry instanceof HeapEntry || map.get(key) == entry)) {
+                keyspaceHits.increment();
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Returns the live entry of a key holding a string, counting a miss if there is none, and touching it for
+     * eviction. A hit is left for the caller to count once it has the value.
+     *
+     * @throws CommandException if the key holds a collection, unless it is to count as missing
+     */
+    private Entry stringEntry(String key, boolean collectionAsMissing) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            keyspaceMisses.increment();
+            return null;
+        }
+        if (entry.isExpired()) {
+            deleteIfExpired(key, entry);
+            keyspaceMisses.increment();
+            return null;
+        }
+        EvictionPolicy policy = evictionPolicy;
+        if (policy == EvictionPolicy.ALLKEYS_LRU || policy == EvictionPolicy.ALLKEYS_LFU) {
+            entry.touch(policy);
+        }
+        if (entry instanceof ObjectEntry) {
+            keyspaceHits.increment();
+            if (collectionAsMissing) {
+                return null;
+            }
+            throw new CommandException(WRONGTYPE_ERROR);
+        }
+        return entry;
+    }
+
+    /**
+     * Sets several keys in one pass, as MSET does. The store is brought within its maximum memory once for the
+     * whole batch rather than once per key.
+     *
+     * @param keysAndValues the keys and values, alternating
+     * @param from          the index of the first key
+     * @throws CommandException if the store is over its maximum memory and no key can be evicted
+     */
+    public void setAll(String[] keysAndValues, int from) {
+        evictIfNeeded();
+        for (int i = from; i + 1 < keysAndValues.length; i += 2) {
+            put(keysAndValues[i], newEntry(keysAndValues[i + 1].getBytes(StandardCharsets.ISO_8859_1), NO_EXPIRY));
+        }
+    }
+
+    /**
+     * Removes several keys in one pass, as DEL does.
+     *
+     * @param keys the keys
+     * @param from the index of the first key
+     * @return the number of keys that existed and had not expired
+     */
+    public int deleteAll(String[] keys, int from) {
+        int deleted = 0;
+        for (int i = from; i < keys.length; i++) {
+            if (delete(keys[i])) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Counts how many of the given keys exist, as EXISTS does; a key given twice is counted twice.
+     *
+     * @param keys the keys
+     * @param from the index of the first key
+     * @return the number of keys that exist
+     */
+    public int countExisting(String[] keys, int from) {
+        int count = 0;
+        for (int i = from; i < keys.length; i++) {
+            if (liveEntry(keys[i]) != null) {
+                keyspaceHits.increment();
+                count++;
+            } else {
+                keyspaceMisses.increment();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether a key exists, without counting it as a keyspace hit or miss, as the server does when it
+     * checks where a command is to run rather than running it.
+     *
+     * @param key the key
+     * @return true if the key exists and has not expired
+     */
+    public boolean exists(String key) {
+        return liveEntry(key) != null;
+    }
+
+    /**
+     * Adds to the integer held by a key, starting from 0 if the key does not exist, as INCRBY does. The expiry of
+     * the key is kept.
+     *
+     * @param key   the key
+     * @param delta the amount to add, negative to subtract
+     * @return the new value
+     * @throws CommandException if the value is not an integer, the result overflows, or the key holds a collection
+     */
+    public long incrementBy(String key, long delta) {
+        long[] result = new long[1];
+        rewrite(key, true, value -> {
+            long current = 0;
+            if (value != null) {
+                String s = new String(value, StandardCharsets.ISO_8859_1);
+                try {
+                    // Long.parseLong also takes a leading plus sign, which Redis does not
+                    if (s.startsWith("+")) {
+                        throw new NumberFormatException(s);
+                    }
+                    current = Long.parseLong(s);
+                } catch (NumberFormatException e) {
+                    throw new CommandException("ERR value is not an integer or out of range");
+                }
+            }
+            try {
+                result[0] = Math.addExact(current, delta);
+            } catch (ArithmeticException e) {
+                throw new CommandException("ERR increment or decrement would overflow");
+            }
+            return Long.toString(result[0]).getBytes(StandardCharsets.ISO_8859_1);
+        });
+        return result[0];
+    }
+
+    /**
+     * Appends bytes to the value of a key, creating it if it does not exist, as APPEND does. The expiry of the key
+     * is kept.
+     *
+     * @param key    the key
+     * @param suffix the bytes to append
+     * @return the length of the value afterwards
+     * @throws CommandException if the key holds a collection, or if the store is over its maximum memory and no key
+     *                          can be evicted
+     */
+    public int append(String key, byte[] suffix) {
+        byte[] old = rewrite(key, true, value -> {
+            if (value == null) {
+                return suffix;
+            }
+            byte[] appended = Arrays.copyOf(value, value.length + suffix.length);
+            System.arraycopy(suffix, 0, appended, value.length, suffix.length);
+            return appended;
+        });
+        return (old == null ? 0 : old.length) + suffix.length;
+    }
+
+    /**
+     * Sets a key and returns the value it had, as GETSET does. The key loses any expiry it had.
+     *
+     * @param key   the key
+     * @param value the new value; the store takes ownership of the array
+     * @return the old value, or null if the key did not exist
+     * @throws CommandException if the key holds a collection, or if the store is over its maximum memory and no key
+     *                          can be evicted
+     */
+    public byte[] getAndSet(String key, byte[] value) {
+        return rewrite(key, false, old -> value);
+    }
+
+    /**
+     * Replaces the string value of a key by one worked out from it, with the map bin of the key locked, so that no
+     * other write to the key comes in between reading and replacing.
+     *
+     * @param key        the key
+     * @param keepExpiry whether the new value keeps the expiry of the old one
+     * @param change     works out the new value from the old one, or from null if the key does not exist; may
+     *                   throw a CommandException to leave the key as it is
+     * @return the old value, or null if the key did not exist
+     */
+    private byte[] rewrite(String key, boolean keepExpiry, UnaryOperator<byte[]> change) {
+        evictIfNeeded();
+        liveEntry(key);
+        Snapshot s = snapshot;
+        Set<String>[] slots = slotKeys;
+        Change c = new Change();
+        Entry[] replacement = new Entry[1];
+        map.compute(key, (k, current) -> {
+            if (current instanceof ObjectEntry) {
+                throw new CommandException(WRONGTYPE_ERROR);
+            }
+            boolean live = current != null && !current.isExpired();
+            // The bin is locked, so an off-heap chunk cannot be freed while it is read
+            byte[] old = live ? bytesOf(current) : null;
+            replacement[0] = newEntry(change.apply(old), live && keepExpiry ? current.expiresAt : NO_EXPIRY);
+            c.old = current;
+            c.value = old;
+            c.preserved = s != null && s.preserve(k, current);
+            if (slots != null) {
+                indexSlot(slots, k, current, replacement[0]);
+            }
+            return replacement[0];
+        });
+        replaced(key, c.old, replacement[0], c.preserved);
+        return (byte[]) c.value;
+    }
+
+    /**
+     * Removes a key from the store.
+     *
+     * @param key the key to remove
+     * @return true if the key existed and had not expired
+     */
+    public boolean delete(String key) {
+        Entry entry = replace(key, null, null);
+        return entry != null && !entry.isExpired();
+    }
+
+    /**
+     * Removes an expired entry from the store, unless the key has been set again in the meantime.
      * This method is called internally by the get method to ensure expired keys are cleaned up.
      *
-     * @param key the key to check for expiration
+     * @param key   the key to remove
+     * @param entry the expired entry that was read for the key
+     */
+    private void deleteIfExpired(String key, Entry entry) {
+        if (remove(key, entry)) {
+            expiredKeys.increment();
+        }
+    }
+
+    /**
+     * Removes a key the expiry wheel found due, provided it still has the expiry time it was scheduled with.
+     *
+     * @param key       the key to check
+     * @param expiresAt the expiry time the key was scheduled with
+     * @return false if the key has not expired yet and needs to be checked again later
+     */
+    private boolean expireIfDue(String key, long expiresAt) {
+        Entry entry = map.get(key);
+        if (entry == null || entry.expiresAt != expiresAt) {
+            // Deleted or set again since it was scheduled
+            return true;
+        }
+        if (!entry.isExpired()) {
+            return false;
+        }
+        if (remove(key, entry)) {
+            expiredKeys.increment();
+            activelyExpiredKeys.increment();
+        }
+        return true;
+    }
+
+    private void put(String key, Entry entry) {
+        replace(key, null, entry);
+    }
+
+    private boolean remove(String key, Entry entry) {
+        return replace(key, entry, null) != null;
+    }
+
+    /**
+     * Changes the entry of a key, keeping the memory accounting up to date, handing the replaced entry to a running
+     * snapshot if it needs it, and otherwise freeing its off-heap memory.
+     *
+     * @param key         the key to change
+     * @param expected    the entry the key must have for it to be removed, or null to change it regardless
+     * @param replacement the new entry, or null to remove the key; must be null if an entry is expected
+     * @return the replaced entry, or null if the key had none or not the expected one
+     */
+    private Entry replace(String key, Entry expected, Entry replacement) {
+        Snapshot s = snapshot;
+        Set<String>[] slots = slotKeys;
+        Entry old;
+        boolean preserved = false;
+        if (s == null && slots == null) {
+            if (expected != null) {
+                old = map.remove(key, expected) ? expected : null;
+            } else if (replacement == null) {
+                old = map.remove(key);
+            } else {
+                old = map.put(key, replacement);
+            }
+        } else {
+            Change change = new Change();
+            map.compute(key, (k, current) -> {
+                if (expected != null && current != expected) {
+                    return current;
+                }
+                change.old = current;
+                change.preserved = s != null && s.preserve(k, current);
+                if (slots != null) {
+                    indexSlot(slots, k, current, replacement);
+                }
+                return replacement;
+            });
+            old = change.old;
+            preserved = change.preserved;
+        }
+        if (old != null || replacement != null) {
+            replaced(key, old, replacement, preserved);
+        }
+        return old;
+    }
+
+    /**
+     * Adds a key to or removes it from the index of its slot, if it was created or removed. Called with the map bin
+     * of the key locked.
      */
-    private void deleteIfExpired(String key) {
-        Long expiryTime = expiry.get(key);
-        if (expiryTime != null && System.currentTimeMillis() > expiryTime) {
-            map.remove(key);
-            expiry.remove(key);
+    private static void indexSlot(Set<String>[] slots, String key, Entry old, Entry replacement) {
+        if (old == null && replacement != null) {
+            slots[Cluster.keySlot(key)].add(key);
+        } else if (old != null && replacement == null) {
+            slots[Cluster.keySlot(key)].remove(key);
         }
     }
+
+    /**
+     * Accounts for an entry having been replaced: updates the memory used, bumps the version of the key if it is
+     * watched, tells the change listener, and frees the old entry's off-heap memory unless a snapshot has kept it.
+     */
+    private void replaced(String key, Entry old, Entry replacement, boolean preserved) {
+        touchWatched(key);
+        changeListener.accept(key);
+        long added = replacement == null ? 0 : memoryOf(key, replacement);
+        long removed = old == null ? 0 : memoryOf(key, old);
+        if (added != removed) {
+            usedMemory.add(added - removed);
+        }
+        if (old != null && !preserved) {
+            release(old);
+        }
+    }
+
+    /**
+     * Restores an entry read from a snapshot. Entries that have expired in the meantime are skipped.
+     *
+     * @param key       the key
+     * @param value     the value; the store takes ownership of the array
+     * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+     */
+    public void restore(String key, byte[] value, long expiresAt) {
+        if (expiresAt < 0) {
+            put(key, newEntry(value, NO_EXPIRY));
+        } else if (expiresAt >= System.currentTimeMillis()) {
+            put(key, newEntry(value, expiresAt));
+            expiryWheel.schedule(key, expiresAt);
+        }
+    }
+
+    /**
+     * Restores a collection read from a snapshot. Collections that have expired in the meantime are skipped.
+     *
+     * @param key       the key
+     * @param value     the collection; the store takes ownership of it
+     * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+     */
+    public void restore(String key, CollectionValue value, long expiresAt) {
+        if (expiresAt < 0) {
+            put(key, new ObjectEntry(value, NO_EXPIRY));
+        } else if (expiresAt >= System.currentTimeMillis()) {
+            put(key, new ObjectEntry(value, expiresAt));
+            expiryWheel.schedule(key, expiresAt);
+        }
+    }
+
+    /**
+     * Returns the type of the value of a key, as reported by the TYPE command.
+     *
+     * @param key the key
+     * @return {@code string}, the type of the collection, or {@code none} if the key does not exist
+     */
+    public String type(String key) {
+        Entry entry = liveEntry(key);
+        return entry == null ? "none" : typeOf(entry);
+    }
+
+    private static String typeOf(Entry entry) {
+        return entry instanceof ObjectEntry object ? object.value.type() : "string";
+    }
+
+    /**
+     * Returns the encoding of the value of a key, as reported by OBJECT ENCODING.
+     *
+     * @param key the key
+     * @return {@code raw} for a string, the encoding of a collection, or null if the key does not exist
+     */
+    public String encoding(String key) {
+        Entry entry = liveEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry instanceof ObjectEntry) {
+            // Read with the bin locked, since a change may be converting the collection
+            return read(key, CollectionValue.class, CollectionValue::encoding);
+        }
+        return "raw";
+    }
+
+    /**
+     * Reads the collection held by a key, with the map bin of the key locked so that no change is made meanwhile.
+     *
+     * @param key    the key
+     * @param type   the kind of collection the key must hold
+     * @param reader reads the collection and returns the result; must not change it
+     * @return the result of the reader, or null if the key does not exist
+     * @throws CommandException if the key holds a value of another type
+     */
+    public <T extends CollectionValue, R> R read(String key, Class<T> type, Function<T, R> reader) {
+        if (liveEntry(key) == null) {
+            keyspaceMisses.increment();
+            return null;
+        }
+        keyspaceHits.increment();
+        Update<R> u = new Update<>();
+        map.computeIfPresent(key, (k, current) -> {
+            u.result = reader.apply(collectionOf(current, type));
+            EvictionPolicy policy = evictionPolicy;
+            if (policy == EvictionPolicy.ALLKEYS_LRU || policy == EvictionPolicy.ALLKEYS_LFU) {
+                current.touch(policy);
+            }
+            return current;
+        });
+        return u.result;
+    }
+
+    /**
+     * Changes the collection held by a key in place, with the map bin of the key locked, creating it first if
+     * asked to. A collection left empty is removed, as Redis does. The writer must not fail once it has changed
+     * anything, so arguments are to be checked before.
+     *
+     * @param key     the key
+     * @param type    the kind of collection the key must hold
+     * @param creator creates the collection if the key does not exist, or null to leave a missing key alone
+     * @param writer  changes the collection and returns the result
+     * @return the result of the writer, or null if the key does not exist and there is no creator
+     * @throws CommandException if the key holds a value of another type, or if the store is over its maximum
+     *                          memory and no key can be evicted
+     */
+    public <T extends CollectionValue, R> R update(String key, Class<T> type, Supplier<T> creator,
+                                                   Function<T, R> writer) {
+        return update(key, type, creator, writer, result -> true);
+    }
+
+    /**
+     * Changes the collection held by a key in place like {@link #update(String, Class, Supplier, Function)}, for a
+     * writer that may leave the collection as it was, e.g. one removing members that may be missing. Watchers of
+     * the key and the change listener are only told when the key was created or removed, or when the result of the
+     * writer says that an existing collection was changed.
+     *
+     * @param key     the key
+     * @param type    the kind of collection the key must hold
+     * @param creator creates the collection if the key does not exist, or null to leave a missing key alone
+     * @param writer  changes the collection and returns the result
+     * @param changed tells from the result of the writer whether it changed an existing collection
+     * @return the result of the writer, or null if the key does not exist and there is no creator
+     * @throws CommandException if the key holds a value of another type, or if the store is over its maximum
+     *                          memory and no key can be evicted
+     */
+    public <T extends CollectionValue, R> R update(String key, Class<T> type, Supplier<T> creator,
+                                                   Function<T, R> writer, Predicate<? super R> changed) {
+        if (creator != null) {
+            evictIfNeeded();
+        }
+        liveEntry(key);
+        Snapshot s = snapshot;
+        Set<String>[] slots = slotKeys;
+        Update<R> u = new Update<>();
+        map.compute(key, (k, current) -> {
+            Entry entry = current;
+            if (current == null) {
+                if (creator == null) {
+                    return null;
+                }
+                if (s != null) {
+                    s.preserve(k, null);
+                }
+                entry = new ObjectEntry(creator.get(), NO_EXPIRY);
+            } else {
+                CollectionValue value = collectionOf(current, type);
+                u.memoryBefore = memoryOf(k, current);
+                if (s != null && s.preserve(k, current)) {
+                    // The snapshot keeps the collection as it is; carry on with a copy
+                    entry = new ObjectEntry(value.copy(), current.expiresAt);
+                }
+            }
+            CollectionValue value = ((ObjectEntry) entry).value;
+            u.result = writer.apply(type.cast(value));
+            Entry result = value.size() == 0 ? null : entry;
+            u.changed = current == null ? result != null : result == null || changed.test(u.result);
+            if (slots != null) {
+                indexSlot(slots, k, current, result);
+            }
+            if (result != null) {
+                u.memoryAfter = memoryOf(k, entry);
+            }
+            return result;
+        });
+        if (u.memoryAfter != u.memoryBefore) {
+            usedMemory.add(u.memoryAfter - u.memoryBefore);
+        }
+        if (u.changed) {
+            touchWatched(key);
+            changeListener.accept(key);
+        }
+        return u.result;
+    }
+
+    /**
+     * Starts watching a key for changes, as WATCH does. Every call must be matched by one to
+     * {@link #unwatch(String)}.
+     *
+     * @param key the key
+     * @return the current version of the key, to compare with {@link #version(String)} later
+     */
+    public long watch(String key) {
+        // A key that has expired by now counts as changed from here on, not as changed later
+        liveEntry(key);
+        return watched.compute(key, (k, w) -> {
+            WatchedKey watchedKey = w != null ? w : new WatchedKey();
+            watchedKey.watchers++;
+            return watchedKey;
+        }).version.get();
+    }
+
+    /**
+     * Stops watching a key.
+     *
+     * @param key the key
+     */
+    public void unwatch(String key) {
+        watched.computeIfPresent(key, (k, w) -> --w.watchers == 0 ? null : w);
+    }
+
+    /**
+     * Returns the version of a watched key, which changes whenever the key does.
+     *
+     * @param key the key, which must be watched
+     * @return the version
+     */
+    public long version(String key) {
+        // An expired key is removed first, so that its expiry shows as a change
+        liveEntry(key);
+        WatchedKey w = watched.get(key);
+        return w == null ? -1 : w.version.get();
+    }
+
+    /**
+     * Bumps the version of a key if it is watched.
+     */
+    private void touchWatched(String key) {
+        if (watched.isEmpty()) {
+            return;
+        }
+        WatchedKey w = watched.get(key);
+        if (w != null) {
+            w.version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the entry of a key, first removing it if it has expired.
+     */
+    private Entry liveEntry(String key) {
+        Entry entry = map.get(key);
+        if (entry != null && entry.isExpired()) {
+            deleteIfExpired(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static <T extends CollectionValue> T collectionOf(Entry entry, Class<T> type) {
+        if (entry instanceof ObjectEntry object && type.isInstance(object.value)) {
+            return type.cast(object.value);
+        }
+        throw new CommandException(WRONGTYPE_ERROR);
+    }
+
+    /**
+     * Hands every entry of the store, as it was when this method was called, to the visitor. Writes made meanwhile
+     * are not seen, and are not held up beyond briefly recording what they replaced. Only one snapshot runs at a
+     * time; concurrent calls wait for each other.
+     *
+     * @param visitor receives the entries, on the calling thread
+     * @throws IOException if the visitor fails
+     */
+    public void snapshot(EntryVisitor visitor) throws IOException {
+        snapshotLock.lock();
+        visitSnapshot(visitor, startSnapshot());
+    }
+
+    /**
+     * Hands every entry of the store to the visitor, like {@link #snapshot(EntryVisitor)}, taken at a moment when
+     * no thread holds any of the given key locks. Commands that change the store and log the change with the locks
+     * of their keys held are thus each either wholly before the snapshot or wholly after it, and the action run at
+     * that moment can tell where the log stood. Another snapshot running is waited for without the key locks held,
+     * so that commands carry on meanwhile, even those that take a snapshot themselves with their keys locked.
+     *
+     * @param visitor  receives the entries, on the calling thread
+     * @param keyLocks the locks commands hold on their keys
+     * @param atStart  run with every key lock held as the snapshot starts
+     * @throws IOException if the visitor fails
+     */
+    public void snapshot(EntryVisitor visitor, KeyLocks keyLocks, Runnable atStart) throws IOException {
+        Snapshot s;
+        while (true) {
+            keyLocks.lockAll();
+            try {
+                if (snapshotLock.tryLock()) {
+                    try {
+                        atStart.run();
+                    } catch (RuntimeException e) {
+                        snapshotLock.unlock();
+                        throw e;
+                    }
+                    s = startSnapshot();
+                    break;
+                }
+            } finally {
+                keyLocks.unlockAll();
+            }
+            // Wait for the snapshot running to end
+            snapshotLock.lock();
+            snapshotLock.unlock();
+        }
+        visitSnapshot(visitor, s);
+    }
+
+    /**
+     * Starts a snapshot, with the snapshot lock held.
+     */
+    private Snapshot startSnapshot() {
+        Snapshot s = new Snapshot();
+        snapshot = s;
+        return s;
+    }
+
+    /**
+     * Hands the entries of a started snapshot to the visitor and ends it, releasing the snapshot lock.
+     */
+    private void visitSnapshot(EntryVisitor visitor, Snapshot s) throws IOException {
+        try {
+            try {
+                for (String key : map.keys()) {
+                    Change change = new Change();
+                    // Claim the key with its bin locked, so that no write can slip in between reading and claiming
+                    map.computeIfPresent(key, (k, current) -> {
+                        Object previous = s.keys.putIfAbsent(k, Snapshot.VISITED);
+                        if (previous == null) {
+                            // A collection may be changed in place once visited, so the snapshot takes a copy
+                            change.value = current instanceof ObjectEntry object
+                                    ? object.value.copy() : bytesOf(current);
+                            change.expiresAt = current.expiresAt;
+                        } else if (previous instanceof Entry preserved) {
+                            change.old = preserved;
+                        }
+                        return current;
+                    });
+                    if (change.value != null) {
+                        visit(visitor, key, change.value, change.expiresAt);
+                    } else if (change.old != null) {
+                        visitPreserved(visitor, s, key, change.old);
+                    }
+                }
+                // Keys removed before they were reached
+                for (Map.Entry<String, Object> entry : s.keys.entrySet()) {
+                    if (entry.getValue() instanceof Entry preserved) {
+                        visitPreserved(visitor, s, entry.getKey(), preserved);
+                    }
+                }
+            } finally {
+                s.closeLock.writeLock().lock();
+                try {
+                    s.closed = true;
+                    snapshot = null;
+                } finally {
+                    s.closeLock.writeLock().unlock();
+                }
+                // Entries preserved but not visited because the visitor failed
+                for (Object value : s.keys.values()) {
+                    if (value instanceof Entry preserved) {
+                        release(preserved);
+                    }
+                }
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void visitPreserved(EntryVisitor visitor, Snapshot s, String key, Entry preserved) throws IOException {
+        s.keys.put(key, Snapshot.VISITED);
+        try {
+            visit(visitor, key, preserved instanceof ObjectEntry object ? object.value : bytesOf(preserved),
+                    preserved.expiresAt);
+        } finally {
+            // No longer in the map and no longer needed by the snapshot
+            release(preserved);
+        }
+    }
+
+    private static void visit(EntryVisitor visitor, String key, Object value, long expiresAt) throws IOException {
+        long expiry = expiresAt == NO_EXPIRY ? -1 : expiresAt;
+        if (value instanceof CollectionValue collection) {
+            visitor.visit(key, collection, expiry);
+        } else {
+            visitor.visit(key, (byte[]) value, expiry);
+        }
+    }
+
+    /**
+     * Returns the bytes of an entry. Off-heap values are copied, so the entry must be kept from being released;
+     * otherwise the copy may be of a reused chunk, or null once the page is gone.
+     */
+    private byte[] bytesOf(Entry entry) {
+        if (entry instanceof HeapEntry heap) {
+            return heap.value;
+        }
+        OffHeapEntry offHeap = (OffHeapEntry) entry;
+        return slabs.read(offHeap.handle, offHeap.length);
+    }
+
+    /**
+     * Removes every key, as a replica does before loading the dataset of a full resync.
+     */
+    public void clear() {
+        for (String key : map.keys()) {
+            replace(key, null, null);
+        }
+    }
+
+    /**
+     * Returns the number of keys in the store, including expired keys not removed yet.
+     *
+     * @return the number of keys
+     */
+    public long size() {
+        return map.size();
+    }
+
+    /**
+     * Collects the keys of the next few buckets of the store from a cursor, as SCAN does, without blocking writes.
+     * Every key present from the first call of a scan to the last is collected at least once, even if the store
+     * grows or shrinks in between; keys added or removed meanwhile may or may not be, and a key may be collected
+     * more than once. Expired keys are left out.
+     *
+     * @param cursor where to start: 0 at first, then the cursor the previous call returned
+     * @param count  roughly how many keys to look at; more may be, as buckets are looked at whole
+     * @param type   the type of the keys to collect, as reported by TYPE, or null for keys of any type
+     * @param keys   receives the keys
+     * @return the cursor to continue from, or 0 once the scan is complete
+     */
+    public long scan(long cursor, int count, String type, List<String> keys) {
+        return map.scan(cursor, count, (key, entry) -> {
+            if (!entry.isExpired() && (type == null || typeOf(entry).equalsIgnoreCase(type))) {
+                keys.add(key);
+            }
+        });
+    }
+
+    /**
+     * Hands every key of the store to the visitor, one at a time, without blocking writes or copying the keys first.
+     * Keys present throughout are visited once; keys added or removed meanwhile may or may not be. Expired keys are
+     * left out.
+     *
+     * @param visitor receives the keys, on the calling thread
+     * @throws IOException if the visitor fails
+     */
+    public void forEachKey(KeyVisitor visitor) throws IOException {
+        for (Iterator<Map.Entry<String, Entry>> it = map.iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (!entry.getValue().isExpired()) {
+                visitor.visit(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Starts keeping the keys of each cluster hash slot, indexing those already in the store. Meant to be called
+     * once, before the store is shared with other threads.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void indexSlots() {
+        Set<String>[] slots = new Set[Cluster.SLOTS];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = ConcurrentHashMap.newKeySet();
+        }
+        for (String key : map.keys()) {
+            slots[Cluster.keySlot(key)].add(key);
+        }
+        slotKeys = slots;
+    }
+
+    /**
+     * Returns the number of keys in a cluster hash slot, including expired keys not removed yet.
+     *
+     * @param slot the slot
+     * @return the number of keys, or 0 unless the slots are indexed
+     */
+    public long countKeysInSlot(int slot) {
+        Set<String>[] slots = slotKeys;
+        return slots == null ? 0 : slots[slot].size();
+    }
+
+    /**
+     * Returns some of the keys in a cluster hash slot, including expired keys not removed yet.
+     *
+     * @param slot  the slot
+     * @param count the most keys to return
+     * @return the keys, or none unless the slots are indexed
+     */
+    public List<String> getKeysInSlot(int slot, int count) {
+        Set<String>[] slots = slotKeys;
+        List<String> keys = new ArrayList<>();
+        if (slots != null) {
+            for (Iterator<String> it = slots[slot].iterator(); it.hasNext() && keys.size() < count; ) {
+                keys.add(it.next());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Evicts keys until the store is within its maximum memory, as chosen by the eviction policy.
+     *
+     * @throws CommandException if the store is over its maximum memory and no key can be evicted
+     */
+    private void evictIfNeeded() {
+        long max = maxMemory;
+        if (max <= 0 || usedMemory.sum() <= max) {
+            return;
+        }
+        EvictionPolicy policy = evictionPolicy;
+        if (policy == EvictionPolicy.NOEVICTION) {
+            throw new CommandException(OOM_ERROR);
+        }
+        KeyLocks locks = evictionLocks;
+        int busy = 0;
+        evictionLock.lock();
+        try {
+            while (usedMemory.sum() > max) {
+                Map.Entry<String, Entry> victim = sampleVictim(policy);
+                if (victim == null) {
+                    throw new CommandException(OOM_ERROR);
+                }
+                String key = victim.getKey();
+                int stripe = locks != null ? locks.tryLock(key) : -1;
+                if (locks != null && stripe < 0) {
+                    // A command on the key is running; waiting for it could deadlock, so leave the store over its
+                    // maximum until a later write if the keys sampled keep being busy
+                    if (++busy >= MAX_BUSY_VICTIMS) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    if (remove(key, victim.getValue())) {
+                        evictedKeys.increment();
+                        evictionListener.accept(key);
+                    }
+                } finally {
+                    if (stripe >= 0) {
+                        locks.unlock(stripe);
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Looks at the next few entries under the sampling cursor and returns the one the policy would evict first.
+     * Must be called with the eviction lock held.
+     *
+     * @return the entry to evict, or null if none of the entries looked at may be evicted
+     */
+    private Map.Entry<String, Entry> sampleVictim(EvictionPolicy policy) {
+        int now = clock();
+        String bestKey = null;
+        Entry best = null;
+        long bestScore = Long.MIN_VALUE;
+        int samples = 0;
+        boolean restarted = false;
+        for (int seen = 0; seen < MAX_SAMPLE_SCAN && samples < evictionSamples; seen++) {
+            if (sampler == null || !sampler.hasNext()) {
+                if (restarted) {
+                    // Went round the whole key space already
+                    break;
+                }
+                sampler = map.iterator();
+                restarted = true;
+                if (!sampler.hasNext()) {
+                    break;
+                }
+            }
+            Map.Entry<String, Entry> candidate = sampler.next();
+            Entry entry = candidate.getValue();
+            long idle = now - entry.accessClock;
+            long score;
+            switch (policy) {
+                case ALLKEYS_LRU -> score = idle;
+                // Least frequently used first, then least recently used among equals
+                case ALLKEYS_LFU -> score = ((long) (255 - entry.decayedFrequency(now)) << 32) + idle;
+                case VOLATILE_TTL -> {
+                    if (entry.expiresAt == NO_EXPIRY) {
+                        continue;
+                    }
+                    score = -entry.expiresAt;
+                }
+                default -> throw new IllegalStateException("No keys to evict under " + policy.configName());
+            }
+            samples++;
+            if (best == null || score > bestScore) {
+                bestKey = candidate.getKey();
+                best = entry;
+                bestScore = score;
+            }
+        }
+        return best == null ? null : Map.entry(bestKey, best);
+    }
+
+    /**
+     * Removes keys whose expiry time has passed, looking at no more than a bounded number of keys per call.
+     * Called periodically by the active expiry thread.
+     */
+    void activeExpireCycle() {
+        expiryWheel.advance(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a daemon thread that runs {@link #activeExpireCycle()} once per tick of the expiry wheel.
+     */
+    public void startActiveExpiry() {
+        Thread.ofPlatform().daemon().name("active-expiry").start(() -> {
+            while (true) {
+                activeExpireCycle();
+                try {
+                    Thread.sleep(ExpiryWheel.TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the memory the store may use before writes evict keys, and how to choose them.
+     *
+     * @param maxMemory the maximum in bytes, or 0 for no limit
+     * @param policy    the eviction policy
+     */
+    public void setMaxMemory(long maxMemory, EvictionPolicy policy) {
+        this.evictionPolicy = policy;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Sets how many keys are compared each time one is evicted. More samples evict closer to the policy.
+     *
+     * @param samples the number of keys sampled per eviction
+     */
+    public void setEvictionSamples(int samples) {
+        this.evictionSamples = Math.max(samples, 1);
+    }
+
+    /**
+     * Sets the listener told about every evicted key, e.g. to delete it on replicas as well.
+     *
+     * @param listener called with each evicted key, on the thread whose write caused the eviction
+     */
+    public void setEvictionListener(Consumer<String> listener) {
+        setEvictionListener(listener, null);
+    }
+
+    /**
+     * Sets the listener told about every evicted key, called with the stripe of the key locked, so that the
+     * eviction is logged in the same order relative to the commands on the key as it happened in. A key whose
+     * stripe another thread holds is passed over rather than waited for.
+     *
+     * @param listener called with each evicted key, on the thread whose write caused the eviction
+     * @param keyLocks the locks commands hold on their keys, or null to evict without locking
+     */
+    public void setEvictionListener(Consumer<String> listener, KeyLocks keyLocks) {
+        this.evictionListener = listener;
+        this.evictionLocks = keyLocks;
+    }
+
+    /**
+     * Sets the listener told about every change to a key: a write, a deletion, an expiry or an eviction, e.g. to
+     * invalidate the key where clients cache it.
+     *
+     * @param listener called with each changed key once the change is visible, on the thread that made it; must
+     *                 not block
+     */
+    public void setChangeListener(Consumer<String> listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Returns the estimated memory used by the keys and values in the store.
+     *
+     * @return the used memory in bytes
+     */
+    public long getUsedMemory() {
+        return usedMemory.sum();
+    }
+
+    /**
+     * Returns the direct memory taken for values kept off the heap.
+     *
+     * @return the allocated off-heap memory in bytes, or 0 if values are kept on the heap
+     */
+    public long getOffHeapMemory() {
+        return slabs == null ? 0 : slabs.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the maximum memory the store may use, or 0 if there is no limit.
+     *
+     * @return the maximum memory in bytes
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Returns the policy used to evict keys once the store is over its maximum memory.
+     *
+     * @return the eviction policy
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Returns the number of keys evicted to stay within the maximum memory.
+     *
+     * @return the number of evicted keys
+     */
+    public long getEvictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    /**
+     * Returns the number of keys removed because they expired, whether found on read or by the active expiry.
+     *
+     * @return the number of expired keys
+     */
+    public long getExpiredKeys() {
+        return expiredKeys.sum();
+    }
+
+    /**
+     * Returns the number of lookups by commands reading a key that found it, such as a GET of an existing key.
+     *
+     * @return the number of hits
+     */
+    public long getKeyspaceHits() {
+        return keyspaceHits.sum();
+    }
+
+    /**
+     * Returns the number of lookups by commands reading a key that did not find it.
+     *
+     * @return the number of misses
+     */
+    public long getKeyspaceMisses() {
+        return keyspaceMisses.sum();
+    }
+
+    /**
+     * Returns the number of expired keys removed by the active expiry, without being read.
+     *
+     * @return the number of actively expired keys
+     */
+    public long getActivelyExpiredKeys() {
+        return activelyExpiredKeys.sum();
+    }
+
+    /**
+     * Returns the number of expiry times waiting in the expiry wheel, including those of keys set again since.
+     *
+     * @return the number of pending expiries
+     */
+    public long getPendingExpiries() {
+        return expiryWheel.getScheduled();
+    }
 }
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class counts how long something took, in buckets fine enough to give percentiles within an
+ * eighth of their value, as HdrHistogram does with three significant bits.
+ * <p>
+ * Values below 16 have a bucket each. Above that, every power of two is split into eight buckets of equal width,
+ * so the whole range of a long fits in under 500 buckets and a value's bucket is found with a few shifts. Counts
+ * are kept in a few stripes picked by thread, so that threads recording at once rarely write to the same cache
+ * line; reading sums the stripes.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+    private static final int STRIPES = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors()), 8);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, e.g. a duration in nanoseconds; negative values count as 0
+     */
+    public void record(long value) {
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(Math.max(value, 0)));
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the count
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the values at the given percentiles: for each, the highest value of the bucket holding it, so that at
+     * least that share of the values recorded are at most the value returned.
+     *
+     * @param percentiles the percentiles, between 0 and 100, in ascending order
+     * @return the values, or zeros if nothing has been recorded
+     */
+    public long[] percentiles(double... percentiles) {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long n = counts.get(i);
+            buckets[i % BUCKETS] += n;
+            total += n;
+        }
+        long[] values = new long[percentiles.length];
+        if (total == 0) {
+            return values;
+        }
+        long seen = 0;
+        int bucket = -1;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max((long) Math.ceil(percentiles[p] / 100 * total), 1);
+            while (seen < rank && bucket < BUCKETS - 1) {
+                seen += buckets[++bucket];
+            }
+            values[p] = highestValueOf(bucket);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the bucket of a value.
+     */
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value that falls into a bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int msb = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + sub) << (msb - SUB_BITS);
+        long width = 1L << (msb - SUB_BITS);
+        // The last bucket reaches Long.MAX_VALUE, where lowest + width - 1 would overflow
+        return lowest + (width - 1);
+    }
+}
@@ -0,0 +1,221 @@
+import java.util.Arrays;
+
+/**
+ * The ListPack class keeps a short sequence of byte strings packed one after another in a single byte array, in the
+ * spirit of Redis' listpack encoding. Each entry is its length as a variable-size integer followed by its bytes.
+ * <p>
+ * A small collection kept this way costs a few bytes per element instead of the object headers, references and
+ * table slots of a general-purpose collection, and is read with a single linear scan that stays in one or two
+ * cache lines. Lookups, inserts and deletes are linear in the size of the pack, which is why the collections
+ * using it switch to a hash table or skip list once they grow past a configured size.
+ * <p>
+ * Entries are addressed by their byte offset in the pack: {@link #first()} is the offset of the first entry,
+ * {@link #next(int)} steps to the following one, and {@link #end()} is the offset just past the last one.
+ */
+public class ListPack {
+    private static final int INITIAL_CAPACITY = 32;
+
+    private byte[] data;
+    // Bytes in use at the start of data
+    private int used;
+    private int count;
+
+    /**
+     * Constructs an empty ListPack.
+     */
+    public ListPack() {
+        this.data = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Constructs a ListPack holding a copy of the entries of another.
+     *
+     * @param other the pack to copy
+     */
+    public ListPack(ListPack other) {
+        this.data = Arrays.copyOf(other.data, Math.max(other.used, INITIAL_CAPACITY));
+        this.used = other.used;
+        this.count = other.count;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the memory taken by the pack.
+     *
+     * @return the size of the backing array in bytes
+     */
+    public int memoryUsage() {
+        return data.length;
+    }
+
+    /**
+     * Returns the offset of the first entry, which is {@link #end()} if the pack is empty.
+     *
+     * @return the offset of the first entry
+     */
+    public int first() {
+        return 0;
+    }
+
+    /**
+     * Returns the offset just past the last entry, at which {@link #insert(int, byte[])} appends.
+     *
+     * @return the end offset
+     */
+    public int end() {
+        return used;
+    }
+
+    /**
+     * Returns the offset of the entry after the one at the given offset.
+     *
+     * @param offset the offset of an entry
+     * @return the offset of the next entry, or {@link #end()} after the last one
+     */
+    public int next(int offset) {
+        int length = lengthAt(offset);
+        return offset + headerSize(length) + length;
+    }
+
+    /**
+     * Returns a copy of the entry at the given offset.
+     *
+     * @param offset the offset of an entry
+     * @return the bytes of the entry
+     */
+    public byte[] get(int offset) {
+        int length = lengthAt(offset);
+        int start = offset + headerSize(length);
+        return Arrays.copyOfRange(data, start, start + length);
+    }
+
+    /**
+     * Returns whether the entry at the given offset equals the given bytes, without copying it.
+     *
+     * @param offset the offset of an entry
+     * @param value  the bytes to compare with
+     * @return true if the entry holds exactly these bytes
+     */
+    public boolean matches(int offset, byte[] value) {
+        int length = lengthAt(offset);
+        int start = offset + headerSize(length);
+        return length == value.length && Arrays.equals(data, start, start + length, value, 0, length);
+    }
+
+    /**
+     * Looks for an entry equal to the given bytes, checking only every {@code stride}-th entry from the given one
+     * on, e.g. only the fields of a pack holding field-value pairs.
+     *
+     * @param from   the offset of the first entry to check
+     * @param value  the bytes to look for
+     * @param stride the number of entries to step between checks
+     * @return the offset of the matching entry, or -1 if there is none
+     */
+    public int find(int from, byte[] value, int stride) {
+        int offset = from;
+        while (offset < used) {
+            if (matches(offset, value)) {
+                return offset;
+            }
+            for (int i = 0; i < stride && offset < used; i++) {
+                offset = next(offset);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts an entry before the one at the given offset, or at the end.
+     *
+     * @param offset the offset of an entry or {@link #end()}
+     * @param value  the bytes of the new entry
+     */
+    public void insert(int offset, byte[] value) {
+        int size = headerSize(value.length) + value.length;
+        if (used + size > data.length) {
+            data = Arrays.copyOf(data, Math.max(used + size, data.length * 2));
+        }
+        System.arraycopy(data, offset, data, offset + size, used - offset);
+        int start = writeLength(offset, value.length);
+        System.arraycopy(value, 0, data, start, value.length);
+        used += size;
+        count++;
+    }
+
+    /**
+     * Removes a number of consecutive entries.
+     *
+     * @param offset the offset of the first entry to remove
+     * @param n      the number of entries to remove
+     */
+    public void delete(int offset, int n) {
+        int end = offset;
+        for (int i = 0; i < n; i++) {
+            end = next(end);
+        }
+        System.arraycopy(data, end, data, offset, used - end);
+        used -= end - offset;
+        count -= n;
+        if (data.length > INITIAL_CAPACITY && used < data.length / 4) {
+            data = Arrays.copyOf(data, Math.max(data.length / 2, INITIAL_CAPACITY));
+        }
+    }
+
+    /**
+     * Replaces the entry at the given offset.
+     *
+     * @param offset the offset of an entry
+     * @param value  the new bytes of the entry
+     */
+    public void replace(int offset, byte[] value) {
+        int length = lengthAt(offset);
+        if (length == value.length) {
+            System.arraycopy(value, 0, data, offset + headerSize(length), length);
+            return;
+        }
+        delete(offset, 1);
+        insert(offset, value);
+    }
+
+    /**
+     * Reads the length at the start of an entry, stored seven bits per byte with the high bit set on all but the
+     * last byte.
+     */
+    private int lengthAt(int offset) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return length;
+    }
+
+    private int writeLength(int offset, int length) {
+        while (length >= 0x80) {
+            data[offset++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        data[offset++] = (byte) length;
+        return offset;
+    }
+
+    private static int headerSize(int length) {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.function.Consumer;
+
+/**
+ * The ListValue class holds the elements of a list. Elements are kept in a {@link ListPack} until the list has more
+ * than {@link #maxListpackSize} elements or one longer than {@link #maxListpackValue} bytes, and from then on in a
+ * ring buffer of arrays, which pushes and pops at both ends in constant time and reaches any index directly.
+ */
+public class ListValue extends CollectionValue {
+    /**
+     * The number of elements above which a list leaves its compact encoding, as set by list-max-listpack-size.
+     */
+    public static volatile int maxListpackSize = 128;
+    /**
+     * The length of an element above which a list leaves its compact encoding, as set by list-max-listpack-value.
+     */
+    public static volatile int maxListpackValue = 64;
+
+    private ListPack pack = new ListPack();
+    // Elements from index head on, wrapping around; a power of two in length
+    private byte[][] ring;
+    private int head;
+    private int count;
+    // Bytes of the elements in the ring
+    private long ringBytes;
+
+    /**
+     * Constructs an empty list.
+     */
+    public ListValue() {
+    }
+
+    private ListValue(ListValue other) {
+        if (other.ring != null) {
+            this.pack = null;
+            this.ring = other.ring.clone();
+            this.head = other.head;
+            this.count = other.count;
+            this.ringBytes = other.ringBytes;
+        } else {
+            this.pack = new ListPack(other.pack);
+        }
+    }
+
+    @Override
+    public String type() {
+        return "list";
+    }
+
+    @Override
+    public String encoding() {
+        return ring == null ? "listpack" : "ringbuffer";
+    }
+
+    @Override
+    public int size() {
+        return ring == null ? pack.size() : count;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return ring == null ? pack.memoryUsage() : ringBytes + (long) ring.length * 8 + (long) count * 16;
+    }
+
+    @Override
+    public ListValue copy() {
+        return new ListValue(this);
+    }
+
+    /**
+     * Adds an element at the head or the tail of the list.
+     *
+     * @param value the element; the list takes ownership of the array
+     * @param left  true to add it at the head, false at the tail
+     */
+    public void push(byte[] value, boolean left) {
+        if (ring == null && (pack.size() >= maxListpackSize || value.length > maxListpackValue)) {
+            convert();
+        }
+        if (ring == null) {
+            pack.insert(left ? pack.first() : pack.end(), value);
+            return;
+        }
+        if (count == ring.length) {
+            grow();
+        }
+        int mask = ring.length - 1;
+        if (left) {
+            head = (head - 1) & mask;
+            ring[head] = value;
+        } else {
+            ring[(head + count) & mask] = value;
+        }
+        count++;
+        ringBytes += value.length;
+    }
+
+    /**
+     * Adds the given arguments one after another at the head or the tail, as in LPUSH and RPUSH.
+     *
+     * @param args the arguments
+     * @param from the index of the first element
+     * @param left true to add them at the head, false at the tail
+     */
+    public void push(String[] args, int from, boolean left) {
+        for (int i = from; i < args.length; i++) {
+            push(bytes(args[i]), left);
+        }
+    }
+
+    /**
+     * Removes and returns the element at the head or the tail of the list.
+     *
+     * @param left true to remove the head, false the tail
+     * @return the element, or null if the list is empty
+     */
+    public byte[] pop(boolean left) {
+        if (ring == null) {
+            if (pack.size() == 0) {
+                return null;
+            }
+            int offset = left ? pack.first() : offsetOf(pack.size() - 1);
+            byte[] value = pack.get(offset);
+            pack.delete(offset, 1);
+            return value;
+        }
+        if (count == 0) {
+            return null;
+        }
+        int mask = ring.length - 1;
+        int index = left ? head : (head + count - 1) & mask;
+        byte[] value = ring[index];
+        ring[index] = null;
+        if (left) {
+            head = (head + 1) & mask;
+        }
+        count--;
+        ringBytes -= value.length;
+        return value;
+    }
+
+    /**
+     * Returns the element at an index.
+     *
+     * @param index the index, counted from the tail if negative
+     * @return the element, or null if the index is out of range; must not be modified
+     */
+    public byte[] get(long index) {
+        int size = size();
+        if (index < 0) {
+            index += size;
+        }
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        if (ring == null) {
+            return pack.get(offsetOf((int) index));
+        }
+        return ring[(head + (int) index) & (ring.length - 1)];
+    }
+
+    /**
+     * Hands the elements between two indexes to the consumer, as in LRANGE. Negative indexes count from the tail,
+     * and indexes beyond either end are clamped.
+     *
+     * @param start    the index of the first element
+     * @param stop     the index of the last element
+     * @param consumer receives the elements in order; they must not be modified
+     * @return the number of elements handed over
+     */
+    public int range(long start, long stop, Consumer<byte[]> consumer) {
+        int size = size();
+        if (start < 0) {
+            start = Math.max(start + size, 0);
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        stop = Math.min(stop, size - 1);
+        if (start > stop) {
+            return 0;
+        }
+        if (ring == null) {
+            int offset = offsetOf((int) start);
+            for (long i = start; i <= stop; i++) {
+                consumer.accept(pack.get(offset));
+                offset = pack.next(offset);
+            }
+        } else {
+            for (long i = start; i <= stop; i++) {
+                consumer.accept(ring[(head + (int) i) & (ring.length - 1)]);
+            }
+        }
+        return (int) (stop - start + 1);
+    }
+
+    private int offsetOf(int index) {
+        int offset = pack.first();
+        for (int i = 0; i < index; i++) {
+            offset = pack.next(offset);
+        }
+        return offset;
+    }
+
+    private void grow() {
+        byte[][] grown = new byte[ring.length * 2][];
+        for (int i = 0; i < count; i++) {
+            grown[i] = ring[(head + i) & (ring.length - 1)];
+        }
+        ring = grown;
+        head = 0;
+    }
+
+    private void convert() {
+        int capacity = Integer.highestOneBit(Math.max(pack.size(), 8) * 2);
+        byte[][] converted = new byte[capacity][];
+        int i = 0;
+        long bytes = 0;
+        for (int offset = pack.first(); offset < pack.end(); offset = pack.next(offset)) {
+            converted[i] = pack.get(offset);
+            bytes += converted[i++].length;
+        }
+        ring = converted;
+        head = 0;
+        count = i;
+        ringBytes = bytes;
+        pack = null;
+    }
+}
@@ -0,0 +1,131 @@
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * The Log class writes the server's log to standard output, in the format of Redis: the process id, the role, the
+ * time, a mark for the level, and the message.
+ * <p>
+ * Only messages at or above the configured level are written, {@link Level#NOTICE} unless {@code --loglevel} says
+ * otherwise. Callers building a costly message, or logging on the path of every command, check
+ * {@link #isEnabled(Level)} first, so that nothing is formatted or written while the level is off.
+ */
+public final class Log {
+    /**
+     * How much is logged, from the most to the least.
+     */
+    public enum Level {
+        DEBUG('.'),
+        VERBOSE('-'),
+        NOTICE('*'),
+        WARNING('#');
+
+        private final char mark;
+
+        Level(char mark) {
+            this.mark = mark;
+        }
+
+        /**
+         * Returns the name of the level, as used by the {@code loglevel} setting.
+         *
+         * @return the name
+         */
+        public String configName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Returns the level of the given {@code loglevel} setting.
+         *
+         * @param name the setting, e.g. {@code notice}
+         * @return the level
+         * @throws IllegalArgumentException if there is no level of that name
+         */
+        public static Level fromConfigName(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss.SSS",
+            Locale.ROOT);
+    private static final long PID = ProcessHandle.current().pid();
+
+    private static volatile Level level = Level.NOTICE;
+
+    private Log() {
+    }
+
+    /**
+     * Sets the least level logged.
+     *
+     * @param level the level
+     */
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * Returns the least level logged.
+     *
+     * @return the level
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns whether messages of a level are logged.
+     *
+     * @param level the level
+     * @return true if they are
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(Log.level) >= 0;
+    }
+
+    /**
+     * Logs a message meant for debugging, such as every command received.
+     *
+     * @param message the message
+     */
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs a message of little interest, such as a client disconnecting.
+     *
+     * @param message the message
+     */
+    public static void verbose(String message) {
+        log(Level.VERBOSE, message);
+    }
+
+    /**
+     * Logs a message worth seeing in production, such as a dataset loaded.
+     *
+     * @param message the message
+     */
+    public static void notice(String message) {
+        log(Level.NOTICE, message);
+    }
+
+    /**
+     * Logs a message about something that went wrong.
+     *
+     * @param message the message
+     */
+    public static void warning(String message) {
+        log(Level.WARNING, message);
+    }
+
+    private static void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        char role = Main.role.equals("master") ? 'M' : 'S';
+        System.out.println(PID + ":" + role + " " + TIME.format(LocalDateTime.now()) + " " + level.mark + " "
+                + message);
+    }
+}
@@ -1,11 +1,28 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.Arrays;
 
 /**
  * The Main class sets up and runs a Redis-like server. It handles client connections
  * and supports both master and slave roles for replication.
+ * <p>
+ * By default every connection runs on a virtual thread of its own. With {@code --server-mode eventloop},
+ * connections are spread over a few {@link EventLoop} threads instead, one per core unless {@code --event-loops}
+ * says otherwise.
+ * <p>
+ * With {@code --shards}, commands are not run on the connections' threads but on the threads of a
+ * {@link ShardExecutor}, each owning the keys of one shard.
+ * <p>
+ * With {@code --cluster-enabled yes}, the server is a node of a {@link Cluster} whose slot table is given by
+ * {@code --cluster-nodes}, and only serves the keys of its own slots.
+ * <p>
+ * Every change to the store is handed to a {@link TrackingTable}, which tells the clients that track the key, as
+ * CLIENT TRACKING asks, to drop it from their caches.
  */
 public class Main {
     public static int port = 6379;
@@ -15,6 +32,42 @@ public class Main {
     public static int master_port;
     // master-only
     public static String master_replid = "8371b4fb1155b71f4a04d3e1bc3e18c4a990aeeb";
+    public static long repl_backlog_size = 1024 * 1024;
+    // How far a replica may fall behind before it is dropped; the backlog grows to at least this size
+    public static long replica_output_limit = 16 * 1024 * 1024;
+    public static ReplicationBacklog backlog;
+    // "threads" or "eventloop"
+    public static String serverMode = "threads";
+    public static int eventLoops = Runtime.getRuntime().availableProcessors();
+    // 0 runs commands on the connections' own threads
+    public static int shardCount = 0;
+    // null unless shardCount is set
+    public static ShardExecutor shards;
+    public static boolean cluster_enabled = false;
+    // The nodes of the cluster with their slots; just this node, with none, unless given
+    public static String cluster_nodes;
+    // The host this node is listed under in cluster_nodes
+    public static String cluster_announce_ip = "127.0.0.1";
+    // null unless cluster_enabled is set
+    public static Cluster cluster;
+    // The most keys remembered for clients tracking them; 0 means no limit
+    public static int tracking_table_max_keys = 1_000_000;
+    public static TrackingTable tracking;
+    // 0 means no limit
+    public static long maxmemory = 0;
+    public static String maxmemory_policy = "noeviction";
+    public static int maxmemory_samples = 5;
+    // "heap" or "offheap"
+    public static String value_storage = "heap";
+    public static String dir = ".";
+    public static String dbfilename = "dump.rdb";
+    public static RdbPersistence rdb;
+    public static boolean appendonly = false;
+    public static String appendfilename = "appendonly.aof";
+    // "always", "everysec" or "no"
+    public static String appendfsync = "everysec";
+    // null unless appendonly is set
+    public static AppendOnlyFile aof;
 
     /**
      * The main entry point for the application. Sets up the server and handles
@@ -24,24 +77,142 @@ public class Main {
      * @throws IOException if an I/O error occurs
      */
     public static void main(String[] args) throws IOException {
-        KeyValueHandler store = new KeyValueHandler();
+        // Parse command-line arguments for port, replication and server settings
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i].toLowerCase()) {
+                case "--port" -> port = Integer.parseInt(value);
+                case "--replicaof" -> {
+                    role = "slave";
+                    master_host = value.split(" ")[0];
+                    master_port = Integer.parseInt(value.split(" ")[1]);
+                }
+                case "--server-mode" -> serverMode = value.toLowerCase();
+                case "--event-loops" -> eventLoops = Integer.parseInt(value);
+                case "--shards" -> shardCount = Integer.parseInt(value);
+                case "--cluster-enabled" -> cluster_enabled = value.equalsIgnoreCase("yes");
+                case "--cluster-nodes" -> cluster_nodes = value;
+                case "--cluster-announce-ip" -> cluster_announce_ip = value;
+                case "--maxmemory" -> maxmemory = parseMemory(value);
+                case "--maxmemory-policy" -> maxmemory_policy = value;
+                case "--maxmemory-samples" -> maxmemory_samples = Integer.parseInt(value);
+                case "--tracking-table-max-keys" -> tracking_table_max_keys = Integer.parseInt(value);
+                case "--value-storage" -> value_storage = value.toLowerCase();
+                case "--repl-backlog-size" -> repl_backlog_size = parseMemory(value);
+                case "--replica-output-limit" -> replica_output_limit = parseMemory(value);
+                case "--dir" -> dir = value;
+                case "--dbfilename" -> dbfilename = value;
+                case "--appendonly" -> appendonly = value.equalsIgnoreCase("yes");
+                case "--appendfilename" -> appendfilename = value;
+                case "--appendfsync" -> appendfsync = value.toLowerCase();
+                case "--hash-max-listpack-entries" -> HashValue.maxListpackEntries = Integer.parseInt(value);
+                case "--hash-max-listpack-value" -> HashValue.maxListpackValue = Integer.parseInt(value);
+                case "--list-max-listpack-size" -> ListValue.maxListpackSize = Integer.parseInt(value);
+                case "--list-max-listpack-value" -> ListValue.maxListpackValue = Integer.parseInt(value);
+                case "--set-max-listpack-entries" -> SetValue.maxListpackEntries = Integer.parseInt(value);
+                case "--set-max-listpack-value" -> SetValue.maxListpackValue = Integer.parseInt(value);
+                case "--zset-max-listpack-entries" -> SortedSetValue.maxListpackEntries = Integer.parseInt(value);
+                case "--zset-max-listpack-value" -> SortedSetValue.maxListpackValue = Integer.parseInt(value);
+                case "--stream-node-max-entries" -> StreamValue.maxNodeEntries = Integer.parseInt(value);
+                case "--stream-node-max-bytes" -> StreamValue.maxNodeBytes = Integer.parseInt(value);
+                case "--loglevel" -> Log.setLevel(Log.Level.fromConfigName(value));
+            }
+        }
+
+        // Replicas are sent from the backlog, so it must hold everything a replica may lag behind
+        backlog = new ReplicationBacklog((int) Math.min(Math.max(repl_backlog_size, replica_output_limit),
+                Integer.MAX_VALUE - 8));
+        replica_output_limit = Math.min(replica_output_limit, backlog.getSize());
+        KeyValueHandler store = new KeyValueHandler(value_storage.equals("offheap"));
+        if (cluster_enabled) {
+            cluster = new Cluster(cluster_nodes != null ? cluster_nodes : cluster_announce_ip + ":" + port,
+                    cluster_announce_ip, port);
+            // Before loading, so that the keys loaded are indexed as they come
+            store.indexSlots();
+        }
+        rdb = new RdbPersistence(store, Path.of(dir, dbfilename));
+        // Like Redis, the append-only file wins over the RDB file, since it is the more recent of the two
+        long replayed = -1;
+        if (appendonly) {
+            aof = new AppendOnlyFile(store, Path.of(dir, appendfilename),
+                    AppendOnlyFile.FsyncPolicy.fromConfigName(appendfsync), ConnectionHandler.keyLocks());
+            replayed = aof.load();
+            if (replayed >= 0) {
+                Log.notice("DB loaded from append only file: " + replayed + " commands");
+            }
+        }
+        if (replayed < 0) {
+            long loadMillis = rdb.load();
+            if (loadMillis >= 0) {
+                Log.notice("DB loaded from disk: " + store.size() + " keys in " + loadMillis + " ms");
+            }
+            if (aof != null) {
+                // Start the new log with what is in the store
+                aof.rewrite();
+            }
+        }
+        if (aof != null) {
+            aof.start();
+        }
+        tracking = new TrackingTable(tracking_table_max_keys);
+        store.setChangeListener(tracking::keyChanged);
+        store.startActiveExpiry();
+        if (shardCount > 0) {
+            shards = new ShardExecutor(shardCount);
+        }
 
-        // Parse command-line arguments for port and replication settings
-        if (args.length >= 2 && args[0].equalsIgnoreCase("--port")) {
-            port = Integer.parseInt(args[1]);
+        // Like Redis, replicas leave eviction to their master and only apply the deletes it sends
+        if (role.equals("master")) {
+            store.setMaxMemory(maxmemory, KeyValueHandler.EvictionPolicy.fromConfigName(maxmemory_policy));
+            store.setEvictionSamples(maxmemory_samples);
+            store.setEvictionListener(ConnectionHandler::logEviction, ConnectionHandler.keyLocks());
         }
 
-        if (args.length >= 4 && args[2].equalsIgnoreCase("--replicaof")) {
-            role = "slave";
-            master_host = args[3].split(" ")[0];
-            master_port = Integer.parseInt(args[3].split(" ")[1]);
-            Socket socket = new Socket(master_host, master_port);
-            Thread.ofVirtual().start(new ConnectionHandler(socket, store, port));
+        if (role.equals("slave")) {
+            Thread.ofVirtual().start(() -> ConnectionHandler.replicate(master_host, master_port, store, port));
+        }
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Started as " + role + " with " + Arrays.toString(args));
         }
-//-------------------------------------------------DEBUGGING----------------------------------------------------------//
-//        System.out.println("This here is a: " + role);                                                              //
-//        System.out.println(Arrays.toString(args));                                                                  //
-//--------------------------------------------------------------------------------------------------------------------//
+        if (serverMode.equals("eventloop")) {
+            serveWithEventLoops(store);
+        } else {
+            serveWithThreads(store);
+        }
+    }
+
+    /**
+     * Parses a memory size such as {@code 1048576}, {@code 100mb} or {@code 2gb}.
+     *
+     * @param value the size, optionally followed by kb, mb or gb
+     * @return the size in bytes
+     */
+    private static long parseMemory(String value) {
+        String lower = value.toLowerCase();
+        long unit = 1;
+        int suffix = 0;
+        if (lower.endsWith("gb")) {
+            unit = 1024 * 1024 * 1024;
+            suffix = 2;
+        } else if (lower.endsWith("mb")) {
+            unit = 1024 * 1024;
+            suffix = 2;
+        } else if (lower.endsWith("kb")) {
+            unit = 1024;
+            suffix = 2;
+        } else if (lower.endsWith("b")) {
+            suffix = 1;
+        }
+        return Long.parseLong(lower.substring(0, lower.length() - suffix)) * unit;
+    }
+
+    /**
+     * Accepts connections and serves each of them on a virtual thread of its own.
+     *
+     * @param store the key-value store
+     * @throws IOException if an I/O error occurs
+     */
+    private static void serveWithThreads(KeyValueHandler store) throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             // Setting SO_REUSEADDR ensures that we don't run into 'Address already in use' errors
             serverSocket.setReuseAddress(true);
@@ -51,4 +222,27 @@ public class Main {
             }
         }
     }
+
+    /**
+     * Accepts connections and spreads them round-robin over a fixed set of event loops.
+     *
+     * @param store the key-value store
+     * @throws IOException if an I/O error occurs
+     */
+    private static void serveWithEventLoops(KeyValueHandler store) throws IOException {
+        EventLoop[] loops = new EventLoop[Math.max(eventLoops, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(store);
+            Thread.ofPlatform().name("event-loop-" + i).start(loops[i]);
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            // Setting SO_REUSEADDR ensures that we don't run into 'Address already in use' errors
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            for (int next = 0; true; next = (next + 1) % loops.length) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+            }
+        }
+    }
 }
@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MpscQueue class is an unbounded lock-free queue for many producer threads and a single consumer, after
+ * Dmitry Vyukov's design.
+ * <p>
+ * Producers swap themselves in as the tail with a single atomic exchange, then link the previous tail to their
+ * node; they never wait for each other or for the consumer. The consumer follows the links from a head only it
+ * touches. Between a producer's exchange and its link the queue can look empty to the consumer for a moment, so a
+ * consumer about to sleep must check again after announcing it, as {@link ShardExecutor} does.
+ *
+ * @param <T> the type of the elements
+ */
+public class MpscQueue<T> {
+    private static final class Node<T> {
+        T value;
+        volatile Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<T>> tail;
+    // consumer-only: the node before the next element
+    private Node<T> head;
+
+    /**
+     * Constructs an empty queue.
+     */
+    public MpscQueue() {
+        Node<T> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Adds an element at the tail. May be called from any thread.
+     *
+     * @param value the element, not null
+     */
+    public void offer(T value) {
+        Node<T> node = new Node<>(value);
+        Node<T> previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * Removes the element at the head. May only be called from the consumer thread.
+     *
+     * @return the element, or null if there is none, or none linked yet
+     */
+    public T poll() {
+        Node<T> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Returns whether there is no element linked at the head. May only be called from the consumer thread.
+     *
+     * @return true if {@link #poll()} would return null
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
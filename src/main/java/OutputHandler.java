@@ -1,14 +1,71 @@
 import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The OutputHandler class provides methods to write different types of responses to an OutputStream.
- * It supports writing integers, simple strings, bulk strings, null bulk strings, maps, and arrays of strings.
+ * It supports writing integers, simple strings, errors, bulk strings, null bulk strings, maps, and arrays of strings.
+ * <p>
+ * Replies are encoded straight into a reusable byte buffer and only reach the OutputStream when {@link #flush()}
+ * is called (or the buffer fills up), so a batch of replies costs a single write. Common replies and small
+ * length prefixes are pre-encoded once and shared by all connections. Strings are encoded as ISO-8859-1,
+ * mirroring {@link InputHandler}, so any value read from a client is written back byte for byte.
+ * <p>
+ * Replies are in RESP2 unless a client switches to RESP3 with HELLO, after which {@link #setProtocol(int)} makes
+ * nulls the RESP3 null, maps RESP3 maps rather than flat arrays, and allows push messages, which RESP2 has no way
+ * to tell apart from replies.
  */
-public class OutputHandler implements Closeable {
+public class OutputHandler implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Buffers that grew past this size are not kept around once flushed
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final Queue<byte[]> bufferPool = new ConcurrentLinkedQueue<>();
+    private static final byte[] NO_BUFFER = new byte[0];
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] NULL_BULK_STRING = "$-1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] NULL_ARRAY = "*-1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] RESP3_NULL = "_\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[][] SHARED_INTEGERS = sharedHeaders(':', 1024);
+    private static final byte[][] SHARED_BULK_HEADERS = sharedHeaders('$', 64);
+    private static final byte[][] SHARED_ARRAY_HEADERS = sharedHeaders('*', 64);
+    private static final byte[][] NO_SHARED_HEADERS = new byte[0][];
+
     private OutputStream out;
+    private byte[] buffer;
+    private int count;
+    // Bytes handed to the stream so far
+    private long written;
+    // Where the array begun by beginDeferredArray() starts in the buffer, or -1 if there is none
+    private int deferredArray = -1;
+    // Whether replies are kept in the buffer until endHold(), for a thread that must not write to the stream
+    private boolean held;
+    private boolean resp3;
+
+    /**
+     * Supplies the bytes of a value that is not in an array of its own, such as one kept off the heap, by copying
+     * them straight into the reply buffer.
+     */
+    @FunctionalInterface
+    public interface BulkSource {
+        /**
+         * Copies the value into an array.
+         *
+         * @param dst    the array
+         * @param offset where in the array the value goes
+         * @return false if the value could not be copied, as it changed meanwhile
+         */
+        boolean copyTo(byte[] dst, int offset);
+    }
 
     /**
      * Constructs an OutputHandler with the specified OutputStream.
@@ -17,6 +74,7 @@ public class OutputHandler implements Closeable {
      */
     public OutputHandler(OutputStream out) {
         this.out = out;
+        this.buffer = acquireBuffer();
     }
 
     /**
@@ -26,8 +84,17 @@ public class OutputHandler implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public void writeInteger(int i) throws IOException {
-        String integer = ":%d\r\n".formatted(i);
-        out.write(integer.getBytes());
+        writeInteger((long) i);
+    }
+
+    /**
+     * Writes an integer response to the OutputStream.
+     *
+     * @param l the integer to be written
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeInteger(long l) throws IOException {
+        writeHeader(':', l, SHARED_INTEGERS);
     }
 
     /**
@@ -37,8 +104,29 @@ public class OutputHandler implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public void writeSimpleString(String string) throws IOException {
-        String simpleString = "+%s\r\n".formatted(string);
-        out.write(simpleString.getBytes());
+        switch (string) {
+            case "OK" -> writeRaw(OK);
+            case "PONG" -> writeRaw(PONG);
+            default -> {
+                ensureCapacity(string.length() + 3);
+                buffer[count++] = '+';
+                writeChars(string);
+                writeCrlf();
+            }
+        }
+    }
+
+    /**
+     * Writes an error response to the OutputStream.
+     *
+     * @param message the error, starting with its code such as {@code ERR}
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeError(String message) throws IOException {
+        ensureCapacity(message.length() + 3);
+        buffer[count++] = '-';
+        writeChars(message);
+        writeCrlf();
     }
 
     /**
@@ -49,8 +137,10 @@ public class OutputHandler implements Closeable {
      */
     public void writeBulkString(String string) throws IOException {
         int length = string.length();
-        String bulkString = "$" + length + "\r\n" + string + "\r\n";
-        out.write(bulkString.getBytes());
+        writeHeader('$', length, SHARED_BULK_HEADERS);
+        ensureCapacity(length + 2);
+        writeChars(string);
+        writeCrlf();
     }
 
     /**
@@ -60,9 +150,62 @@ public class OutputHandler implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public void writeBulkString(byte[] b) throws IOException {
-        out.write(("$" + b.length + "\r\n").getBytes());
-        out.write(b);
-        out.write("\r\n".getBytes());
+        writeBulkPayload(b);
+        writeRaw(CRLF);
+    }
+
+    /**
+     * Writes a bulk string response whose bytes are copied into the reply buffer by a source, without an array of
+     * their own. If the source cannot copy them, nothing is written. Values larger than the buffer are copied into
+     * an array first and written past the buffer, as large arrays are.
+     *
+     * @param length the number of bytes in the value
+     * @param source copies the value
+     * @return false if the source could not copy the value
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean writeBulkString(int length, BulkSource source) throws IOException {
+        if (length > BUFFER_SIZE) {
+            byte[] value = new byte[length];
+            if (!source.copyTo(value, 0)) {
+                return false;
+            }
+            writeBulkString(value);
+            return true;
+        }
+        // Room for the header, the value and the CRLF up front, so that nothing is drained before the copy is known
+        // to be good and can still be taken back
+        ensureCapacity(23 + length + 2);
+        int start = count;
+        writeHeader('$', length, SHARED_BULK_HEADERS);
+        if (!source.copyTo(buffer, count)) {
+            count = start;
+            return false;
+        }
+        count += length;
+        writeCrlf();
+        return true;
+    }
+
+    /**
+     * Writes a length-prefixed payload without the trailing CRLF, as used for the RDB file sent to replicas.
+     *
+     * @param b the byte array to be written
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeBulkPayload(byte[] b) throws IOException {
+        writeHeader('$', b.length, SHARED_BULK_HEADERS);
+        writeRaw(b);
+    }
+
+    /**
+     * Writes bytes that are already encoded in RESP, such as commands kept in the replication backlog.
+     *
+     * @param b the encoded bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeBytes(byte[] b) throws IOException {
+        writeRaw(b);
     }
 
     /**
@@ -71,8 +214,7 @@ public class OutputHandler implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public void writeNullBulkString() throws IOException {
-        String nullBulkString = "$-1\r\n";
-        out.write(nullBulkString.getBytes());
+        writeRaw(resp3 ? RESP3_NULL : NULL_BULK_STRING);
     }
 
     /**
@@ -87,7 +229,7 @@ public class OutputHandler implements Closeable {
             if (sb.length() > 0) {
                 sb.append("\r\n");
             }
-            sb.append("%s:%s".formatted(entry.getKey(), entry.getValue()));
+            sb.append(entry.getKey()).append(':').append(entry.getValue());
         }
         writeBulkString(sb.toString());
     }
@@ -99,16 +241,130 @@ public class OutputHandler implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public void writeBulkStringArray(String... strings) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        sb.append("*").append(strings.length).append("\r\n");
+        writeHeader('*', strings.length, SHARED_ARRAY_HEADERS);
         for (String string : strings) {
-            sb.append("$")
-                    .append(string.length())
-                    .append("\r\n")
-                    .append(string)
-                    .append("\r\n");
+            writeBulkString(string);
+        }
+    }
+
+    /**
+     * Writes the header of an array response, to be followed by its elements.
+     *
+     * @param length the number of elements
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeArrayHeader(int length) throws IOException {
+        writeHeader('*', length, SHARED_ARRAY_HEADERS);
+    }
+
+    /**
+     * Begins an array response whose length is not known yet, for writing its elements as they are found. The
+     * header is put in front of them by {@link #endDeferredArray(long)}; until then the buffer is kept whole rather
+     * than drained to the stream, and must not be flushed.
+     */
+    public void beginDeferredArray() {
+        if (buffer == NO_BUFFER) {
+            buffer = acquireBuffer();
+        }
+        deferredArray = count;
+    }
+
+    /**
+     * Ends the array response begun by {@link #beginDeferredArray()}, putting its header in front of its elements.
+     *
+     * @param length the number of elements written
+     * @throws IOException if an I/O error occurs
+     */
+    public void endDeferredArray(long length) throws IOException {
+        int start = deferredArray;
+        int n = headerLength(length);
+        ensureCapacity(n);
+        System.arraycopy(buffer, start, buffer, start + n, count - start);
+        putHeader(buffer, start, '*', length);
+        count += n;
+        deferredArray = -1;
+    }
+
+    /**
+     * Keeps every reply written from now on in the buffer, which grows as needed, rather than draining any of it to
+     * the stream, until {@link #endHold()}. This lets a thread that must never block on the connection, such as a
+     * shard thread running a command, write the command's reply for the connection's own thread to send.
+     */
+    public void hold() {
+        held = true;
+    }
+
+    /**
+     * Ends the hold begun by {@link #hold()}; what was written meanwhile goes to the stream with the next drain.
+     */
+    public void endHold() {
+        held = false;
+    }
+
+    /**
+     * Writes a null array response, as for a pop from a key that does not exist.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeNullArray() throws IOException {
+        writeRaw(resp3 ? RESP3_NULL : NULL_ARRAY);
+    }
+
+    /**
+     * Writes the header of a map response, to be followed by its keys and values in turn. In RESP2, a map is an
+     * array of twice as many elements.
+     *
+     * @param pairs the number of keys
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeMapHeader(int pairs) throws IOException {
+        if (resp3) {
+            writeHeader('%', pairs, NO_SHARED_HEADERS);
+        } else {
+            writeHeader('*', pairs * 2L, SHARED_ARRAY_HEADERS);
+        }
+    }
+
+    /**
+     * Writes the header of a push message, to be followed by its elements, the first of which says what kind of
+     * message it is. Only for RESP3.
+     *
+     * @param length the number of elements
+     * @throws IOException if an I/O error occurs
+     */
+    public void writePushHeader(int length) throws IOException {
+        writeHeader('>', length, NO_SHARED_HEADERS);
+    }
+
+    /**
+     * Sets the protocol replies are written in, as negotiated by HELLO.
+     *
+     * @param version 2 or 3
+     */
+    public void setProtocol(int version) {
+        resp3 = version == 3;
+    }
+
+    /**
+     * Returns the protocol replies are written in.
+     *
+     * @return 2 or 3
+     */
+    public int getProtocol() {
+        return resp3 ? 3 : 2;
+    }
+
+    /**
+     * Writes a list of byte arrays as a bulk string array response to the OutputStream.
+     *
+     * @param values the byte arrays to be written
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeBulkStringArray(List<byte[]> values) throws IOException {
+        writeArrayHeader(values.size());
+        for (byte[] value : values) {
+            writeBulkString(value);
         }
-        out.write(sb.toString().getBytes());
     }
 
     /**
@@ -117,26 +373,215 @@ public class OutputHandler implements Closeable {
      * @param strings the array of strings to be converted
      * @return a byte array representing the bulk string array
      */
-    public byte[] getBulkStringArray(String... strings) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("*").append(strings.length).append("\r\n");
+    public static byte[] getBulkStringArray(String... strings) {
+        byte[] bytes = new byte[getBulkStringArrayLength(strings)];
+        int i = putHeader(bytes, 0, '*', strings.length);
         for (String string : strings) {
-            sb.append("$")
-                    .append(string.length())
-                    .append("\r\n")
-                    .append(string)
-                    .append("\r\n");
+            i = putHeader(bytes, i, '$', string.length());
+            for (int j = 0; j < string.length(); j++) {
+                bytes[i++] = (byte) string.charAt(j);
+            }
+            bytes[i++] = '\r';
+            bytes[i++] = '\n';
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes a bulk string array occupies once encoded, without encoding it.
+     *
+     * @param strings the array of strings
+     * @return the encoded length in bytes
+     */
+    public static int getBulkStringArrayLength(String... strings) {
+        int length = headerLength(strings.length);
+        for (String string : strings) {
+            length += headerLength(string.length()) + string.length() + 2;
+        }
+        return length;
+    }
+
+    /**
+     * Writes all buffered replies to the OutputStream and flushes it.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count == 0 && buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+            return;
+        }
+        drain();
+        out.flush();
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the OutputStream so far, not counting those still in the buffer.
+     *
+     * @return the number of bytes
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Returns whether there are replies waiting in the buffer.
+     *
+     * @return true if {@link #flush()} would write anything
+     */
+    public boolean hasPendingOutput() {
+        return count > 0;
+    }
+
+    /**
+     * Hands the reply buffer back to the shared pool while nothing is pending, so that an idle connection does not
+     * hold on to one. A buffer is taken from the pool again on the next write.
+     */
+    public void release() {
+        if (count == 0 && buffer.length == BUFFER_SIZE && bufferPool.size() < MAX_POOLED_BUFFERS) {
+            bufferPool.offer(buffer);
+            buffer = NO_BUFFER;
+        }
+    }
+
+    private static byte[] acquireBuffer() {
+        byte[] pooled = bufferPool.poll();
+        return pooled != null ? pooled : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Writes a header consisting of a type byte, a decimal number and CRLF, using a shared encoding when possible.
+     */
+    private void writeHeader(char type, long value, byte[][] shared) throws IOException {
+        if (value >= 0 && value < shared.length) {
+            writeRaw(shared[(int) value]);
+            return;
+        }
+        ensureCapacity(23);
+        count = putHeader(buffer, count, type, value);
+    }
+
+    /**
+     * Encodes a header into a byte array without allocating.
+     *
+     * @return the index just past the encoded header
+     */
+    private static int putHeader(byte[] bytes, int i, char type, long value) {
+        bytes[i++] = (byte) type;
+        if (value < 0) {
+            bytes[i++] = '-';
+            value = -value;
+        }
+        int digits = digits(value);
+        int end = i + digits;
+        for (int j = end - 1; j >= i; j--) {
+            bytes[j] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        bytes[end] = '\r';
+        bytes[end + 1] = '\n';
+        return end + 2;
+    }
+
+    private static int headerLength(long value) {
+        return 3 + (value < 0 ? 1 + digits(-value) : digits(value));
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static byte[][] sharedHeaders(char type, int n) {
+        byte[][] headers = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            headers[i] = (type + String.valueOf(i) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return headers;
+    }
+
+    /**
+     * Copies the chars of a string into the buffer as ISO-8859-1. Capacity must already be ensured.
+     */
+    private void writeChars(String string) {
+        for (int i = 0, n = string.length(); i < n; i++) {
+            buffer[count++] = (byte) string.charAt(i);
+        }
+    }
+
+    private void writeCrlf() {
+        buffer[count++] = '\r';
+        buffer[count++] = '\n';
+    }
+
+    private void writeRaw(byte[] b) throws IOException {
+        if (b.length > BUFFER_SIZE && deferredArray < 0 && !held) {
+            // Large payloads go straight to the stream instead of being copied into the buffer
+            drain();
+            out.write(b);
+            written += b.length;
+            return;
+        }
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, buffer, count, b.length);
+        count += b.length;
+    }
+
+    /**
+     * Makes room for {@code n} more bytes, draining the buffer to the stream first when it already holds
+     * a full chunk and growing it when a single item does not fit, while an array waits for its header, or while
+     * replies are held.
+     */
+    private void ensureCapacity(int n) throws IOException {
+        if (count + n <= buffer.length) {
+            return;
+        }
+        if (buffer == NO_BUFFER) {
+            buffer = acquireBuffer();
+            if (n <= buffer.length) {
+                return;
+            }
+        }
+        if (count >= BUFFER_SIZE && deferredArray < 0 && !held) {
+            drain();
+        }
+        if (count + n > buffer.length) {
+            byte[] grown = new byte[Math.max(count + n, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            written += count;
+            count = 0;
         }
-        return sb.toString().getBytes();
     }
 
     /**
      * Closes the OutputStream and releases any system resources associated with it.
+     * The reply buffer is returned to the shared pool for use by later connections.
      *
      * @throws IOException if an I/O error occurs
      */
     @Override
     public void close() throws IOException {
-        out.close();
+        try {
+            flush();
+        } finally {
+            out.close();
+            count = 0;
+            release();
+            buffer = NO_BUFFER;
+        }
     }
 }
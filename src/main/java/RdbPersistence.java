@@ -0,0 +1,166 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The RdbPersistence class saves the key-value store to an RDB file and loads it back on startup.
+ * <p>
+ * Redis forks to save in the background, so that the child sees a frozen copy of memory. A Java process cannot
+ * fork; instead the store takes a point-in-time snapshot through {@link KeyValueHandler#snapshot}, which lets
+ * writers carry on and keeps the old value of any key they change until it has been written. The file is written
+ * under a temporary name and renamed into place once complete, so a crash never leaves a half-written dump.
+ */
+public class RdbPersistence {
+    private final KeyValueHandler store;
+    private final Path file;
+    private final AtomicBoolean saving = new AtomicBoolean();
+    private volatile long lastSave = System.currentTimeMillis() / 1000;
+
+    /**
+     * Constructs an RdbPersistence for the specified store and file.
+     *
+     * @param store the key-value store
+     * @param file  the RDB file to save to and load from
+     */
+    public RdbPersistence(KeyValueHandler store, Path file) {
+        this.store = store;
+        this.file = file;
+    }
+
+    /**
+     * Loads the RDB file into the store, if there is one. Keys that expired while the server was down are skipped.
+     *
+     * @return the number of milliseconds the load took, or -1 if there was no file
+     * @throws IOException if the file cannot be read or is not a valid RDB file
+     */
+    public long load() throws IOException {
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        long start = System.currentTimeMillis();
+        try (StoreLoader loader = new StoreLoader(store)) {
+            RdbReader.load(file, loader);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Saves the store, returning once the file is in place.
+     *
+     * @throws IOException if the file cannot be written
+     * @throws CommandException if a save is already in progress
+     */
+    public void save() throws IOException {
+        if (!saving.compareAndSet(false, true)) {
+            throw new CommandException("ERR Background save already in progress");
+        }
+        try {
+            write();
+        } finally {
+            saving.set(false);
+        }
+    }
+
+    /**
+     * Starts saving the store on a virtual thread of its own and returns at once.
+     *
+     * @throws CommandException if a save is already in progress
+     */
+    public void backgroundSave() {
+        if (!saving.compareAndSet(false, true)) {
+            throw new CommandException("ERR Background save already in progress");
+        }
+        Thread.ofVirtual().name("bgsave").start(() -> {
+            try {
+                write();
+            } catch (IOException e) {
+                Log.warning("Background saving error: " + e.getMessage());
+            } finally {
+                saving.set(false);
+            }
+        });
+    }
+
+    /**
+     * Writes a point-in-time snapshot of the store to a stream in RDB format as it is produced, such as straight to
+     * the connection of a replica doing a full resync. Unlike a save, it may run while a save is in progress.
+     *
+     * @param out the stream to write to; flushed but not closed
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        RdbWriter writer = new RdbWriter(out);
+        writer.writeHeader();
+        store.snapshot(writer);
+        writer.finish();
+    }
+
+    /**
+     * Writes a point-in-time snapshot of the store to a stream like {@link #writeTo(OutputStream)}, taken at a
+     * moment no command holds the locks of its keys, as by
+     * {@link KeyValueHandler#snapshot(KeyValueHandler.EntryVisitor, KeyLocks, Runnable)}. Nothing reaches the
+     * stream before the snapshot has started.
+     *
+     * @param out      the stream to write to; flushed but not closed
+     * @param keyLocks the locks commands hold on their keys
+     * @param atStart  run with every key lock held as the snapshot starts
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(OutputStream out, KeyLocks keyLocks, Runnable atStart) throws IOException {
+        RdbWriter writer = new RdbWriter(out);
+        // The header stays in the writer's buffer until the first entry is written
+        writer.writeHeader();
+        store.snapshot(writer, keyLocks, atStart);
+        writer.finish();
+    }
+
+    /**
+     * Returns whether a save is in progress.
+     *
+     * @return true while a save is running
+     */
+    public boolean isSaving() {
+        return saving.get();
+    }
+
+    /**
+     * Returns the time of the last successful save, or of startup if there has been none.
+     *
+     * @return the time in seconds since the epoch
+     */
+    public long getLastSave() {
+        return lastSave;
+    }
+
+    /**
+     * Returns the RDB file.
+     *
+     * @return the path of the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    private void write() throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = dir.resolve("temp-" + ProcessHandle.current().pid() + "-" + file.getFileName());
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024));
+            // Make sure the data is on disk before the rename makes it the dump
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        lastSave = System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,523 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The RdbReader class decodes a Redis RDB file and hands each key-value entry to a visitor as soon as it is read,
+ * so a file of any size can be loaded without holding more than one value at a time.
+ * <p>
+ * Files are read through memory-mapped windows of {@value #WINDOW_SIZE} bytes, which lets the operating system
+ * read ahead and spares a copy into a buffer of our own; streams are read through a heap buffer. Integer and
+ * LZF-compressed string encodings are understood, as are the auxiliary, database, resize and eviction hint opcodes
+ * Redis writes. Strings are supported, and lists, sets, hashes and sorted sets in the plain encodings
+ * {@link RdbWriter} writes; the compact encodings newer versions of Redis write for small collections are not.
+ * Streams are read in all three versions of their listpack encoding, as long as they have no consumer groups. The
+ * checksum is verified unless it was written as zero.
+ */
+public class RdbReader {
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int OPCODE_FREQ = 0xF8;
+    private static final int OPCODE_IDLE = 0xF9;
+    private static final int ENCODING_INT8 = 0;
+    private static final int ENCODING_INT16 = 1;
+    private static final int ENCODING_INT32 = 2;
+    private static final int ENCODING_LZF = 3;
+    private static final int STREAM_ITEM_FLAG_DELETED = 1;
+    private static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+
+    /**
+     * Supplies the data to decode one window at a time.
+     */
+    private interface Windows {
+        /**
+         * Returns the next window of data, or null at the end.
+         */
+        ByteBuffer next() throws IOException;
+    }
+
+    private final Windows windows;
+    private final Crc64 crc = new Crc64();
+    private ByteBuffer window = ByteBuffer.allocate(0);
+    // Start of the part of the current window not added to the checksum yet
+    private int checksummed;
+    // Set for a length that is a special string encoding rather than a length
+    private boolean encoded;
+
+    private RdbReader(Windows windows) {
+        this.windows = windows;
+    }
+
+    /**
+     * Constructs an RdbReader decoding the specified stream, such as the payload of a full resync.
+     *
+     * @param in the InputStream holding the RDB data
+     */
+    public RdbReader(InputStream in) {
+        this(() -> {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int n = in.read(buffer);
+            return n < 0 ? null : ByteBuffer.wrap(buffer, 0, n);
+        });
+    }
+
+    /**
+     * Loads an RDB file, handing every entry to the visitor.
+     *
+     * @param file    the file to load
+     * @param visitor receives the entries
+     * @throws IOException if the file cannot be read or is not a valid RDB file
+     */
+    public static void load(Path file, KeyValueHandler.EntryVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] position = {0};
+            new RdbReader(() -> {
+                if (position[0] >= size) {
+                    return null;
+                }
+                long length = Math.min(WINDOW_SIZE, size - position[0]);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position[0], length);
+                position[0] += length;
+                return mapped;
+            }).read(visitor);
+        }
+    }
+
+    /**
+     * Decodes the data up to and including the checksum, handing every entry to the visitor.
+     *
+     * @param visitor receives the entries
+     * @throws IOException if the data cannot be read or is not valid RDB data
+     */
+    public void read(KeyValueHandler.EntryVisitor visitor) throws IOException {
+        byte[] magic = readBytes(RdbWriter.MAGIC.length());
+        String header = new String(magic, StandardCharsets.ISO_8859_1);
+        if (!header.startsWith("REDIS")) {
+            throw new IOException("Not an RDB file");
+        }
+        int version = Integer.parseInt(header.substring(5));
+        long expiresAt = -1;
+        while (true) {
+            int type = readByte();
+            switch (type) {
+                case RdbWriter.OPCODE_AUX -> {
+                    readString();
+                    readString();
+                }
+                case RdbWriter.OPCODE_SELECTDB -> readLength();
+                case RdbWriter.OPCODE_RESIZEDB -> {
+                    readLength();
+                    readLength();
+                }
+                case RdbWriter.OPCODE_EXPIRETIME -> expiresAt = readLittleEndian(4) * 1000;
+                case RdbWriter.OPCODE_EXPIRETIME_MS -> expiresAt = readLittleEndian(8);
+                case OPCODE_FREQ -> readByte();
+                case OPCODE_IDLE -> readLength();
+                case RdbWriter.OPCODE_EOF -> {
+                    if (version >= 5) {
+                        verifyChecksum();
+                    }
+                    return;
+                }
+                case RdbWriter.TYPE_STRING -> {
+                    String key = new String(readString(), StandardCharsets.ISO_8859_1);
+                    visitor.visit(key, readString(), expiresAt);
+                    expiresAt = -1;
+                }
+                case RdbWriter.TYPE_LIST, RdbWriter.TYPE_SET, RdbWriter.TYPE_ZSET, RdbWriter.TYPE_HASH,
+                     RdbWriter.TYPE_ZSET_2 -> {
+                    String key = new String(readString(), StandardCharsets.ISO_8859_1);
+                    visitor.visit(key, readCollection(type), expiresAt);
+                    expiresAt = -1;
+                }
+                case RdbWriter.TYPE_STREAM_LISTPACKS, RdbWriter.TYPE_STREAM_LISTPACKS_2,
+                     RdbWriter.TYPE_STREAM_LISTPACKS_3 -> {
+                    String key = new String(readString(), StandardCharsets.ISO_8859_1);
+                    visitor.visit(key, readStream(type), expiresAt);
+                    expiresAt = -1;
+                }
+                default -> throw new IOException("Unsupported RDB value type " + type);
+            }
+        }
+    }
+
+    private CollectionValue readCollection(int type) throws IOException {
+        long size = readLength();
+        switch (type) {
+            case RdbWriter.TYPE_LIST -> {
+                ListValue list = new ListValue();
+                for (long i = 0; i < size; i++) {
+                    list.push(readString(), false);
+                }
+                return list;
+            }
+            case RdbWriter.TYPE_SET -> {
+                SetValue set = new SetValue();
+                for (long i = 0; i < size; i++) {
+                    set.add(readAsciiString());
+                }
+                return set;
+            }
+            case RdbWriter.TYPE_HASH -> {
+                HashValue hash = new HashValue();
+                for (long i = 0; i < size; i++) {
+                    hash.set(readAsciiString(), readString());
+                }
+                return hash;
+            }
+            default -> {
+                SortedSetValue zset = new SortedSetValue();
+                for (long i = 0; i < size; i++) {
+                    String member = readAsciiString();
+                    double score = type == RdbWriter.TYPE_ZSET_2
+                            ? Double.longBitsToDouble(readLittleEndian(8)) : readTextScore();
+                    zset.add(member, score);
+                }
+                return zset;
+            }
+        }
+    }
+
+    /**
+     * Reads a stream: its listpack nodes, each keyed by the ID of its first entry, then its length, last ID and,
+     * from the second version on, a few more counters, and finally its consumer groups.
+     */
+    private StreamValue readStream(int type) throws IOException {
+        StreamValue stream = new StreamValue();
+        long nodes = readLength();
+        for (long i = 0; i < nodes; i++) {
+            byte[] key = readString();
+            if (key.length != 16) {
+                throw new IOException("Invalid stream node key");
+            }
+            long ms = 0;
+            long seq = 0;
+            for (int j = 0; j < 8; j++) {
+                ms = ms << 8 | (key[j] & 0xFF);
+                seq = seq << 8 | (key[8 + j] & 0xFF);
+            }
+            readStreamNode(new Listpack(readString()), new StreamValue.Id(ms, seq), stream);
+        }
+        // The length, which the entries have been counted into already
+        readLength();
+        long lastMs = readLength();
+        long lastSeq = readLength();
+        stream.setLastId(new StreamValue.Id(lastMs, lastSeq));
+        if (type != RdbWriter.TYPE_STREAM_LISTPACKS) {
+            // First ID, highest deleted ID and number of entries ever added
+            for (int i = 0; i < 5; i++) {
+                readLength();
+            }
+        }
+        if (readLength() != 0) {
+            throw new IOException("Stream consumer groups are not supported");
+        }
+        return stream;
+    }
+
+    /**
+     * Reads the entries of a stream node. The node starts with a master entry holding the number of entries, the
+     * number of deleted ones and the fields that entries flagged as such share. Each entry then holds its flags,
+     * its ID relative to the key of the node, its fields unless it shares the master ones, its values, and the
+     * number of elements it took.
+     */
+    private static void readStreamNode(Listpack lp, StreamValue.Id first, StreamValue stream) throws IOException {
+        long entries = lp.nextLong() + lp.nextLong();
+        byte[][] masterFields = new byte[checkedLength(lp.nextLong())][];
+        for (int i = 0; i < masterFields.length; i++) {
+            masterFields[i] = lp.nextBytes();
+        }
+        lp.nextLong();
+        for (long i = 0; i < entries; i++) {
+            long flags = lp.nextLong();
+            long ms = first.ms + lp.nextLong();
+            long seq = first.seq + lp.nextLong();
+            byte[][] fieldsAndValues;
+            if ((flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0) {
+                fieldsAndValues = new byte[masterFields.length * 2][];
+                for (int j = 0; j < masterFields.length; j++) {
+                    fieldsAndValues[2 * j] = masterFields[j];
+                    fieldsAndValues[2 * j + 1] = lp.nextBytes();
+                }
+            } else {
+                fieldsAndValues = new byte[checkedLength(lp.nextLong() * 2)][];
+                for (int j = 0; j < fieldsAndValues.length; j++) {
+                    fieldsAndValues[j] = lp.nextBytes();
+                }
+            }
+            lp.nextLong();
+            if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+                stream.append(new StreamValue.Id(ms, seq), fieldsAndValues);
+            }
+        }
+    }
+
+    /**
+     * Reads the elements of a listpack in the binary format of Redis one after another. Each element is a string
+     * or an integer in one of several encodings, followed by its size for walking backwards, which is skipped.
+     */
+    private static final class Listpack {
+        private final byte[] b;
+        // After the header of total size and number of elements
+        private int pos = 6;
+        private long integer;
+        private byte[] string;
+
+        Listpack(byte[] b) {
+            this.b = b;
+        }
+
+        long nextLong() throws IOException {
+            next();
+            if (string == null) {
+                return integer;
+            }
+            try {
+                return Long.parseLong(new String(string, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid integer in listpack");
+            }
+        }
+
+        byte[] nextBytes() throws IOException {
+            next();
+            return string != null ? string : Long.toString(integer).getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private void next() throws IOException {
+            try {
+                int start = pos;
+                int e = b[pos++] & 0xFF;
+                string = null;
+                if (e < 0x80) {
+                    integer = e;
+                } else if (e < 0xC0) {
+                    string = bytes(e & 0x3F);
+                } else if (e < 0xE0) {
+                    integer = ((e & 0x1F) << 8 | b[pos++] & 0xFF) << 19 >> 19;
+                } else if (e < 0xF0) {
+                    string = bytes((e & 0x0F) << 8 | b[pos++] & 0xFF);
+                } else {
+                    switch (e) {
+                        case 0xF0 -> string = bytes((int) littleEndian(4));
+                        case 0xF1 -> integer = (short) littleEndian(2);
+                        case 0xF2 -> integer = littleEndian(3) << 40 >> 40;
+                        case 0xF3 -> integer = (int) littleEndian(4);
+                        case 0xF4 -> integer = littleEndian(8);
+                        default -> throw new IOException("Invalid listpack encoding " + e);
+                    }
+                }
+                int size = pos - start;
+                pos += size <= 127 ? 1 : size < 16383 ? 2 : size < 2097151 ? 3 : size < 268435455 ? 4 : 5;
+            } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+                throw new IOException("Listpack cut short");
+            }
+        }
+
+        private byte[] bytes(int length) {
+            if (pos + length > b.length) {
+                throw new ArrayIndexOutOfBoundsException(pos + length);
+            }
+            byte[] bytes = Arrays.copyOfRange(b, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        private long littleEndian(int n) {
+            long value = 0;
+            for (int i = 0; i < n; i++) {
+                value |= (long) (b[pos++] & 0xFF) << (8 * i);
+            }
+            return value;
+        }
+    }
+
+    private String readAsciiString() throws IOException {
+        return new String(readString(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads a score of the original sorted set encoding: its length as one byte, with three lengths standing for
+     * NaN and the infinities, followed by the score as text.
+     */
+    private double readTextScore() throws IOException {
+        int length = readByte();
+        return switch (length) {
+            case 253 -> throw new IOException("Sorted set score is not a number");
+            case 254 -> Double.POSITIVE_INFINITY;
+            case 255 -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble(new String(readBytes(length), StandardCharsets.ISO_8859_1));
+        };
+    }
+
+    private void verifyChecksum() throws IOException {
+        updateChecksum();
+        long expected = crc.getValue();
+        long checksum = readLittleEndian(8);
+        if (checksum != 0 && checksum != expected) {
+            throw new IOException("RDB checksum mismatch");
+        }
+    }
+
+    /**
+     * Reads a length in the variable-size encoding of the RDB format. For a special string encoding, returns
+     * the encoding and sets {@link #encoded}.
+     */
+    private long readLength() throws IOException {
+        int first = readByte();
+        encoded = false;
+        switch (first >>> 6) {
+            case 0:
+                return first & 0x3F;
+            case 1:
+                return (first & 0x3F) << 8 | readByte();
+            case 2:
+                if (first == 0x80) {
+                    return readBigEndian(4);
+                }
+                if (first == 0x81) {
+                    return readBigEndian(8);
+                }
+                throw new IOException("Invalid RDB length encoding " + first);
+            default:
+                encoded = true;
+                return first & 0x3F;
+        }
+    }
+
+    private byte[] readString() throws IOException {
+        long length = readLength();
+        if (!encoded) {
+            return readBytes(checkedLength(length));
+        }
+        return switch ((int) length) {
+            case ENCODING_INT8 -> Long.toString((byte) readByte()).getBytes(StandardCharsets.ISO_8859_1);
+            case ENCODING_INT16 -> Long.toString((short) readLittleEndian(2)).getBytes(StandardCharsets.ISO_8859_1);
+            case ENCODING_INT32 -> Long.toString((int) readLittleEndian(4)).getBytes(StandardCharsets.ISO_8859_1);
+            case ENCODING_LZF -> {
+                int compressedLength = checkedLength(readLength());
+                int decompressedLength = checkedLength(readLength());
+                yield decompress(readBytes(compressedLength), decompressedLength);
+            }
+            default -> throw new IOException("Invalid RDB string encoding " + length);
+        };
+    }
+
+    private static int checkedLength(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("RDB string too long: " + length);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Decompresses LZF data as written by Redis for compressible strings.
+     */
+    private static byte[] decompress(byte[] in, int length) throws IOException {
+        byte[] out = new byte[length];
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                int ctrl = in[ip++] & 0xFF;
+                if (ctrl < 32) {
+                    // Literal run of ctrl + 1 bytes
+                    ctrl++;
+                    System.arraycopy(in, ip, out, op, ctrl);
+                    ip += ctrl;
+                    op += ctrl;
+                } else {
+                    // Back reference, which may overlap the bytes it produces
+                    int len = ctrl >>> 5;
+                    int ref = op - ((ctrl & 0x1F) << 8) - 1;
+                    if (len == 7) {
+                        len += in[ip++] & 0xFF;
+                    }
+                    ref -= in[ip++] & 0xFF;
+                    len += 2;
+                    for (int i = 0; i < len; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZF string in RDB file", e);
+        }
+        if (op != length) {
+            throw new IOException("Corrupt LZF string in RDB file");
+        }
+        return out;
+    }
+
+    private long readLittleEndian(int n) throws IOException {
+        long value = 0;
+        for (int i = 0; i < n; i++) {
+            value |= (long) readByte() << (8 * i);
+        }
+        return value;
+    }
+
+    private long readBigEndian(int n) throws IOException {
+        long value = 0;
+        for (int i = 0; i < n; i++) {
+            value = value << 8 | readByte();
+        }
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        if (!window.hasRemaining()) {
+            nextWindow();
+        }
+        return window.get() & 0xFF;
+    }
+
+    private byte[] readBytes(int n) throws IOException {
+        byte[] bytes = new byte[n];
+        int copied = 0;
+        while (copied < n) {
+            if (!window.hasRemaining()) {
+                nextWindow();
+            }
+            int chunk = Math.min(n - copied, window.remaining());
+            window.get(bytes, copied, chunk);
+            copied += chunk;
+        }
+        return bytes;
+    }
+
+    private void nextWindow() throws IOException {
+        updateChecksum();
+        ByteBuffer next = windows.next();
+        if (next == null) {
+            throw new EOFException("Truncated RDB data");
+        }
+        window = next;
+        checksummed = window.position();
+    }
+
+    /**
+     * Adds the bytes consumed from the current window since the last call to the checksum.
+     */
+    private void updateChecksum() {
+        int end = window.position();
+        if (window.hasArray()) {
+            crc.update(window.array(), window.arrayOffset() + checksummed, end - checksummed);
+        } else {
+            byte[] chunk = new byte[Math.min(end - checksummed, STREAM_BUFFER_SIZE)];
+            for (int i = checksummed; i < end; i += chunk.length) {
+                int n = Math.min(chunk.length, end - i);
+                window.get(i, chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+        }
+        checksummed = end;
+    }
+}
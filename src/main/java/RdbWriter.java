@@ -0,0 +1,427 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The RdbWriter class encodes key-value entries in the Redis RDB file format, version 11.
+ * <p>
+ * {@link #writeHeader()} starts the file, the writer itself is passed to
+ * {@link KeyValueHandler#snapshot(KeyValueHandler.EntryVisitor)} as the visitor, and {@link #finish()} ends the
+ * file with its checksum. Output is encoded into a buffer of its own and written in large chunks.
+ * <p>
+ * Collections are written in the plain encodings every version of Redis reads: lists, sets and hashes as a count
+ * followed by their strings, and sorted sets with binary scores. Streams have no plain encoding, so they are written
+ * as Redis 5 does, as listpacks of up to {@value #STREAM_NODE_ENTRIES} entries each, without consumer groups.
+ */
+public class RdbWriter implements Closeable, KeyValueHandler.EntryVisitor {
+    static final String MAGIC = "REDIS0011";
+    static final int OPCODE_AUX = 0xFA;
+    static final int OPCODE_RESIZEDB = 0xFB;
+    static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    static final int OPCODE_EXPIRETIME = 0xFD;
+    static final int OPCODE_SELECTDB = 0xFE;
+    static final int OPCODE_EOF = 0xFF;
+    static final int TYPE_STRING = 0;
+    static final int TYPE_LIST = 1;
+    static final int TYPE_SET = 2;
+    static final int TYPE_ZSET = 3;
+    static final int TYPE_HASH = 4;
+    static final int TYPE_ZSET_2 = 5;
+    static final int TYPE_STREAM_LISTPACKS = 15;
+    static final int TYPE_STREAM_LISTPACKS_2 = 19;
+    static final int TYPE_STREAM_LISTPACKS_3 = 21;
+    // Entries per listpack of a stream, as Redis' stream-node-max-entries defaults to
+    private static final int STREAM_NODE_ENTRIES = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final Crc64 crc = new Crc64();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+
+    /**
+     * Constructs an RdbWriter writing to the specified OutputStream.
+     *
+     * @param out the OutputStream to be written to
+     */
+    public RdbWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the magic string, the auxiliary fields Redis writes, and selects database 0.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeHeader() throws IOException {
+        writeBytes(MAGIC.getBytes(StandardCharsets.ISO_8859_1));
+        writeAux("redis-ver", "7.2.0");
+        writeAux("redis-bits", "64");
+        writeAux("ctime", String.valueOf(System.currentTimeMillis() / 1000));
+        writeByte(OPCODE_SELECTDB);
+        writeLength(0);
+    }
+
+    /**
+     * Writes a string entry.
+     *
+     * @param key       the key
+     * @param value     the value
+     * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeEntry(String key, byte[] value, long expiresAt) throws IOException {
+        writeExpiry(expiresAt);
+        writeByte(TYPE_STRING);
+        writeString(key);
+        writeValue(value);
+    }
+
+    /**
+     * Writes an entry holding a collection.
+     *
+     * @param key       the key
+     * @param value     the collection
+     * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeEntry(String key, CollectionValue value, long expiresAt) throws IOException {
+        writeExpiry(expiresAt);
+        try {
+            if (value instanceof HashValue hash) {
+                writeByte(TYPE_HASH);
+                writeString(key);
+                writeLength(hash.size());
+                hash.forEach((field, v) -> {
+                    writeStringUnchecked(field);
+                    writeValueUnchecked(v);
+                });
+            } else if (value instanceof ListValue list) {
+                writeByte(TYPE_LIST);
+                writeString(key);
+                writeLength(list.size());
+                list.range(0, -1, this::writeValueUnchecked);
+            } else if (value instanceof SetValue set) {
+                writeByte(TYPE_SET);
+                writeString(key);
+                writeLength(set.size());
+                set.forEach(this::writeStringUnchecked);
+            } else if (value instanceof SortedSetValue zset) {
+                writeByte(TYPE_ZSET_2);
+                writeString(key);
+                writeLength(zset.size());
+                zset.forEach((member, score) -> {
+                    writeStringUnchecked(member);
+                    try {
+                        writeLongLittleEndian(Double.doubleToLongBits(score));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } else if (value instanceof StreamValue stream) {
+                writeByte(TYPE_STREAM_LISTPACKS);
+                writeString(key);
+                writeStream(stream);
+            } else {
+                throw new IOException("Cannot write a value of type " + value.type());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void visit(String key, byte[] value, long expiresAt) throws IOException {
+        writeEntry(key, value, expiresAt);
+    }
+
+    @Override
+    public void visit(String key, CollectionValue value, long expiresAt) throws IOException {
+        writeEntry(key, value, expiresAt);
+    }
+
+    /**
+     * Writes the end of file marker and the checksum, and flushes everything to the OutputStream.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void finish() throws IOException {
+        writeByte(OPCODE_EOF);
+        drain();
+        // The checksum itself is not part of what it covers
+        long checksum = crc.getValue();
+        for (int i = 0; i < 8; i++) {
+            buffer[count++] = (byte) (checksum >>> (8 * i));
+        }
+        out.write(buffer, 0, count);
+        count = 0;
+        out.flush();
+    }
+
+    /**
+     * Writes a stream as its listpacks, each keyed by the ID of its first entry, followed by its length and last ID
+     * and no consumer groups.
+     */
+    private void writeStream(StreamValue stream) throws IOException {
+        long length = stream.size();
+        writeLength((length + STREAM_NODE_ENTRIES - 1) / STREAM_NODE_ENTRIES);
+        List<StreamValue.Entry> node = new ArrayList<>(STREAM_NODE_ENTRIES);
+        stream.forEach(entry -> {
+            node.add(entry);
+            if (node.size() == STREAM_NODE_ENTRIES) {
+                writeStreamNodeUnchecked(node);
+                node.clear();
+            }
+        });
+        if (!node.isEmpty()) {
+            writeStreamNodeUnchecked(node);
+        }
+        writeLength(length);
+        writeLength(stream.lastId().ms);
+        writeLength(stream.lastId().seq);
+        // Consumer groups
+        writeLength(0);
+    }
+
+    private void writeStreamNodeUnchecked(List<StreamValue.Entry> entries) {
+        try {
+            StreamValue.Id first = entries.get(0).id();
+            byte[] key = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                key[i] = (byte) (first.ms >>> (56 - 8 * i));
+                key[8 + i] = (byte) (first.seq >>> (56 - 8 * i));
+            }
+            writeValue(key);
+            writeValue(encodeStreamListpack(first, entries));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes entries in the listpack layout of a Redis stream node. The master entry that Redis uses to share
+     * field names between entries lists no fields, so every entry carries its own.
+     */
+    private static byte[] encodeStreamListpack(StreamValue.Id first, List<StreamValue.Entry> entries) {
+        Listpack lp = new Listpack();
+        // Master entry: valid entries, deleted entries, master fields, end of master fields
+        lp.add(entries.size());
+        lp.add(0);
+        lp.add(0);
+        lp.add(0);
+        for (StreamValue.Entry entry : entries) {
+            byte[][] fieldsAndValues = entry.fieldsAndValues();
+            // Flags: neither deleted nor sharing the master fields
+            lp.add(0);
+            lp.add(entry.id().ms - first.ms);
+            lp.add(entry.id().seq - first.seq);
+            lp.add(fieldsAndValues.length / 2);
+            for (byte[] b : fieldsAndValues) {
+                lp.add(b);
+            }
+            // The number of elements of the entry before this one, to walk the node backwards
+            lp.add(fieldsAndValues.length + 4);
+        }
+        return lp.toByteArray();
+    }
+
+    /**
+     * Builds a listpack in the binary format of Redis: a header with the total size and the number of elements,
+     * the elements each followed by its own size for walking backwards, and an end marker.
+     */
+    private static final class Listpack {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int elements;
+
+        Listpack() {
+            bytes.write(new byte[6], 0, 6);
+        }
+
+        void add(long value) {
+            int start = bytes.size();
+            if (value >= 0 && value < 128) {
+                bytes.write((int) value);
+            } else if (value >= -4096 && value < 4096) {
+                bytes.write(0xC0 | (int) (value >> 8) & 0x1F);
+                bytes.write((int) value);
+            } else {
+                bytes.write(0xF4);
+                for (int i = 0; i < 8; i++) {
+                    bytes.write((int) (value >>> (8 * i)));
+                }
+            }
+            finishElement(bytes.size() - start);
+        }
+
+        void add(byte[] value) {
+            int length = value.length;
+            if (length < 64) {
+                bytes.write(0x80 | length);
+            } else if (length < 4096) {
+                bytes.write(0xE0 | length >> 8);
+                bytes.write(length);
+            } else {
+                bytes.write(0xF0);
+                for (int i = 0; i < 4; i++) {
+                    bytes.write(length >>> (8 * i));
+                }
+            }
+            bytes.write(value, 0, length);
+            finishElement((length < 64 ? 1 : length < 4096 ? 2 : 5) + length);
+        }
+
+        /**
+         * Writes the size of the element just written, seven bits per byte with the most significant first, and the
+         * high bit set on every byte but the first, which is where reading backwards stops.
+         */
+        private void finishElement(int size) {
+            if (size < 128) {
+                bytes.write(size);
+            } else {
+                int n = size < 16383 ? 2 : size < 2097151 ? 3 : size < 268435455 ? 4 : 5;
+                for (int i = n - 1; i >= 0; i--) {
+                    int b = size >>> (7 * i) & 0x7F;
+                    bytes.write(i == n - 1 ? b : b | 0x80);
+                }
+            }
+            elements++;
+        }
+
+        byte[] toByteArray() {
+            bytes.write(0xFF);
+            byte[] b = bytes.toByteArray();
+            for (int i = 0; i < 4; i++) {
+                b[i] = (byte) (b.length >>> (8 * i));
+            }
+            int count = Math.min(elements, 65535);
+            b[4] = (byte) count;
+            b[5] = (byte) (count >>> 8);
+            return b;
+        }
+    }
+
+    private void writeExpiry(long expiresAt) throws IOException {
+        if (expiresAt >= 0) {
+            writeByte(OPCODE_EXPIRETIME_MS);
+            writeLongLittleEndian(expiresAt);
+        }
+    }
+
+    private void writeValue(byte[] value) throws IOException {
+        writeLength(value.length);
+        writeBytes(value);
+    }
+
+    // For the callbacks that walk a collection, which cannot throw checked exceptions
+    private void writeValueUnchecked(byte[] value) {
+        try {
+            writeValue(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeStringUnchecked(String string) {
+        try {
+            writeString(string);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeAux(String name, String value) throws IOException {
+        writeByte(OPCODE_AUX);
+        writeString(name);
+        writeString(value);
+    }
+
+    private void writeString(String string) throws IOException {
+        int length = string.length();
+        writeLength(length);
+        if (length > BUFFER_SIZE) {
+            writeBytes(string.getBytes(StandardCharsets.ISO_8859_1));
+            return;
+        }
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) string.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a length in the variable-size encoding of the RDB format.
+     */
+    private void writeLength(long length) throws IOException {
+        ensureCapacity(9);
+        if (length < 1 << 6) {
+            buffer[count++] = (byte) length;
+        } else if (length < 1 << 14) {
+            buffer[count++] = (byte) (0x40 | (length >>> 8));
+            buffer[count++] = (byte) length;
+        } else if (length <= 0xFFFFFFFFL) {
+            buffer[count++] = (byte) 0x80;
+            for (int i = 3; i >= 0; i--) {
+                buffer[count++] = (byte) (length >>> (8 * i));
+            }
+        } else {
+            buffer[count++] = (byte) 0x81;
+            for (int i = 7; i >= 0; i--) {
+                buffer[count++] = (byte) (length >>> (8 * i));
+            }
+        }
+    }
+
+    private void writeLongLittleEndian(long value) throws IOException {
+        ensureCapacity(8);
+        for (int i = 0; i < 8; i++) {
+            buffer[count++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] b) throws IOException {
+        if (b.length > BUFFER_SIZE) {
+            // Large values go straight to the stream instead of being copied into the buffer
+            drain();
+            crc.update(b, 0, b.length);
+            out.write(b);
+            return;
+        }
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, buffer, count, b.length);
+        count += b.length;
+    }
+
+    private void ensureCapacity(int n) throws IOException {
+        if (count + n > buffer.length) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            crc.update(buffer, 0, count);
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Closes the OutputStream. Call {@link #finish()} first for a complete file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
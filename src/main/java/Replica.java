@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Replica class holds what a master tracks about one connected replica: how far the replication stream has
+ * been sent to it, how far the replica has acknowledged processing it, and the socket to drop it by once it falls
+ * too far behind.
+ */
+public class Replica {
+    private final Socket socket;
+    private final AtomicBoolean dropped = new AtomicBoolean();
+    private final int listeningPort;
+    private volatile long sentOffset;
+    // Only ever moves forward, whatever order acknowledgements are handled in
+    private final AtomicLong ackOffset;
+    private volatile long lastAckMillis = System.currentTimeMillis();
+
+    /**
+     * Constructs a Replica that is to be sent the replication stream from the given offset on. Everything before
+     * that offset counts as acknowledged, since the replica got it with its initial sync.
+     *
+     * @param socket        the replica's connection
+     * @param listeningPort the port the replica serves clients on, as given by REPLCONF listening-port
+     * @param offset        the offset of the first byte to send
+     */
+    public Replica(Socket socket, int listeningPort, long offset) {
+        this.socket = socket;
+        this.listeningPort = listeningPort;
+        this.sentOffset = offset;
+        this.ackOffset = new AtomicLong(offset);
+    }
+
+    /**
+     * Returns the offset up to which the replication stream has been sent.
+     *
+     * @return the offset of the next byte to send
+     */
+    public long getSentOffset() {
+        return sentOffset;
+    }
+
+    /**
+     * Records that the replication stream has been sent up to the given offset.
+     *
+     * @param offset the offset of the next byte to send
+     */
+    public void setSentOffset(long offset) {
+        this.sentOffset = offset;
+    }
+
+    /**
+     * Returns the offset up to which the replica has acknowledged processing the replication stream.
+     *
+     * @return the acknowledged offset
+     */
+    public long getAckOffset() {
+        return ackOffset.get();
+    }
+
+    /**
+     * Records an acknowledgement from the replica. Use {@link ReplicaRegistry#acknowledge(Replica, long)} instead,
+     * which also wakes the WAIT commands the acknowledgement satisfies.
+     *
+     * @param offset the offset the replica reports having processed
+     * @return true if the acknowledged offset moved forward
+     */
+    boolean acknowledge(long offset) {
+        lastAckMillis = System.currentTimeMillis();
+        long current;
+        while ((current = ackOffset.get()) < offset) {
+            if (ackOffset.compareAndSet(current, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time of the last acknowledgement from the replica, or of its sync if it has sent none yet.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getLastAckMillis() {
+        return lastAckMillis;
+    }
+
+    /**
+     * Returns the address of the replica, for INFO.
+     *
+     * @return the IP address of the replica
+     */
+    public String getHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Returns the port the replica serves clients on.
+     *
+     * @return the listening port, or 0 if the replica did not tell
+     */
+    public int getListeningPort() {
+        return listeningPort;
+    }
+
+    /**
+     * Closes the replica's connection, which also ends a write to it that is blocked. Only the first call has an
+     * effect.
+     *
+     * @param reason why the replica is dropped, for the log
+     */
+    public void drop(String reason) {
+        if (!dropped.compareAndSet(false, true)) {
+            return;
+        }
+        Log.notice("Dropping replica " + socket.getRemoteSocketAddress() + ": " + reason);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+    }
+
+    /**
+     * Returns whether the replica has been dropped.
+     *
+     * @return true once {@link #drop(String)} has been called
+     */
+    public boolean isDropped() {
+        return dropped.get();
+    }
+}
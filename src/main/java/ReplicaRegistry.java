@@ -0,0 +1,147 @@
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ReplicaRegistry class keeps track of the replicas connected to a master and of the WAIT commands waiting for
+ * them to acknowledge the replication stream.
+ * <p>
+ * Waiting commands are kept ordered by the offset they wait for. An acknowledgement up to some offset can only
+ * satisfy commands waiting for that offset or an earlier one, so only those are looked at, and each command is
+ * woken the moment enough replicas have reached its offset instead of polling for it.
+ */
+public class ReplicaRegistry implements Iterable<Replica> {
+    private final List<Replica> replicas = new CopyOnWriteArrayList<>();
+    // Guards the waiters
+    private final ReentrantLock lock = new ReentrantLock();
+    private final NavigableSet<Waiter> waiters = new TreeSet<>(
+            Comparator.comparingLong(Waiter::offset).thenComparingLong(Waiter::id));
+    // Tells apart waiters for the same offset
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * A WAIT command waiting for a number of replicas to acknowledge an offset.
+     */
+    private record Waiter(long offset, int replicas, long id, CountDownLatch done) {
+    }
+
+    /**
+     * Adds a replica that has completed its sync.
+     *
+     * @param replica the replica
+     */
+    public void add(Replica replica) {
+        replicas.add(replica);
+    }
+
+    /**
+     * Removes a replica whose connection has ended.
+     *
+     * @param replica the replica
+     */
+    public void remove(Replica replica) {
+        replicas.remove(replica);
+    }
+
+    /**
+     * Returns the number of connected replicas.
+     *
+     * @return the number of replicas
+     */
+    public int size() {
+        return replicas.size();
+    }
+
+    @Override
+    public Iterator<Replica> iterator() {
+        return replicas.iterator();
+    }
+
+    /**
+     * Records that a replica has processed the replication stream up to an offset, and wakes the WAIT commands
+     * that now have enough replicas.
+     *
+     * @param replica the replica
+     * @param offset  the offset the replica reports
+     */
+    public void acknowledge(Replica replica, long offset) {
+        if (!replica.acknowledge(offset)) {
+            return;
+        }
+        lock.lock();
+        try {
+            Iterator<Waiter> candidates = waiters.headSet(new Waiter(offset, 0, Long.MAX_VALUE, null), true).iterator();
+            while (candidates.hasNext()) {
+                Waiter waiter = candidates.next();
+                if (countAcknowledged(waiter.offset) >= waiter.replicas) {
+                    candidates.remove();
+                    waiter.done.countDown();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of replicas that have acknowledged the replication stream up to an offset.
+     *
+     * @param offset the offset
+     * @return the number of replicas at or past it
+     */
+    public int countAcknowledged(long offset) {
+        int count = 0;
+        for (Replica replica : replicas) {
+            if (replica.getAckOffset() >= offset) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Waits until the given number of replicas have acknowledged an offset, or the timeout expires.
+     *
+     * @param offset   the offset to wait for
+     * @param needed   the number of replicas to wait for
+     * @param timeout  the longest time to wait in milliseconds, or 0 to wait for good
+     * @return the number of replicas that have acknowledged the offset
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int await(long offset, int needed, long timeout) throws InterruptedException {
+        Waiter waiter = new Waiter(offset, needed, sequence.incrementAndGet(), new CountDownLatch(1));
+        lock.lock();
+        try {
+            // Checked under the lock, so that no acknowledgement can come in between checking and registering
+            int count = countAcknowledged(offset);
+            if (count >= needed) {
+                return count;
+            }
+            waiters.add(waiter);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (timeout == 0) {
+                waiter.done.await();
+            } else {
+                waiter.done.await(timeout, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.lock();
+            try {
+                waiters.remove(waiter);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return countAcknowledged(offset);
+    }
+}
@@ -0,0 +1,209 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ReplicationBacklog class keeps the most recent bytes of the replication stream in a ring buffer of fixed size.
+ * It is the one copy of the stream that all replicas are sent from, and lets a replica that lost its connection for
+ * a moment be sent only what it missed instead of a full resync.
+ * <p>
+ * Commands are added already encoded in RESP, exactly as they are sent to replicas, and the backlog counts every
+ * byte ever added as the master replication offset. Offsets are zero-based here: a replica that has been sent
+ * {@code n} bytes of the stream needs the bytes from offset {@code n} on. Each replica sender keeps its own offset,
+ * waits in {@link #awaitBeyond(long, long)} for the stream to grow, and copies the new bytes out with
+ * {@link #read(long, byte[])} before writing them, since the ring buffer may wrap over them while a slow replica
+ * is being written to.
+ */
+public class ReplicationBacklog {
+    private final byte[] buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition advanced = lock.newCondition();
+    // Master replication offset: the number of bytes ever added
+    private volatile long offset;
+    // Number of bytes in the buffer, at most buffer.length
+    private volatile int length;
+
+    /**
+     * Constructs an empty ReplicationBacklog.
+     *
+     * @param size the number of bytes kept
+     */
+    public ReplicationBacklog(int size) {
+        this.buffer = new byte[Math.max(size, 1)];
+    }
+
+    /**
+     * Adds encoded bytes to the end of the stream, dropping the oldest bytes once the backlog is full.
+     *
+     * @param bytes the bytes to add
+     * @return the master replication offset after the bytes
+     */
+    public long append(byte[] bytes) {
+        lock.lock();
+        try {
+            int n = bytes.length;
+            int from = 0;
+            if (n > buffer.length) {
+                // Only the tail fits
+                from = n - buffer.length;
+            }
+            int position = (int) ((offset + from) % buffer.length);
+            int first = Math.min(n - from, buffer.length - position);
+            System.arraycopy(bytes, from, buffer, position, first);
+            System.arraycopy(bytes, from + first, buffer, 0, n - from - first);
+            length = (int) Math.min(buffer.length, length + (long) n);
+            offset += n;
+            advanced.signalAll();
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the stream has grown beyond the given offset.
+     *
+     * @param from    the offset the caller has got up to
+     * @param timeout the longest time to wait, in milliseconds
+     * @return the master replication offset, which is still {@code from} if the wait timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long awaitBeyond(long from, long timeout) throws InterruptedException {
+        if (offset > from) {
+            return offset;
+        }
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (offset <= from && nanos > 0) {
+                nanos = advanced.awaitNanos(nanos);
+            }
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the part of the stream between two offsets as views of the ring buffer, without copying: one buffer,
+     * or two where the range wraps around. The views are only valid as long as {@link #isRetained(long)} holds for
+     * their start; check it after using them, since the bytes may be overwritten meanwhile.
+     *
+     * @param from the offset of the first byte
+     * @param to   the offset just past the last byte
+     * @return the views, or null if some of the bytes are no longer in the backlog or lie in the future
+     */
+    public ByteBuffer[] slices(long from, long to) {
+        if (!isRetained(from) || to > offset || to < from) {
+            return null;
+        }
+        int n = (int) (to - from);
+        int position = (int) (from % buffer.length);
+        int first = Math.min(n, buffer.length - position);
+        if (first == n) {
+            return new ByteBuffer[]{ByteBuffer.wrap(buffer, position, n)};
+        }
+        return new ByteBuffer[]{ByteBuffer.wrap(buffer, position, first), ByteBuffer.wrap(buffer, 0, n - first)};
+    }
+
+    /**
+     * Copies bytes of the stream from the given offset on, as many as there are up to its end and fit in the array,
+     * with the backlog locked, so that nothing is overwritten while it is copied.
+     *
+     * @param from the offset of the first byte wanted
+     * @param dst  the array to copy to, from its start
+     * @return the number of bytes copied, or -1 if some of them are no longer in the backlog or lie in the future
+     */
+    public int read(long from, byte[] dst) {
+        lock.lock();
+        try {
+            ByteBuffer[] slices = slices(from, Math.min(offset, from + dst.length));
+            if (slices == null) {
+                return -1;
+            }
+            int copied = 0;
+            for (ByteBuffer slice : slices) {
+                int n = slice.remaining();
+                slice.get(dst, copied, n);
+                copied += n;
+            }
+            return copied;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the bytes of the stream from the given offset up to its end, if the backlog still holds all of them.
+     *
+     * @param from the offset of the first byte wanted
+     * @return a copy of the bytes, or null if some of them are no longer in the backlog or lie in the future
+     */
+    public byte[] copyFrom(long from) {
+        lock.lock();
+        try {
+            ByteBuffer[] slices = slices(from, offset);
+            if (slices == null) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) (offset - from)];
+            int copied = 0;
+            for (ByteBuffer slice : slices) {
+                int n = slice.remaining();
+                slice.get(bytes, copied, n);
+                copied += n;
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the backlog still holds the byte at the given offset and everything after it.
+     *
+     * @param from the offset
+     * @return true if a replica at this offset can still be sent what follows
+     */
+    public boolean isRetained(long from) {
+        lock.lock();
+        try {
+            return from >= offset - length && from <= offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the master replication offset.
+     *
+     * @return the number of bytes ever added
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the oldest byte still in the backlog.
+     *
+     * @return the first offset a partial resync can start from
+     */
+    public long getFirstOffset() {
+        lock.lock();
+        try {
+            return offset - length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes the backlog keeps.
+     *
+     * @return the size of the ring buffer
+     */
+    public int getSize() {
+        return buffer.length;
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ServerStats class counts what happens to the server as a whole, for the clients and stats sections of INFO:
+ * connections made and open, the bytes read from and written to them, and the errors replied. What happens to the
+ * keys is counted by the {@link KeyValueHandler}, and what happens to each command by its
+ * {@link CommandTable.Command}.
+ * <p>
+ * The counters are {@link LongAdder}s, which threads update in cells of their own and which are only summed when
+ * read, so that connections counting at once do not contend on a shared cache line. Bytes are added once per batch
+ * of replies or commands rather than once per command.
+ */
+public final class ServerStats {
+    private static final long startMillis = System.currentTimeMillis();
+    private static final LongAdder connectionsReceived = new LongAdder();
+    private static final LongAdder connectedClients = new LongAdder();
+    private static final LongAdder netInputBytes = new LongAdder();
+    private static final LongAdder netOutputBytes = new LongAdder();
+    private static final LongAdder errorReplies = new LongAdder();
+
+    private ServerStats() {
+    }
+
+    /**
+     * Records a connection accepted.
+     */
+    public static void connectionOpened() {
+        connectionsReceived.increment();
+        connectedClients.increment();
+    }
+
+    /**
+     * Records a connection closed.
+     */
+    public static void connectionClosed() {
+        connectedClients.decrement();
+    }
+
+    /**
+     * Records bytes read from a connection.
+     *
+     * @param bytes the number of bytes
+     */
+    public static void addInputBytes(long bytes) {
+        netInputBytes.add(bytes);
+    }
+
+    /**
+     * Records bytes written to a connection.
+     *
+     * @param bytes the number of bytes
+     */
+    public static void addOutputBytes(long bytes) {
+        netOutputBytes.add(bytes);
+    }
+
+    /**
+     * Records an error sent in reply to a command, including one the server does not know.
+     */
+    public static void errorReplied() {
+        errorReplies.increment();
+    }
+
+    /**
+     * Returns the time the server has been up.
+     *
+     * @return the uptime in seconds
+     */
+    public static long getUptimeSeconds() {
+        return (System.currentTimeMillis() - startMillis) / 1000;
+    }
+
+    /**
+     * Returns the number of connections accepted since the server started.
+     *
+     * @return the number of connections
+     */
+    public static long getConnectionsReceived() {
+        return connectionsReceived.sum();
+    }
+
+    /**
+     * Returns the number of connections open, including those of replicas.
+     *
+     * @return the number of connections
+     */
+    public static long getConnectedClients() {
+        return connectedClients.sum();
+    }
+
+    /**
+     * Returns the number of bytes read from connections.
+     *
+     * @return the number of bytes
+     */
+    public static long getNetInputBytes() {
+        return netInputBytes.sum();
+    }
+
+    /**
+     * Returns the number of bytes written to connections, not counting the replication stream.
+     *
+     * @return the number of bytes
+     */
+    public static long getNetOutputBytes() {
+        return netOutputBytes.sum();
+    }
+
+    /**
+     * Returns the number of errors sent in reply to commands.
+     *
+     * @return the number of errors
+     */
+    public static long getErrorReplies() {
+        return errorReplies.sum();
+    }
+}
@@ -0,0 +1,187 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.function.Consumer;
+
+/**
+ * The SetValue class holds the members of a set. Members are kept in a {@link ListPack} until the set has more than
+ * {@link #maxListpackEntries} members or one longer than {@link #maxListpackValue} bytes, and in a hash table from
+ * then on.
+ */
+public class SetValue extends CollectionValue {
+    /**
+     * The number of members above which a set switches to a hash table, as set by set-max-listpack-entries.
+     */
+    public static volatile int maxListpackEntries = 128;
+    /**
+     * The length of a member above which a set switches to a hash table, as set by set-max-listpack-value.
+     */
+    public static volatile int maxListpackValue = 64;
+
+    private ListPack pack = new ListPack();
+    private HashSet<String> table;
+    // Bytes of the members in the table
+    private long tableBytes;
+
+    /**
+     * Constructs an empty set.
+     */
+    public SetValue() {
+    }
+
+    private SetValue(SetValue other) {
+        if (other.table != null) {
+            this.pack = null;
+            this.table = new HashSet<>(other.table);
+            this.tableBytes = other.tableBytes;
+        } else {
+            this.pack = new ListPack(other.pack);
+        }
+    }
+
+    @Override
+    public String type() {
+        return "set";
+    }
+
+    @Override
+    public String encoding() {
+        return table == null ? "listpack" : "hashtable";
+    }
+
+    @Override
+    public int size() {
+        return table == null ? pack.size() : table.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return table == null ? pack.memoryUsage() : tableBytes + (long) table.size() * ELEMENT_OVERHEAD;
+    }
+
+    @Override
+    public SetValue copy() {
+        return new SetValue(this);
+    }
+
+    /**
+     * Returns whether a member is in the set.
+     *
+     * @param member the member
+     * @return true if the set holds it
+     */
+    public boolean contains(String member) {
+        return table != null ? table.contains(member) : pack.find(pack.first(), bytes(member), 1) >= 0;
+    }
+
+    /**
+     * Adds a member.
+     *
+     * @param member the member
+     * @return true if it was not in the set yet
+     */
+    public boolean add(String member) {
+        if (table == null && member.length() > maxListpackValue) {
+            convert();
+        }
+        if (table != null) {
+            if (!table.add(member)) {
+                return false;
+            }
+            tableBytes += member.length();
+            return true;
+        }
+        byte[] bytes = bytes(member);
+        if (pack.find(pack.first(), bytes, 1) >= 0) {
+            return false;
+        }
+        pack.insert(pack.end(), bytes);
+        if (pack.size() > maxListpackEntries) {
+            convert();
+        }
+        return true;
+    }
+
+    /**
+     * Adds the members given as consecutive arguments, as in SADD.
+     *
+     * @param args the arguments
+     * @param from the index of the first member
+     * @return the number of members that were new
+     */
+    public int add(String[] args, int from) {
+        int added = 0;
+        for (int i = from; i < args.length; i++) {
+            if (add(args[i])) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param member the member
+     * @return true if the set held it
+     */
+    public boolean remove(String member) {
+        if (table != null) {
+            if (!table.remove(member)) {
+                return false;
+            }
+            tableBytes -= member.length();
+            return true;
+        }
+        int offset = pack.find(pack.first(), bytes(member), 1);
+        if (offset < 0) {
+            return false;
+        }
+        pack.delete(offset, 1);
+        return true;
+    }
+
+    /**
+     * Removes the members given as consecutive arguments, as in SREM.
+     *
+     * @param args the arguments
+     * @param from the index of the first member
+     * @return the number of members that were removed
+     */
+    public int remove(String[] args, int from) {
+        int removed = 0;
+        for (int i = from; i < args.length; i++) {
+            if (remove(args[i])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Hands every member to the consumer.
+     *
+     * @param consumer receives the members
+     */
+    public void forEach(Consumer<String> consumer) {
+        if (table != null) {
+            table.forEach(consumer);
+            return;
+        }
+        for (int offset = pack.first(); offset < pack.end(); offset = pack.next(offset)) {
+            consumer.accept(new String(pack.get(offset), StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private void convert() {
+        HashSet<String> converted = new HashSet<>();
+        long bytes = 0;
+        for (int offset = pack.first(); offset < pack.end(); offset = pack.next(offset)) {
+            byte[] member = pack.get(offset);
+            converted.add(new String(member, StandardCharsets.ISO_8859_1));
+            bytes += member.length;
+        }
+        table = converted;
+        tableBytes = bytes;
+        pack = null;
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ShardExecutor class splits the keyspace into shards by key hash and runs the commands on the keys of each
+ * shard on a thread that owns it, so that an entry, its map bin and its lock stay in the cache of one core instead
+ * of bouncing between the cores of every connection touching them.
+ * <p>
+ * Each shard has a {@link MpscQueue} that connections add tasks to, and a thread that runs them in order. A
+ * connection waits for its task to be done, spinning a little before parking, so the owner's changes to the
+ * connection's state are visible once it carries on. A command over the keys of several shards is split into a
+ * task per shard, all queued before waiting for any of them.
+ * <p>
+ * An owner never waits for another shard, and a thread holding {@link KeyLocks} stripes never waits for a shard:
+ * owners lock the stripes of the keys they run commands on, and could otherwise wait for each other in a circle.
+ */
+public class ShardExecutor {
+    private static final int SPINS = 128;
+
+    /**
+     * Work queued on a shard. A task may be run again once done.
+     */
+    public abstract static class Task {
+        private volatile boolean done;
+        private Thread waiter;
+        private Throwable failure;
+
+        /**
+         * Runs the task on the thread owning its shard.
+         *
+         * @throws Exception anything thrown is rethrown to the waiting thread
+         */
+        protected abstract void execute() throws Exception;
+    }
+
+    private static final class Shard implements Runnable {
+        final MpscQueue<Task> queue = new MpscQueue<>();
+        volatile boolean sleeping;
+        Thread thread;
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task = queue.poll();
+                if (task == null) {
+                    idle();
+                    continue;
+                }
+                run(task);
+            }
+        }
+
+        static void run(Task task) {
+            try {
+                task.execute();
+            } catch (Throwable e) {
+                task.failure = e;
+            }
+            task.done = true;
+            LockSupport.unpark(task.waiter);
+        }
+
+        private void idle() {
+            for (int i = 0; i < SPINS; i++) {
+                if (!queue.isEmpty()) {
+                    return;
+                }
+                Thread.onSpinWait();
+            }
+            // Announced before checking again, so that a producer linking its task meanwhile sees it and wakes us
+            sleeping = true;
+            if (queue.isEmpty()) {
+                LockSupport.park(this);
+            }
+            sleeping = false;
+        }
+
+        void submit(Task task) {
+            task.done = false;
+            task.failure = null;
+            task.waiter = Thread.currentThread();
+            queue.offer(task);
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private final Shard[] shards;
+
+    /**
+     * Constructs a ShardExecutor and starts the threads owning its shards.
+     *
+     * @param count the number of shards, typically one per core
+     */
+    public ShardExecutor(int count) {
+        shards = new Shard[Math.max(count, 1)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            shards[i].thread = Thread.ofPlatform().daemon().name("shard-" + i).start(shards[i]);
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the shard owning a key.
+     *
+     * @param key the key
+     * @return the index of the shard
+     */
+    public int shardOf(String key) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Runs a task on the thread owning a shard and waits for it, or runs it right away if that is this thread.
+     *
+     * @param shard the index of the shard
+     * @param task  the task
+     * @throws IOException          if the task threw one
+     * @throws InterruptedException if the task threw one
+     */
+    public void run(int shard, Task task) throws IOException, InterruptedException {
+        Shard owner = shards[shard];
+        if (owner.thread == Thread.currentThread()) {
+            Shard.run(task);
+        } else {
+            owner.submit(task);
+            await(task);
+        }
+        rethrow(task.failure);
+    }
+
+    /**
+     * Runs tasks on the threads owning their shards, all at once, and waits for every one of them.
+     *
+     * @param tasks the task of each shard, indexed by shard, null for shards with nothing to do
+     * @throws IOException          if a task threw one
+     * @throws InterruptedException if a task threw one
+     */
+    public void runAll(Task[] tasks) throws IOException, InterruptedException {
+        for (int i = 0; i < tasks.length; i++) {
+            if (tasks[i] != null) {
+                shards[i].submit(tasks[i]);
+            }
+        }
+        Throwable failure = null;
+        for (Task task : tasks) {
+            if (task != null) {
+                await(task);
+                if (failure == null) {
+                    failure = task.failure;
+                }
+            }
+        }
+        rethrow(failure);
+    }
+
+    /**
+     * Waits for a task to be done. The task still refers to the waiting thread's state, so an interrupt does not
+     * cut the wait short; it is kept for the caller to notice.
+     */
+    private static void await(Task task) {
+        for (int i = 0; i < SPINS && !task.done; i++) {
+            Thread.onSpinWait();
+        }
+        boolean interrupted = false;
+        while (!task.done) {
+            LockSupport.park(task);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException, InterruptedException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException e) {
+            throw e;
+        }
+        if (failure instanceof InterruptedException e) {
+            throw e;
+        }
+        if (failure instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure instanceof Error e) {
+            throw e;
+        }
+        throw new IOException(failure);
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The SkipList class keeps the members of a large sorted set ordered by score, and by member for equal scores, as
+ * Redis' zskiplist does.
+ * <p>
+ * Each node is linked at a random number of levels, each level skipping about four times as many nodes as the one
+ * below, so that a member is found, added or removed in logarithmic time. Every link also records how many nodes
+ * it spans, which gives the rank of a member, and the member at a rank, in logarithmic time as well.
+ */
+public class SkipList {
+    private static final int MAX_LEVEL = 32;
+    private static final double P = 0.25;
+
+    /**
+     * A member with its score and its links.
+     */
+    public static final class Node {
+        final String member;
+        final double score;
+        final Node[] forward;
+        final long[] span;
+
+        Node(int level, double score, String member) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new long[level];
+        }
+
+        /**
+         * Returns the member.
+         *
+         * @return the member
+         */
+        public String member() {
+            return member;
+        }
+
+        /**
+         * Returns the score.
+         *
+         * @return the score
+         */
+        public double score() {
+            return score;
+        }
+
+        /**
+         * Returns the next node in order.
+         *
+         * @return the next node, or null after the last one
+         */
+        public Node next() {
+            return forward[0];
+        }
+    }
+
+    private final Node header = new Node(MAX_LEVEL, 0, null);
+    private int level = 1;
+    private long length;
+
+    /**
+     * Returns the number of members.
+     *
+     * @return the number of members
+     */
+    public long size() {
+        return length;
+    }
+
+    /**
+     * Returns the node of the lowest score.
+     *
+     * @return the first node, or null if the list is empty
+     */
+    public Node first() {
+        return header.forward[0];
+    }
+
+    /**
+     * Adds a member, which must not be in the list already.
+     *
+     * @param score  the score
+     * @param member the member
+     */
+    public void insert(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        long[] rank = new long[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && before(x.forward[i], score, member)) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                header.span[i] = length;
+            }
+            level = nodeLevel;
+        }
+        x = new Node(nodeLevel, score, member);
+        for (int i = 0; i < nodeLevel; i++) {
+            x.forward[i] = update[i].forward[i];
+            update[i].forward[i] = x;
+            x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        // Levels above the new node now span one more node
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        length++;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param score  the score the member has
+     * @param member the member
+     * @return true if the list held the member with this score
+     */
+    public boolean delete(double score, String member) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && before(x.forward[i], score, member)) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        x = x.forward[0];
+        if (x == null || x.score != score || !x.member.equals(member)) {
+            return false;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == x) {
+                update[i].span[i] += x.span[i] - 1;
+                update[i].forward[i] = x.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        while (level > 1 && header.forward[level - 1] == null) {
+            level--;
+        }
+        length--;
+        return true;
+    }
+
+    /**
+     * Returns the rank of a member, counted from 0 for the lowest score.
+     *
+     * @param score  the score the member has
+     * @param member the member
+     * @return the rank, or -1 if the list does not hold the member with this score
+     */
+    public long rank(double score, String member) {
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && (before(x.forward[i], score, member)
+                    || x.forward[i].score == score && x.forward[i].member.equals(member))) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+            if (x != header && x.member.equals(member)) {
+                return rank - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the node at a rank.
+     *
+     * @param rank the rank, counted from 0 for the lowest score
+     * @return the node, or null if the rank is out of range
+     */
+    public Node byRank(long rank) {
+        long target = rank + 1;
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= target) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == target) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first node with a score above, or at least, the given minimum.
+     *
+     * @param min       the minimum score
+     * @param exclusive whether a score equal to the minimum is out of range
+     * @return the node, or null if every score is below the minimum
+     */
+    public Node firstFrom(double min, boolean exclusive) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && (exclusive ? x.forward[i].score <= min : x.forward[i].score < min)) {
+                x = x.forward[i];
+            }
+        }
+        return x.forward[0];
+    }
+
+    /**
+     * Returns whether a node comes before the given score and member.
+     */
+    private static boolean before(Node node, double score, String member) {
+        return node.score < score || node.score == score && node.member.compareTo(member) < 0;
+    }
+
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (level < MAX_LEVEL && random.nextDouble() < P) {
+            level++;
+        }
+        return level;
+    }
+}
@@ -0,0 +1,214 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The SlabAllocator class keeps byte strings outside of the Java heap, so that large numbers of values add neither
+ * to the heap size nor to the work of the garbage collector.
+ * <p>
+ * Memory is taken from the operating system in direct {@link ByteBuffer} pages of {@value #PAGE_SIZE} bytes. Each
+ * page is cut into chunks of a single size class, the classes growing by a factor of 1.25 from {@value #MIN_CHUNK}
+ * bytes, and freed chunks are kept on a free list per class for reuse. Values too large for the biggest class get
+ * a page of their own, which is dropped when they are freed.
+ * <p>
+ * An allocation is identified by a handle made of its page number and offset. Reading and writing chunks takes no
+ * lock; allocating and freeing lock only the size class involved. A read may therefore race with the bytes being
+ * freed: it then copies whatever the chunk holds by then, or reports that the page is gone, and the caller checks
+ * that the value is still current before using the copy.
+ */
+public class SlabAllocator {
+    static final int PAGE_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK = 16;
+    private static final double GROWTH_FACTOR = 1.25;
+    // Chunks above this size would waste too much of a page; such values get a page of their own
+    private static final int MAX_CHUNK = PAGE_SIZE / 4;
+
+    private final int[] chunkSizes;
+    private final SizeClass[] classes;
+    // Copied on growth, so readers never need a lock
+    private volatile ByteBuffer[] pages = new ByteBuffer[16];
+    private int pageCount;
+    private int[] freePageNumbers = new int[0];
+    private int freePageCount;
+    private long allocatedBytes;
+
+    /**
+     * The chunks of one size: pages being cut up and chunks freed for reuse.
+     */
+    private static final class SizeClass {
+        final int chunkSize;
+        long[] free = new long[16];
+        int freeCount;
+        // Page currently being cut into chunks, and the offset of its next unused chunk
+        int page = -1;
+        int next = PAGE_SIZE;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    /**
+     * Constructs an empty SlabAllocator. Pages are only allocated as values are stored.
+     */
+    public SlabAllocator() {
+        int[] sizes = new int[64];
+        int n = 0;
+        for (double size = MIN_CHUNK; size <= MAX_CHUNK; size *= GROWTH_FACTOR) {
+            // Keep chunks 8-byte aligned
+            sizes[n++] = ((int) size + 7) & ~7;
+        }
+        chunkSizes = Arrays.copyOf(sizes, n);
+        classes = new SizeClass[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new SizeClass(chunkSizes[i]);
+        }
+    }
+
+    /**
+     * Stores a copy of the given bytes outside the heap.
+     *
+     * @param bytes the bytes to store
+     * @return the handle to read and free them with
+     */
+    public long store(byte[] bytes) {
+        long handle = allocate(bytes.length);
+        ByteBuffer page = pages[page(handle)];
+        page.put(offset(handle), bytes, 0, bytes.length);
+        return handle;
+    }
+
+    /**
+     * Copies stored bytes back onto the heap.
+     *
+     * @param handle the handle returned by {@link #store(byte[])}
+     * @param length the number of bytes stored
+     * @return a new array holding the bytes, or null if they were freed meanwhile and their page dropped
+     */
+    public byte[] read(long handle, int length) {
+        byte[] bytes = new byte[length];
+        return read(handle, length, bytes, 0) ? bytes : null;
+    }
+
+    /**
+     * Copies stored bytes into an array, such as the reply buffer of a connection.
+     *
+     * @param handle the handle returned by {@link #store(byte[])}
+     * @param length the number of bytes stored
+     * @param dst    the array to copy them into
+     * @param offset where in the array they go
+     * @return false if the bytes were freed meanwhile and their page dropped, or its number reused for a smaller
+     *         page, in which case nothing is copied
+     */
+    public boolean read(long handle, int length, byte[] dst, int offset) {
+        ByteBuffer[] current = pages;
+        int number = page(handle);
+        ByteBuffer page = number < current.length ? current[number] : null;
+        int at = offset(handle);
+        if (page == null || at + length > page.capacity()) {
+            return false;
+        }
+        page.get(at, dst, offset, length);
+        return true;
+    }
+
+    /**
+     * Frees stored bytes for reuse. The handle must not be used afterwards.
+     *
+     * @param handle the handle returned by {@link #store(byte[])}
+     * @param length the number of bytes stored
+     */
+    public void free(long handle, int length) {
+        int sizeClass = sizeClassOf(length);
+        if (sizeClass < 0) {
+            freePage(page(handle));
+            return;
+        }
+        SizeClass chunks = classes[sizeClass];
+        synchronized (chunks) {
+            if (chunks.freeCount == chunks.free.length) {
+                chunks.free = Arrays.copyOf(chunks.free, chunks.freeCount * 2);
+            }
+            chunks.free[chunks.freeCount++] = handle;
+        }
+    }
+
+    /**
+     * Returns the number of bytes taken from the operating system for pages.
+     *
+     * @return the allocated off-heap memory in bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private long allocate(int length) {
+        int sizeClass = sizeClassOf(length);
+        if (sizeClass < 0) {
+            return handle(newPage(Math.max(length, 1)), 0);
+        }
+        SizeClass chunks = classes[sizeClass];
+        synchronized (chunks) {
+            if (chunks.freeCount > 0) {
+                return chunks.free[--chunks.freeCount];
+            }
+            if (chunks.next + chunks.chunkSize > PAGE_SIZE) {
+                chunks.page = newPage(PAGE_SIZE);
+                chunks.next = 0;
+            }
+            long handle = handle(chunks.page, chunks.next);
+            chunks.next += chunks.chunkSize;
+            return handle;
+        }
+    }
+
+    /**
+     * Returns the size class for values of the given length, or -1 if they get a page of their own.
+     */
+    private int sizeClassOf(int length) {
+        if (length > chunkSizes[chunkSizes.length - 1]) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(chunkSizes, length);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private synchronized int newPage(int size) {
+        int number;
+        if (freePageCount > 0) {
+            number = freePageNumbers[--freePageCount];
+        } else {
+            number = pageCount++;
+            if (number == pages.length) {
+                pages = Arrays.copyOf(pages, number * 2);
+            }
+        }
+        ByteBuffer page = ByteBuffer.allocateDirect(size);
+        ByteBuffer[] current = pages;
+        current[number] = page;
+        // Publish the new page through the volatile field
+        pages = current;
+        allocatedBytes += size;
+        return number;
+    }
+
+    private synchronized void freePage(int number) {
+        allocatedBytes -= pages[number].capacity();
+        pages[number] = null;
+        if (freePageCount == freePageNumbers.length) {
+            freePageNumbers = Arrays.copyOf(freePageNumbers, Math.max(freePageCount * 2, 16));
+        }
+        freePageNumbers[freePageCount++] = number;
+    }
+
+    private static long handle(int page, int offset) {
+        return (long) page << 32 | offset;
+    }
+
+    private static int page(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+}
@@ -0,0 +1,365 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * The SortedSetValue class holds the members of a sorted set with their scores, ordered by score and then by member.
+ * Members and scores are kept side by side, in order, in a {@link ListPack} until the set has more than
+ * {@link #maxListpackEntries} members or one longer than {@link #maxListpackValue} bytes. From then on a hash table
+ * maps members to their scores and a {@link SkipList} keeps them in order, as in Redis.
+ */
+public class SortedSetValue extends CollectionValue {
+    /**
+     * The number of members above which a sorted set switches to a skip list, as set by zset-max-listpack-entries.
+     */
+    public static volatile int maxListpackEntries = 128;
+    /**
+     * The length of a member above which a sorted set switches to a skip list, as set by zset-max-listpack-value.
+     */
+    public static volatile int maxListpackValue = 64;
+
+    /**
+     * Receives the members of a range with their scores.
+     */
+    public interface MemberConsumer {
+        /**
+         * Receives a member.
+         *
+         * @param member the member
+         * @param score  its score
+         */
+        void accept(String member, double score);
+    }
+
+    // member, score, member, score... in order while compact
+    private ListPack pack = new ListPack();
+    private HashMap<String, Double> scores;
+    private SkipList list;
+    // Bytes of the members in the skip list
+    private long listBytes;
+
+    /**
+     * Constructs an empty sorted set.
+     */
+    public SortedSetValue() {
+    }
+
+    private SortedSetValue(SortedSetValue other) {
+        if (other.list != null) {
+            this.pack = null;
+            this.scores = new HashMap<>(other.scores);
+            this.list = new SkipList();
+            for (SkipList.Node node = other.list.first(); node != null; node = node.next()) {
+                list.insert(node.score(), node.member());
+            }
+            this.listBytes = other.listBytes;
+        } else {
+            this.pack = new ListPack(other.pack);
+        }
+    }
+
+    @Override
+    public String type() {
+        return "zset";
+    }
+
+    @Override
+    public String encoding() {
+        return list == null ? "listpack" : "skiplist";
+    }
+
+    @Override
+    public int size() {
+        return list == null ? pack.size() / 2 : scores.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return list == null ? pack.memoryUsage() : listBytes + (long) scores.size() * 2 * ELEMENT_OVERHEAD;
+    }
+
+    @Override
+    public SortedSetValue copy() {
+        return new SortedSetValue(this);
+    }
+
+    /**
+     * Parses a score as given to ZADD or a score range, accepting {@code inf}, {@code +inf} and {@code -inf}.
+     *
+     * @param string the score
+     * @return the score
+     * @throws CommandException if the string is not a number
+     */
+    public static double parseScore(String string) {
+        switch (string.toLowerCase()) {
+            case "inf", "+inf" -> {
+                return Double.POSITIVE_INFINITY;
+            }
+            case "-inf" -> {
+                return Double.NEGATIVE_INFINITY;
+            }
+            default -> {
+                try {
+                    double score = Double.parseDouble(string);
+                    if (!Double.isNaN(score)) {
+                        return score;
+                    }
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+                throw new CommandException("ERR value is not a valid float");
+            }
+        }
+    }
+
+    /**
+     * Formats a score as Redis replies with it: whole numbers without a fraction, and infinity as {@code inf}.
+     *
+     * @param score the score
+     * @return the formatted score
+     */
+    public static String formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "inf" : "-inf";
+        }
+        if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+            return Long.toString((long) score);
+        }
+        return Double.toString(score);
+    }
+
+    /**
+     * Returns the score of a member.
+     *
+     * @param member the member
+     * @return the score, or null if the set does not hold the member
+     */
+    public Double score(String member) {
+        if (list != null) {
+            return scores.get(member);
+        }
+        int offset = pack.find(pack.first(), bytes(member), 2);
+        return offset < 0 ? null : decodeScore(pack.get(pack.next(offset)));
+    }
+
+    /**
+     * Adds a member, or changes its score if the set holds it already.
+     *
+     * @param member the member
+     * @param score  the score
+     * @return true if the member is new
+     */
+    public boolean add(String member, double score) {
+        if (list == null && member.length() > maxListpackValue) {
+            convert();
+        }
+        if (list != null) {
+            Double old = scores.put(member, score);
+            if (old != null) {
+                if (old == score) {
+                    return false;
+                }
+                list.delete(old, member);
+            } else {
+                listBytes += member.length();
+            }
+            list.insert(score, member);
+            return old == null;
+        }
+        byte[] bytes = bytes(member);
+        int existing = pack.find(pack.first(), bytes, 2);
+        if (existing >= 0) {
+            if (decodeScore(pack.get(pack.next(existing))) == score) {
+                return false;
+            }
+            pack.delete(existing, 2);
+        }
+        // Keep the pairs in order
+        int offset = pack.first();
+        while (offset < pack.end()) {
+            int scoreOffset = pack.next(offset);
+            double s = decodeScore(pack.get(scoreOffset));
+            if (s > score
+                    || s == score && new String(pack.get(offset), StandardCharsets.ISO_8859_1).compareTo(member) > 0) {
+                break;
+            }
+            offset = pack.next(scoreOffset);
+        }
+        pack.insert(offset, bytes);
+        pack.insert(pack.next(offset), encodeScore(score));
+        if (pack.size() / 2 > maxListpackEntries) {
+            convert();
+        }
+        return existing < 0;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param member the member
+     * @return true if the set held it
+     */
+    public boolean remove(String member) {
+        if (list != null) {
+            Double old = scores.remove(member);
+            if (old == null) {
+                return false;
+            }
+            list.delete(old, member);
+            listBytes -= member.length();
+            return true;
+        }
+        int offset = pack.find(pack.first(), bytes(member), 2);
+        if (offset < 0) {
+            return false;
+        }
+        pack.delete(offset, 2);
+        return true;
+    }
+
+    /**
+     * Returns the rank of a member, counted from 0 for the lowest score.
+     *
+     * @param member the member
+     * @return the rank, or -1 if the set does not hold the member
+     */
+    public long rank(String member) {
+        if (list != null) {
+            Double score = scores.get(member);
+            return score == null ? -1 : list.rank(score, member);
+        }
+        byte[] bytes = bytes(member);
+        long rank = 0;
+        for (int offset = pack.first(); offset < pack.end(); offset = pack.next(pack.next(offset))) {
+            if (pack.matches(offset, bytes)) {
+                return rank;
+            }
+            rank++;
+        }
+        return -1;
+    }
+
+    /**
+     * Hands the members between two ranks to the consumer, as in ZRANGE. Negative ranks count from the highest
+     * score, and ranks beyond either end are clamped.
+     *
+     * @param start    the rank of the first member
+     * @param stop     the rank of the last member
+     * @param consumer receives the members in order
+     * @return the number of members handed over
+     */
+    public int range(long start, long stop, MemberConsumer consumer) {
+        int size = size();
+        if (start < 0) {
+            start = Math.max(start + size, 0);
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        stop = Math.min(stop, size - 1);
+        if (start > stop) {
+            return 0;
+        }
+        if (list != null) {
+            SkipList.Node node = list.byRank(start);
+            for (long i = start; i <= stop; i++) {
+                consumer.accept(node.member(), node.score());
+                node = node.next();
+            }
+        } else {
+            int offset = pack.first();
+            for (long i = 0; i < start; i++) {
+                offset = pack.next(pack.next(offset));
+            }
+            for (long i = start; i <= stop; i++) {
+                int scoreOffset = pack.next(offset);
+                consumer.accept(new String(pack.get(offset), StandardCharsets.ISO_8859_1),
+                        decodeScore(pack.get(scoreOffset)));
+                offset = pack.next(scoreOffset);
+            }
+        }
+        return (int) (stop - start + 1);
+    }
+
+    /**
+     * Hands the members with a score in a range to the consumer, as in ZRANGEBYSCORE.
+     *
+     * @param min          the lowest score
+     * @param minExclusive whether a score equal to the lowest is out of range
+     * @param max          the highest score
+     * @param maxExclusive whether a score equal to the highest is out of range
+     * @param consumer     receives the members in order
+     * @return the number of members handed over
+     */
+    public int rangeByScore(double min, boolean minExclusive, double max, boolean maxExclusive,
+                            MemberConsumer consumer) {
+        int n = 0;
+        if (list != null) {
+            for (SkipList.Node node = list.firstFrom(min, minExclusive); node != null; node = node.next()) {
+                if (maxExclusive ? node.score() >= max : node.score() > max) {
+                    break;
+                }
+                consumer.accept(node.member(), node.score());
+                n++;
+            }
+            return n;
+        }
+        for (int offset = pack.first(); offset < pack.end(); ) {
+            int scoreOffset = pack.next(offset);
+            double score = decodeScore(pack.get(scoreOffset));
+            if (maxExclusive ? score >= max : score > max) {
+                break;
+            }
+            if (minExclusive ? score > min : score >= min) {
+                consumer.accept(new String(pack.get(offset), StandardCharsets.ISO_8859_1), score);
+                n++;
+            }
+            offset = pack.next(scoreOffset);
+        }
+        return n;
+    }
+
+    /**
+     * Hands every member to the consumer, in order.
+     *
+     * @param consumer receives the members with their scores
+     */
+    public void forEach(MemberConsumer consumer) {
+        range(0, -1, consumer);
+    }
+
+    private void convert() {
+        HashMap<String, Double> convertedScores = new HashMap<>();
+        SkipList convertedList = new SkipList();
+        long bytes = 0;
+        for (int offset = pack.first(); offset < pack.end(); ) {
+            int scoreOffset = pack.next(offset);
+            String member = new String(pack.get(offset), StandardCharsets.ISO_8859_1);
+            double score = decodeScore(pack.get(scoreOffset));
+            convertedScores.put(member, score);
+            convertedList.insert(score, member);
+            bytes += member.length();
+            offset = pack.next(scoreOffset);
+        }
+        scores = convertedScores;
+        list = convertedList;
+        listBytes = bytes;
+        pack = null;
+    }
+
+    private static byte[] encodeScore(double score) {
+        long bits = Double.doubleToLongBits(score);
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (bits >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    private static double decodeScore(byte[] bytes) {
+        long bits = 0;
+        for (byte b : bytes) {
+            bits = bits << 8 | (b & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+}
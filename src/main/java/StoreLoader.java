@@ -0,0 +1,170 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The StoreLoader class restores the entries of a snapshot into a {@link KeyValueHandler} on several worker threads,
+ * so that a large RDB file or full resync payload loads at the speed it can be read rather than at the speed a
+ * single thread can hash, copy and schedule its entries.
+ * <p>
+ * The RDB format can only be decoded in order, so the reader hands entries to {@link #visit(String, byte[], long)}
+ * on its own thread, which groups them into batches for the workers. The keys of a snapshot are all distinct, so
+ * batches can be restored in any order. Only a few batches are queued at a time, and a reader that gets ahead of
+ * the workers waits for them, so the loader never holds more than a small part of the dataset itself.
+ */
+public class StoreLoader implements KeyValueHandler.EntryVisitor, Closeable {
+    private static final int BATCH_SIZE = 256;
+    // Tells a worker that no more batches will come
+    private static final Batch END = new Batch();
+
+    private final KeyValueHandler store;
+    private final BlockingQueue<Batch> queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private Batch batch = new Batch();
+
+    /**
+     * A group of entries restored together by one worker.
+     */
+    private static final class Batch {
+        final String[] keys = new String[BATCH_SIZE];
+        // The bytes of a string, or a collection
+        final Object[] values = new Object[BATCH_SIZE];
+        final long[] expiresAt = new long[BATCH_SIZE];
+        int size;
+    }
+
+    /**
+     * Constructs a StoreLoader with a worker per available processor.
+     *
+     * @param store the key-value store to restore into
+     */
+    public StoreLoader(KeyValueHandler store) {
+        this(store, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a StoreLoader with the given number of workers.
+     *
+     * @param store   the key-value store to restore into
+     * @param workers the number of worker threads
+     */
+    public StoreLoader(KeyValueHandler store, int workers) {
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(2 * Math.max(workers, 1));
+        for (int i = 0; i < Math.max(workers, 1); i++) {
+            this.workers.add(Thread.ofVirtual().name("loader-" + i).start(this::restoreBatches));
+        }
+    }
+
+    /**
+     * Adds an entry to the current batch, handing the batch to the workers once it is full.
+     *
+     * @param key       the key
+     * @param value     the value; the store takes ownership of the array
+     * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+     * @throws IOException if a worker has failed, or if interrupted while waiting for the workers
+     */
+    @Override
+    public void visit(String key, byte[] value, long expiresAt) throws IOException {
+        add(key, value, expiresAt);
+    }
+
+    /**
+     * Adds an entry holding a collection to the current batch, handing the batch to the workers once it is full.
+     *
+     * @param key       the key
+     * @param value     the collection; the store takes ownership of it
+     * @param expiresAt the time in milliseconds after which the key expires, or -1 if it never does
+     * @throws IOException if a worker has failed, or if interrupted while waiting for the workers
+     */
+    @Override
+    public void visit(String key, CollectionValue value, long expiresAt) throws IOException {
+        add(key, value, expiresAt);
+    }
+
+    private void add(String key, Object value, long expiresAt) throws IOException {
+        Batch b = batch;
+        b.keys[b.size] = key;
+        b.values[b.size] = value;
+        b.expiresAt[b.size] = expiresAt;
+        if (++b.size == BATCH_SIZE) {
+            enqueue(b);
+            batch = new Batch();
+        }
+    }
+
+    /**
+     * Hands the last batch to the workers and waits for them to restore everything.
+     *
+     * @throws IOException if a worker has failed, or if interrupted while waiting for the workers
+     */
+    @Override
+    public void close() throws IOException {
+        if (batch.size > 0) {
+            enqueue(batch);
+            batch = new Batch();
+        }
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                queue.put(END);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while loading");
+        }
+        checkFailure();
+    }
+
+    private void enqueue(Batch b) throws IOException {
+        checkFailure();
+        try {
+            queue.put(b);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while loading");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        RuntimeException e = failure.get();
+        if (e != null) {
+            throw new IOException("Failed to restore entry: " + e.getMessage(), e);
+        }
+    }
+
+    private void restoreBatches() {
+        while (true) {
+            Batch b;
+            try {
+                b = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (b == END) {
+                return;
+            }
+            // After a failure, batches are still taken so that the reader is not left waiting
+            if (failure.get() != null) {
+                continue;
+            }
+            try {
+                for (int i = 0; i < b.size; i++) {
+                    if (b.values[i] instanceof CollectionValue collection) {
+                        store.restore(b.keys[i], collection, b.expiresAt[i]);
+                    } else {
+                        store.restore(b.keys[i], (byte[]) b.values[i], b.expiresAt[i]);
+                    }
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
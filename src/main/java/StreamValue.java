@@ -0,0 +1,421 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The StreamValue class holds the entries of a stream: an append-only log of field-value pairs, each under an ID
+ * made of a millisecond time and a sequence number that only ever grows.
+ * <p>
+ * Entries are packed into nodes of up to {@link #maxNodeEntries} entries or {@link #maxNodeBytes} bytes, each a
+ * {@link ListPack} of the entries' IDs, stored relative to the first ID of the node, and their fields and values.
+ * The nodes are indexed by their first ID. Entries are only ever appended, so the index is a sorted array and a
+ * binary search over it finds the node holding any ID in logarithmic time, as Redis' radix tree of nodes does,
+ * after which at most one node is scanned. Every node but the last is full and never changes again, so a copy
+ * shares them and only copies the last one.
+ */
+public class StreamValue extends CollectionValue {
+    /**
+     * The number of entries above which a stream starts a new node, as set by stream-node-max-entries.
+     */
+    public static volatile int maxNodeEntries = 100;
+    /**
+     * The size in bytes above which a stream starts a new node, as set by stream-node-max-bytes.
+     */
+    public static volatile int maxNodeBytes = 4096;
+
+    private static final String INVALID_ID_ERROR = "ERR Invalid stream ID specified as stream command argument";
+    // Rough cost of a node besides its pack
+    private static final int NODE_OVERHEAD = 64;
+
+    /**
+     * The ID of a stream entry. Both parts are unsigned, as in Redis.
+     */
+    public static final class Id implements Comparable<Id> {
+        /**
+         * The lowest ID.
+         */
+        public static final Id MIN = new Id(0, 0);
+        /**
+         * The highest ID.
+         */
+        public static final Id MAX = new Id(-1, -1);
+
+        final long ms;
+        final long seq;
+
+        /**
+         * Constructs an ID.
+         *
+         * @param ms  the time part, in milliseconds
+         * @param seq the sequence number within the millisecond
+         */
+        public Id(long ms, long seq) {
+            this.ms = ms;
+            this.seq = seq;
+        }
+
+        /**
+         * Parses an ID given as {@code <ms>-<seq>}, or as {@code <ms>} with the given sequence number.
+         *
+         * @param string     the ID
+         * @param missingSeq the sequence number of an ID given without one
+         * @return the ID
+         * @throws CommandException if the string is not an ID
+         */
+        public static Id parse(String string, long missingSeq) {
+            try {
+                int dash = string.indexOf('-');
+                if (dash < 0) {
+                    return new Id(Long.parseUnsignedLong(string), missingSeq);
+                }
+                return new Id(Long.parseUnsignedLong(string.substring(0, dash)),
+                        Long.parseUnsignedLong(string.substring(dash + 1)));
+            } catch (NumberFormatException e) {
+                throw new CommandException(INVALID_ID_ERROR);
+            }
+        }
+
+        /**
+         * Returns the ID right after this one.
+         *
+         * @return the next ID, or null if this is the highest
+         */
+        public Id next() {
+            if (seq != -1) {
+                return new Id(ms, seq + 1);
+            }
+            return ms == -1 ? null : new Id(ms + 1, 0);
+        }
+
+        /**
+         * Returns the ID right before this one.
+         *
+         * @return the previous ID, or null if this is the lowest
+         */
+        public Id previous() {
+            if (seq != 0) {
+                return new Id(ms, seq - 1);
+            }
+            return ms == 0 ? null : new Id(ms - 1, -1);
+        }
+
+        @Override
+        public int compareTo(Id other) {
+            int c = Long.compareUnsigned(ms, other.ms);
+            return c != 0 ? c : Long.compareUnsigned(seq, other.seq);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Id other && ms == other.ms && seq == other.seq;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(ms) * 31 + Long.hashCode(seq);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toUnsignedString(ms) + "-" + Long.toUnsignedString(seq);
+        }
+    }
+
+    /**
+     * An entry read from a stream.
+     */
+    public static final class Entry {
+        final Id id;
+        final byte[][] fieldsAndValues;
+
+        Entry(Id id, byte[][] fieldsAndValues) {
+            this.id = id;
+            this.fieldsAndValues = fieldsAndValues;
+        }
+
+        /**
+         * Returns the ID.
+         *
+         * @return the ID
+         */
+        public Id id() {
+            return id;
+        }
+
+        /**
+         * Returns the fields and values, alternating.
+         *
+         * @return the fields and values; must not be modified
+         */
+        public byte[][] fieldsAndValues() {
+            return fieldsAndValues;
+        }
+    }
+
+    /**
+     * A run of consecutive entries. Each entry is a header holding its ID, relative to the first ID of the node,
+     * and its number of fields, followed by its fields and values.
+     */
+    private static final class Node {
+        final Id first;
+        final ListPack pack;
+        int entries;
+
+        Node(Id first, ListPack pack, int entries) {
+            this.first = first;
+            this.pack = pack;
+            this.entries = entries;
+        }
+    }
+
+    private Node[] nodes = new Node[4];
+    private int nodeCount;
+    private long length;
+    private Id lastId = Id.MIN;
+    // Memory of the packs of all nodes
+    private long packBytes;
+
+    /**
+     * Constructs an empty stream.
+     */
+    public StreamValue() {
+    }
+
+    private StreamValue(StreamValue other) {
+        this.nodes = other.nodes.clone();
+        this.nodeCount = other.nodeCount;
+        this.length = other.length;
+        this.lastId = other.lastId;
+        this.packBytes = other.packBytes;
+        if (nodeCount > 0) {
+            // Only the last node is still appended to
+            Node last = nodes[nodeCount - 1];
+            nodes[nodeCount - 1] = new Node(last.first, new ListPack(last.pack), last.entries);
+        }
+    }
+
+    @Override
+    public String type() {
+        return "stream";
+    }
+
+    @Override
+    public String encoding() {
+        return "stream";
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(length, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long memoryUsage() {
+        return packBytes + (long) nodeCount * NODE_OVERHEAD;
+    }
+
+    @Override
+    public StreamValue copy() {
+        return new StreamValue(this);
+    }
+
+    /**
+     * Returns the ID of the last entry added.
+     *
+     * @return the last ID, or 0-0 if nothing has been added
+     */
+    public Id lastId() {
+        return lastId;
+    }
+
+    /**
+     * Raises the last ID of the stream, as kept by Redis for entries that have been deleted since.
+     *
+     * @param id the last ID
+     */
+    public void setLastId(Id id) {
+        if (id.compareTo(lastId) > 0) {
+            lastId = id;
+        }
+    }
+
+    /**
+     * Works out the ID of a new entry as given to XADD: {@code *} for the current time, {@code <ms>-*} for the next
+     * sequence number within a millisecond, or an explicit ID, which must be above the last one.
+     *
+     * @param spec the ID argument of XADD
+     * @return the ID of the new entry
+     * @throws CommandException if the ID is not valid or not above the last one
+     */
+    public Id nextId(String spec) {
+        Id id;
+        if (spec.equals("*")) {
+            long ms = Math.max(System.currentTimeMillis(), lastId.ms);
+            id = ms == lastId.ms ? lastId.next() : new Id(ms, 0);
+        } else if (spec.endsWith("-*")) {
+            long ms = Id.parse(spec.substring(0, spec.length() - 2), 0).ms;
+            int c = Long.compareUnsigned(ms, lastId.ms);
+            id = c > 0 ? new Id(ms, 0) : c == 0 && lastId.seq != -1 ? new Id(ms, lastId.seq + 1) : null;
+            if (id != null && id.equals(Id.MIN)) {
+                id = new Id(0, 1);
+            }
+        } else {
+            id = Id.parse(spec, 0);
+            if (id.equals(Id.MIN)) {
+                throw new CommandException("ERR The ID specified in XADD must be greater than 0-0");
+            }
+        }
+        if (id == null || id.compareTo(lastId) <= 0) {
+            throw new CommandException(
+                    "ERR The ID specified in XADD is equal or smaller than the target stream top item");
+        }
+        return id;
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param id              the ID, which must be above {@link #lastId()}
+     * @param fieldsAndValues the fields and values, alternating; the stream takes ownership of the arrays
+     */
+    public void append(Id id, byte[][] fieldsAndValues) {
+        Node node = nodeCount == 0 ? null : nodes[nodeCount - 1];
+        if (node == null || node.entries >= maxNodeEntries || node.pack.end() >= maxNodeBytes) {
+            node = new Node(id, new ListPack(), 0);
+            if (nodeCount == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodeCount * 2);
+            }
+            nodes[nodeCount++] = node;
+        } else {
+            packBytes -= node.pack.memoryUsage();
+        }
+        node.pack.insert(node.pack.end(), encodeHeader(id.ms - node.first.ms, id.seq, fieldsAndValues.length / 2));
+        for (byte[] b : fieldsAndValues) {
+            node.pack.insert(node.pack.end(), b);
+        }
+        packBytes += node.pack.memoryUsage();
+        node.entries++;
+        length++;
+        lastId = id;
+    }
+
+    /**
+     * Appends an entry with the fields and values given as consecutive arguments, as in XADD.
+     *
+     * @param id   the ID, which must be above {@link #lastId()}
+     * @param args the arguments
+     * @param from the index of the first field
+     */
+    public void append(Id id, String[] args, int from) {
+        byte[][] fieldsAndValues = new byte[args.length - from][];
+        for (int i = from; i < args.length; i++) {
+            fieldsAndValues[i - from] = bytes(args[i]);
+        }
+        append(id, fieldsAndValues);
+    }
+
+    /**
+     * Hands the entries with an ID between two bounds to the consumer, in order, as in XRANGE.
+     *
+     * @param start    the lowest ID, included
+     * @param end      the highest ID, included
+     * @param count    the most entries to hand over, or a negative number for no limit
+     * @param consumer receives the entries
+     * @return the number of entries handed over
+     */
+    public int range(Id start, Id end, long count, Consumer<Entry> consumer) {
+        int n = 0;
+        for (int i = Math.max(nodeFor(start), 0); i < nodeCount && n != count; i++) {
+            Node node = nodes[i];
+            if (node.first.compareTo(end) > 0) {
+                break;
+            }
+            ListPack pack = node.pack;
+            long[] header = new long[3];
+            for (int offset = pack.first(); offset < pack.end() && n != count; ) {
+                decodeHeader(pack.get(offset), header);
+                offset = pack.next(offset);
+                Id id = new Id(node.first.ms + header[0], header[1]);
+                int items = (int) header[2] * 2;
+                if (id.compareTo(end) > 0) {
+                    return n;
+                }
+                if (id.compareTo(start) < 0) {
+                    for (int j = 0; j < items; j++) {
+                        offset = pack.next(offset);
+                    }
+                    continue;
+                }
+                byte[][] fieldsAndValues = new byte[items][];
+                for (int j = 0; j < items; j++) {
+                    fieldsAndValues[j] = pack.get(offset);
+                    offset = pack.next(offset);
+                }
+                consumer.accept(new Entry(id, fieldsAndValues));
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Hands every entry to the consumer, in order.
+     *
+     * @param consumer receives the entries
+     */
+    public void forEach(Consumer<Entry> consumer) {
+        range(Id.MIN, Id.MAX, -1, consumer);
+    }
+
+    /**
+     * Returns the index of the last node whose first ID is at most the given one, or -1 if there is none.
+     */
+    private int nodeFor(Id id) {
+        int low = 0;
+        int high = nodeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (nodes[mid].first.compareTo(id) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Encodes the header of an entry as three variable-size integers: the time relative to the first ID of the
+     * node, the sequence number, and the number of fields.
+     */
+    private static byte[] encodeHeader(long msDelta, long seq, int fields) {
+        byte[] b = new byte[30];
+        int i = putVarint(b, 0, msDelta);
+        i = putVarint(b, i, seq);
+        i = putVarint(b, i, fields);
+        return Arrays.copyOf(b, i);
+    }
+
+    private static void decodeHeader(byte[] b, long[] header) {
+        int i = 0;
+        for (int k = 0; k < 3; k++) {
+            long value = 0;
+            int shift = 0;
+            byte x;
+            do {
+                x = b[i++];
+                value |= (long) (x & 0x7F) << shift;
+                shift += 7;
+            } while (x < 0);
+            header[k] = value;
+        }
+    }
+
+    private static int putVarint(byte[] b, int i, long value) {
+        while ((value & ~0x7FL) != 0) {
+            b[i++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        b[i++] = (byte) value;
+        return i;
+    }
+}
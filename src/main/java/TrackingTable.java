@@ -0,0 +1,290 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The TrackingTable class keeps track of the keys clients cache on their side, as CLIENT TRACKING does in Redis, and
+ * tells those clients when one of the keys changes so that they drop it.
+ * <p>
+ * In the default mode, the server remembers each key a tracking client reads, with the IDs of the clients that read
+ * it, in a table of sorted arrays of IDs: a few bytes per reader, and no reference to the connections themselves. A
+ * change to a key takes its entry out of the table and invalidates the key for each of its readers, who have to
+ * read it again to be told about the next change. The table holds at most {@code maxKeys} keys; past that, keys
+ * are invalidated for their readers to make room, as in Redis.
+ * <p>
+ * In broadcast mode, a client is told about every change to a key starting with one of its prefixes, whether it
+ * read the key or not, and nothing is remembered per key. Each change looks at every prefix registered, so this
+ * suits a few prefixes.
+ * <p>
+ * A change made by a client that asked for NOLOOP is not reported to that client itself. Such a client is made
+ * known with {@link #setWriter(Client)} on the thread running its command, since the change reaches the table from
+ * the store without it.
+ */
+public class TrackingTable {
+    /**
+     * A client tracking keys, in either mode.
+     */
+    public static final class Client {
+        private final long id;
+        private final boolean noLoop;
+        // null in the default mode
+        private final List<String> prefixes;
+        private final Consumer<String> sink;
+
+        /**
+         * Constructs a Client.
+         *
+         * @param id       the ID of the client
+         * @param noLoop   whether changes the client makes itself are left out
+         * @param prefixes the prefixes of the keys to be told about in broadcast mode, or null for the default mode
+         * @param sink     receives each key invalidated for the client, on the thread that changed it; must not
+         *                 block
+         */
+        public Client(long id, boolean noLoop, List<String> prefixes, Consumer<String> sink) {
+            this.id = id;
+            this.noLoop = noLoop;
+            this.prefixes = prefixes;
+            this.sink = sink;
+        }
+
+        /**
+         * Returns the ID of the client.
+         *
+         * @return the ID
+         */
+        public long id() {
+            return id;
+        }
+
+        /**
+         * Returns whether changes the client makes itself are left out.
+         *
+         * @return true with NOLOOP
+         */
+        public boolean noLoop() {
+            return noLoop;
+        }
+
+        /**
+         * Returns whether the client is in broadcast mode.
+         *
+         * @return true with BCAST
+         */
+        public boolean broadcast() {
+            return prefixes != null;
+        }
+
+        /**
+         * Returns the prefixes of the keys the client is told about in broadcast mode.
+         *
+         * @return the prefixes, the empty string for all keys, or an empty list in the default mode
+         */
+        public List<String> prefixes() {
+            return prefixes == null ? List.of() : prefixes;
+        }
+    }
+
+    private static final long[] NO_READERS = new long[0];
+
+    // Default mode: the clients by ID, and the IDs of the clients that read each key, sorted
+    private final ConcurrentHashMap<Long, Client> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, long[]> readers = new ConcurrentHashMap<>();
+    // Broadcast mode: the clients of each prefix
+    private final ConcurrentHashMap<String, Set<Client>> prefixes = new ConcurrentHashMap<>();
+    // Clients tracking in either mode, so that changes cost nothing while there are none
+    private final AtomicInteger tracking = new AtomicInteger();
+    private final ThreadLocal<Client> writer = new ThreadLocal<>();
+    private volatile int maxKeys;
+
+    /**
+     * Constructs a TrackingTable.
+     *
+     * @param maxKeys the most keys to remember in the default mode, or 0 for no limit
+     */
+    public TrackingTable(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Starts tracking keys for a client.
+     *
+     * @param client the client, not tracking yet
+     * @throws IllegalArgumentException if two of the prefixes of a broadcast client overlap, one starting with
+     *                                  the other, as they would report the same keys twice
+     */
+    public void enable(Client client) {
+        if (client.broadcast()) {
+            List<String> list = client.prefixes;
+            for (int i = 0; i < list.size(); i++) {
+                for (int j = 0; j < list.size(); j++) {
+                    if (i != j && list.get(i).startsWith(list.get(j))) {
+                        throw new IllegalArgumentException("Prefix '" + list.get(i) + "' overlaps with another "
+                                + "provided prefix '" + list.get(j) + "'. Prefixes for a single client must not "
+                                + "overlap.");
+                    }
+                }
+            }
+            for (String prefix : list) {
+                prefixes.computeIfAbsent(prefix, p -> ConcurrentHashMap.newKeySet()).add(client);
+            }
+        } else {
+            clients.put(client.id, client);
+        }
+        tracking.incrementAndGet();
+    }
+
+    /**
+     * Stops tracking keys for a client. The keys it read stay in the table until they change, but are no longer
+     * reported to it.
+     *
+     * @param client the client, tracking
+     */
+    public void disable(Client client) {
+        if (client.broadcast()) {
+            for (String prefix : client.prefixes) {
+                prefixes.computeIfPresent(prefix, (p, set) -> {
+                    set.remove(client);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        } else {
+            clients.remove(client.id, client);
+        }
+        tracking.decrementAndGet();
+    }
+
+    /**
+     * Remembers that a client in the default mode read a key. Called before the key is read, so that a change made
+     * meanwhile is reported rather than missed.
+     *
+     * @param client the client
+     * @param key    the key
+     */
+    public void remember(Client client, String key) {
+        long id = client.id;
+        boolean[] added = new boolean[1];
+        readers.compute(key, (k, ids) -> {
+            long[] current = ids != null ? ids : NO_READERS;
+            int i = Arrays.binarySearch(current, id);
+            if (i >= 0) {
+                return current;
+            }
+            added[0] = ids == null;
+            int at = -i - 1;
+            long[] grown = new long[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, at);
+            grown[at] = id;
+            System.arraycopy(current, at, grown, at + 1, current.length - at);
+            return grown;
+        });
+        int max = maxKeys;
+        if (added[0] && max > 0 && readers.size() > max) {
+            makeRoom(key, max);
+        }
+    }
+
+    /**
+     * Invalidates keys other than the one just added until the table is within its maximum.
+     */
+    private void makeRoom(String added, int max) {
+        for (Iterator<String> it = readers.keySet().iterator(); it.hasNext() && readers.size() > max; ) {
+            String key = it.next();
+            if (!key.equals(added)) {
+                invalidate(key, readers.remove(key), null);
+            }
+        }
+    }
+
+    /**
+     * Tells the clients tracking a key that it changed. Called by the store after every change.
+     *
+     * @param key the key
+     */
+    public void keyChanged(String key) {
+        if (tracking.get() == 0) {
+            return;
+        }
+        Client by = writer.get();
+        if (!readers.isEmpty()) {
+            // Taken out of the table, as the readers have to read the key again to be told about the next change
+            invalidate(key, readers.remove(key), by);
+        }
+        if (!prefixes.isEmpty()) {
+            for (Map.Entry<String, Set<Client>> entry : prefixes.entrySet()) {
+                if (key.startsWith(entry.getKey())) {
+                    for (Client client : entry.getValue()) {
+                        if (!client.noLoop || client != by) {
+                            client.sink.accept(key);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void invalidate(String key, long[] ids, Client by) {
+        if (ids == null) {
+            return;
+        }
+        for (long id : ids) {
+            Client client = clients.get(id);
+            if (client != null && (!client.noLoop || client != by)) {
+                client.sink.accept(key);
+            }
+        }
+    }
+
+    /**
+     * Sets the client whose command the current thread runs, for NOLOOP.
+     *
+     * @param client the client, or null once the command is done
+     */
+    public void setWriter(Client client) {
+        if (client == null) {
+            writer.remove();
+        } else {
+            writer.set(client);
+        }
+    }
+
+    /**
+     * Sets the most keys to remember in the default mode.
+     *
+     * @param maxKeys the most keys, or 0 for no limit
+     */
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Returns the number of clients tracking keys, as reported by INFO.
+     *
+     * @return the number of clients
+     */
+    public int clientCount() {
+        return tracking.get();
+    }
+
+    /**
+     * Returns the number of keys remembered in the default mode, as reported by INFO.
+     *
+     * @return the number of keys
+     */
+    public long keyCount() {
+        return readers.mappingCount();
+    }
+
+    /**
+     * Returns the number of prefixes registered in broadcast mode, as reported by INFO.
+     *
+     * @return the number of prefixes
+     */
+    public long prefixCount() {
+        return prefixes.mappingCount();
+    }
+}
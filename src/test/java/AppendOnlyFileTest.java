@@ -0,0 +1,275 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link AppendOnlyFile}.
+ */
+class AppendOnlyFileTest {
+    @TempDir
+    Path dir;
+
+    private KeyValueHandler replay(Path file) throws IOException {
+        KeyValueHandler store = new KeyValueHandler();
+        new AppendOnlyFile(store, file, AppendOnlyFile.FsyncPolicy.NO).load();
+        return store;
+    }
+
+    @Test
+    void replaysLoggedCommands() throws IOException {
+        Path file = dir.resolve("appendonly.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(new KeyValueHandler(), file, AppendOnlyFile.FsyncPolicy.EVERYSEC);
+        aof.start();
+        aof.append("SET", "a", "1");
+        aof.append("SET", "b", "2");
+        aof.append("SET", "a", "3");
+        aof.append("DEL", "b");
+        aof.append("SET", "volatile", "v", "PXAT", String.valueOf(System.currentTimeMillis() + 60_000));
+        aof.append("SET", "gone", "v");
+        aof.append("SET", "gone", "v", "PXAT", "1");
+        aof.append("MSET", "m1", "x", "m2", "y");
+        aof.append("INCRBY", "counter", "5");
+        aof.append("DECR", "counter");
+        aof.append("APPEND", "m1", "z");
+        aof.append("GETSET", "m2", "w");
+        aof.close();
+
+        KeyValueHandler store = replay(file);
+        assertEquals("4", store.get("counter"));
+        assertEquals("xz", store.get("m1"));
+        assertEquals("w", store.get("m2"));
+        assertEquals("3", store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals("v", store.get("volatile"));
+        assertNull(store.get("gone"));
+    }
+
+    @Test
+    void truncatesCommandCutShort() throws IOException {
+        Path file = dir.resolve("appendonly.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(new KeyValueHandler(), file, AppendOnlyFile.FsyncPolicy.NO);
+        aof.start();
+        aof.append("SET", "a", "1");
+        aof.append("SET", "b", "2");
+        aof.close();
+        long complete = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(complete - 3);
+        }
+
+        KeyValueHandler store = replay(file);
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals(OutputHandler.getBulkStringArrayLength("SET", "a", "1"), Files.size(file));
+    }
+
+    /**
+     * A transaction is applied as a whole, and one cut short is truncated away as a whole.
+     */
+    @Test
+    void replaysTransactionsAsOneUnit() throws IOException {
+        Path file = dir.resolve("appendonly.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(new KeyValueHandler(), file, AppendOnlyFile.FsyncPolicy.NO);
+        aof.start();
+        aof.append("SET", "a", "1");
+        aof.appendTransaction(List.of(new String[]{"SET", "b", "2"}, new String[]{"SADD", "s", "x"}));
+        aof.close();
+        long complete = Files.size(file);
+        KeyValueHandler store = replay(file);
+        assertEquals("2", store.get("b"));
+        assertEquals(1, store.<SetValue, Integer>read("s", SetValue.class, SetValue::size));
+
+        aof = new AppendOnlyFile(new KeyValueHandler(), file, AppendOnlyFile.FsyncPolicy.NO);
+        aof.start();
+        aof.appendTransaction(List.of(new String[]{"SET", "c", "3"}, new String[]{"DEL", "a"}));
+        aof.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // Cut inside the EXEC that ends the second transaction
+            channel.truncate(Files.size(file) - 3);
+        }
+
+        store = replay(file);
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("c"));
+        assertEquals(complete, Files.size(file));
+    }
+
+    /**
+     * Under always, every writer waits for its command to be synced, but writers arriving together share a sync.
+     */
+    @Test
+    void sharesSyncsBetweenConcurrentWriters() throws Exception {
+        Path file = dir.resolve("appendonly.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(new KeyValueHandler(), file, AppendOnlyFile.FsyncPolicy.ALWAYS);
+        aof.start();
+        int threads = 16;
+        int commands = 200;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            writers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < commands; i++) {
+                        aof.awaitSynced(aof.append("SET", "key" + id, String.valueOf(i)));
+                    }
+                } catch (InterruptedException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long syncs = aof.getSyncs();
+        assertTrue(syncs < threads * commands, syncs + " syncs for " + threads * commands + " commands");
+
+        CountDownLatch called = new CountDownLatch(1);
+        if (!aof.whenSynced(aof.append("SET", "last", "1"), called::countDown)) {
+            // Synced before the callback could be registered
+            called.countDown();
+        }
+        called.await();
+        aof.close();
+
+        KeyValueHandler store = replay(file);
+        for (int t = 0; t < threads; t++) {
+            assertEquals(String.valueOf(commands - 1), store.get("key" + t));
+        }
+    }
+
+    /**
+     * A rewrite shrinks the log to the current store, and keeps the commands appended while it runs.
+     */
+    @Test
+    void rewritesLogFromStore() throws Exception {
+        Path file = dir.resolve("appendonly.aof");
+        KeyValueHandler store = new KeyValueHandler();
+        AppendOnlyFile aof = new AppendOnlyFile(store, file, AppendOnlyFile.FsyncPolicy.NO);
+        aof.start();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 1000; i++) {
+                String value = "value" + round;
+                store.set("key" + i, value);
+                aof.append("SET", "key" + i, value);
+            }
+        }
+        Thread writer = Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < 5000; i++) {
+                store.set("during" + i, "x");
+                aof.append("SET", "during" + i, "x");
+            }
+        });
+        aof.rewrite();
+        writer.join();
+        store.set("after", "y");
+        aof.append("SET", "after", "y");
+        aof.close();
+
+        KeyValueHandler replayed = replay(file);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value19", replayed.get("key" + i));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("x", replayed.get("during" + i));
+        }
+        assertEquals("y", replayed.get("after"));
+        assertEquals(store.size(), replayed.size());
+    }
+
+    /**
+     * A command that changes the store while a rewrite starts is either in the snapshot or in the tail kept aside,
+     * never in both, so a replay applies every increment exactly once.
+     */
+    @Test
+    void rewriteAppliesEachCommandOnce() throws Exception {
+        Path file = dir.resolve("appendonly.aof");
+        KeyValueHandler store = new KeyValueHandler();
+        KeyLocks keyLocks = new KeyLocks();
+        AppendOnlyFile aof = new AppendOnlyFile(store, file, AppendOnlyFile.FsyncPolicy.NO, keyLocks);
+        aof.start();
+        int increments = 20000;
+        Thread writer = Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < increments; i++) {
+                int stripe = keyLocks.lock("counter");
+                try {
+                    store.incrementBy("counter", 1);
+                    aof.append("INCR", "counter");
+                } finally {
+                    keyLocks.unlock(stripe);
+                }
+            }
+        });
+        while (writer.isAlive()) {
+            aof.rewrite();
+        }
+        writer.join();
+        aof.close();
+
+        assertEquals(String.valueOf(increments), replay(file).get("counter"));
+    }
+
+    @Test
+    void replaysAndRewritesCollectionCommands() throws Exception {
+        Path file = dir.resolve("appendonly.aof");
+        KeyValueHandler store = new KeyValueHandler();
+        AppendOnlyFile aof = new AppendOnlyFile(store, file, AppendOnlyFile.FsyncPolicy.NO);
+        aof.start();
+        aof.append("HSET", "hash", "a", "1", "b", "2");
+        aof.append("HDEL", "hash", "a");
+        aof.append("RPUSH", "list", "x", "y", "z");
+        aof.append("LPUSH", "list", "w");
+        aof.append("RPOP", "list", "2");
+        aof.append("SADD", "set", "m", "n");
+        aof.append("SREM", "set", "m");
+        aof.append("ZADD", "zset", "1.5", "a", "-inf", "b", "0.1", "c");
+        aof.append("ZREM", "zset", "c");
+        aof.append("XADD", "stream", "1-1", "f", "v");
+        aof.append("XADD", "stream", "2-0", "f", "w", "g", "x");
+        aof.close();
+
+        KeyValueHandler replayed = replay(file);
+        assertNull(replayed.read("hash", HashValue.class, hash -> hash.get("a")));
+        assertEquals(1, replayed.read("hash", HashValue.class, HashValue::size));
+        assertEquals(2, replayed.read("list", ListValue.class, ListValue::size));
+        byte[] head = replayed.read("list", ListValue.class, list -> list.get(0));
+        assertEquals("w", new String(head));
+        boolean contains = replayed.read("set", SetValue.class, set -> set.contains("n"));
+        assertTrue(contains);
+        assertEquals(Double.NEGATIVE_INFINITY, replayed.read("zset", SortedSetValue.class, zset -> zset.score("b")));
+        assertEquals(2, replayed.read("zset", SortedSetValue.class, SortedSetValue::size));
+        assertEquals("2-0", replayed.read("stream", StreamValue.class, StreamValue::lastId).toString());
+
+        // A rewrite recreates large collections exactly, over several commands
+        replayed.update("zset", SortedSetValue.class, null, zset -> {
+            for (int i = 0; i < 1000; i++) {
+                zset.add("m" + i, i / 7.0);
+            }
+            return null;
+        });
+        AppendOnlyFile rewritten = new AppendOnlyFile(replayed, file, AppendOnlyFile.FsyncPolicy.NO);
+        rewritten.start();
+        rewritten.rewrite();
+        rewritten.close();
+        KeyValueHandler again = replay(file);
+        assertEquals(1002, again.read("zset", SortedSetValue.class, SortedSetValue::size));
+        assertEquals(999 / 7.0, again.read("zset", SortedSetValue.class, zset -> zset.score("m999")));
+        assertEquals(1.5, again.read("zset", SortedSetValue.class, zset -> zset.score("a")));
+        assertEquals(2, again.read("stream", StreamValue.class, StreamValue::size));
+        assertEquals(replayed.getUsedMemory(), again.getUsedMemory());
+    }
+}
@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link Cluster} and {@link Crc16}.
+ */
+class ClusterTest {
+    private static final String NODES = "127.0.0.1:7000 0-5460,127.0.0.1:7001 5461-10922,127.0.0.1:7002 10923-16383";
+
+    /**
+     * Slots match those Redis Cluster gives the same keys, and keys sharing a non-empty hash tag share a slot.
+     */
+    @Test
+    void hashesKeysToSlotsAsRedisDoes() {
+        assertEquals(0x31C3, Crc16.of("123456789", 0, 9));
+        assertEquals(12182, Cluster.keySlot("foo"));
+        assertEquals(5061, Cluster.keySlot("bar"));
+        assertEquals(0, Cluster.keySlot(""));
+        assertEquals(Cluster.keySlot("user1000"), Cluster.keySlot("{user1000}.following"));
+        assertEquals(Cluster.keySlot("{user1000}.following"), Cluster.keySlot("{user1000}.followers"));
+        assertEquals(Cluster.keySlot("foo{}{bar}"), Crc16.of("foo{}{bar}", 0, 10) & (Cluster.SLOTS - 1));
+        assertEquals(Cluster.keySlot("{bar"), Crc16.of("{bar", 0, 4) & (Cluster.SLOTS - 1));
+    }
+
+    @Test
+    void parsesTheSlotTable() {
+        Cluster cluster = new Cluster(NODES, "127.0.0.1", 7001);
+        assertEquals(3, cluster.nodes().size());
+        Cluster.Node myself = cluster.myself();
+        assertEquals("127.0.0.1:7001", myself.address());
+        assertEquals(40, myself.id().length());
+        assertEquals(myself.id(), new Cluster(NODES, "127.0.0.1", 7000).nodes().get(1).id());
+        assertSame(myself, cluster.node(myself.id()));
+        assertSame(myself, cluster.owner(5461));
+        assertSame(cluster.nodes().get(2), cluster.owner(16383));
+        assertEquals(Cluster.SLOTS, cluster.assignedSlots());
+        assertEquals(List.of(new Cluster.SlotRange(5461, 10922, myself)), cluster.slotRanges(myself));
+
+        Cluster partial = new Cluster("127.0.0.1:7000 0-99 200 300-301,127.0.0.1:7001", "127.0.0.1", 7000);
+        assertEquals(103, partial.assignedSlots());
+        assertEquals(3, partial.slotRanges().size());
+        assertNull(partial.owner(100));
+        assertEquals(List.of(), partial.slotRanges(partial.nodes().get(1)));
+
+        assertThrows(IllegalArgumentException.class, () -> new Cluster(NODES, "127.0.0.1", 7003));
+        assertThrows(IllegalArgumentException.class, () -> new Cluster("127.0.0.1:7000 0-10,127.0.0.1:7001 10",
+                "127.0.0.1", 7000));
+        assertThrows(IllegalArgumentException.class, () -> new Cluster("127.0.0.1:7000 0-16384", "127.0.0.1",
+                7000));
+    }
+
+    @Test
+    void movesSlotsBetweenNodes() {
+        Cluster cluster = new Cluster(NODES, "127.0.0.1", 7000);
+        Cluster.Node target = cluster.nodes().get(1);
+        cluster.setMigrating(42, target);
+        assertSame(target, cluster.migratingTo(42));
+        cluster.setStable(42);
+        assertNull(cluster.migratingTo(42));
+        cluster.setMigrating(42, target);
+        cluster.setOwner(42, target);
+        assertNull(cluster.migratingTo(42));
+        assertSame(target, cluster.owner(42));
+        assertEquals(List.of(new Cluster.SlotRange(0, 41, cluster.myself()),
+                new Cluster.SlotRange(43, 5460, cluster.myself())), cluster.slotRanges(cluster.myself()));
+    }
+}
@@ -0,0 +1,203 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ListPack}, {@link SkipList} and the collections built on them.
+ */
+class CollectionValueTest {
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void packsEntriesOfAnyLength() {
+        ListPack pack = new ListPack();
+        byte[] large = new byte[300];
+        pack.insert(pack.end(), bytes("a"));
+        pack.insert(pack.end(), large);
+        pack.insert(pack.first(), bytes(""));
+        assertEquals(3, pack.size());
+        assertEquals("", string(pack.get(pack.first())));
+        int second = pack.next(pack.first());
+        assertEquals("a", string(pack.get(second)));
+        assertArrayEquals(large, pack.get(pack.next(second)));
+        assertEquals(pack.next(second), pack.find(pack.first(), large, 1));
+
+        pack.replace(second, bytes("longer"));
+        assertEquals("longer", string(pack.get(second)));
+        pack.delete(pack.first(), 2);
+        assertEquals(1, pack.size());
+        assertArrayEquals(large, pack.get(pack.first()));
+        assertEquals(-1, pack.find(pack.first(), bytes("a"), 1));
+    }
+
+    @Test
+    void switchesToHashTableWhenLarge() {
+        HashValue hash = new HashValue();
+        for (int i = 0; i < HashValue.maxListpackEntries; i++) {
+            assertTrue(hash.set("field" + i, bytes("value" + i)));
+        }
+        assertEquals("listpack", hash.encoding());
+        assertFalse(hash.set("field0", bytes("changed")));
+        assertTrue(hash.set("one-more", bytes("v")));
+        assertEquals("hashtable", hash.encoding());
+        assertEquals("changed", string(hash.get("field0")));
+        assertEquals("value5", string(hash.get("field5")));
+        assertEquals(HashValue.maxListpackEntries + 1, hash.size());
+
+        HashValue wide = new HashValue();
+        wide.set("f", new byte[HashValue.maxListpackValue + 1]);
+        assertEquals("hashtable", wide.encoding());
+        assertTrue(wide.delete("f"));
+        assertEquals(0, wide.size());
+    }
+
+    @Test
+    void pushesAndPopsAtBothEnds() {
+        for (int n : new int[]{10, 1000}) {
+            ListValue list = new ListValue();
+            List<String> reference = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                list.push(bytes("r" + i), false);
+                reference.add("r" + i);
+                list.push(bytes("l" + i), true);
+                reference.add(0, "l" + i);
+            }
+            assertEquals(n > ListValue.maxListpackSize ? "ringbuffer" : "listpack", list.encoding());
+            assertEquals(reference.size(), list.size());
+            assertEquals(reference.get(3), string(list.get(3)));
+            assertEquals(reference.get(reference.size() - 2), string(list.get(-2)));
+            assertNull(list.get(reference.size()));
+
+            List<String> range = new ArrayList<>();
+            assertEquals(5, list.range(-5, 100_000, b -> range.add(string(b))));
+            assertEquals(reference.subList(reference.size() - 5, reference.size()), range);
+            assertEquals(0, list.range(5, 2, b -> range.add(string(b))));
+
+            ListValue copy = list.copy();
+            while (!reference.isEmpty()) {
+                assertEquals(reference.remove(0), string(list.pop(true)));
+                if (!reference.isEmpty()) {
+                    assertEquals(reference.remove(reference.size() - 1), string(list.pop(false)));
+                }
+            }
+            assertNull(list.pop(true));
+            assertEquals(2 * n, copy.size());
+        }
+    }
+
+    @Test
+    void addsAndRemovesSetMembers() {
+        SetValue set = new SetValue();
+        for (int i = 0; i < 200; i++) {
+            assertTrue(set.add("m" + i));
+            assertFalse(set.add("m" + i));
+            if (i == SetValue.maxListpackEntries - 1) {
+                assertEquals("listpack", set.encoding());
+            }
+        }
+        assertEquals("hashtable", set.encoding());
+        assertTrue(set.contains("m150"));
+        assertTrue(set.remove("m150"));
+        assertFalse(set.contains("m150"));
+        assertEquals(199, set.size());
+    }
+
+    /**
+     * Ranks and ranges of a sorted set agree with a sorted reference list, in both encodings.
+     */
+    @Test
+    void ordersSortedSetByScoreThenMember() {
+        for (int n : new int[]{50, 2000}) {
+            SortedSetValue zset = new SortedSetValue();
+            Map<String, Double> reference = new HashMap<>();
+            Random random = new Random(n);
+            for (int i = 0; i < n * 2; i++) {
+                String member = "m" + random.nextInt(n);
+                double score = random.nextInt(n / 5);
+                assertEquals(!reference.containsKey(member), zset.add(member, score));
+                reference.put(member, score);
+                if (random.nextInt(5) == 0) {
+                    String removed = "m" + random.nextInt(n);
+                    assertEquals(reference.remove(removed) != null, zset.remove(removed));
+                }
+            }
+            assertEquals(n > SortedSetValue.maxListpackEntries ? "skiplist" : "listpack", zset.encoding());
+            List<Map.Entry<String, Double>> sorted = new ArrayList<>(reference.entrySet());
+            sorted.sort(Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+            assertEquals(sorted.size(), zset.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals(i, zset.rank(sorted.get(i).getKey()));
+                assertEquals(sorted.get(i).getValue(), zset.score(sorted.get(i).getKey()));
+            }
+            assertEquals(-1, zset.rank("missing"));
+
+            List<String> members = new ArrayList<>();
+            zset.range(-10, -1, (member, score) -> members.add(member));
+            assertEquals(sorted.subList(sorted.size() - 10, sorted.size()).stream().map(Map.Entry::getKey).toList(),
+                    members);
+
+            double min = n / 20.0;
+            double max = n / 10.0;
+            List<String> byScore = new ArrayList<>();
+            zset.rangeByScore(min, true, max, false, (member, score) -> byScore.add(member));
+            assertEquals(sorted.stream().filter(e -> e.getValue() > min && e.getValue() <= max)
+                    .map(Map.Entry::getKey).toList(), byScore);
+        }
+    }
+
+    @Test
+    void keepsSkipListRanksAcrossDeletes() {
+        SkipList list = new SkipList();
+        List<Integer> reference = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.insert(i, "m" + i);
+            reference.add(i);
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            assertTrue(list.delete(i, "m" + i));
+            reference.remove(Integer.valueOf(i));
+        }
+        assertFalse(list.delete(0, "m0"));
+        reference.sort(Comparator.naturalOrder());
+        assertEquals(reference.size(), list.size());
+        for (int rank = 0; rank < reference.size(); rank++) {
+            int score = reference.get(rank);
+            assertEquals(rank, list.rank(score, "m" + score));
+            assertEquals("m" + score, list.byRank(rank).member());
+        }
+        assertNull(list.byRank(reference.size()));
+        assertEquals(301.0, list.firstFrom(300, false).score());
+        assertEquals(302.0, list.firstFrom(301, true).score());
+    }
+
+    @Test
+    void parsesAndFormatsScores() {
+        assertEquals(Double.POSITIVE_INFINITY, SortedSetValue.parseScore("+inf"));
+        assertEquals(Double.NEGATIVE_INFINITY, SortedSetValue.parseScore("-INF"));
+        assertEquals(1.5, SortedSetValue.parseScore("1.5"));
+        assertThrows(CommandException.class, () -> SortedSetValue.parseScore("nan"));
+        assertThrows(CommandException.class, () -> SortedSetValue.parseScore("one"));
+        assertEquals("3", SortedSetValue.formatScore(3.0));
+        assertEquals("1.5", SortedSetValue.formatScore(1.5));
+        assertEquals("-inf", SortedSetValue.formatScore(Double.NEGATIVE_INFINITY));
+    }
+}
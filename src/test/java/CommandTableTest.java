@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.EnumSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link CommandTable} and {@link LatencyHistogram}.
+ */
+class CommandTableTest {
+    private static final CommandTable.Handler NOTHING = (c, a, p) -> {
+    };
+
+    @Test
+    void looksUpCommandsIgnoringCase() {
+        CommandTable table = new CommandTable();
+        // Enough commands to make the table grow
+        for (int i = 0; i < 100; i++) {
+            table.register("CMD" + i, 1, EnumSet.noneOf(CommandTable.Flag.class), NOTHING);
+        }
+        table.register("GET", 2, EnumSet.of(CommandTable.Flag.READONLY), 1, 1, 1, NOTHING);
+        CommandTable.Command get = table.lookup("GET");
+        assertEquals("get", get.name());
+        assertSame(get, table.lookup("get"));
+        assertSame(get, table.lookup("gEt"));
+        assertEquals("cmd42", table.lookup("Cmd42").name());
+        assertNull(table.lookup("GETX"));
+        assertNull(table.lookup("GE"));
+        assertNull(table.lookup("GÉT"));
+        assertTrue(get.has(CommandTable.Flag.READONLY));
+        assertFalse(get.has(CommandTable.Flag.WRITE));
+        assertThrows(IllegalArgumentException.class, () -> table.register("get", 2, EnumSet.noneOf(
+                CommandTable.Flag.class), NOTHING));
+    }
+
+    @Test
+    void checksArityAndFindsKeys() {
+        CommandTable table = new CommandTable();
+        EnumSet<CommandTable.Flag> write = EnumSet.of(CommandTable.Flag.WRITE);
+        table.register("GET", 2, write, 1, 1, 1, NOTHING);
+        table.register("DEL", -2, write, 1, -1, 1, NOTHING);
+        table.register("MSET", -3, write, 1, -1, 2, NOTHING);
+        table.register("PING", -1, write, NOTHING);
+
+        CommandTable.Command get = table.lookup("GET");
+        assertTrue(get.acceptsArity(2));
+        assertFalse(get.acceptsArity(3));
+        assertEquals(1, get.singleKey(new String[]{"GET", "a"}));
+
+        CommandTable.Command del = table.lookup("DEL");
+        assertFalse(del.acceptsArity(1));
+        assertTrue(del.acceptsArity(5));
+        assertEquals(1, del.singleKey(new String[]{"DEL", "a"}));
+        assertEquals(-1, del.singleKey(new String[]{"DEL", "a", "b"}));
+        assertArrayEquals(new String[]{"a", "b", "c"}, del.keys(new String[]{"DEL", "a", "b", "c"}));
+
+        CommandTable.Command mset = table.lookup("MSET");
+        assertArrayEquals(new String[]{"a", "b"}, mset.keys(new String[]{"MSET", "a", "1", "b", "2"}));
+        assertArrayEquals(new String[]{"a", "b"}, mset.keys(new String[]{"MSET", "a", "1", "b"}));
+        assertEquals(1, mset.singleKey(new String[]{"MSET", "a", "1"}));
+
+        CommandTable.Command ping = table.lookup("PING");
+        assertEquals(0, ping.keys(new String[]{"PING", "hello"}).length);
+        assertEquals(-1, ping.singleKey(new String[]{"PING", "hello"}));
+    }
+
+    @Test
+    void recordsCallsAndLatencies() {
+        CommandTable table = new CommandTable();
+        table.register("GET", 2, EnumSet.of(CommandTable.Flag.READONLY), 1, 1, 1, NOTHING);
+        CommandTable.Command get = table.lookup("GET");
+        for (int i = 1; i <= 1000; i++) {
+            get.recordCall(i * 1000L, i % 100 == 0);
+        }
+        get.recordRejected();
+        assertEquals(1000, get.calls());
+        assertEquals(10, get.failedCalls());
+        assertEquals(1, get.rejectedCalls());
+        assertEquals(500_500, get.totalMicros());
+
+        long[] p = get.latency().percentiles(50, 99, 100);
+        // Each within an eighth above the exact value
+        assertTrue(p[0] >= 500_000 && p[0] <= 500_000 * 9 / 8, "p50 " + p[0]);
+        assertTrue(p[1] >= 990_000 && p[1] <= 990_000 * 9 / 8, "p99 " + p[1]);
+        assertTrue(p[2] >= 1_000_000 && p[2] <= 1_000_000 * 9 / 8, "p100 " + p[2]);
+        assertEquals(1000, get.latency().count());
+    }
+
+    @Test
+    void coversEveryValueWithContiguousBuckets() {
+        long expected = 0;
+        for (int bucket = 0; bucket <= LatencyHistogram.bucketOf(Long.MAX_VALUE); bucket++) {
+            assertEquals(bucket, LatencyHistogram.bucketOf(expected));
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(highest));
+            expected = highest + 1;
+        }
+        assertEquals(Long.MIN_VALUE, expected);
+    }
+}
@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ExpiryWheel}, driven with explicit times.
+ */
+class ExpiryWheelTest {
+    private final List<String> expired = new ArrayList<>();
+    private long now = 1_000_000;
+
+    private final ExpiryWheel wheel = new ExpiryWheel((key, expiresAt) -> {
+        assertTrue(now > expiresAt, key + " handed over before it expired");
+        expired.add(key);
+        return true;
+    });
+
+    /**
+     * Keys are handed over on the first tick after their expiry, whichever level of the wheel they started in.
+     */
+    @Test
+    void expiresKeysOnTimeAtEveryLevel() {
+        wheel.advance(now);
+        long start = now;
+        long[] delays = {5, 10, 2_000, 3_000, 700_000, 50L * 3600 * 1000};
+        for (long delay : delays) {
+            wheel.schedule("k" + delay, start + delay);
+        }
+        wheel.advance(now);
+        assertEquals(delays.length, wheel.getScheduled());
+        for (long delay : delays) {
+            now = start + delay;
+            wheel.advance(now);
+            assertFalse(expired.contains("k" + delay), "k" + delay + " expired early");
+            now = start + delay + ExpiryWheel.TICK_MILLIS;
+            wheel.advance(now);
+            assertTrue(expired.contains("k" + delay), "k" + delay + " not expired");
+        }
+        assertEquals(0, wheel.getScheduled());
+    }
+
+    @Test
+    void expiresKeysScheduledInThePastRightAway() {
+        wheel.advance(now);
+        wheel.schedule("old", now - 1_000);
+        wheel.advance(now);
+        assertEquals(List.of("old"), expired);
+        assertEquals(0, wheel.getScheduled());
+    }
+
+    /**
+     * A single advance looks at a bounded number of keys and leaves the rest to the next one.
+     */
+    @Test
+    void boundsWorkPerAdvance() {
+        wheel.advance(now);
+        for (int i = 0; i < 50_000; i++) {
+            wheel.schedule("k" + i, now + 5);
+        }
+        now += 100;
+        wheel.advance(now);
+        assertTrue(expired.size() < 50_000);
+        assertEquals(1, wheel.getCapReached());
+        wheel.advance(now);
+        wheel.advance(now);
+        assertEquals(50_000, expired.size());
+        assertEquals(0, wheel.getScheduled());
+    }
+}
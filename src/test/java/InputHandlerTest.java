@@ -0,0 +1,160 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link InputHandler}.
+ */
+class InputHandlerTest {
+    private static InputHandler handler(String input) {
+        return new InputHandler(new ByteArrayInputStream(input.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    /**
+     * An InputStream that returns at most one byte per read, as a slow client sending a command in pieces.
+     */
+    private static InputStream trickle(String input) {
+        byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    @Test
+    void readsCommands() throws IOException {
+        InputHandler in = handler("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$2\r\nab\r\n*1\r\n$4\r\nPING\r\n");
+        assertArrayEquals(new String[]{"SET", "k", "ab"}, in.readBulkStringArray());
+        assertArrayEquals(new String[]{"PING"}, in.readBulkStringArray());
+        assertEquals(42, in.getPosition());
+    }
+
+    /**
+     * Bulk strings are read by their declared length, so they may contain CR and LF.
+     */
+    @Test
+    void readsBulkStringsContainingCrlf() throws IOException {
+        InputHandler in = handler("*2\r\n$4\r\nECHO\r\n$5\r\na\r\nbc\r\n");
+        assertArrayEquals(new String[]{"ECHO", "a\r\nbc"}, in.readBulkStringArray());
+    }
+
+    /**
+     * Empty requests and null bulk strings are read as they are, leaving the connection to ignore or reject them,
+     * and the requests after them are read as usual.
+     */
+    @Test
+    void readsEmptyRequestsAndNullArguments() throws IOException {
+        InputHandler in = handler("*0\r\n*-1\r\n*2\r\n$3\r\nGET\r\n$-1\r\n*1\r\n$4\r\nPING\r\n");
+        assertArrayEquals(new String[0], in.readBulkStringArray());
+        assertArrayEquals(new String[0], in.readBulkStringArray());
+        assertArrayEquals(new String[]{"GET", null}, in.readBulkStringArray());
+        assertArrayEquals(new String[]{"PING"}, in.readBulkStringArray());
+    }
+
+    /**
+     * Values larger than the read buffer are read in full, and commands split across reads are put back together.
+     */
+    @Test
+    void readsLargeAndSplitValues() throws IOException {
+        String large = "x".repeat(100_000);
+        InputHandler in = handler("*1\r\n$" + large.length() + "\r\n" + large + "\r\n");
+        assertArrayEquals(new String[]{large}, in.readBulkStringArray());
+
+        in = new InputHandler(trickle("*2\r\n$4\r\nECHO\r\n$3\r\nhey\r\n"));
+        assertArrayEquals(new String[]{"ECHO", "hey"}, in.readBulkStringArray());
+    }
+
+    /**
+     * The output is flushed only once the buffered input is used up and the handler has to wait for more.
+     */
+    @Test
+    void flushesOnlyWhenInputRunsDry() throws IOException {
+        int[] flushes = new int[1];
+        String pipeline = "*1\r\n$4\r\nPING\r\n".repeat(3);
+        InputHandler in = new InputHandler(new ByteArrayInputStream(pipeline.getBytes(StandardCharsets.ISO_8859_1)),
+                () -> flushes[0]++);
+        in.readBulkStringArray();
+        in.readBulkStringArray();
+        in.readBulkStringArray();
+        assertEquals(0, flushes[0]);
+        assertThrows(EOFException.class, in::readBulkStringArray);
+        assertEquals(1, flushes[0]);
+    }
+
+    /**
+     * A fed handler reports a partial command without consuming it, and parses it once the rest arrives.
+     */
+    @Test
+    void readsFedCommandsOnceComplete() throws IOException {
+        InputHandler in = new InputHandler((Flushable) null);
+        String command = "*2\r\n$4\r\nECHO\r\n$300\r\n" + "y".repeat(300) + "\r\n";
+        in.feed(ByteBuffer.wrap(command.substring(0, 20).getBytes(StandardCharsets.ISO_8859_1)));
+        assertThrows(IncompleteInputException.class, in::readBulkStringArray);
+        assertEquals(0, in.getPosition());
+        assertEquals(20, in.buffered());
+        in.feed(ByteBuffer.wrap((command.substring(20) + "*1\r\n$4\r\nPI").getBytes(StandardCharsets.ISO_8859_1)));
+        assertArrayEquals(new String[]{"ECHO", "y".repeat(300)}, in.readBulkStringArray());
+        assertThrows(IncompleteInputException.class, in::readBulkStringArray);
+        in.feed(ByteBuffer.wrap("NG\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        assertArrayEquals(new String[]{"PING"}, in.readBulkStringArray());
+        assertEquals(command.length() + 14, in.getPosition());
+    }
+
+    /**
+     * A payload is read through a stream of its own, by length or up to a mark, and what follows is still there.
+     */
+    @Test
+    void readsPayloadsAsStreams() throws IOException {
+        String mark = "0123456789abcdef0123456789abcdef01234567";
+        String payload = "REDIS0011" + "x".repeat(50_000) + "0123";
+        String input = "$" + payload.length() + "\r\n" + payload + "$EOF:" + mark + "\r\n" + payload + mark
+                + "*1\r\n$4\r\nPING\r\n";
+        for (InputHandler in : new InputHandler[]{handler(input), new InputHandler(trickle(input))}) {
+            int length = Integer.parseInt(in.readLine().substring(1));
+            assertEquals(payload, new String(in.readPayload(length).readAllBytes(), StandardCharsets.ISO_8859_1));
+            String header = in.readLine();
+            assertEquals("$EOF:" + mark, header);
+            InputStream untilMark = in.readPayloadUntil(header.substring(5).getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals(payload, new String(untilMark.readAllBytes(), StandardCharsets.ISO_8859_1));
+            assertArrayEquals(new String[]{"PING"}, in.readBulkStringArray());
+        }
+        assertThrows(EOFException.class, () -> handler("abc").readPayload(4).readAllBytes());
+        assertThrows(EOFException.class, () -> handler("abc").readPayloadUntil(new byte[]{'x'}).readAllBytes());
+    }
+
+    @Test
+    void refusesMalformedInput() {
+        assertThrows(IOException.class, () -> handler("*1\r\n$2\r\nabc\r\n").readBulkStringArray());
+        assertThrows(IOException.class, () -> handler("*1\r\n+OK\r\n").readBulkStringArray());
+        assertThrows(IOException.class, () -> handler("*x\r\n").readBulkStringArray());
+        assertThrows(EOFException.class, () -> handler("*2\r\n$4\r\nECHO\r\n").readBulkStringArray());
+    }
+
+    /**
+     * Lengths over the bounds of Redis are refused before anything is allocated for them.
+     */
+    @Test
+    void refusesOversizedLengths() {
+        assertThrows(IOException.class, () -> handler("*2147483647\r\n").readBulkStringArray());
+        assertThrows(IOException.class, () -> handler("*1048577\r\n").readBulkStringArray());
+        assertThrows(IOException.class, () -> handler("*1\r\n$2000000000\r\n").readBulkStringArray());
+        assertThrows(IOException.class, () -> handler("*99999999999999999999999\r\n").readBulkStringArray());
+        assertThrows(IOException.class, () -> handler("*1" + "0".repeat(100_000)).readBulkStringArray());
+
+        InputHandler fed = new InputHandler((Flushable) null);
+        fed.feed(ByteBuffer.wrap(("*" + "1".repeat(70_000)).getBytes(StandardCharsets.ISO_8859_1)));
+        assertThrows(IOException.class, fed::readBulkStringArray);
+    }
+}
@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link KeyTable} and {@link Glob}.
+ */
+class KeyTableTest {
+    @Test
+    void countsKeysAsTheyChange() {
+        KeyTable<String> table = new KeyTable<>();
+        assertNull(table.put("a", "1"));
+        assertEquals("1", table.put("a", "2"));
+        assertEquals("x", table.compute("b", (k, v) -> v == null ? "x" : v + "x"));
+        assertEquals("xx", table.compute("b", (k, v) -> v == null ? "x" : v + "x"));
+        assertNull(table.computeIfPresent("c", (k, v) -> "never"));
+        assertEquals(2, table.size());
+
+        assertNull(table.compute("a", (k, v) -> null));
+        assertNull(table.computeIfPresent("b", (k, v) -> null));
+        assertNull(table.compute("c", (k, v) -> null));
+        assertEquals(0, table.size());
+
+        table.put("d", "1");
+        assertFalse(table.remove("d", "2"));
+        assertTrue(table.remove("d", "1"));
+        assertNull(table.remove("d"));
+        assertEquals(0, table.size());
+        assertFalse(table.iterator().hasNext());
+    }
+
+    /**
+     * A full scan of a table that does not change returns each key once, a few keys at a time.
+     */
+    @Test
+    void scansEachKeyOnce() {
+        KeyTable<String> table = new KeyTable<>();
+        for (int i = 0; i < 10_000; i++) {
+            table.put("key:" + i, "v");
+        }
+        List<String> seen = new ArrayList<>();
+        long cursor = 0;
+        int calls = 0;
+        do {
+            cursor = table.scan(cursor, 10, (key, value) -> seen.add(key));
+            calls++;
+        } while (cursor != 0);
+        assertEquals(10_000, seen.size());
+        assertEquals(10_000, new HashSet<>(seen).size());
+        assertTrue(calls > 100, "calls: " + calls);
+
+        KeyTable<String> small = new KeyTable<>();
+        small.put("only", "v");
+        List<String> one = new ArrayList<>();
+        assertEquals(0, small.scan(0, 10, (key, value) -> one.add(key)));
+        assertEquals(List.of("only"), one);
+        assertEquals(0, new KeyTable<String>().scan(0, 10, (key, value) -> one.add(key)));
+    }
+
+    /**
+     * Keys present throughout a scan are returned even though the number of buckets changes between calls.
+     */
+    @Test
+    void scansEveryKeyWhileTheTableGrowsAndShrinks() {
+        KeyTable<String> table = new KeyTable<>();
+        for (int i = 0; i < 1000; i++) {
+            table.put("kept:" + i, "v");
+        }
+        Set<String> seen = new HashSet<>();
+        long cursor = 0;
+        int calls = 0;
+        do {
+            cursor = table.scan(cursor, 10, (key, value) -> seen.add(key));
+            calls++;
+            if (calls == 5) {
+                for (int i = 0; i < 50_000; i++) {
+                    table.put("added:" + i, "v");
+                }
+            } else if (calls == 200) {
+                for (int i = 0; i < 50_000; i++) {
+                    table.remove("added:" + i);
+                }
+            }
+        } while (cursor != 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(seen.contains("kept:" + i), "kept:" + i);
+        }
+    }
+
+    @Test
+    void matchesGlobPatterns() {
+        assertTrue(Glob.matches("*", ""));
+        assertTrue(Glob.matches("*", "anything"));
+        assertTrue(Glob.matches("user:*", "user:1000"));
+        assertFalse(Glob.matches("user:*", "session:1000"));
+        assertTrue(Glob.matches("*:1000", "user:1000"));
+        assertTrue(Glob.matches("u*r*0", "user:1000"));
+        assertFalse(Glob.matches("u*r*1", "user:1000"));
+        assertTrue(Glob.matches("h?llo", "hello"));
+        assertFalse(Glob.matches("h?llo", "hllo"));
+        assertTrue(Glob.matches("h[ae]llo", "hallo"));
+        assertFalse(Glob.matches("h[ae]llo", "hillo"));
+        assertTrue(Glob.matches("h[^e]llo", "hallo"));
+        assertFalse(Glob.matches("h[^e]llo", "hello"));
+        assertTrue(Glob.matches("h[a-b]llo", "hbllo"));
+        assertTrue(Glob.matches("h[b-a]llo", "hallo"));
+        assertFalse(Glob.matches("h[a-b]llo", "hcllo"));
+        assertTrue(Glob.matches("h\\*llo", "h*llo"));
+        assertFalse(Glob.matches("h\\*llo", "hello"));
+        assertTrue(Glob.matches("[\\]]", "]"));
+        assertTrue(Glob.matches("a[bc", "ab"));
+        assertTrue(Glob.matches("end\\", "end\\"));
+        assertFalse(Glob.matches("a*a*a*a*a*a*b", "a".repeat(1000)));
+
+        assertTrue(Glob.isLiteral("user:1000"));
+        assertFalse(Glob.isLiteral("user:*"));
+        assertFalse(Glob.isLiteral("user:\\*"));
+    }
+}
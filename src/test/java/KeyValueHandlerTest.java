@@ -0,0 +1,527 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link KeyValueHandler}.
+ */
+class KeyValueHandlerTest {
+    @Test
+    void setsAndGets() {
+        KeyValueHandler store = new KeyValueHandler();
+        assertNull(store.get("k"));
+        store.set("k", "a");
+        assertEquals("a", store.get("k"));
+        store.set("k", "b");
+        assertEquals("b", store.get("k"));
+    }
+
+    /**
+     * A key set with PX expires, and setting it again without PX clears the expiry along with the value.
+     */
+    @Test
+    void expiresKeys() throws InterruptedException {
+        KeyValueHandler store = new KeyValueHandler();
+        store.set("short", "v", 20);
+        store.set("long", "v", 60_000);
+        store.set("cleared", "v", 20);
+        store.set("cleared", "w");
+        assertEquals("v", store.get("short"));
+        Thread.sleep(50);
+        assertNull(store.get("short"));
+        assertEquals("v", store.get("long"));
+        assertEquals("w", store.get("cleared"));
+    }
+
+    /**
+     * Expired keys are removed by the active expiry without being read, unless they were set again meanwhile.
+     */
+    @Test
+    void expiresKeysActively() throws InterruptedException {
+        KeyValueHandler store = new KeyValueHandler();
+        store.activeExpireCycle();
+        for (int i = 0; i < 100; i++) {
+            store.set("k" + i, "v", 10);
+        }
+        store.set("k0", "again");
+        store.activeExpireCycle();
+        assertEquals(100, store.getPendingExpiries());
+        Thread.sleep(50);
+        store.activeExpireCycle();
+        assertEquals(99, store.getActivelyExpiredKeys());
+        assertEquals(99, store.getExpiredKeys());
+        assertEquals(0, store.getPendingExpiries());
+        assertEquals("again", store.get("k0"));
+    }
+
+    @Test
+    void keepsValueAndExpiryTogetherUnderConcurrentWrites() throws InterruptedException {
+        KeyValueHandler store = new KeyValueHandler();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    // An expired value is never returned, whichever writer wins
+                    store.set("k", "expired", -1);
+                    store.set("k", "live");
+                    String value = store.get("k");
+                    if (value != null && !value.equals("live")) {
+                        throw new AssertionError(value);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("live", store.get("k"));
+    }
+
+    /**
+     * Writes over the maximum memory evict keys and report them to the listener, keeping the store within bounds.
+     */
+    @Test
+    void evictsKeysOverMaxMemory() {
+        KeyValueHandler store = new KeyValueHandler();
+        List<String> evicted = new ArrayList<>();
+        store.setEvictionListener(evicted::add);
+        store.setMaxMemory(20_000, KeyValueHandler.EvictionPolicy.ALLKEYS_LRU);
+        for (int i = 0; i < 1_000; i++) {
+            store.set("key" + i, "value" + i);
+        }
+        assertTrue(store.getUsedMemory() <= 20_000 + 200);
+        assertTrue(store.getEvictedKeys() > 800);
+        assertEquals(store.getEvictedKeys(), evicted.size());
+        for (String key : evicted) {
+            assertNull(store.get(key));
+        }
+        assertNotNull(store.get("key999"));
+    }
+
+    /**
+     * A key whose stripe another thread holds, as a command running on it does, is passed over by eviction.
+     */
+    @Test
+    void doesNotEvictKeysLockedByOtherThreads() throws Exception {
+        KeyValueHandler store = new KeyValueHandler();
+        KeyLocks keyLocks = new KeyLocks();
+        List<String> evicted = new ArrayList<>();
+        store.setEvictionListener(evicted::add, keyLocks);
+        store.set("busy", "value");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread holder = Thread.ofPlatform().start(() -> {
+            int stripe = keyLocks.lock("busy");
+            locked.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                keyLocks.unlock(stripe);
+            }
+        });
+        locked.await();
+        store.setMaxMemory(20_000, KeyValueHandler.EvictionPolicy.ALLKEYS_LRU);
+        for (int i = 0; i < 1_000; i++) {
+            store.set("key" + i, "value" + i);
+        }
+        done.countDown();
+        holder.join();
+        assertFalse(evicted.contains("busy"));
+        assertEquals("value", store.get("busy"));
+        assertTrue(store.getEvictedKeys() > 800);
+    }
+
+    @Test
+    void refusesWritesWhenNothingCanBeEvicted() {
+        KeyValueHandler store = new KeyValueHandler();
+        store.set("key0", "value");
+        long entrySize = store.getUsedMemory();
+        // Room for nine and a half entries, so the tenth still fits but nothing after it
+        store.setMaxMemory(entrySize * 19 / 2, KeyValueHandler.EvictionPolicy.NOEVICTION);
+        for (int i = 1; i < 10; i++) {
+            store.set("key" + i, "value");
+        }
+        CommandException e = assertThrows(CommandException.class, () -> store.set("more", "value"));
+        assertTrue(e.getMessage().startsWith("OOM"));
+
+        // volatile-ttl only evicts keys that have an expiry
+        store.setMaxMemory(entrySize * 19 / 2, KeyValueHandler.EvictionPolicy.VOLATILE_TTL);
+        assertThrows(CommandException.class, () -> store.set("more", "value"));
+        store.delete("key0");
+        store.delete("key1");
+        store.set("soon", "value", 10_000);
+        store.set("later", "value", 60_000);
+        store.set("more", "value");
+        assertNull(store.get("soon"));
+        assertEquals("value", store.get("later"));
+    }
+
+    @Test
+    void evictsRarelyUsedKeysUnderLfu() {
+        KeyValueHandler store = new KeyValueHandler();
+        store.setEvictionSamples(64);
+        store.setMaxMemory(10_000, KeyValueHandler.EvictionPolicy.ALLKEYS_LFU);
+        store.set("hot", "value");
+        for (int i = 0; i < 10_000; i++) {
+            store.get("hot");
+        }
+        for (int i = 0; i < 500; i++) {
+            store.set("cold" + i, "value");
+        }
+        assertEquals("value", store.get("hot"));
+    }
+
+    /**
+     * Values kept off the heap read back byte for byte, and their memory is reused once they are replaced.
+     */
+    @Test
+    void storesValuesOffHeap() {
+        KeyValueHandler store = new KeyValueHandler(true);
+        byte[] value = new byte[256];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        store.set("bytes", value.clone());
+        assertArrayEquals(value, store.getBytes("bytes"));
+        store.set("large", "x".repeat(SlabAllocator.PAGE_SIZE));
+        assertEquals(SlabAllocator.PAGE_SIZE, store.get("large").length());
+        for (int i = 0; i < 10_000; i++) {
+            store.set("k", "value" + i);
+        }
+        assertEquals("value9999", store.get("k"));
+        long allocated = store.getOffHeapMemory();
+        assertTrue(store.delete("large"));
+        assertTrue(store.getOffHeapMemory() < allocated);
+        assertNull(store.get("large"));
+    }
+
+    /**
+     * GET writes off-heap values into the reply buffer, and reads of a page freed under them are taken back.
+     */
+    @Test
+    void writesOffHeapValuesIntoReplies() throws IOException {
+        KeyValueHandler store = new KeyValueHandler(true);
+        store.set("small", "abc");
+        store.set("large", "y".repeat(100_000));
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputHandler out = new OutputHandler(written);
+        store.writeValue("small", out);
+        store.writeValue("missing", out);
+        store.writeValue("large", out);
+        out.flush();
+        assertEquals("$3\r\nabc\r\n$-1\r\n$100000\r\n" + "y".repeat(100_000) + "\r\n",
+                written.toString(StandardCharsets.ISO_8859_1));
+
+        SlabAllocator slabs = new SlabAllocator();
+        long page = slabs.store(new byte[SlabAllocator.PAGE_SIZE]);
+        slabs.free(page, SlabAllocator.PAGE_SIZE);
+        assertNull(slabs.read(page, SlabAllocator.PAGE_SIZE));
+        // The page number is reused for a smaller page
+        slabs.store(new byte[SlabAllocator.PAGE_SIZE / 2]);
+        assertFalse(slabs.read(page, SlabAllocator.PAGE_SIZE, new byte[SlabAllocator.PAGE_SIZE], 0));
+    }
+
+    @Test
+    void updatesCollectionsInPlace() {
+        KeyValueHandler store = new KeyValueHandler();
+        store.set("string", "v");
+        assertThrows(CommandException.class,
+                () -> store.update("string", HashValue.class, HashValue::new, hash -> hash.set("f", new byte[1])));
+        assertThrows(CommandException.class, () -> store.read("string", ListValue.class, ListValue::size));
+
+        long before = store.getUsedMemory();
+        store.update("set", SetValue.class, SetValue::new, set -> set.add("a"));
+        assertEquals("set", store.type("set"));
+        assertEquals("listpack", store.encoding("set"));
+        assertThrows(CommandException.class, () -> store.getBytes("set"));
+        assertTrue(store.getUsedMemory() > before);
+        assertEquals(1, store.read("set", SetValue.class, SetValue::size));
+
+        // A collection left empty is removed
+        store.update("set", SetValue.class, null, set -> set.remove("a"));
+        assertEquals("none", store.type("set"));
+        assertEquals(before, store.getUsedMemory());
+        assertNull(store.update("set", SetValue.class, null, set -> set.remove("a")));
+    }
+
+    /**
+     * A snapshot sees a collection as it was when the snapshot started, however it is changed meanwhile.
+     */
+    @Test
+    void snapshotsCollectionsAtPointInTime() throws Exception {
+        KeyValueHandler store = new KeyValueHandler();
+        for (int i = 0; i < 1000; i++) {
+            store.update("list" + i, ListValue.class, ListValue::new, list -> {
+                list.push(new byte[]{1}, false);
+                return null;
+            });
+        }
+        List<Integer> sizes = new ArrayList<>();
+        store.snapshot(new KeyValueHandler.EntryVisitor() {
+            @Override
+            public void visit(String key, byte[] value, long expiresAt) {
+            }
+
+            @Override
+            public void visit(String key, CollectionValue value, long expiresAt) {
+                // Grow every list while the snapshot runs
+                if (sizes.isEmpty()) {
+                    for (int i = 0; i < 1000; i++) {
+                        store.update("list" + i, ListValue.class, ListValue::new, list -> {
+                            list.push(new byte[]{2}, false);
+                            return null;
+                        });
+                    }
+                }
+                sizes.add(value.size());
+            }
+        });
+        assertEquals(1000, sizes.size());
+        assertTrue(sizes.stream().allMatch(size -> size == 1));
+        assertEquals(2, store.read("list0", ListValue.class, ListValue::size));
+    }
+
+    /**
+     * A snapshot started in step with the key locks neither misses a write made with a key locked nor holds up a
+     * thread that takes a snapshot of its own with a key locked, as SAVE in a transaction does.
+     */
+    @Test
+    void startsSnapshotsWhenNoKeyIsLocked() throws Exception {
+        KeyValueHandler store = new KeyValueHandler();
+        KeyLocks keyLocks = new KeyLocks();
+        KeyValueHandler.EntryVisitor keys = new KeyValueHandler.EntryVisitor() {
+            @Override
+            public void visit(String key, byte[] value, long expiresAt) {
+            }
+
+            @Override
+            public void visit(String key, CollectionValue value, long expiresAt) {
+            }
+        };
+        int stripe = keyLocks.lock("k");
+        List<String> seen = new ArrayList<>();
+        Thread snapshotter = Thread.ofPlatform().start(() -> {
+            try {
+                store.snapshot(new KeyValueHandler.EntryVisitor() {
+                    @Override
+                    public void visit(String key, byte[] value, long expiresAt) {
+                        seen.add(key + "=" + new String(value, StandardCharsets.ISO_8859_1));
+                    }
+
+                    @Override
+                    public void visit(String key, CollectionValue value, long expiresAt) {
+                    }
+                }, keyLocks, () -> seen.add("start"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        while (snapshotter.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        store.set("k", "v");
+        store.snapshot(keys);
+        keyLocks.unlock(stripe);
+        snapshotter.join(5000);
+        assertFalse(snapshotter.isAlive());
+        assertEquals(List.of("start", "k=v"), seen);
+    }
+
+    @Test
+    void bumpsVersionsOfWatchedKeysOnChange() throws InterruptedException {
+        KeyValueHandler store = new KeyValueHandler();
+        store.set("a", "1");
+        long a = store.watch("a");
+        long b = store.watch("b");
+        store.set("other", "x");
+        assertEquals(a, store.version("a"));
+        assertEquals(b, store.version("b"));
+
+        store.set("a", "2");
+        store.update("b", HashValue.class, HashValue::new, hash -> hash.set(new String[]{"f", "v"}, 0));
+        assertNotEquals(a, store.version("a"));
+        assertNotEquals(b, store.version("b"));
+
+        store.set("c", "1", 10);
+        long c = store.watch("c");
+        Thread.sleep(20);
+        assertNotEquals(c, store.version("c"));
+
+        store.unwatch("a");
+        store.unwatch("b");
+        store.unwatch("c");
+        assertEquals(-1, store.version("a"));
+    }
+
+    @Test
+    void leavesWatchedKeysAloneWhenNothingChanges() {
+        KeyValueHandler store = new KeyValueHandler();
+        List<String> changed = new ArrayList<>();
+        store.setChangeListener(changed::add);
+        store.update("h", HashValue.class, HashValue::new, hash -> hash.set(new String[]{"f", "v"}, 0));
+        long h = store.watch("h");
+        long missing = store.watch("missing");
+        changed.clear();
+
+        assertNull(store.update("missing", SetValue.class, null, set -> set.remove(new String[]{"m"}, 0),
+                n -> n > 0));
+        assertEquals(Integer.valueOf(0), store.update("h", HashValue.class, null, hash -> hash.delete("g") ? 1 : 0, n -> n > 0));
+        assertEquals(h, store.version("h"));
+        assertEquals(missing, store.version("missing"));
+        assertEquals(List.of(), changed);
+
+        assertEquals(Integer.valueOf(1), store.update("h", HashValue.class, null, hash -> hash.delete("f") ? 1 : 0, n -> n > 0));
+        assertNotEquals(h, store.version("h"));
+        assertEquals(List.of("h"), changed);
+        store.unwatch("h");
+        store.unwatch("missing");
+    }
+
+    @Test
+    void tellsTheChangeListenerAboutChanges() throws InterruptedException {
+        KeyValueHandler store = new KeyValueHandler();
+        List<String> changed = new ArrayList<>();
+        store.setChangeListener(changed::add);
+        store.set("a", "1");
+        store.get("a");
+        store.update("h", HashValue.class, HashValue::new, hash -> hash.set(new String[]{"f", "v"}, 0));
+        store.delete("a");
+        store.delete("missing");
+        store.set("e", "1", 10);
+        Thread.sleep(20);
+        assertNull(store.get("e"));
+        assertEquals(List.of("a", "h", "a", "e", "e"), changed);
+    }
+
+    @Test
+    void readsAndWritesKeysInBatches() {
+        KeyValueHandler store = new KeyValueHandler();
+        store.setAll(new String[]{"MSET", "a", "1", "b", "2"}, 1);
+        store.update("h", HashValue.class, HashValue::new, hash -> hash.set(new String[]{"f", "v"}, 0));
+        byte[][] values = store.getAll(new String[]{"MGET", "a", "missing", "h", "b"}, 1);
+        assertEquals("1", new String(values[0]));
+        assertNull(values[1]);
+        assertNull(values[2]);
+        assertEquals("2", new String(values[3]));
+        assertEquals(3, store.countExisting(new String[]{"EXISTS", "a", "a", "h", "missing"}, 1));
+        assertEquals(2, store.deleteAll(new String[]{"DEL", "a", "missing", "h"}, 1));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void rewritesStringsInPlace() {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            KeyValueHandler store = new KeyValueHandler(offHeap);
+            assertEquals(5, store.incrementBy("n", 5));
+            assertEquals(3, store.incrementBy("n", -2));
+            store.set("big", String.valueOf(Long.MAX_VALUE));
+            CommandException overflow = assertThrows(CommandException.class, () -> store.incrementBy("big", 1));
+            assertTrue(overflow.getMessage().contains("overflow"));
+            store.set("text", "+1");
+            assertThrows(CommandException.class, () -> store.incrementBy("text", 1));
+            assertEquals("+1", store.get("text"));
+
+            store.set("ttl", "ab", 60_000);
+            assertEquals(4, store.append("ttl", "cd".getBytes()));
+            assertEquals("abcd", store.get("ttl"));
+            assertEquals(1, store.append("new", "x".getBytes()));
+            assertEquals("abcd", new String(store.getAndSet("ttl", "e".getBytes())));
+            assertNull(store.getAndSet("fresh", "f".getBytes()));
+            assertEquals("e", store.get("ttl"));
+
+            store.update("h", HashValue.class, HashValue::new, hash -> hash.set(new String[]{"f", "v"}, 0));
+            assertThrows(CommandException.class, () -> store.incrementBy("h", 1));
+            assertThrows(CommandException.class, () -> store.append("h", "x".getBytes()));
+        }
+    }
+
+    @Test
+    void countsKeyspaceHitsAndMisses() {
+        KeyValueHandler store = new KeyValueHandler();
+        store.set("a", "1");
+        store.update("h", HashValue.class, HashValue::new, hash -> hash.set(new String[]{"f", "v"}, 0));
+        store.getBytes("a");
+        store.getBytes("missing");
+        store.getAll(new String[]{"a", "h", "missing"}, 0);
+        store.countExisting(new String[]{"a", "missing"}, 0);
+        store.read("h", HashValue.class, HashValue::size);
+        store.read("missing", HashValue.class, HashValue::size);
+        assertEquals(5, store.getKeyspaceHits());
+        assertEquals(4, store.getKeyspaceMisses());
+    }
+
+    /**
+     * Once slots are indexed, every way of creating or removing a key keeps the index of its slot up to date,
+     * including keys that were in the store before.
+     */
+    @Test
+    void indexesKeysBySlot() {
+        KeyValueHandler store = new KeyValueHandler();
+        store.set("{user}:before", "v");
+        store.indexSlots();
+        int slot = Cluster.keySlot("user");
+        store.set("{user}:name", "v");
+        store.incrementBy("{user}:visits", 1);
+        store.update("{user}:tags", SetValue.class, SetValue::new, set -> set.add("a"));
+        store.set("other", "v");
+        assertEquals(4, store.countKeysInSlot(slot));
+        assertTrue(store.getKeysInSlot(slot, 4).contains("{user}:before"));
+        assertEquals(2, store.getKeysInSlot(slot, 2).size());
+
+        store.delete("{user}:name");
+        store.update("{user}:tags", SetValue.class, null, set -> set.remove("a"));
+        store.set("{user}:visits", "again");
+        assertEquals(2, store.countKeysInSlot(slot));
+        assertEquals(1, store.countKeysInSlot(Cluster.keySlot("other")));
+        store.clear();
+        assertEquals(0, store.countKeysInSlot(slot));
+    }
+
+    /**
+     * Scans and key listings leave out expired keys, and scans can keep the keys of one type only.
+     */
+    @Test
+    void listsLiveKeys() throws IOException, InterruptedException {
+        KeyValueHandler store = new KeyValueHandler();
+        store.set("a", "v");
+        store.set("b", "v");
+        store.update("c", SetValue.class, SetValue::new, set -> set.add("m"));
+        store.set("gone", "v", 1);
+        Thread.sleep(20);
+        assertEquals(4, store.size());
+
+        List<String> keys = new ArrayList<>();
+        long cursor = 0;
+        do {
+            cursor = store.scan(cursor, 1, null, keys);
+        } while (cursor != 0);
+        assertEquals(Set.of("a", "b", "c"), new HashSet<>(keys));
+
+        keys.clear();
+        assertEquals(0, store.scan(0, 100, "set", keys));
+        assertEquals(List.of("c"), keys);
+
+        keys.clear();
+        store.forEachKey(keys::add);
+        assertEquals(Set.of("a", "b", "c"), new HashSet<>(keys));
+    }
+}
@@ -0,0 +1,173 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the replies {@link OutputHandler} encodes.
+ */
+class OutputHandlerTest {
+    private ByteArrayOutputStream written;
+    private OutputHandler out;
+
+    @BeforeEach
+    void setUp() {
+        written = new ByteArrayOutputStream();
+        out = new OutputHandler(written);
+    }
+
+    private String flushed() throws IOException {
+        out.flush();
+        return written.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void encodesReplies() throws IOException {
+        out.writeSimpleString("OK");
+        out.writeSimpleString("PONG");
+        out.writeSimpleString("FULLRESYNC id 0");
+        out.writeInteger(7);
+        out.writeInteger(-12345678901L);
+        out.writeInteger(100_000);
+        out.writeNullBulkString();
+        out.writeBulkString("");
+        out.writeBulkString("a\r\nb");
+        out.writeBulkStringArray("GET", "key");
+        out.writeError("ERR unknown");
+        assertEquals("+OK\r\n+PONG\r\n+FULLRESYNC id 0\r\n:7\r\n:-12345678901\r\n:100000\r\n$-1\r\n$0\r\n\r\n"
+                + "$4\r\na\r\nb\r\n*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n-ERR unknown\r\n", flushed());
+    }
+
+    @Test
+    void encodesMapsAndPayloads() throws IOException {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put("role", "master");
+        map.put("master_repl_offset", "0");
+        out.writeBulkString(map);
+        out.writeBulkPayload(new byte[]{1, 2});
+        out.writeBulkString(new byte[]{'x'});
+        assertEquals("$33\r\nrole:master\r\nmaster_repl_offset:0\r\n$2\r\n\u0001\u0002$1\r\nx\r\n", flushed());
+    }
+
+    /**
+     * Bytes read as ISO-8859-1 are written back unchanged.
+     */
+    @Test
+    void keepsValuesBinarySafe() throws IOException {
+        byte[] value = new byte[256];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        out.writeBulkString(new String(value, StandardCharsets.ISO_8859_1));
+        out.flush();
+        byte[] bytes = written.toByteArray();
+        byte[] payload = new byte[256];
+        System.arraycopy(bytes, "$256\r\n".length(), payload, 0, 256);
+        assertArrayEquals(value, payload);
+    }
+
+    /**
+     * Replies stay in the buffer until flushed, and replies larger than the buffer are written in full.
+     */
+    @Test
+    void buffersUntilFlush() throws IOException {
+        out.writeSimpleString("OK");
+        assertTrue(out.hasPendingOutput());
+        assertEquals(0, written.size());
+        assertEquals(0, out.getBytesWritten());
+        String large = "v".repeat(100_000);
+        out.writeBulkString(large);
+        out.writeBulkString(large.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals("+OK\r\n" + "$100000\r\n" + large + "\r\n" + "$100000\r\n" + large + "\r\n", flushed());
+        assertFalse(out.hasPendingOutput());
+        assertEquals(written.size(), out.getBytesWritten());
+    }
+
+    /**
+     * Held replies stay in the buffer, however large, until the hold ends and the buffer is flushed.
+     */
+    @Test
+    void holdsRepliesUntilReleased() throws IOException {
+        String large = "v".repeat(100_000);
+        out.hold();
+        out.writeSimpleString("OK");
+        out.writeBulkString(large.getBytes(StandardCharsets.ISO_8859_1));
+        for (int i = 0; i < 5000; i++) {
+            out.writeInteger(i);
+        }
+        assertEquals(0, written.size());
+        out.endHold();
+        StringBuilder expected = new StringBuilder("+OK\r\n$100000\r\n" + large + "\r\n");
+        for (int i = 0; i < 5000; i++) {
+            expected.append(':').append(i).append("\r\n");
+        }
+        assertEquals(expected.toString(), flushed());
+    }
+
+    /**
+     * A deferred array gets its header in front of its elements, however many buffers they fill.
+     */
+    @Test
+    void putsTheHeaderOfADeferredArrayInFront() throws IOException {
+        out.writeSimpleString("OK");
+        out.beginDeferredArray();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            out.writeBulkString("key:" + i);
+            expected.append("$").append(Integer.toString(i).length() + 4).append("\r\nkey:").append(i).append("\r\n");
+        }
+        out.writeBulkString("v".repeat(20_000).getBytes(StandardCharsets.ISO_8859_1));
+        expected.append("$20000\r\n").append("v".repeat(20_000)).append("\r\n");
+        assertEquals(0, written.size());
+        out.endDeferredArray(5001);
+        out.beginDeferredArray();
+        out.endDeferredArray(0);
+        assertEquals("+OK\r\n*5001\r\n" + expected + "*0\r\n", flushed());
+    }
+
+    @Test
+    void encodesRepliesInResp3() throws IOException {
+        out.writeMapHeader(1);
+        out.writeNullBulkString();
+        out.writeNullArray();
+        assertEquals(2, out.getProtocol());
+        out.setProtocol(3);
+        out.writeMapHeader(1);
+        out.writeNullBulkString();
+        out.writeNullArray();
+        out.writePushHeader(2);
+        out.writeBulkString("invalidate");
+        out.writeBulkStringArray("key");
+        assertEquals("*2\r\n$-1\r\n*-1\r\n%1\r\n_\r\n_\r\n>2\r\n$10\r\ninvalidate\r\n*1\r\n$3\r\nkey\r\n",
+                flushed());
+    }
+
+    @Test
+    void copiesValuesIntoTheBuffer() throws IOException {
+        assertTrue(out.writeBulkString(3, (dst, offset) -> {
+            System.arraycopy(new byte[]{'a', 'b', 'c'}, 0, dst, offset, 3);
+            return true;
+        }));
+        assertFalse(out.writeBulkString(2, (dst, offset) -> false));
+        assertFalse(out.writeBulkString(100_000, (dst, offset) -> false));
+        assertTrue(out.writeBulkString(100_000, (dst, offset) -> true));
+        assertEquals("$3\r\nabc\r\n$100000\r\n" + "\0".repeat(100_000) + "\r\n", flushed());
+    }
+
+    @Test
+    void encodesCommandsForReplicas() {
+        String[] command = {"SET", "key", "value"};
+        byte[] bytes = OutputHandler.getBulkStringArray(command);
+        assertEquals("*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n", new String(bytes, StandardCharsets.ISO_8859_1));
+        assertEquals(bytes.length, OutputHandler.getBulkStringArrayLength(command));
+    }
+}
@@ -0,0 +1,293 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link RdbWriter}, {@link RdbReader} and {@link RdbPersistence}.
+ */
+class RdbTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void computesRedisChecksum() {
+        Crc64 crc = new Crc64();
+        byte[] check = "123456789".getBytes(StandardCharsets.ISO_8859_1);
+        crc.update(check, 0, check.length);
+        assertEquals(0xe9c6d914c4b8d9caL, crc.getValue());
+    }
+
+    /**
+     * The empty database Redis 7.2 sends on a full resync, with integer encoded auxiliary fields.
+     */
+    @Test
+    void readsFileWrittenByRedis() throws IOException {
+        byte[] rdb = HexFormat.of().parseHex("524544495330303131fa0972656469732d76657205372e322e30fa0a72656469732d62697473c040fa056374696d65c26d08bc65fa08757365642d6d656dc2b0c41000fa08616f662d62617365c000fff06e3bfec0ff5aa2");
+        Map<String, byte[]> entries = new HashMap<>();
+        new RdbReader(new ByteArrayInputStream(rdb)).read((key, value, expiresAt) -> entries.put(key, value));
+        assertTrue(entries.isEmpty());
+    }
+
+    @Test
+    void readsBackWhatItWrites() throws IOException {
+        byte[] large = new byte[200_000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RdbWriter writer = new RdbWriter(bytes);
+        writer.writeHeader();
+        writer.writeEntry("plain", "value".getBytes(StandardCharsets.ISO_8859_1), -1);
+        writer.writeEntry("expiring", "soon".getBytes(StandardCharsets.ISO_8859_1), 1_700_000_000_000L);
+        writer.writeEntry("large", large, -1);
+        writer.finish();
+
+        Map<String, byte[]> values = new HashMap<>();
+        Map<String, Long> expiries = new HashMap<>();
+        new RdbReader(new ByteArrayInputStream(bytes.toByteArray())).read((key, value, expiresAt) -> {
+            values.put(key, value);
+            expiries.put(key, expiresAt);
+        });
+        assertEquals("value", new String(values.get("plain"), StandardCharsets.ISO_8859_1));
+        assertEquals(-1, expiries.get("plain"));
+        assertEquals(1_700_000_000_000L, expiries.get("expiring"));
+        assertArrayEquals(large, values.get("large"));
+
+        byte[] corrupt = bytes.toByteArray();
+        corrupt[corrupt.length - 20] ^= 1;
+        assertThrows(IOException.class,
+                () -> new RdbReader(new ByteArrayInputStream(corrupt)).read((key, value, expiresAt) -> {
+                }));
+    }
+
+    @Test
+    void savesAndLoadsStore() throws IOException {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            Path file = dir.resolve("dump-" + offHeap + ".rdb");
+            KeyValueHandler store = new KeyValueHandler(offHeap);
+            for (int i = 0; i < 1000; i++) {
+                store.set("key" + i, "value" + i);
+            }
+            store.set("volatile", "v", 60_000);
+            store.set("expired", "v", 1);
+            new RdbPersistence(store, file).save();
+
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            KeyValueHandler loaded = new KeyValueHandler(offHeap);
+            new RdbPersistence(loaded, file).load();
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("value" + i, loaded.get("key" + i));
+            }
+            assertEquals("v", loaded.get("volatile"));
+            assertNull(loaded.get("expired"));
+            assertEquals(1001, loaded.size());
+        }
+    }
+
+    /**
+     * A full resync payload is written straight from the store and restored by several workers as it is read.
+     */
+    @Test
+    void savesAndLoadsCollections() throws IOException {
+        Path file = dir.resolve("collections.rdb");
+        KeyValueHandler store = new KeyValueHandler();
+        for (int n : new int[]{3, 500}) {
+            store.update("hash" + n, HashValue.class, HashValue::new, hash -> {
+                for (int i = 0; i < n; i++) {
+                    hash.set("f" + i, ("v" + i).getBytes(StandardCharsets.ISO_8859_1));
+                }
+                return null;
+            });
+            store.update("list" + n, ListValue.class, ListValue::new, list -> {
+                for (int i = 0; i < n; i++) {
+                    list.push(("e" + i).getBytes(StandardCharsets.ISO_8859_1), false);
+                }
+                return null;
+            });
+            store.update("set" + n, SetValue.class, SetValue::new, set -> {
+                for (int i = 0; i < n; i++) {
+                    set.add("m" + i);
+                }
+                return null;
+            });
+            store.update("zset" + n, SortedSetValue.class, SortedSetValue::new, zset -> {
+                for (int i = 0; i < n; i++) {
+                    zset.add("m" + i, i == 0 ? Double.NEGATIVE_INFINITY : i / 3.0);
+                }
+                return null;
+            });
+        }
+        new RdbPersistence(store, file).save();
+
+        KeyValueHandler loaded = new KeyValueHandler();
+        new RdbPersistence(loaded, file).load();
+        assertEquals(8, loaded.size());
+        for (int n : new int[]{3, 500}) {
+            String encoding = n > 128 ? "hashtable" : "listpack";
+            assertEquals(encoding, loaded.encoding("hash" + n));
+            assertEquals("v" + (n - 1), new String(loaded.read("hash" + n, HashValue.class,
+                    hash -> hash.get("f" + (n - 1))), StandardCharsets.ISO_8859_1));
+            assertEquals("e" + (n - 1), new String(loaded.read("list" + n, ListValue.class,
+                    list -> list.get(-1)), StandardCharsets.ISO_8859_1));
+            assertEquals(n, loaded.read("set" + n, SetValue.class, SetValue::size));
+            boolean contains = loaded.read("set" + n, SetValue.class, set -> set.contains("m" + (n - 1)));
+            assertTrue(contains);
+            assertEquals(Double.NEGATIVE_INFINITY, loaded.read("zset" + n, SortedSetValue.class,
+                    zset -> zset.score("m0")));
+            assertEquals((n - 1) / 3.0, loaded.read("zset" + n, SortedSetValue.class,
+                    zset -> zset.score("m" + (n - 1))));
+            long rank = loaded.read("zset" + n, SortedSetValue.class, zset -> zset.rank("m" + (n - 1)));
+            assertEquals(n - 1, rank);
+        }
+        assertEquals(store.getUsedMemory(), loaded.getUsedMemory());
+    }
+
+    /**
+     * Streams are written as Redis writes them, a listpack per hundred entries, with integers and strings of every
+     * length encoding.
+     */
+    @Test
+    void savesAndLoadsStreams() throws IOException {
+        Path file = dir.resolve("streams.rdb");
+        KeyValueHandler store = new KeyValueHandler();
+        store.update("stream", StreamValue.class, StreamValue::new, stream -> {
+            for (int i = 0; i < 250; i++) {
+                String value = "v".repeat(i % 5 == 0 ? 5000 : i);
+                stream.append(new StreamValue.Id(1_700_000_000_000L + i * 1000L, i % 2), new String[]{
+                        "field", value, "n", String.valueOf(i - 100)}, 0);
+            }
+            return null;
+        });
+        new RdbPersistence(store, file).save();
+
+        KeyValueHandler loaded = new KeyValueHandler();
+        new RdbPersistence(loaded, file).load();
+        List<StreamValue.Entry> original = new ArrayList<>();
+        store.read("stream", StreamValue.class, stream -> stream.range(StreamValue.Id.MIN, StreamValue.Id.MAX, -1,
+                original::add));
+        List<StreamValue.Entry> read = new ArrayList<>();
+        loaded.read("stream", StreamValue.class, stream -> stream.range(StreamValue.Id.MIN, StreamValue.Id.MAX, -1,
+                read::add));
+        assertEquals(250, read.size());
+        for (int i = 0; i < 250; i++) {
+            assertEquals(original.get(i).id(), read.get(i).id());
+            assertArrayEquals(original.get(i).fieldsAndValues(), read.get(i).fieldsAndValues());
+        }
+        assertEquals(store.read("stream", StreamValue.class, StreamValue::lastId),
+                loaded.read("stream", StreamValue.class, StreamValue::lastId));
+        assertEquals("stream", loaded.type("stream"));
+    }
+
+    @Test
+    void streamsSnapshotIntoLoader() throws IOException {
+        KeyValueHandler store = new KeyValueHandler();
+        for (int i = 0; i < 10_000; i++) {
+            store.set("key" + i, "value" + i);
+        }
+        store.set("volatile", "v", 60_000);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        byte[] mark = "0123456789abcdef0123456789abcdef01234567".getBytes(StandardCharsets.ISO_8859_1);
+        new RdbPersistence(store, dir.resolve("unused.rdb")).writeTo(sent);
+        sent.writeBytes(mark);
+
+        KeyValueHandler loaded = new KeyValueHandler(true);
+        loaded.set("stale", "v");
+        loaded.clear();
+        InputHandler in = new InputHandler(new ByteArrayInputStream(sent.toByteArray()));
+        try (StoreLoader loader = new StoreLoader(loaded, 4)) {
+            new RdbReader(in.readPayloadUntil(mark)).read(loader);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals("value" + i, loaded.get("key" + i));
+        }
+        assertEquals("v", loaded.get("volatile"));
+        assertNull(loaded.get("stale"));
+        assertEquals(10_001, loaded.size());
+        assertEquals(store.getUsedMemory(), loaded.getUsedMemory());
+    }
+
+    /**
+     * A snapshot shows every key as it was when the snapshot started, however the keys change while it runs.
+     */
+    @Test
+    void snapshotIsPointInTimeUnderConcurrentWrites() throws Exception {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            KeyValueHandler store = new KeyValueHandler(offHeap);
+            int keys = 20_000;
+            for (int i = 0; i < keys; i++) {
+                store.set("key" + i, "old");
+            }
+            AtomicBoolean started = new AtomicBoolean();
+            AtomicBoolean done = new AtomicBoolean();
+            Thread writer = Thread.ofPlatform().start(() -> {
+                while (!started.get()) {
+                    Thread.onSpinWait();
+                }
+                for (int round = 0; !done.get(); round++) {
+                    for (int i = 0; i < keys && !done.get(); i += 7) {
+                        if ((i + round) % 3 == 0) {
+                            store.delete("key" + i);
+                        } else {
+                            store.set("key" + i, "new" + round);
+                        }
+                        store.set("added" + i, "new");
+                    }
+                }
+            });
+            Map<String, String> seen = new HashMap<>();
+            try {
+                store.snapshot((key, value, expiresAt) -> {
+                    started.set(true);
+                    String previous = seen.put(key, new String(value, StandardCharsets.ISO_8859_1));
+                    assertNull(previous, key + " visited twice");
+                });
+            } finally {
+                done.set(true);
+                writer.join();
+            }
+            assertEquals(keys, seen.size());
+            for (int i = 0; i < keys; i++) {
+                assertEquals("old", seen.get("key" + i));
+            }
+        }
+    }
+
+    @Test
+    void refusesConcurrentSaves() throws Exception {
+        KeyValueHandler store = new KeyValueHandler();
+        for (int i = 0; i < 100_000; i++) {
+            store.set("key" + i, "value" + i);
+        }
+        RdbPersistence rdb = new RdbPersistence(store, dir.resolve("dump.rdb"));
+        rdb.backgroundSave();
+        if (rdb.isSaving()) {
+            assertThrows(CommandException.class, rdb::save);
+        }
+        while (rdb.isSaving()) {
+            Thread.sleep(1);
+        }
+        assertTrue(Files.size(dir.resolve("dump.rdb")) > 0);
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ReplicaRegistry}.
+ */
+class ReplicaRegistryTest {
+    private static Replica replica(ReplicaRegistry registry) {
+        Replica replica = new Replica(new Socket(), 0, 0);
+        registry.add(replica);
+        return replica;
+    }
+
+    @Test
+    void returnsAtOnceWhenAlreadyAcknowledged() throws InterruptedException {
+        ReplicaRegistry registry = new ReplicaRegistry();
+        Replica first = replica(registry);
+        replica(registry);
+        registry.acknowledge(first, 100);
+
+        assertEquals(1, registry.await(100, 1, 0));
+        assertEquals(2, registry.await(0, 2, 0));
+    }
+
+    @Test
+    void timesOutWithTheReplicasThatAcknowledged() throws InterruptedException {
+        ReplicaRegistry registry = new ReplicaRegistry();
+        Replica first = replica(registry);
+        replica(registry);
+        registry.acknowledge(first, 100);
+
+        long start = System.nanoTime();
+        assertEquals(1, registry.await(100, 2, 100));
+        assertTrue(System.nanoTime() - start >= 100_000_000L);
+    }
+
+    /**
+     * A waiter is woken by the acknowledgement that satisfies it, not by a timeout, and acknowledgements short of
+     * its offset or going backwards leave it waiting.
+     */
+    @Test
+    void wakesWaitersAsSoonAsEnoughReplicasAcknowledge() throws Exception {
+        ReplicaRegistry registry = new ReplicaRegistry();
+        Replica first = replica(registry);
+        Replica second = replica(registry);
+        AtomicInteger early = new AtomicInteger(-1);
+        AtomicInteger late = new AtomicInteger(-1);
+        Thread earlyWaiter = Thread.ofVirtual().start(() -> {
+            try {
+                early.set(registry.await(50, 2, 60_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread lateWaiter = Thread.ofVirtual().start(() -> {
+            try {
+                late.set(registry.await(100, 1, 0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread.sleep(50);
+
+        registry.acknowledge(first, 60);
+        registry.acknowledge(first, 10);
+        Thread.sleep(50);
+        assertTrue(earlyWaiter.isAlive());
+        assertTrue(lateWaiter.isAlive());
+
+        long start = System.nanoTime();
+        registry.acknowledge(second, 50);
+        earlyWaiter.join(5_000);
+        assertEquals(2, early.get());
+        assertTrue(lateWaiter.isAlive());
+
+        registry.acknowledge(second, 100);
+        lateWaiter.join(5_000);
+        assertEquals(1, late.get());
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        assertEquals(60, first.getAckOffset());
+    }
+}
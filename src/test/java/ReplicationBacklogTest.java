@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ReplicationBacklog}.
+ */
+class ReplicationBacklogTest {
+    private static byte[] copyOfRange(ByteArrayOutputStream stream, long from) {
+        byte[] all = stream.toByteArray();
+        byte[] range = new byte[all.length - (int) from];
+        System.arraycopy(all, (int) from, range, 0, range.length);
+        return range;
+    }
+
+    @Test
+    void returnsWhatReplicasMissed() throws InterruptedException {
+        ReplicationBacklog backlog = new ReplicationBacklog(1024);
+        byte[] set = OutputHandler.getBulkStringArray("SET", "key", "value");
+        backlog.append(set);
+        long afterFirst = backlog.append(set);
+
+        assertEquals(2L * set.length, afterFirst);
+        assertArrayEquals(set, backlog.copyFrom(set.length));
+        assertEquals(0, backlog.copyFrom(afterFirst).length);
+        assertNull(backlog.copyFrom(afterFirst + 1));
+        assertEquals(afterFirst, backlog.awaitBeyond(0, 0));
+    }
+
+    @Test
+    void wakesSendersWhenTheStreamGrows() throws Exception {
+        ReplicationBacklog backlog = new ReplicationBacklog(1024);
+        long[] seen = new long[1];
+        Thread sender = Thread.ofVirtual().start(() -> {
+            try {
+                seen[0] = backlog.awaitBeyond(0, 10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread.sleep(50);
+        backlog.append(new byte[]{'+', 'x', '\r', '\n'});
+        sender.join(5_000);
+        assertEquals(4, seen[0]);
+    }
+
+    /**
+     * Once the ring buffer wraps around, only the most recent bytes can be sent; older offsets need a full resync.
+     * Ranges that wrap around come as two slices of the ring buffer.
+     */
+    @Test
+    void keepsOnlyTheMostRecentBytes() {
+        ReplicationBacklog backlog = new ReplicationBacklog(100);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            byte[] command = OutputHandler.getBulkStringArray("SET", "k" + i, "v" + i);
+            stream.writeBytes(command);
+            backlog.append(command);
+        }
+        long offset = backlog.getOffset();
+        assertEquals(stream.size(), offset);
+        assertEquals(offset - 100, backlog.getFirstOffset());
+        assertNull(backlog.copyFrom(offset - 101));
+        for (long from = offset - 100; from <= offset; from += 7) {
+            assertArrayEquals(copyOfRange(stream, from), backlog.copyFrom(from));
+        }
+
+        ByteBuffer[] slices = backlog.slices(offset - 60, offset - 10);
+        ByteBuffer joined = ByteBuffer.allocate(50);
+        for (ByteBuffer slice : slices) {
+            joined.put(slice);
+        }
+        byte[] expected = new byte[50];
+        System.arraycopy(stream.toByteArray(), (int) offset - 60, expected, 0, 50);
+        assertArrayEquals(expected, joined.array());
+        assertNull(backlog.slices(offset - 101, offset));
+        assertFalse(backlog.isRetained(offset - 101));
+
+        byte[] large = new byte[250];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        stream.writeBytes(large);
+        backlog.append(large);
+        assertArrayEquals(copyOfRange(stream, backlog.getOffset() - 100), backlog.copyFrom(backlog.getFirstOffset()));
+    }
+
+    /**
+     * Reads copy the stream in chunks no larger than the array, and fail once the start has been overwritten.
+     */
+    @Test
+    void readsCopiesOfTheStreamInChunks() {
+        ReplicationBacklog backlog = new ReplicationBacklog(100);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 30; i++) {
+            byte[] command = OutputHandler.getBulkStringArray("SET", "k" + i, "v" + i);
+            stream.writeBytes(command);
+            backlog.append(command);
+        }
+        long offset = backlog.getOffset();
+        byte[] chunk = new byte[40];
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        for (long from = offset - 90; from < offset; ) {
+            int n = backlog.read(from, chunk);
+            assertEquals(Math.min(40, offset - from), n);
+            read.write(chunk, 0, n);
+            from += n;
+        }
+        assertArrayEquals(copyOfRange(stream, offset - 90), read.toByteArray());
+        assertEquals(0, backlog.read(offset, chunk));
+        assertEquals(-1, backlog.read(offset - 101, chunk));
+
+        backlog.append(new byte[20]);
+        assertEquals(-1, backlog.read(offset - 90, chunk));
+    }
+}
@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ShardExecutor} and {@link MpscQueue}.
+ */
+class ShardExecutorTest {
+    @Test
+    void deliversEveryElementInOrderPerProducer() throws InterruptedException {
+        MpscQueue<long[]> queue = new MpscQueue<>();
+        int producers = 4;
+        int perProducer = 100_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    queue.offer(new long[]{producer, i});
+                }
+            }));
+        }
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            long[] element = queue.poll();
+            if (element == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            assertEquals(next[(int) element[0]]++, element[1]);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void runsTasksOnTheThreadOwningTheirShard() throws Exception {
+        ShardExecutor executor = new ShardExecutor(4);
+        assertEquals(4, executor.size());
+        int shard = executor.shardOf("key");
+        assertEquals(shard, executor.shardOf("key"));
+        AtomicReference<Thread> first = new AtomicReference<>();
+        AtomicReference<Thread> second = new AtomicReference<>();
+        executor.run(shard, task(() -> first.set(Thread.currentThread())));
+        executor.run(shard, task(() -> second.set(Thread.currentThread())));
+        assertSame(first.get(), second.get());
+        assertEquals("shard-" + shard, first.get().getName());
+
+        // A task may be run again once done, and its changes are visible to the waiting thread
+        int[] counter = new int[1];
+        ShardExecutor.Task increment = task(() -> counter[0]++);
+        for (int i = 0; i < 1000; i++) {
+            executor.run(i % 4, increment);
+        }
+        assertEquals(1000, counter[0]);
+    }
+
+    @Test
+    void runsTasksOnSeveralShardsAndRethrowsFailures() throws Exception {
+        ShardExecutor executor = new ShardExecutor(3);
+        String[] names = new String[3];
+        ShardExecutor.Task[] tasks = new ShardExecutor.Task[3];
+        for (int i = 0; i < 3; i++) {
+            int shard = i;
+            tasks[i] = task(() -> names[shard] = Thread.currentThread().getName());
+        }
+        tasks[1] = null;
+        executor.runAll(tasks);
+        assertEquals("shard-0", names[0]);
+        assertNull(names[1]);
+        assertEquals("shard-2", names[2]);
+
+        assertThrows(CommandException.class, () -> executor.run(0, task(() -> {
+            throw new CommandException("ERR failed on the shard");
+        })));
+        tasks[1] = task(() -> {
+            throw new CommandException("ERR failed on the shard");
+        });
+        assertThrows(CommandException.class, () -> executor.runAll(tasks));
+    }
+
+    private static ShardExecutor.Task task(Runnable body) {
+        return new ShardExecutor.Task() {
+            @Override
+            protected void execute() {
+                body.run();
+            }
+        };
+    }
+}
@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link StreamValue} and {@link BlockedClients}.
+ */
+class StreamValueTest {
+    private static StreamValue.Id id(String s) {
+        return StreamValue.Id.parse(s, 0);
+    }
+
+    private static List<String> ids(StreamValue stream, StreamValue.Id start, StreamValue.Id end, long count) {
+        List<String> ids = new ArrayList<>();
+        stream.range(start, end, count, entry -> ids.add(entry.id().toString()));
+        return ids;
+    }
+
+    @Test
+    void worksOutIdsOfNewEntries() {
+        StreamValue stream = new StreamValue();
+        assertThrows(CommandException.class, () -> stream.nextId("0-0"));
+        assertEquals("0-1", stream.nextId("0-*").toString());
+        stream.append(id("5-3"), new String[]{"f", "v"}, 0);
+        assertEquals("5-4", stream.nextId("5-*").toString());
+        assertEquals("6-0", stream.nextId("6-*").toString());
+        assertEquals("5-4", stream.nextId("5-4").toString());
+        assertThrows(CommandException.class, () -> stream.nextId("5-3"));
+        assertThrows(CommandException.class, () -> stream.nextId("4-*"));
+        assertThrows(CommandException.class, () -> stream.nextId("five"));
+        StreamValue.Id auto = stream.nextId("*");
+        assertTrue(auto.compareTo(id("5-3")) > 0);
+        assertEquals("18446744073709551615-18446744073709551615", StreamValue.Id.MAX.toString());
+        assertNull(StreamValue.Id.MAX.next());
+        assertEquals("4-18446744073709551615", id("5-0").previous().toString());
+    }
+
+    /**
+     * Ranges starting anywhere agree with a plain list of the entries, across many nodes.
+     */
+    @Test
+    void rangesOverManyNodes() {
+        StreamValue stream = new StreamValue();
+        List<String> all = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++) {
+            StreamValue.Id id = new StreamValue.Id(i / 3, i % 3);
+            stream.append(id, new String[]{"n", String.valueOf(i), "pad", "x".repeat(i % 50)}, 0);
+            all.add(id.toString());
+        }
+        assertEquals(1000, stream.size());
+        assertEquals(all, ids(stream, StreamValue.Id.MIN, StreamValue.Id.MAX, -1));
+        assertEquals(all.subList(300, 310), ids(stream, id(all.get(300)), StreamValue.Id.MAX, 10));
+        assertEquals(all.subList(500, 701), ids(stream, id(all.get(500)), id(all.get(700)), -1));
+        assertEquals(List.of(), ids(stream, id("999999"), StreamValue.Id.MAX, -1));
+        assertEquals(all.subList(0, 2), ids(stream, StreamValue.Id.MIN, id("0-2"), -1));
+
+        List<String> values = new ArrayList<>();
+        stream.range(id("100-1"), id("100-1"), -1, entry -> values.add(
+                new String(entry.fieldsAndValues()[1], StandardCharsets.ISO_8859_1)));
+        assertEquals(List.of("301"), values);
+
+        // A copy shares the full nodes, and the two go their own ways from then on
+        StreamValue copy = stream.copy();
+        copy.append(id("2000-0"), new String[]{"f", "v"}, 0);
+        assertEquals(1000, stream.size());
+        assertEquals(1001, copy.size());
+        assertEquals(all, ids(stream, StreamValue.Id.MIN, StreamValue.Id.MAX, -1));
+        assertEquals("2000-0", copy.lastId().toString());
+    }
+
+    @Test
+    void wakesBlockedClientsOnSignal() throws Exception {
+        BlockedClients blocked = new BlockedClients();
+        BlockedClients.Waiter waiter = blocked.block("a", "b");
+        BlockedClients.Waiter other = blocked.block("c");
+        assertEquals(2, blocked.size());
+        Thread.ofVirtual().start(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            blocked.signal("b");
+        });
+        long start = System.nanoTime();
+        assertTrue(waiter.await(60_000));
+        assertTrue(System.nanoTime() - start < 10_000_000_000L);
+        assertFalse(other.await(20));
+        blocked.unblock(waiter);
+        blocked.unblock(other);
+        assertEquals(0, blocked.size());
+    }
+}
@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link TrackingTable}.
+ */
+class TrackingTableTest {
+    @Test
+    void invalidatesKeysReadOnceChanged() {
+        TrackingTable table = new TrackingTable(0);
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        TrackingTable.Client a = new TrackingTable.Client(1, false, null, first::add);
+        TrackingTable.Client b = new TrackingTable.Client(2, false, null, second::add);
+        table.enable(a);
+        table.enable(b);
+        table.remember(a, "k");
+        table.remember(b, "k");
+        table.remember(a, "k");
+        table.remember(b, "other");
+        assertEquals(2, table.keyCount());
+
+        table.keyChanged("k");
+        table.keyChanged("k");
+        table.keyChanged("unread");
+        assertEquals(List.of("k"), first);
+        assertEquals(List.of("k"), second);
+        assertEquals(1, table.keyCount());
+
+        table.disable(b);
+        table.keyChanged("other");
+        assertEquals(List.of("k"), second);
+        assertEquals(1, table.clientCount());
+    }
+
+    @Test
+    void broadcastsChangesToKeysWithAPrefix() {
+        TrackingTable table = new TrackingTable(0);
+        List<String> users = new ArrayList<>();
+        List<String> all = new ArrayList<>();
+        table.enable(new TrackingTable.Client(1, false, List.of("user:", "session:"), users::add));
+        TrackingTable.Client everything = new TrackingTable.Client(2, false, List.of(""), all::add);
+        table.enable(everything);
+        assertEquals(3, table.prefixCount());
+
+        table.keyChanged("user:1");
+        table.keyChanged("session:1");
+        table.keyChanged("other");
+        table.keyChanged("user:1");
+        assertEquals(List.of("user:1", "session:1", "user:1"), users);
+        assertEquals(List.of("user:1", "session:1", "other", "user:1"), all);
+
+        table.disable(everything);
+        assertEquals(2, table.prefixCount());
+        assertThrows(IllegalArgumentException.class,
+                () -> table.enable(new TrackingTable.Client(3, false, List.of("user:", "user:1"), key -> { })));
+    }
+
+    @Test
+    void leavesOutChangesMadeByANoLoopClient() {
+        TrackingTable table = new TrackingTable(0);
+        List<String> invalidated = new ArrayList<>();
+        TrackingTable.Client client = new TrackingTable.Client(1, true, null, invalidated::add);
+        table.enable(client);
+        table.remember(client, "k");
+        table.setWriter(client);
+        table.keyChanged("k");
+        table.setWriter(null);
+        assertEquals(List.of(), invalidated);
+
+        table.remember(client, "k");
+        table.keyChanged("k");
+        assertEquals(List.of("k"), invalidated);
+    }
+
+    @Test
+    void invalidatesKeysToStayWithinItsMaximum() {
+        TrackingTable table = new TrackingTable(2);
+        List<String> invalidated = new ArrayList<>();
+        TrackingTable.Client client = new TrackingTable.Client(1, false, null, invalidated::add);
+        table.enable(client);
+        table.remember(client, "a");
+        table.remember(client, "b");
+        table.remember(client, "c");
+        assertEquals(2, table.keyCount());
+        assertEquals(1, invalidated.size());
+
+        table.setMaxKeys(0);
+        table.remember(client, invalidated.get(0));
+        assertEquals(3, table.keyCount());
+    }
+}